@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of an in-process event delivered by an Intent broadcast with the same
+ * event delivered by the EventBus, from publish on the test thread to receipt on a handler thread.
+ * Results are logged under this class's name.
+ */
+public class EventBusBenchmarkTest extends AndroidTestCase {
+    private final String TAG = this.getClass().getSimpleName();
+
+    private static final String ACTION = "com.dennisgove.endo.comm.EventBusBenchmarkTest.action.EVENT";
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 1000;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private final Semaphore received = new Semaphore(0);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        thread.quit();
+        super.tearDown();
+    }
+
+    public void testEventBusIsFasterThanBroadcast() throws Exception {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                received.release();
+            }
+        };
+        getContext().registerReceiver(receiver, new IntentFilter(ACTION), null, handler);
+
+        long[] broadcast = new long[ITERATIONS];
+        try{
+            for(int idx = -WARMUP; idx < ITERATIONS; ++idx){
+                long start = System.nanoTime();
+                getContext().sendBroadcast(new Intent(ACTION));
+                awaitReceipt();
+                if(idx >= 0){
+                    broadcast[idx] = System.nanoTime() - start;
+                }
+            }
+        }finally{
+            getContext().unregisterReceiver(receiver);
+        }
+
+        EventBus bus = new EventBus();
+        bus.subscribe(ConnectionChangedEvent.class, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                handler.post(runnable);
+            }
+        }, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                received.release();
+            }
+        });
+
+        ConnectionChangedEvent event = new ConnectionChangedEvent(true);
+        long[] eventBus = new long[ITERATIONS];
+        for(int idx = -WARMUP; idx < ITERATIONS; ++idx){
+            long start = System.nanoTime();
+            bus.publish(event);
+            awaitReceipt();
+            if(idx >= 0){
+                eventBus[idx] = System.nanoTime() - start;
+            }
+        }
+
+        log("broadcast", broadcast);
+        log("event bus", eventBus);
+        assertTrue(median(eventBus) < median(broadcast));
+    }
+
+    private void awaitReceipt() throws InterruptedException {
+        assertTrue(received.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    private void log(String name, long[] latencies){
+        Arrays.sort(latencies);
+        Log.i(TAG, String.format("%s latency us: p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                name,
+                latencies[latencies.length / 2] / 1000.0,
+                latencies[latencies.length * 9 / 10] / 1000.0,
+                latencies[latencies.length * 99 / 100] / 1000.0,
+                latencies[latencies.length - 1] / 1000.0));
+    }
+
+    private static long median(long[] sorted){
+        return sorted[sorted.length / 2];
+    }
+}
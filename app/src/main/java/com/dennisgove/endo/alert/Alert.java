@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.alert;
+
+/**
+ * The conditions an AlertEngine watches for. A transmitter's alerts are independent of each
+ * other, except that LOW is not raised while URGENT_LOW is, and PREDICTED_LOW is not raised while
+ * either is.
+ */
+public enum Alert {
+    URGENT_LOW("Urgent low"),
+    LOW("Low"),
+    HIGH("High"),
+    RISING_FAST("Rising fast"),
+    FALLING_FAST("Falling fast"),
+    PREDICTED_LOW("Low soon"),
+    SIGNAL_LOSS("No readings");
+
+    public final String title;
+
+    Alert(String title){
+        this.title = title;
+    }
+}
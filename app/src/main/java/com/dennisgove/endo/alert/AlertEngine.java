@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.alert;
+
+import com.dennisgove.endo.util.Clock;
+
+/**
+ * Decides which of a transmitter's alerts are sounding, from one reading at a time.
+ *
+ * Each alert has a condition to enter and a looser one to leave, so a value sitting on a threshold
+ * does not flap in and out. It has to hold for debounce readings in a row before the alert is
+ * raised, so a single noisy reading does not raise it. A sounding alert may be snoozed; it stops
+ * sounding and is raised again if it still holds once the snooze ends.
+ *
+ * A reading costs the same fixed work for every alert, whatever the history. Readings no newer
+ * than the last, or older than MAX_READING_AGE_MILLIS, are ignored - a backfill of hours of
+ * readings raises nothing for readings that are past, and does not disturb alerts on the present.
+ * The listener is only told when an alert starts or stops sounding.
+ *
+ * Readings come from the transmitter's thread and ticks from a timer, so each is handled under
+ * the engine's lock; the listener is called holding it.
+ */
+public class AlertEngine {
+
+    public static final long MAX_READING_AGE_MILLIS = 10 * 60 * 1000L;
+    public static final long SIGNAL_LOSS_MILLIS = 20 * 60 * 1000L;
+    public static final int PREDICTION_MINUTES = 20;
+
+    public interface Listener {
+        /**
+         * @param glucose mg/dL of the reading which raised or cleared it, or 0 for SIGNAL_LOSS and
+         *                snoozes
+         */
+        void onAlertChanged(Alert alert, boolean isSounding, int glucose);
+    }
+
+    /**
+     * Thresholds in mg/dL, and mg/dL per minute for rates.
+     */
+    public static class Thresholds {
+        public int urgentLow = 55;
+        public int low = 70;
+        public int high = 250;
+        public double fastRate = 3;
+        // how far back past a threshold a value has to come to leave the alert
+        public int glucoseHysteresis = 10;
+        public double rateHysteresis = 1;
+        // readings in a row a condition has to hold before its alert is raised
+        public int debounce = 2;
+    }
+
+    private static final Alert[] ALERTS = Alert.values();
+
+    private final Clock clock;
+    private final Thresholds thresholds;
+    private final Listener listener;
+
+    // by Alert ordinal
+    private final boolean[] isActive = new boolean[ALERTS.length];
+    private final int[] heldFor = new int[ALERTS.length];
+    private final boolean[] isSounding = new boolean[ALERTS.length];
+    private final long[] snoozedUntil = new long[ALERTS.length];
+
+    private long lastReadingTimestamp = Long.MIN_VALUE;
+
+    public AlertEngine(Clock clock, Thresholds thresholds, Listener listener){
+        this.clock = clock;
+        this.thresholds = thresholds;
+        this.listener = listener;
+    }
+
+    /**
+     * @param timestamp ms since epoch the reading was received
+     * @param glucose mg/dL, or 0 if there is none
+     * @param rate mg/dL per minute, or NaN if not known
+     * @return false if the reading was ignored as being stale or out of order
+     */
+    public synchronized boolean onReading(long timestamp, int glucose, double rate){
+        long now = clock.currentTimeMillis();
+        if(timestamp <= lastReadingTimestamp || now - timestamp > MAX_READING_AGE_MILLIS){
+            return false;
+        }
+        lastReadingTimestamp = timestamp;
+
+        update(Alert.SIGNAL_LOSS, false, 0, 1);
+        if(glucose <= 0){
+            return true;
+        }
+
+        Thresholds t = thresholds;
+        boolean urgentLow = enters(Alert.URGENT_LOW, glucose <= t.urgentLow, glucose >= t.urgentLow + t.glucoseHysteresis);
+        update(Alert.URGENT_LOW, urgentLow, glucose, 1);
+
+        boolean low = enters(Alert.LOW, glucose < t.low, glucose >= t.low + t.glucoseHysteresis);
+        update(Alert.LOW, low && !urgentLow, glucose, t.debounce);
+
+        boolean high = enters(Alert.HIGH, glucose > t.high, glucose <= t.high - t.glucoseHysteresis);
+        update(Alert.HIGH, high, glucose, t.debounce);
+
+        // an unknown rate leaves the rate alerts
+        boolean hasRate = !Double.isNaN(rate);
+        boolean rising = hasRate && enters(Alert.RISING_FAST, rate >= t.fastRate, rate < t.fastRate - t.rateHysteresis);
+        update(Alert.RISING_FAST, rising, glucose, t.debounce);
+
+        boolean falling = hasRate && enters(Alert.FALLING_FAST, rate <= -t.fastRate, rate > -t.fastRate + t.rateHysteresis);
+        update(Alert.FALLING_FAST, falling, glucose, t.debounce);
+
+        double predicted = glucose + rate * PREDICTION_MINUTES;
+        boolean predictedLow = hasRate && enters(Alert.PREDICTED_LOW, predicted <= t.urgentLow, predicted >= t.urgentLow + t.glucoseHysteresis);
+        update(Alert.PREDICTED_LOW, predictedLow && !low && !urgentLow, glucose, t.debounce);
+
+        return true;
+    }
+
+    /**
+     * Checks for the loss of readings, and the end of snoozes. Called regularly whether or not
+     * readings are arriving.
+     */
+    public synchronized void onTick(){
+        long now = clock.currentTimeMillis();
+        boolean isLost = Long.MIN_VALUE != lastReadingTimestamp && now - lastReadingTimestamp > SIGNAL_LOSS_MILLIS;
+        update(Alert.SIGNAL_LOSS, isLost, 0, 1);
+
+        for(Alert alert : ALERTS){
+            if(alert != Alert.SIGNAL_LOSS){
+                sound(alert, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops the alert sounding until the time given, even if its condition still holds.
+     */
+    public synchronized void snooze(Alert alert, long untilMillis){
+        snoozedUntil[alert.ordinal()] = untilMillis;
+        sound(alert, 0);
+    }
+
+    public synchronized boolean isSounding(Alert alert){
+        return isSounding[alert.ordinal()];
+    }
+
+    public synchronized boolean isActive(Alert alert){
+        return isActive[alert.ordinal()];
+    }
+
+    /**
+     * Applies hysteresis: an alert which is not active enters on the tighter condition, and one
+     * which is stays until the looser condition to leave holds.
+     */
+    private boolean enters(Alert alert, boolean enter, boolean leave){
+        return isActive[alert.ordinal()] ? !leave : enter;
+    }
+
+    private void update(Alert alert, boolean holds, int glucose, int debounce){
+        int idx = alert.ordinal();
+        if(holds){
+            heldFor[idx] = Math.min(heldFor[idx] + 1, debounce);
+            isActive[idx] = heldFor[idx] >= debounce;
+        }else{
+            heldFor[idx] = 0;
+            isActive[idx] = false;
+        }
+        sound(alert, glucose);
+    }
+
+    private void sound(Alert alert, int glucose){
+        int idx = alert.ordinal();
+        boolean shouldSound = isActive[idx] && clock.currentTimeMillis() >= snoozedUntil[idx];
+        if(shouldSound != isSounding[idx]){
+            isSounding[idx] = shouldSound;
+            listener.onAlertChanged(alert, shouldSound, glucose);
+        }
+    }
+}
@@ -8,7 +8,10 @@ import android.util.Log;
 
 import com.dennisgove.endo.EndoApplication;
 import com.dennisgove.endo.comm.BroadcastReceiverCollection;
+import com.dennisgove.endo.comm.ConnectionChangedEvent;
 import com.dennisgove.endo.comm.EndoBroadcastReceiver;
+import com.dennisgove.endo.comm.EventBus;
+import com.dennisgove.endo.util.TraceBuffer;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -20,28 +23,28 @@ import javax.inject.Named;
  * bluetooth low energy (ble) and exposes various functions of the adapter as well as broadcasting
  * actions on various events.
  *
- * Broadcast Actions:
- * Certain events with the bluetooth adapter will result in the BleController broadcasting actions.
- * The broadcast actions are meant to notify listeners that some event occurred but does not include
- * must information (if any) about that event. It is suggested that listeners use the receipt of the
- * action as an opportunity to check all neccessary pieces of their bluetooth connectivity.
+ * Events:
+ * Certain events with the bluetooth adapter will result in the BleController publishing events on
+ * the EventBus. The events are meant to notify listeners that some event occurred but do not include
+ * much information (if any) about that event. It is suggested that listeners use the receipt of the
+ * event as an opportunity to check all neccessary pieces of their bluetooth connectivity.
  *
- * ACTION_CONNECTION_CHANGED - broadcast when any change in connectivity is found. This includes all
- *                             actions to turn bluetooth on or off, connecting or disconnecting
- *                             devices whether done via user action or any other means.
+ * ConnectionChangedEvent - published when bluetooth is turned on or off, whether done via user action
+ *                          or any other means.
  *
  */
 public class BleController {
     private final String TAG = this.getClass().getSimpleName();
 
-    public static final String ACTION_CONNECTION_CHANGED = "com.dennisgove.endo.ble.BleController.action.CONNECTION_CHANGED";
-
     // injected
     private EndoApplication endoApplication;
     @Inject @Named("applicationContext") Context applicationContext;
     @Inject BleAdapter bleAdapter;
+    @Inject EventBus eventBus;
+    @Inject TraceBuffer traceBuffer;
 
     // created internally
+    private TraceBuffer.Source trace;
     private boolean isStarted = false;
     private BroadcastReceiverCollection broadcastReceivers;
 
@@ -52,6 +55,7 @@ public class BleController {
     public void start() {
 
         endoApplication.getEndoManagerComponent().inject(this);
+        trace = traceBuffer.source(TAG);
         broadcastReceivers = new BroadcastReceiverCollection(endoApplication);
 
         // Register a state changed receiver (bluetooth on/off changes)
@@ -66,17 +70,22 @@ public class BleController {
                 switch(intent.getAction()){
                     case BluetoothAdapter.ACTION_STATE_CHANGED:
                         int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+                        trace.record(BleTraceEvent.ADAPTER_STATE, state);
 
                         // we only care about on/off states and can ignore turning on/off states
                         if(BluetoothAdapter.STATE_ON == state || BluetoothAdapter.STATE_OFF == state){
-                            Log.i(TAG, "Bluetooth state has changed - broadcasting action '" + ACTION_CONNECTION_CHANGED + "' + state '" + state + "'");
-                            applicationContext.sendBroadcast(
-                                    new Intent(ACTION_CONNECTION_CHANGED)
-                                            .addFlags(Intent.FLAG_FROM_BACKGROUND)
-                            );
+                            eventBus.publish(new ConnectionChangedEvent(BluetoothAdapter.STATE_ON == state));
                         }
                         break;
 
+                    case BluetoothDevice.ACTION_ACL_CONNECTED:
+                        trace.record(BleTraceEvent.ACL_CONNECTED);
+                        break;
+
+                    case BluetoothDevice.ACTION_ACL_DISCONNECTED:
+                        trace.record(BleTraceEvent.ACL_DISCONNECTED);
+                        break;
+
                     default:
                         Log.d(TAG, "BluetoothAdapter action '" + intent.getAction() + "' occurred but is being unhandled");
                 }
@@ -16,19 +16,16 @@
 package com.dennisgove.endo.ble;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
-import android.util.Log;
 
 import com.dennisgove.endo.EndoApplication;
-
-import java.util.ArrayList;
-import java.util.List;
+import com.dennisgove.endo.comm.EventBus;
+import com.dennisgove.endo.util.Clock;
+import com.dennisgove.endo.util.TraceBuffer;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -36,22 +33,53 @@ import javax.inject.Named;
 public abstract class BleDevice {
     private final String TAG = this.getClass().getSimpleName();
 
+    public static final int SCAN_FAILED_TIMED_OUT = -1;
+
     private final EndoApplication endoApplication;
     @Inject @Named("applicationContext") Context applicationContext;
     @Inject BleAdapter bleAdapter;
+    @Inject BleScanner bleScanner;
+    @Inject EventBus eventBus;
+    @Inject TraceBuffer traceBuffer;
+    @Inject Clock clock;
 
     private BluetoothDevice remoteDevice;
+    private volatile TraceBuffer.Source trace;
 
 
     public BleDevice(EndoApplication endoApplication){
         this.endoApplication = endoApplication;
         endoApplication.getEndoManagerComponent().inject(this);
+        trace = traceBuffer.source(TAG);
     }
 
     protected BleAdapter getBleAdapter(){
         return bleAdapter;
     }
 
+    protected Clock getClock(){
+        return clock;
+    }
+
+    protected EventBus getEventBus(){
+        return eventBus;
+    }
+
+    protected Context getApplicationContext(){
+        return applicationContext;
+    }
+
+    protected TraceBuffer.Source getTrace(){
+        return trace;
+    }
+
+    /**
+     * Records this device's trace events under a new name, such as one identifying the device.
+     */
+    protected void setTraceName(String name){
+        trace = traceBuffer.source(name);
+    }
+
     /**
      * Begins a BLE scan for the device with the provided name. provided callback
      * will be called when a device with that name is called (or an error occurs).
@@ -61,57 +89,45 @@ public abstract class BleDevice {
      * @param callback called when device is found or an error occurs
      */
     protected void scanForDevice(final String deviceName, final ScanCallback callback) {
-        Log.i(TAG, "Scanning for deviceName = '" + deviceName + "'");
-
-        ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                .build();
-        List<ScanFilter> filters = new ArrayList<>();
-        filters.add(new ScanFilter.Builder().setDeviceName(deviceName).build());
-        final BluetoothLeScanner bleScanner = bleAdapter.getBluetoothLeScanner();
-
-        bleScanner.startScan(filters, settings, new ScanCallback() {
-            @Override
-            public void onScanResult(int callbackType, ScanResult result) {
-                super.onScanResult(callbackType, result);
-                Log.i(TAG, "Scan for device '" + deviceName + "' got a result");
-
-                // Stop ongoing scan
-                bleScanner.stopScan(new ScanCallback() {
-                    @Override
-                    public void onScanFailed(int errorCode) {
-                        super.onScanFailed(errorCode);
-                        Log.e(TAG, "Failed to stop scan for device '" + deviceName + "'");
-                    }
-                });
-
-                // Call user's handler
-                callback.onScanResult(callbackType, result);
-            }
-
-            @Override
-            public void onScanFailed(int errorCode) {
-                super.onScanFailed(errorCode);
-                Log.e(TAG, "Scan for device '" + deviceName + "' failed with errorCode=" + errorCode);
-
-                // Stop ongoing scan
-                bleScanner.stopScan(new ScanCallback() {
-                    @Override
-                    public void onScanFailed(int errorCode) {
-                        super.onScanFailed(errorCode);
-                        Log.e(TAG, "Failed to stop scan for device '" + deviceName + "'");
-                    }
-                });
-
-                // Call user's handler
-                callback.onScanFailed(errorCode);
-            }
-        });
+        scanForDevice(deviceName, ScanSettings.SCAN_MODE_LOW_LATENCY, ScanScheduler.MAX_SCAN_MILLIS, callback);
     }
 
-    protected void connectToDevice(BluetoothDevice device, BluetoothGattCallback callback){
-        Log.i(TAG, "Connecting to device '" + device.getName() + "'");
+    /**
+     * Begins a BLE scan for the device with the provided name, in a ScanScheduler mode.
+     */
+    protected void scanForDevice(final String deviceName, ScanScheduler.Mode mode, long durationMillis, final ScanCallback callback) {
+        int scanMode = ScanScheduler.Mode.LOW_LATENCY == mode ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_LOW_POWER;
+        scanForDevice(deviceName, scanMode, durationMillis, callback);
+    }
+
+    /**
+     * Begins a BLE scan for the device with the provided name. The scan is stopped when the device
+     * is found, when the scan fails, or after durationMillis, whichever comes first. In the last
+     * case the callback's onScanFailed is called with SCAN_FAILED_TIMED_OUT. The scan is run by
+     * the app's shared BleScanner, alongside any other device's.
+     * @param deviceName BLE name of device, used as a ScanFilter
+     * @param scanMode one of the ScanSettings.SCAN_MODE_ values
+     * @param durationMillis longest time to scan for
+     * @param callback called when device is found or an error occurs
+     */
+    protected void scanForDevice(final String deviceName, int scanMode, long durationMillis, final ScanCallback callback) {
+        trace.record(BleTraceEvent.SCAN_START, scanMode, durationMillis);
+
+        bleScanner.scan(deviceName, scanMode, durationMillis, callback);
+    }
+
+    protected BluetoothGatt connectToDevice(BluetoothDevice device, BluetoothGattCallback callback){
+        return connectToDevice(device, false, callback);
+    }
+
+    /**
+     * Connects to the device. With autoConnect false the connection is attempted straight away
+     * and fails if the device is not found within a short time; with it true the controller keeps
+     * waiting for the device, at a lower duty cycle, until the returned BluetoothGatt is closed.
+     */
+    protected BluetoothGatt connectToDevice(BluetoothDevice device, boolean autoConnect, BluetoothGattCallback callback){
+        trace.record(BleTraceEvent.CONNECT, autoConnect ? 1 : 0);
 
-        device.connectGatt(applicationContext, false, callback);
+        return device.connectGatt(applicationContext, autoConnect, callback);
     }
 }
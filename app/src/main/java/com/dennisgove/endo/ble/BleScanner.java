@@ -0,0 +1,234 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.dennisgove.endo.util.TraceBuffer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The one BLE scan the app runs, shared by every BleDevice.
+ *
+ * Android only lets an app run a few scans at once and throttles apps which start scans too
+ * often, so devices ask the BleScanner to look for them by name rather than each running a scan
+ * of its own. The BleScanner runs a single scan filtering on every name asked for, in the most
+ * aggressive mode any request needs. Overlapping requests are served side by side by the same
+ * scan rather than one after the other. A result completes only the requests for that name; the
+ * rest keep scanning until their own deadlines.
+ *
+ * The scan is restarted only when the names or mode it needs change, and no more often than
+ * MIN_RESTART_INTERVAL_MILLIS. Names no longer asked for are left in the running scan's filters
+ * and their results ignored. When the scan fails it is started again for the requests still
+ * waiting, up to MAX_START_FAILURES times in a row; after that they all fail with the error. All
+ * work is done on the main thread.
+ */
+public class BleScanner {
+    private final String TAG = this.getClass().getSimpleName();
+
+    public static final long MIN_RESTART_INTERVAL_MILLIS = 6000; // Android allows 5 scan starts in 30s
+    public static final int MAX_START_FAILURES = 3;
+
+    private static final int NOT_SCANNING = Integer.MIN_VALUE;
+
+    private final BleAdapter bleAdapter;
+    private final TraceBuffer.Source trace;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Request> requests = new ArrayList<>();
+
+    // what the running scan filters on
+    private final Set<String> scanningNames = new HashSet<>();
+    private int scanningMode = NOT_SCANNING;
+    private long lastStartTime = Long.MIN_VALUE / 2;
+    private boolean isRestartPending = false;
+    private int startFailures = 0; // in a row
+
+    private final Runnable restart = new Runnable() {
+        @Override
+        public void run() {
+            isRestartPending = false;
+            updateScan();
+        }
+    };
+
+    public BleScanner(BleAdapter bleAdapter, TraceBuffer traceBuffer){
+        this.bleAdapter = bleAdapter;
+        this.trace = traceBuffer.source(TAG);
+    }
+
+    /**
+     * Scans for the device with the provided name until it is found, the scan fails, or
+     * durationMillis passes. Exactly one of callback's onScanResult or onScanFailed is called, on
+     * the main thread; after a timeout onScanFailed gets BleDevice.SCAN_FAILED_TIMED_OUT.
+     * @param scanMode one of the ScanSettings.SCAN_MODE_ values
+     */
+    public void scan(String deviceName, int scanMode, long durationMillis, ScanCallback callback){
+        final Request request = new Request(deviceName, scanMode, callback);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                requests.add(request);
+                updateScan();
+            }
+        });
+        handler.postDelayed(request.timeout, durationMillis);
+    }
+
+    private void updateScan(){
+        if(requests.isEmpty()){
+            stopScan();
+            return;
+        }
+
+        int mode = NOT_SCANNING;
+        Set<String> names = new HashSet<>();
+        for(Request request : requests){
+            mode = Math.max(mode, request.scanMode);
+            names.add(request.deviceName);
+        }
+
+        if(mode == scanningMode && scanningNames.containsAll(names)){
+            return;
+        }
+
+        long wait = lastStartTime + MIN_RESTART_INTERVAL_MILLIS - SystemClock.elapsedRealtime();
+        if(wait > 0){
+            if(!isRestartPending){
+                isRestartPending = true;
+                handler.postDelayed(restart, wait);
+            }
+            return;
+        }
+
+        startScan(names, mode);
+    }
+
+    private void startScan(Set<String> names, int mode){
+        stopScan();
+
+        Log.i(TAG, "Scanning for " + names + " with mode " + mode);
+        List<ScanFilter> filters = new ArrayList<>();
+        for(String name : names){
+            filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+        }
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(mode)
+                .build();
+
+        bleAdapter.getBluetoothLeScanner().startScan(filters, settings, scanCallback);
+        scanningNames.addAll(names);
+        scanningMode = mode;
+        lastStartTime = SystemClock.elapsedRealtime();
+    }
+
+    private void stopScan(){
+        if(NOT_SCANNING == scanningMode){
+            return;
+        }
+
+        // the scanner identifies a scan by the callback it was started with
+        BluetoothLeScanner scanner = bleAdapter.getBluetoothLeScanner();
+        if(null != scanner){
+            scanner.stopScan(scanCallback);
+        }
+        scanningNames.clear();
+        scanningMode = NOT_SCANNING;
+    }
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+
+            startFailures = 0;
+
+            String name = null == result.getScanRecord() ? result.getDevice().getName() : result.getScanRecord().getDeviceName();
+            for(Request request : new ArrayList<>(requests)){
+                if(request.deviceName.equals(name)){
+                    trace.record(BleTraceEvent.SCAN_RESULT);
+                    finish(request);
+                    request.callback.onScanResult(callbackType, result);
+                }
+            }
+            updateScan();
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.e(TAG, "Scan for " + scanningNames + " failed with errorCode=" + errorCode);
+            trace.record(BleTraceEvent.SCAN_FAILED, errorCode);
+
+            scanningNames.clear();
+            scanningMode = NOT_SCANNING;
+
+            // the requests keep their own deadlines while the scan is started again
+            if(++startFailures <= MAX_START_FAILURES){
+                updateScan();
+                return;
+            }
+
+            startFailures = 0;
+            for(Request request : new ArrayList<>(requests)){
+                finish(request);
+                request.callback.onScanFailed(errorCode);
+            }
+        }
+    };
+
+    private void finish(Request request){
+        requests.remove(request);
+        handler.removeCallbacks(request.timeout);
+    }
+
+    private class Request {
+        final String deviceName;
+        final int scanMode;
+        final ScanCallback callback;
+
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if(!requests.contains(Request.this)){
+                    return;
+                }
+
+                trace.record(BleTraceEvent.SCAN_TIMEOUT);
+                finish(Request.this);
+                callback.onScanFailed(BleDevice.SCAN_FAILED_TIMED_OUT);
+                updateScan();
+            }
+        };
+
+        Request(String deviceName, int scanMode, ScanCallback callback){
+            this.deviceName = deviceName;
+            this.scanMode = scanMode;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import com.dennisgove.endo.util.TraceBuffer;
+
+import java.util.UUID;
+
+/**
+ * TraceBuffer events for scanning, connections and GATT operations. Characteristics are recorded
+ * as the first 32 bits of their UUID, which is enough to tell the G5's apart.
+ */
+public enum BleTraceEvent implements TraceBuffer.Event {
+    SCAN_START("mode %d for %dms"),
+    SCAN_RESULT(""),
+    SCAN_TIMEOUT(""),
+    SCAN_FAILED("error %d"),
+    CONNECT("autoConnect %d"),
+    CONNECTION_STATE("state %d status %d"),
+    SERVICES_DISCOVERED("status %d"),
+    READ("%08X status %d"),
+    WRITE("%08X status %d"),
+    DESCRIPTOR_WRITE("%08X status %d"),
+    NOTIFICATION("%08X length %d"),
+    ADAPTER_STATE("state %d"),
+    ACL_CONNECTED(""),
+    ACL_DISCONNECTED("");
+
+    private final String format;
+
+    BleTraceEvent(String format){
+        this.format = format;
+    }
+
+    @Override
+    public String format(long a, long b) {
+        return String.format(format, a, b);
+    }
+
+    /**
+     * @return the part of the UUID recorded for a characteristic
+     */
+    public static long characteristic(UUID uuid){
+        return uuid.getMostSignificantBits() >>> 32;
+    }
+}
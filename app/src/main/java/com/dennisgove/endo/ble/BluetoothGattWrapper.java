@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.util.UUID;
+
+public class BluetoothGattWrapper implements GattClient {
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final BluetoothGatt gatt;
+
+    public BluetoothGattWrapper(BluetoothGatt gatt){
+        this.gatt = gatt;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return gatt.discoverServices();
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        return null != gattCharacteristic && gatt.readCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        if(null == gattCharacteristic){
+            return false;
+        }
+
+        gattCharacteristic.setValue(value);
+        return gatt.writeCharacteristic(gattCharacteristic);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        if(null == gattCharacteristic){
+            return false;
+        }
+
+        BluetoothGattDescriptor gattDescriptor = gattCharacteristic.getDescriptor(descriptor);
+        if(null == gattDescriptor){
+            Log.w(TAG, "Descriptor '" + descriptor + "' not found on characteristic '" + characteristic + "'");
+            return false;
+        }
+
+        gattDescriptor.setValue(value);
+        return gatt.writeDescriptor(gattDescriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) {
+        BluetoothGattCharacteristic gattCharacteristic = findCharacteristic(service, characteristic);
+        return null != gattCharacteristic && gatt.setCharacteristicNotification(gattCharacteristic, enable);
+    }
+
+    @Override
+    public void disconnect() {
+        gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        gatt.close();
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID service, UUID characteristic){
+        BluetoothGattService gattService = gatt.getService(service);
+        if(null == gattService){
+            Log.w(TAG, "Service '" + service + "' not found - have services been discovered?");
+            return null;
+        }
+
+        BluetoothGattCharacteristic gattCharacteristic = gattService.getCharacteristic(characteristic);
+        if(null == gattCharacteristic){
+            Log.w(TAG, "Characteristic '" + characteristic + "' not found in service '" + service + "'");
+        }
+
+        return gattCharacteristic;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import java.util.UUID;
+
+/**
+ * The GattClient is the set of GATT operations the GattOperationQueue needs from a connected
+ * device. Characteristics and descriptors are addressed by UUID so that nothing above this
+ * interface has to hold on to framework objects.
+ *
+ * Each call only starts the operation. A return value of false means the stack refused to start
+ * it (usually because another operation was still in flight); otherwise the result arrives later
+ * through the matching BluetoothGattCallback method.
+ */
+public interface GattClient {
+
+    boolean discoverServices();
+
+    boolean readCharacteristic(UUID service, UUID characteristic);
+    boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value);
+    boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value);
+
+    /**
+     * Enables or disables local delivery of notifications/indications for a characteristic. This
+     * completes synchronously - the remote side must still be told through its descriptor.
+     */
+    boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable);
+
+    void disconnect();
+    void close();
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a single GattOperation. The future completes exactly once, either with the GATT
+ * status reported by the stack (and the value for reads) or with one of the negative STATUS_
+ * codes when the operation never got an answer.
+ *
+ * Listeners are called on whichever thread completes the future, which for GATT results is the
+ * thread the BluetoothGattCallback was called on.
+ */
+public class GattFuture implements Future<byte[]> {
+
+    public static final int STATUS_SUCCESS = 0; // BluetoothGatt.GATT_SUCCESS
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_CANCELLED = -2;
+    public static final int STATUS_DISCONNECTED = -3;
+    public static final int STATUS_REJECTED = -4;
+
+    public interface Listener {
+        void onComplete(GattFuture future);
+    }
+
+    private final Object lock = new Object();
+    private List<Listener> listeners;
+    private boolean isDone = false;
+    private int status;
+    private byte[] value;
+
+    /**
+     * Adds a listener to be called when this future completes. If it has already completed then
+     * the listener is called immediately on the calling thread.
+     */
+    public GattFuture addListener(Listener listener){
+        synchronized(lock){
+            if(!isDone){
+                if(null == listeners){
+                    listeners = new ArrayList<>(1);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+
+        listener.onComplete(this);
+        return this;
+    }
+
+    /**
+     * Completes this future. Returns false if it had already been completed.
+     */
+    boolean complete(int status, byte[] value){
+        List<Listener> toCall;
+        synchronized(lock){
+            if(isDone){
+                return false;
+            }
+
+            this.status = status;
+            this.value = value;
+            isDone = true;
+            toCall = listeners;
+            listeners = null;
+            lock.notifyAll();
+        }
+
+        if(null != toCall){
+            for(Listener listener : toCall){
+                listener.onComplete(this);
+            }
+        }
+
+        return true;
+    }
+
+    public boolean isSuccess(){
+        synchronized(lock){
+            return isDone && STATUS_SUCCESS == status;
+        }
+    }
+
+    public int getStatus(){
+        synchronized(lock){
+            return status;
+        }
+    }
+
+    /**
+     * Value read from the characteristic, or null if this was not a successful read.
+     */
+    public byte[] getValue(){
+        synchronized(lock){
+            return value;
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(STATUS_CANCELLED, null);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized(lock){
+            return isDone && STATUS_CANCELLED == status;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized(lock){
+            return isDone;
+        }
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        synchronized(lock){
+            while(!isDone){
+                lock.wait();
+            }
+            return resultOrThrow();
+        }
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized(lock){
+            while(!isDone){
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0){
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return resultOrThrow();
+        }
+    }
+
+    private byte[] resultOrThrow() throws ExecutionException {
+        if(STATUS_SUCCESS != status){
+            throw new ExecutionException(new GattException(status));
+        }
+        return value;
+    }
+
+    public static class GattException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public GattException(int status){
+            super("GATT operation failed with status " + status);
+            this.status = status;
+        }
+
+        public int getStatus(){
+            return status;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import java.util.UUID;
+
+/**
+ * A single GATT request waiting in (or running at the head of) a GattOperationQueue.
+ */
+class GattOperation {
+
+    enum Type {
+        DISCOVER_SERVICES,
+        READ_CHARACTERISTIC,
+        WRITE_CHARACTERISTIC,
+        WRITE_DESCRIPTOR,
+        ENABLE_NOTIFICATION // local enable followed by a descriptor write
+    }
+
+    final Type type;
+    final UUID service;
+    final UUID characteristic;
+    final UUID descriptor;
+    final byte[] value;
+    final long timeoutMillis;
+    final GattFuture future = new GattFuture();
+
+    // set by the queue while this is the running operation
+    int attemptsRemaining;
+    int generation;
+
+    GattOperation(Type type, UUID service, UUID characteristic, UUID descriptor, byte[] value, long timeoutMillis, int attempts){
+        this.type = type;
+        this.service = service;
+        this.characteristic = characteristic;
+        this.descriptor = descriptor;
+        this.value = value;
+        this.timeoutMillis = timeoutMillis;
+        this.attemptsRemaining = attempts;
+    }
+
+    boolean start(GattClient client){
+        switch(type){
+            case DISCOVER_SERVICES:
+                return client.discoverServices();
+
+            case READ_CHARACTERISTIC:
+                return client.readCharacteristic(service, characteristic);
+
+            case WRITE_CHARACTERISTIC:
+                return client.writeCharacteristic(service, characteristic, value);
+
+            case WRITE_DESCRIPTOR:
+                return client.writeDescriptor(service, characteristic, descriptor, value);
+
+            case ENABLE_NOTIFICATION:
+                return client.setCharacteristicNotification(service, characteristic, true)
+                        && client.writeDescriptor(service, characteristic, descriptor, value);
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a callback of the given type for the given characteristic/descriptor belongs to
+     * this operation. Late callbacks for an operation that already timed out must not complete
+     * whichever operation happens to be running now.
+     */
+    boolean matches(Type callbackType, UUID callbackCharacteristic, UUID callbackDescriptor){
+        Type expectedType = Type.ENABLE_NOTIFICATION == type ? Type.WRITE_DESCRIPTOR : type;
+        if(expectedType != callbackType){
+            return false;
+        }
+        if(null != characteristic && !characteristic.equals(callbackCharacteristic)){
+            return false;
+        }
+        return null == descriptor || descriptor.equals(callbackDescriptor);
+    }
+
+    @Override
+    public String toString(){
+        return type + (null == characteristic ? "" : " " + characteristic);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The GattOperationQueue serializes all GATT requests made against a single connection.
+ *
+ * Android silently drops a GATT request that is issued while another one is still waiting for its
+ * callback, which leaves whoever issued it waiting forever. Every request made through this queue
+ * is instead held until the one before it has completed, then started, and given a deadline. Each
+ * request returns a GattFuture which completes when its callback arrives, when its deadline
+ * passes, or when the connection goes away.
+ *
+ * A request the stack refuses to start is retried after a short delay, and a request that times
+ * out is retried until its attempts are used up. A lost write therefore costs one deadline rather
+ * than the rest of the transmitter's wake window.
+ *
+ * The owner of the BluetoothGattCallback must pass the relevant callbacks to the on* methods.
+ */
+public class GattOperationQueue {
+
+    /**
+     * Told about every failed attempt at an operation, for keeping statistics. Called on whichever
+     * thread saw the failure, so must be quick.
+     */
+    public interface Monitor {
+        Monitor NONE = new Monitor() {
+            @Override
+            public void onRetry(int status) {
+            }
+
+            @Override
+            public void onError(int status) {
+            }
+        };
+
+        /**
+         * An attempt failed with status and will be retried.
+         */
+        void onRetry(int status);
+
+        /**
+         * An operation failed with status - a GATT status from the stack, or one of the
+         * GattFuture.STATUS_ values.
+         */
+        void onError(int status);
+    }
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1500;
+    public static final long DISCOVER_SERVICES_TIMEOUT_MILLIS = 5000;
+    public static final int DEFAULT_ATTEMPTS = 2;
+    public static final long REJECTED_RETRY_DELAY_MILLIS = 20;
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = BleServices.CharacteristicUpdateNotification;
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = { 0x01, 0x00 };
+    public static final byte[] ENABLE_INDICATION_VALUE = { 0x02, 0x00 };
+
+    private final GattClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Monitor monitor;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<GattOperation> pending = new ArrayDeque<>();
+    private GattOperation running;
+    private int generation = 0;
+    private boolean isClosed = false;
+
+    public GattOperationQueue(GattClient client, ScheduledExecutorService scheduler){
+        this(client, scheduler, Monitor.NONE);
+    }
+
+    public GattOperationQueue(GattClient client, ScheduledExecutorService scheduler, Monitor monitor){
+        this.client = client;
+        this.scheduler = scheduler;
+        this.monitor = monitor;
+    }
+
+    public GattFuture discoverServices(){
+        return enqueue(new GattOperation(GattOperation.Type.DISCOVER_SERVICES, null, null, null, null, DISCOVER_SERVICES_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    public GattFuture read(UUID service, UUID characteristic){
+        return enqueue(new GattOperation(GattOperation.Type.READ_CHARACTERISTIC, service, characteristic, null, null, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    public GattFuture write(UUID service, UUID characteristic, byte[] value){
+        return enqueue(new GattOperation(GattOperation.Type.WRITE_CHARACTERISTIC, service, characteristic, null, value, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    public GattFuture writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value){
+        return enqueue(new GattOperation(GattOperation.Type.WRITE_DESCRIPTOR, service, characteristic, descriptor, value, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    public GattFuture enableNotification(UUID service, UUID characteristic){
+        return enqueue(new GattOperation(GattOperation.Type.ENABLE_NOTIFICATION, service, characteristic, CLIENT_CHARACTERISTIC_CONFIG, ENABLE_NOTIFICATION_VALUE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    public GattFuture enableIndication(UUID service, UUID characteristic){
+        return enqueue(new GattOperation(GattOperation.Type.ENABLE_NOTIFICATION, service, characteristic, CLIENT_CHARACTERISTIC_CONFIG, ENABLE_INDICATION_VALUE, DEFAULT_TIMEOUT_MILLIS, DEFAULT_ATTEMPTS));
+    }
+
+    /**
+     * Number of operations waiting behind the running one.
+     */
+    public int getPendingCount(){
+        synchronized(lock){
+            return pending.size();
+        }
+    }
+
+    public void onServicesDiscovered(int status){
+        complete(GattOperation.Type.DISCOVER_SERVICES, null, null, status, null);
+    }
+
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status){
+        complete(GattOperation.Type.READ_CHARACTERISTIC, characteristic, null, status, value);
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, int status){
+        complete(GattOperation.Type.WRITE_CHARACTERISTIC, characteristic, null, status, null);
+    }
+
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status){
+        complete(GattOperation.Type.WRITE_DESCRIPTOR, characteristic, descriptor, status, null);
+    }
+
+    /**
+     * Fails the running and all pending operations with STATUS_DISCONNECTED. The queue can not be
+     * used afterwards.
+     */
+    public void onDisconnected(){
+        failAll(GattFuture.STATUS_DISCONNECTED);
+    }
+
+    /**
+     * Cancels the running and all pending operations. The queue can not be used afterwards.
+     */
+    public void close(){
+        failAll(GattFuture.STATUS_CANCELLED);
+    }
+
+    private GattFuture enqueue(GattOperation operation){
+        boolean isRejected;
+        synchronized(lock){
+            isRejected = isClosed;
+            if(!isClosed){
+                pending.addLast(operation);
+            }
+        }
+
+        if(isRejected){
+            operation.future.complete(GattFuture.STATUS_CANCELLED, null);
+        }else{
+            startNext();
+        }
+
+        return operation.future;
+    }
+
+    /**
+     * Starts the operation at the head of the queue if nothing is currently running.
+     */
+    private void startNext(){
+        GattOperation operation;
+        synchronized(lock){
+            if(null != running || isClosed){
+                return;
+            }
+            operation = pending.pollFirst();
+            if(null == operation){
+                return;
+            }
+            running = operation;
+            operation.generation = ++generation;
+        }
+
+        attempt(operation);
+    }
+
+    private void attempt(final GattOperation operation){
+        final int attemptGeneration;
+        synchronized(lock){
+            if(running != operation){
+                return;
+            }
+            operation.attemptsRemaining--;
+            attemptGeneration = operation.generation;
+        }
+
+        if(operation.start(client)){
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onDeadline(operation, attemptGeneration);
+                }
+            }, operation.timeoutMillis, TimeUnit.MILLISECONDS);
+        }else{
+            retryOrFail(operation, attemptGeneration, GattFuture.STATUS_REJECTED, REJECTED_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private void onDeadline(GattOperation operation, int attemptGeneration){
+        retryOrFail(operation, attemptGeneration, GattFuture.STATUS_TIMEOUT, 0);
+    }
+
+    private void retryOrFail(final GattOperation operation, int attemptGeneration, int failureStatus, long retryDelayMillis){
+        boolean shouldRetry;
+        synchronized(lock){
+            if(running != operation || operation.generation != attemptGeneration){
+                // already completed, or a later attempt is in progress
+                return;
+            }
+
+            shouldRetry = operation.attemptsRemaining > 0;
+            if(shouldRetry){
+                operation.generation = ++generation;
+            }else{
+                running = null;
+            }
+        }
+
+        if(shouldRetry){
+            monitor.onRetry(failureStatus);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt(operation);
+                }
+            }, retryDelayMillis, TimeUnit.MILLISECONDS);
+        }else{
+            monitor.onError(failureStatus);
+            operation.future.complete(failureStatus, null);
+            startNext();
+        }
+    }
+
+    private void complete(GattOperation.Type callbackType, UUID characteristic, UUID descriptor, int status, byte[] value){
+        GattOperation operation;
+        synchronized(lock){
+            operation = running;
+            if(null == operation || !operation.matches(callbackType, characteristic, descriptor)){
+                // a late answer to an operation which has already timed out
+                return;
+            }
+            running = null;
+        }
+
+        if(GattFuture.STATUS_SUCCESS != status){
+            monitor.onError(status);
+        }
+        operation.future.complete(status, value);
+        startNext();
+    }
+
+    private void failAll(int status){
+        List<GattOperation> toFail = new ArrayList<>();
+        synchronized(lock){
+            isClosed = true;
+            if(null != running){
+                toFail.add(running);
+                running = null;
+            }
+            toFail.addAll(pending);
+            pending.clear();
+        }
+
+        for(GattOperation operation : toFail){
+            operation.future.complete(status, null);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import com.dennisgove.endo.util.Clock;
+
+/**
+ * Decides when, and how hard, to scan for a device which wakes and advertises on a fixed period,
+ * such as a G5 transmitter which advertises for a few seconds every 5 minutes.
+ *
+ * Until the device has been seen, or after it has been missed MAX_MISSES times in a row, the
+ * scheduler asks for a wide search: a low power scan long enough to cover a whole period. Once
+ * the time of an advertisement is known it asks for a short low latency window around the next
+ * expected advertisement, and nothing in between. Each miss widens the window. The period itself
+ * is learned from the gaps between advertisements, within MAX_PERIOD_ERROR of the nominal period.
+ *
+ * No window is ever longer than MAX_SCAN_MILLIS.
+ */
+public class ScanScheduler {
+
+    public static final long DEFAULT_PERIOD_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_GUARD_MILLIS = 10 * 1000;
+    public static final long MAX_SCAN_MILLIS = 6 * 60 * 1000;
+    public static final int MAX_MISSES = 3;
+
+    private static final double MAX_PERIOD_ERROR = 0.02;
+    private static final int MAX_PERIODS_BETWEEN_ADVERTISEMENTS = 12; // beyond this the phase is too stale to learn the period from
+
+    public enum Mode {
+        LOW_LATENCY,
+        LOW_POWER
+    }
+
+    /**
+     * A scan to run from startTime for duration ms.
+     */
+    public static class Window {
+        public final Mode mode;
+        public final long startTime;
+        public final long duration;
+
+        Window(Mode mode, long startTime, long duration){
+            this.mode = mode;
+            this.startTime = startTime;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return mode + " scan at " + startTime + " for " + duration + "ms";
+        }
+    }
+
+    private final Clock clock;
+    private final long nominalPeriod;
+    private final long guard;
+
+    private long period;
+    private long lastSeen = -1;
+    private int misses = 0;
+
+    public ScanScheduler(Clock clock){
+        this(clock, DEFAULT_PERIOD_MILLIS, DEFAULT_GUARD_MILLIS);
+    }
+
+    public ScanScheduler(Clock clock, long nominalPeriod, long guard){
+        this.clock = clock;
+        this.nominalPeriod = nominalPeriod;
+        this.period = nominalPeriod;
+        this.guard = guard;
+    }
+
+    /**
+     * The next scan to run, which starts now or later.
+     */
+    public synchronized Window nextWindow(){
+        long now = clock.currentTimeMillis();
+
+        if(!isPhaseKnown()){
+            return new Window(Mode.LOW_POWER, now, Math.min(period + 2 * guard, MAX_SCAN_MILLIS));
+        }
+
+        // first expected advertisement whose normal window has not already closed, so a window
+        // which was just missed is not offered again
+        long elapsed = now - guard - lastSeen;
+        long periods = elapsed < 0 ? 1 : elapsed / period + 1;
+        long expected = lastSeen + periods * period;
+
+        long windowGuard = guard * (1 + misses);
+
+        long start = Math.max(now, expected - windowGuard);
+        long end = expected + windowGuard;
+        return new Window(Mode.LOW_LATENCY, start, Math.min(end - start, MAX_SCAN_MILLIS));
+    }
+
+    /**
+     * Records that the device was seen now.
+     */
+    public synchronized void onAdvertisement(){
+        long now = clock.currentTimeMillis();
+
+        if(lastSeen >= 0 && now > lastSeen){
+            long interval = now - lastSeen;
+            long periods = Math.round((double)interval / period);
+            if(periods >= 1 && periods <= MAX_PERIODS_BETWEEN_ADVERTISEMENTS){
+                long measured = interval / periods;
+                if(Math.abs(measured - nominalPeriod) <= nominalPeriod * MAX_PERIOD_ERROR){
+                    period += (measured - period) / 4;
+                }
+            }
+        }
+
+        lastSeen = now;
+        misses = 0;
+    }
+
+    /**
+     * Records that a window returned by nextWindow() ended without the device being seen.
+     */
+    public synchronized void onMissed(){
+        ++misses;
+    }
+
+    public synchronized boolean isPhaseKnown(){
+        return lastSeen >= 0 && misses < MAX_MISSES;
+    }
+
+    public synchronized long getPeriod(){
+        return period;
+    }
+}
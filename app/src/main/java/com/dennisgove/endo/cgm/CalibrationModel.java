@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+
+/**
+ * Maps a sensor's raw filtered value to glucose, fitted from fingerstick calibrations.
+ *
+ * The fit is a weighted least squares line through every calibration, with each calibration's
+ * weight halving every halfLifeMillis after it was taken so that the fit follows the sensor's
+ * drift. Decaying every weight by the same factor is the same as decaying the weighted sums, so a
+ * new calibration scales the five sums and adds itself to them - the same cost however many came
+ * before. The fitted line is published as one immutable Fit, so mapping a value takes no lock and
+ * never sees a slope from one fit with the intercept of another.
+ *
+ * Until there are two calibrations far enough apart in raw value to fit a line, the line is taken
+ * through the origin.
+ */
+public class CalibrationModel {
+
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+
+    // what a receiver will show
+    public static final int MIN_GLUCOSE = 40;
+    public static final int MAX_GLUCOSE = 400;
+
+    // raw values are in the thousands per mg/dL; fitted in thousands to keep the sums small
+    private static final double RAW_SCALE = 1000.0;
+
+    private final double decayPerMilli;
+
+    // weighted sums over every calibration, as of lastCalibrationTime
+    private double sumW;
+    private double sumX;
+    private double sumY;
+    private double sumXX;
+    private double sumXY;
+    private long lastCalibrationTime = Long.MIN_VALUE;
+    private int count = 0;
+
+    private volatile Fit fit = null;
+
+    /**
+     * glucose = slope * raw + intercept
+     */
+    public static final class Fit {
+        public final double slope;
+        public final double intercept;
+
+        Fit(double slope, double intercept){
+            this.slope = slope;
+            this.intercept = intercept;
+        }
+    }
+
+    public CalibrationModel(){
+        this(DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    public CalibrationModel(long halfLifeMillis){
+        this.decayPerMilli = Math.log(2) / halfLifeMillis;
+    }
+
+    /**
+     * @param timestamp ms since epoch the fingerstick was taken
+     * @param glucose mg/dL from the fingerstick
+     * @param raw the sensor's filtered value at the time
+     * @return false if the calibration was not used, as the values cannot be right or it is older
+     *         than the last one
+     */
+    public synchronized boolean addCalibration(long timestamp, int glucose, int raw){
+        if(glucose < MIN_GLUCOSE || glucose > MAX_GLUCOSE || raw <= 0 || timestamp < lastCalibrationTime){
+            return false;
+        }
+
+        if(0 != count){
+            double decay = Math.exp(-decayPerMilli * (timestamp - lastCalibrationTime));
+            sumW *= decay;
+            sumX *= decay;
+            sumY *= decay;
+            sumXX *= decay;
+            sumXY *= decay;
+        }
+        lastCalibrationTime = timestamp;
+        ++count;
+
+        double x = raw / RAW_SCALE;
+        sumW += 1;
+        sumX += x;
+        sumY += glucose;
+        sumXX += x * x;
+        sumXY += x * glucose;
+
+        fit = solve();
+        return true;
+    }
+
+    private Fit solve(){
+        double denominator = sumW * sumXX - sumX * sumX;
+        // spread of raw values as a fraction of their size, so independent of scale
+        if(denominator > 1e-6 * sumW * sumXX){
+            double slope = (sumW * sumXY - sumX * sumY) / denominator;
+            if(slope > 0){
+                return new Fit(slope / RAW_SCALE, (sumY - slope * sumX) / sumW);
+            }
+        }
+        return new Fit(sumXY / sumXX / RAW_SCALE, 0);
+    }
+
+    public boolean isCalibrated(){
+        return null != fit;
+    }
+
+    /**
+     * @return the current fit, or null if there have been no calibrations
+     */
+    public Fit getFit(){
+        return fit;
+    }
+
+    public synchronized int getCalibrationCount(){
+        return count;
+    }
+
+    /**
+     * @return mg/dL, or 0 if there have been no calibrations
+     */
+    public int toGlucose(int raw){
+        Fit current = fit;
+        if(null == current){
+            return 0;
+        }
+        return clamp(current.slope * raw + current.intercept);
+    }
+
+    /**
+     * Recalculates glucose from filtered for every reading in the buffer which has raw values,
+     * with the current fit, in one pass over the columns. Readings without raw values keep the
+     * glucose they have.
+     * @return false if there have been no calibrations, leaving the buffer unchanged
+     */
+    public boolean recalibrate(ReadingBuffer readings){
+        Fit current = fit;
+        if(null == current){
+            return false;
+        }
+
+        double slope = current.slope;
+        double intercept = current.intercept;
+        int[] filtered = readings.filtered;
+        int[] glucose = readings.glucose;
+        int[] flags = readings.flags;
+        int size = readings.size();
+        for(int idx = 0; idx < size; ++idx){
+            int calibrated = clamp(slope * filtered[idx] + intercept);
+            boolean hasRaw = 0 != (flags[idx] & ReadingStore.FLAG_HAS_RAW);
+            glucose[idx] = hasRaw ? calibrated : glucose[idx];
+            flags[idx] = hasRaw ? flags[idx] | ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_CALIBRATED : flags[idx];
+        }
+        return true;
+    }
+
+    private static int clamp(double glucose){
+        return Math.max(MIN_GLUCOSE, Math.min(MAX_GLUCOSE, (int)Math.round(glucose)));
+    }
+}
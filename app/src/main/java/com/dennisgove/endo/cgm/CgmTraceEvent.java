@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.util.TraceBuffer;
+
+/**
+ * TraceBuffer events for following a transmitter from one wake window to the next.
+ */
+public enum CgmTraceEvent implements TraceBuffer.Event {
+    LOW_LATENCY_WINDOW("in %dms for %dms"),
+    LOW_POWER_WINDOW("in %dms for %dms"),
+    WINDOW_MISSED(""),
+    SCAN_FALLBACK("%dms left in window"),
+    LATE_CONNECTION(""),
+    STATE("") {
+        @Override
+        public String format(long a, long b) {
+            return STATES[(int)a] + " -> " + STATES[(int)b];
+        }
+    },
+    AUTHENTICATED("bonded %d"),
+    READING("glucose %d trend %d"),
+    READINGS_MISSED("%d"),
+    BACKFILLED("%d readings"),
+    CALIBRATION("%d mg/dL filtered %d"),
+    UNKNOWN_MESSAGE("%08X length %d"),
+    CALLBACK_DROPPED("") {
+        @Override
+        public String format(long a, long b) {
+            return CALLBACKS[(int)a];
+        }
+    },
+    CALLBACK_FAILED("") {
+        @Override
+        public String format(long a, long b) {
+            return CALLBACKS[(int)a];
+        }
+    };
+
+    // names of DexcomG5Transmitter's GATT callback kinds, by the value recorded with CALLBACK_DROPPED
+    // and CALLBACK_FAILED
+    static final String[] CALLBACKS = { "connection state", "services discovered", "read", "write", "notification", "descriptor write" };
+
+    private static final TransmitterState[] STATES = TransmitterState.values();
+
+    private final String format;
+
+    CgmTraceEvent(String format){
+        this.format = format;
+    }
+
+    @Override
+    public String format(long a, long b) {
+        return String.format(format, a, b);
+    }
+}
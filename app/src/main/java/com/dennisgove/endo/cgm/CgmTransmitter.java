@@ -18,37 +18,87 @@ package com.dennisgove.endo.cgm;
 
 import com.dennisgove.endo.EndoApplication;
 import com.dennisgove.endo.ble.BleDevice;
+import com.dennisgove.endo.comm.TransmitterStateEvent;
 
 public abstract class CgmTransmitter extends BleDevice {
 
     private final String TAG = this.getClass().getSimpleName();
 
-    public static final String STATE_SCANNING = "com.dennisgove.endo.cgm.CgmTransmitter.SCANNING";
-    public static final String STATE_CONNECTING = "com.dennisgove.endo.cgm.CgmTransmitter.CONNECTING";
-    public static final String STATE_CONNECTED = "com.dennisgove.endo.cgm.CgmTransmitter.CONNECTED";
-    public static final String STATE_DISCONNECTED = "com.dennisgove.endo.cgm.CgmTransmitter.DISCONNECTED";
-
-    private String state;
+    private final TransmitterStateMachine stateMachine;
     private String transmitterId;
+    private volatile TransmitterMetrics metrics = new TransmitterMetrics(null);
 
     public CgmTransmitter(EndoApplication endoApplication){
         super(endoApplication);
 
-        state = STATE_DISCONNECTED;
+        stateMachine = new TransmitterStateMachine(getClock(), new TransmitterStateMachine.Listener() {
+            @Override
+            public void onStateChanged(TransmitterState from, TransmitterState to, long timestamp, long duration) {
+                metrics.onLeftState(from, duration);
+                getTrace().record(CgmTraceEvent.STATE, from.ordinal(), to.ordinal());
+                getEventBus().publish(new TransmitterStateEvent(transmitterId, from, to, timestamp));
+            }
+        });
     }
 
     abstract public void connectToTransmitter(String transmitterId);
 
-    public final String getState(){
-        return state;
+    /**
+     * Drops any connection to the transmitter and stops trying to reconnect, until
+     * connectToTransmitter is called again.
+     */
+    abstract public void disconnect();
+
+    /**
+     * Disconnects for good, then releases the threads and files the transmitter holds. It cannot
+     * be connected again; start a new one instead.
+     */
+    abstract public void close();
+
+    /**
+     * Calibrates the sensor against a fingerstick, matched with the raw values of the reading
+     * taken closest to it.
+     * @param timestamp ms since epoch the fingerstick was taken
+     * @param glucose mg/dL from the fingerstick
+     * @return false if there is no reading with raw values near enough to it, or the values
+     *         cannot be right
+     */
+    abstract public boolean addCalibration(long timestamp, int glucose);
+
+    public final String getTransmitterId(){
+        return transmitterId;
+    }
+
+    /**
+     * Sets the transmitter this is for, starting a fresh set of metrics for it and tracing
+     * under its id.
+     */
+    protected final void setTransmitterId(String transmitterId){
+        this.transmitterId = transmitterId;
+        this.metrics = new TransmitterMetrics(transmitterId);
+        setTraceName(TAG + " " + transmitterId);
+    }
+
+    public final TransmitterState getState(){
+        return stateMachine.getState();
     }
 
     public final boolean isConnected(){
-        return STATE_CONNECTED == state;
+        return stateMachine.isConnected();
+    }
+
+    /**
+     * The transmitter's state, with when each state was entered and how long has been spent in it.
+     */
+    public final TransmitterStateMachine getStateMachine(){
+        return stateMachine;
     }
 
-    protected final void setState(String state){
-        this.state = state;
+    /**
+     * Latencies and failure counts for the transmitter since it was set.
+     */
+    public final TransmitterMetrics getMetrics(){
+        return metrics;
     }
 
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * The CRC-16 (CCITT, XModem variant) the G5 appends to most of its messages, stored little-endian
+ * in the last two bytes.
+ */
+public final class Crc16 {
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for(int idx = 0; idx < 256; ++idx){
+            int crc = idx << 8;
+            for(int bit = 0; bit < 8; ++bit){
+                crc = 0 != (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            TABLE[idx] = crc & 0xffff;
+        }
+    }
+
+    private Crc16(){}
+
+    public static int calculate(byte[] data, int offset, int length){
+        return update(0, data, offset, length);
+    }
+
+    /**
+     * Continues a crc over more data, for messages which arrive in several pieces.
+     */
+    public static int update(int crc, byte[] data, int offset, int length){
+        for(int idx = offset; idx < offset + length; ++idx){
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[idx]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+
+    /**
+     * Whether the last two bytes of the first length bytes of data are the crc of those before it.
+     */
+    public static boolean isValid(byte[] data, int length){
+        return length >= 2 && calculate(data, 0, length - 2) == LittleEndian.readUInt16(data, length - 2);
+    }
+
+    /**
+     * Writes the crc of the first length - 2 bytes of data into its last two bytes.
+     */
+    public static void append(byte[] data, int length){
+        LittleEndian.writeUInt16(data, length - 2, calculate(data, 0, length - 2));
+    }
+}
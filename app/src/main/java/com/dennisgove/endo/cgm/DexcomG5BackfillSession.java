@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+
+/**
+ * Reassembles and decodes a backfill download from a G5 transmitter.
+ *
+ * After a BackfillTx request is written to the control characteristic the transmitter sends the
+ * stored readings for the requested range as a series of notifications on the backfill
+ * characteristic, followed by a BackfillRx message on the control characteristic describing what
+ * it sent. Each backfill frame is
+ *    0  uint8   frame index, starting at 1
+ *    1  uint8   identifier of the download
+ *    2  ...     payload
+ * and the concatenated payloads are a 4 byte header followed by 8 byte records of
+ *    0  uint32  transmitter time
+ *    4  uint16  glucose (low 12 bits)
+ *    6  uint8   calibration state
+ *    7  int8    trend
+ *
+ * Records are decoded as soon as their bytes have arrived, straight into a reusable ReadingBuffer,
+ * so a download of any length never holds more than one partial record of raw bytes. The
+ * readings are handed to the listener only once the BackfillRx message confirms that the length
+ * and crc of everything received match what the transmitter sent.
+ *
+ * A session is reused for every download on a connection and must only be used from one thread
+ * at a time.
+ */
+public class DexcomG5BackfillSession implements DexcomG5MessageDecoder.MessageHandler {
+
+    public static final byte BACKFILL_RX_OPCODE = 0x51;
+    public static final int BACKFILL_RX_LENGTH = 20;
+
+    private static final int FRAME_HEADER_LENGTH = 2;
+    private static final int PAYLOAD_HEADER_LENGTH = 4;
+    private static final int RECORD_LENGTH = 8;
+
+    public interface Listener {
+        /**
+         * Called with every reading in the download. The buffer is reused by the next download.
+         */
+        void onBackfillComplete(ReadingBuffer readings);
+        void onBackfillFailed(String reason);
+    }
+
+    private final Listener listener;
+    private final ReadingBuffer readings = new ReadingBuffer();
+    private final byte[] partialRecord = new byte[RECORD_LENGTH];
+
+    private volatile boolean isActive = false;
+    private long currentTransmitterTime;
+    private long currentTimestamp;
+    private int expectedFrameIndex;
+    private int identifier;
+    private long receivedLength;
+    private int receivedCrc;
+    private int payloadOffset;
+    private int partialLength;
+
+    public DexcomG5BackfillSession(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Prepares for a new download. Transmitter times in the download are converted to wall clock
+     * timestamps using the given pair of matching times.
+     * @param currentTransmitterTime transmitter time, in seconds, at currentTimestamp
+     * @param currentTimestamp wall clock time in ms
+     */
+    public void start(long currentTransmitterTime, long currentTimestamp){
+        this.currentTransmitterTime = currentTransmitterTime;
+        this.currentTimestamp = currentTimestamp;
+
+        readings.clear();
+        isActive = true;
+        expectedFrameIndex = 1;
+        identifier = -1;
+        receivedLength = 0;
+        receivedCrc = 0;
+        payloadOffset = 0;
+        partialLength = 0;
+    }
+
+    public boolean isActive(){
+        return isActive;
+    }
+
+    /**
+     * Abandons the current download, if any, without calling the listener.
+     */
+    public void cancel(){
+        isActive = false;
+    }
+
+    /**
+     * Handles one notification from the backfill characteristic.
+     */
+    public void onFrame(byte[] frame){
+        if(!isActive || null == frame || frame.length <= FRAME_HEADER_LENGTH){
+            return;
+        }
+
+        int index = frame[0] & 0xff;
+        int frameIdentifier = frame[1] & 0xff;
+        if(1 == index){
+            identifier = frameIdentifier;
+        }
+        if(index != expectedFrameIndex || frameIdentifier != identifier){
+            fail("Backfill frame " + index + " out of sequence - expected " + expectedFrameIndex);
+            return;
+        }
+        ++expectedFrameIndex;
+
+        receivedLength += frame.length;
+        receivedCrc = Crc16.update(receivedCrc, frame, 0, frame.length);
+
+        for(int idx = FRAME_HEADER_LENGTH; idx < frame.length; ++idx, ++payloadOffset){
+            if(payloadOffset < PAYLOAD_HEADER_LENGTH){
+                continue;
+            }
+
+            partialRecord[partialLength++] = frame[idx];
+            if(RECORD_LENGTH == partialLength){
+                addRecord();
+                partialLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Handles the BackfillRx message which ends a download.
+     */
+    @Override
+    public boolean handle(byte[] message) {
+        if(BACKFILL_RX_LENGTH != message.length || !Crc16.isValid(message, BACKFILL_RX_LENGTH)){
+            return false;
+        }
+        if(!isActive){
+            return true;
+        }
+
+        int status = LittleEndian.readUInt8(message, 1);
+        long bufferLength = LittleEndian.readUInt32(message, 12);
+        int bufferCrc = LittleEndian.readUInt16(message, 16);
+
+        if(0 != status){
+            fail("Transmitter rejected backfill with status " + status);
+        }else if(bufferLength != receivedLength || bufferCrc != receivedCrc){
+            fail("Backfill incomplete - received " + receivedLength + " of " + bufferLength + " bytes");
+        }else{
+            isActive = false;
+            listener.onBackfillComplete(readings);
+        }
+        return true;
+    }
+
+    private void addRecord(){
+        long transmitterTime = LittleEndian.readUInt32(partialRecord, 0);
+        int glucose = LittleEndian.readUInt16(partialRecord, 4) & 0x0fff;
+        if(0 == glucose || transmitterTime > currentTransmitterTime){
+            return;
+        }
+
+        long timestamp = currentTimestamp - (currentTransmitterTime - transmitterTime) * 1000;
+        readings.add(timestamp, (int)transmitterTime, 0, 0, glucose, ReadingStore.FLAG_BACKFILL | ReadingStore.FLAG_HAS_GLUCOSE);
+    }
+
+    private void fail(String reason){
+        isActive = false;
+        listener.onBackfillFailed(reason);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds everything needed to authenticate with a single G5 transmitter: the AES key derived from
+ * the transmitter id, a cipher initialised with it, and the single-use token most recently sent
+ * in an auth request. All of it is built once per transmitter instead of once per handshake, so
+ * the provider lookup and key schedule are not paid again on every 5 minute reconnect.
+ *
+ * Instances are not thread safe. Each transmitter must use its own context from one thread at a
+ * time.
+ */
+public class DexcomG5CryptoContext {
+
+    public static final int TOKEN_LENGTH = 8;
+    public static final int HASH_LENGTH = 8;
+
+    private static final int BLOCK_LENGTH = 16;
+
+    // SecureRandom is thread safe and expensive to seed, so all contexts share one
+    private static final SecureRandom random = new SecureRandom();
+
+    private final String transmitterId;
+    private final Cipher cipher;
+    private final byte[] token = new byte[TOKEN_LENGTH];
+    private final byte[] plainBlock = new byte[BLOCK_LENGTH];
+    private final byte[] cipherBlock = new byte[BLOCK_LENGTH];
+
+    public DexcomG5CryptoContext(String transmitterId){
+        this.transmitterId = transmitterId;
+
+        // key is "00" + id + "00" + id as ASCII
+        byte[] key = new byte[BLOCK_LENGTH];
+        key[0] = key[1] = key[8] = key[9] = '0';
+        for(int idx = 0; idx < 6; ++idx){
+            key[2 + idx] = key[10 + idx] = (byte)transmitterId.charAt(idx);
+        }
+
+        try{
+            // The hashed data is always exactly one block, so padding would only ever add a
+            // second block whose output is thrown away.
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialise AES for transmitter '" + transmitterId + "'", e);
+        }
+    }
+
+    public String getTransmitterId(){
+        return transmitterId;
+    }
+
+    /**
+     * Generates a new single-use token, remembers it for isTokenHashValid, and writes it to out.
+     */
+    public void nextSingleUseToken(byte[] out, int offset){
+        random.nextBytes(token);
+        System.arraycopy(token, 0, out, offset, TOKEN_LENGTH);
+    }
+
+    /**
+     * Writes the HASH_LENGTH byte hash of the TOKEN_LENGTH bytes in data at dataOffset to out at
+     * outOffset. The hash is the first half of the AES encryption of the data repeated twice.
+     */
+    public void calculateHash(byte[] data, int dataOffset, byte[] out, int outOffset){
+        System.arraycopy(data, dataOffset, plainBlock, 0, TOKEN_LENGTH);
+        System.arraycopy(data, dataOffset, plainBlock, TOKEN_LENGTH, TOKEN_LENGTH);
+
+        try{
+            cipher.doFinal(plainBlock, 0, BLOCK_LENGTH, cipherBlock, 0);
+        } catch (GeneralSecurityException e) {
+            // can't happen for a single block with no padding
+            throw new IllegalStateException("Failed to calculate hash", e);
+        }
+
+        System.arraycopy(cipherBlock, 0, out, outOffset, HASH_LENGTH);
+    }
+
+    /**
+     * Checks the token hash the transmitter sent back in its challenge against the last token
+     * generated by this context. A mismatch means the transmitter is not the one we think it is.
+     */
+    public boolean isTokenHashValid(byte[] tokenHash, int offset){
+        calculateHash(token, 0, cipherBlock, 0);
+
+        int difference = 0;
+        for(int idx = 0; idx < HASH_LENGTH; ++idx){
+            difference |= cipherBlock[idx] ^ tokenHash[offset + idx];
+        }
+        return 0 == difference;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * Decodes messages received from a G5 transmitter. Each message is handed to the handler
+ * registered for its opcode (the first byte), which reads its little-endian fields straight out
+ * of the received array into a record owned by the decoder and passes that record on to the
+ * listener. Nothing is allocated per message.
+ *
+ * A decoder belongs to a single transmitter connection and must only be used from one thread at
+ * a time.
+ */
+public class DexcomG5MessageDecoder {
+
+    public static final byte SENSOR_RX_OPCODE = 0x2f;
+    public static final int SENSOR_RX_LENGTH = 16;
+
+    public static final byte GLUCOSE_RX_OPCODE = 0x31;
+    public static final int GLUCOSE_RX_LENGTH = 16;
+
+    public interface Listener {
+        void onSensorReading(SensorReading reading);
+        void onGlucoseReading(GlucoseReading reading);
+    }
+
+    public interface MessageHandler {
+        /**
+         * @return false if the message is malformed
+         */
+        boolean handle(byte[] message);
+    }
+
+    private final MessageHandler[] handlers = new MessageHandler[256];
+    private final Listener listener;
+    private final SensorReading sensorReading = new SensorReading();
+    private final GlucoseReading glucoseReading = new GlucoseReading();
+
+    public DexcomG5MessageDecoder(Listener listener){
+        this.listener = listener;
+
+        register(SENSOR_RX_OPCODE, new SensorRxHandler());
+        register(GLUCOSE_RX_OPCODE, new GlucoseRxHandler());
+    }
+
+    /**
+     * Registers the handler for messages starting with opcode, replacing any existing one.
+     */
+    public void register(byte opcode, MessageHandler handler){
+        handlers[opcode & 0xff] = handler;
+    }
+
+    /**
+     * Dispatches a received message to the handler for its opcode.
+     * @return false if the message is empty, has no handler, or is malformed
+     */
+    public boolean decode(byte[] message){
+        if(null == message || 0 == message.length){
+            return false;
+        }
+
+        MessageHandler handler = handlers[message[0] & 0xff];
+        return null != handler && handler.handle(message);
+    }
+
+    private class SensorRxHandler implements MessageHandler {
+        @Override
+        public boolean handle(byte[] message) {
+            if(SENSOR_RX_LENGTH != message.length || !Crc16.isValid(message, SENSOR_RX_LENGTH)){
+                return false;
+            }
+
+            sensorReading.set(
+                    LittleEndian.readUInt8(message, 1),
+                    LittleEndian.readUInt32(message, 2),
+                    LittleEndian.readInt32(message, 6),
+                    LittleEndian.readInt32(message, 10)
+            );
+            listener.onSensorReading(sensorReading);
+            return true;
+        }
+    }
+
+    private class GlucoseRxHandler implements MessageHandler {
+        @Override
+        public boolean handle(byte[] message) {
+            if(GLUCOSE_RX_LENGTH != message.length || !Crc16.isValid(message, GLUCOSE_RX_LENGTH)){
+                return false;
+            }
+
+            int glucoseBytes = LittleEndian.readUInt16(message, 10);
+            glucoseReading.set(
+                    LittleEndian.readUInt8(message, 1),
+                    LittleEndian.readUInt32(message, 2),
+                    LittleEndian.readUInt32(message, 6),
+                    glucoseBytes & 0x0fff,
+                    0 != (glucoseBytes & 0xf000),
+                    LittleEndian.readUInt8(message, 12),
+                    message[13] // signed
+            );
+            listener.onGlucoseReading(glucoseReading);
+            return true;
+        }
+    }
+}
@@ -15,91 +15,121 @@
  */
 package com.dennisgove.endo.cgm;
 
-import android.util.Log;
-
-import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.util.UUID;
+/**
+ * Builds the messages sent to a G5 transmitter. Messages are written into buffers supplied by the
+ * caller so a transmitter can reuse the same few arrays for every handshake.
+ */
+public class DexcomG5MessageFactory {
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.SecretKeySpec;
+    public static final byte AUTH_REQUEST_TX_OPCODE = 0x1;
+    public static final int AUTH_REQUEST_TX_LENGTH = 10;
 
-public class DexcomG5MessageFactory {
-    private static String TAG = DexcomG5MessageFactory.class.getSimpleName();
+    public static final byte AUTH_CHALLENGE_RX_OPCODE = 0x3;
+    public static final int AUTH_CHALLENGE_RX_LENGTH = 17;
+    public static final int AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET = 1;
+    public static final int AUTH_CHALLENGE_RX_CHALLENGE_OFFSET = 9;
 
-    private static byte[] generateSingleUseToken(){
-        byte[] uuidBytes = new byte[]{ 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-        UUID uuid = UUID.nameUUIDFromBytes(uuidBytes);
+    public static final byte AUTH_CHALLENGE_TX_OPCODE = 0x4;
+    public static final int AUTH_CHALLENGE_TX_LENGTH = 9;
 
-        try {
-            uuidBytes = uuid.toString().getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate a single-use token from an empty byte array");
-        }
+    public static final byte AUTH_STATUS_RX_OPCODE = 0x5;
+    public static final int AUTH_STATUS_RX_LENGTH = 3;
 
-        ByteBuffer bb = ByteBuffer.allocate(8);
-        bb.put(uuidBytes, 0, 8);
-        return bb.array();
-    }
+    public static final byte BOND_REQUEST_TX_OPCODE = 0x7;
+    public static final int BOND_REQUEST_TX_LENGTH = 1;
 
-    public static byte[] generateAuthenticationRequest(){
-        byte opCode = 0x1;
-        byte endByte = 0x2;
+    public static final byte SENSOR_TX_OPCODE = 0x2e;
+    public static final int SENSOR_TX_LENGTH = 3;
 
-        ByteBuffer buffer = ByteBuffer.allocate(10);
-        buffer.put(opCode);
-        buffer.put(generateSingleUseToken());
-        buffer.put(endByte);
+    public static final byte GLUCOSE_TX_OPCODE = 0x30;
+    public static final int GLUCOSE_TX_LENGTH = 3;
 
-        return buffer.array();
-    }
+    public static final byte BACKFILL_TX_OPCODE = 0x50;
+    public static final int BACKFILL_TX_LENGTH = 20;
 
-    public static byte[] generateAuthenticationChallenge(byte[] data, String transmitterId){
-        byte opCode = 0x4;
+    private static final byte AUTH_REQUEST_END_BYTE = 0x2;
 
-        ByteBuffer buffer = ByteBuffer.allocate(9);
-        buffer.put(opCode);
-        buffer.put(calculateHash(data, transmitterId));
+    /**
+     * Writes an auth request carrying a new single-use token into out, which must have room for
+     * AUTH_REQUEST_TX_LENGTH bytes.
+     * @return number of bytes written
+     */
+    public static int writeAuthenticationRequest(DexcomG5CryptoContext context, byte[] out){
+        out[0] = AUTH_REQUEST_TX_OPCODE;
+        context.nextSingleUseToken(out, 1);
+        out[AUTH_REQUEST_TX_LENGTH - 1] = AUTH_REQUEST_END_BYTE;
 
-        return buffer.array();
+        return AUTH_REQUEST_TX_LENGTH;
     }
 
-    private static byte[] calculateHash(byte[] data, String transmitterId){
-        if (data.length != 8) {
-            android.util.Log.e("Decrypt", "Data length should be exactly 8.");
-            return null;
-        }
+    /**
+     * Writes the answer to the challenge in an AuthChallengeRx message into out, which must have
+     * room for AUTH_CHALLENGE_TX_LENGTH bytes.
+     * @param challengeMessage the complete AuthChallengeRx message as read from the transmitter
+     * @return number of bytes written
+     */
+    public static int writeAuthenticationChallenge(DexcomG5CryptoContext context, byte[] challengeMessage, byte[] out){
+        out[0] = AUTH_CHALLENGE_TX_OPCODE;
+        context.calculateHash(challengeMessage, AUTH_CHALLENGE_RX_CHALLENGE_OFFSET, out, 1);
+
+        return AUTH_CHALLENGE_TX_LENGTH;
+    }
 
-        try{
-            byte[] key = ("00" + transmitterId + "00" + transmitterId).getBytes("UTF-8");
+    /**
+     * Writes a request for the transmitter to bond into out, which must have room for
+     * BOND_REQUEST_TX_LENGTH bytes. The bond itself is then made by the phone's Bluetooth stack.
+     * @return number of bytes written
+     */
+    public static int writeBondRequest(byte[] out){
+        out[0] = BOND_REQUEST_TX_OPCODE;
 
-            byte[] doubleData;
-            ByteBuffer bb = ByteBuffer.allocate(16);
-            bb.put(data);
-            bb.put(data);
+        return BOND_REQUEST_TX_LENGTH;
+    }
 
-            doubleData = bb.array();
+    /**
+     * Writes a request for the raw sensor values (answered with a SensorRx message) into out,
+     * which must have room for SENSOR_TX_LENGTH bytes.
+     * @return number of bytes written
+     */
+    public static int writeSensorRequest(byte[] out){
+        out[0] = SENSOR_TX_OPCODE;
+        Crc16.append(out, SENSOR_TX_LENGTH);
 
-            Cipher aesCipher;
+        return SENSOR_TX_LENGTH;
+    }
 
-            aesCipher = Cipher.getInstance("AES/ECB/PKCS7Padding");
-            SecretKeySpec skeySpec = new SecretKeySpec(key, "AES");
-            aesCipher.init(Cipher.ENCRYPT_MODE, skeySpec);
-            byte[] aesBytes = aesCipher.doFinal(doubleData, 0, doubleData.length);
+    /**
+     * Writes a request for the transmitter calculated glucose (answered with a GlucoseRx message)
+     * into out, which must have room for GLUCOSE_TX_LENGTH bytes.
+     * @return number of bytes written
+     */
+    public static int writeGlucoseRequest(byte[] out){
+        out[0] = GLUCOSE_TX_OPCODE;
+        Crc16.append(out, GLUCOSE_TX_LENGTH);
 
-            bb = ByteBuffer.allocate(8);
-            bb.put(aesBytes, 0, 8);
+        return GLUCOSE_TX_LENGTH;
+    }
 
-            return bb.array();
-        } catch (UnsupportedEncodingException | NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException | BadPaddingException | InvalidKeyException e) {
-            Log.e(TAG, "Failed to calculate hash", e);
+    /**
+     * Writes a request for the glucose stored by the transmitter between two transmitter times
+     * into out, which must have room for BACKFILL_TX_LENGTH bytes. The readings are sent as
+     * notifications on the backfill characteristic followed by a BackfillRx message.
+     * @param startTime first transmitter time, in seconds, to include
+     * @param endTime last transmitter time, in seconds, to include
+     * @return number of bytes written
+     */
+    public static int writeBackfillRequest(long startTime, long endTime, byte[] out){
+        out[0] = BACKFILL_TX_OPCODE;
+        out[1] = 0x5;
+        out[2] = 0x2;
+        out[3] = 0x0; // identifier
+        LittleEndian.writeInt32(out, 4, (int)startTime);
+        LittleEndian.writeInt32(out, 8, (int)endTime);
+        for(int idx = 12; idx < BACKFILL_TX_LENGTH - 2; ++idx){
+            out[idx] = 0;
         }
+        Crc16.append(out, BACKFILL_TX_LENGTH);
 
-        return null;
+        return BACKFILL_TX_LENGTH;
     }
 }
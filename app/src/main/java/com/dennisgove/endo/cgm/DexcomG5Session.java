@@ -0,0 +1,513 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.ble.BleServices;
+import com.dennisgove.endo.ble.GattFuture;
+import com.dennisgove.endo.ble.GattOperationQueue;
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.util.Clock;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything that happens over one connection to a G5 transmitter, once it is connected: service
+ * discovery, the auth handshake, the request for the current readings, decoding and storing the
+ * readings which come back, and backfilling any readings missed since the last connection.
+ *
+ * The session talks to the transmitter only through a GattOperationQueue, and is told about
+ * notifications by whoever owns the connection, so it does not depend on Android and runs
+ * against a simulated transmitter on the JVM just as against a real one. It moves the
+ * transmitter's state machine through the connected states; whoever owns the connection moves
+ * it into and out of them.
+ */
+public class DexcomG5Session implements DexcomG5MessageDecoder.Listener, DexcomG5BackfillSession.Listener {
+
+    // backfill when more than one 5 minute reading has been missed, up to a day at a time
+    static final long BACKFILL_GAP_SECONDS = 7 * 60;
+    static final long MAX_BACKFILL_SECONDS = 24 * 60 * 60;
+    static final long BACKFILL_TIMEOUT_MILLIS = 15000;
+    static final int BACKFILL_BATCH_SIZE = 64; // backfilled readings are stored, and committed, this many at a time
+    static final long READING_INTERVAL_SECONDS = 5 * 60;
+    static final long BOND_TIMEOUT_MILLIS = 30000;
+
+    // the last two bytes of an AuthStatusRx
+    static final byte AUTHENTICATED = 1;
+    static final byte BONDED = 1;
+
+    /**
+     * Progress of the session. Called on whichever thread completed the GATT operation or
+     * delivered the notification.
+     */
+    public interface Listener {
+        void onServicesDiscovered();
+
+        /**
+         * The transmitter has accepted the challenge response and been asked to bond. Whoever owns
+         * the connection makes the bond, and reports when it has with onBonded.
+         */
+        void onBondRequested();
+
+        /**
+         * @param wasBonded true if the transmitter was still bonded and the challenge was skipped
+         */
+        void onAuthenticated(boolean wasBonded);
+
+        /**
+         * A live reading was received and stored, and given to the TrendEstimator.
+         * @param flags ReadingStore.FLAG_ values
+         */
+        void onReading(long timestamp, int transmitterTime, int glucose, int trend, int flags);
+
+        /**
+         * The transmitter has taken readings since the last one stored which were not received.
+         * A backfill of them follows.
+         */
+        void onReadingsMissed(int count);
+
+        void onBackfillComplete(int readingCount);
+
+        /**
+         * The backfill did not complete. The live reading is in place and the session carries on.
+         */
+        void onBackfillFailed(String reason);
+
+        /**
+         * The session cannot continue, and the connection should be dropped.
+         */
+        void onFailed(String reason);
+    }
+
+    private final String transmitterId;
+    private final DexcomG5CryptoContext cryptoContext;
+    private final TransmitterPreferences transmitterPreferences;
+    private final ReadingStore readingStore;
+    private final TrendEstimator trendEstimator;
+    private final CalibrationModel calibration;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+    private final TransmitterStateMachine stateMachine;
+    private final Listener listener;
+
+    private final DexcomG5MessageDecoder decoder;
+    private final DexcomG5BackfillSession backfillSession;
+
+    private final byte[] authRequest = new byte[DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH];
+    private final byte[] authChallengeResponse = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH];
+    private final byte[] bondRequest = new byte[DexcomG5MessageFactory.BOND_REQUEST_TX_LENGTH];
+    private final byte[] sensorRequest = new byte[DexcomG5MessageFactory.SENSOR_TX_LENGTH];
+    private final byte[] glucoseRequest = new byte[DexcomG5MessageFactory.GLUCOSE_TX_LENGTH];
+    private final byte[] backfillRequest = new byte[DexcomG5MessageFactory.BACKFILL_TX_LENGTH];
+
+    private GattOperationQueue queue;
+    private ScheduledFuture<?> bondTimeout;
+    private ScheduledFuture<?> backfillTimeout;
+    private int backfillEndTime; // the live reading's transmitter time, which a backfill fills up to
+
+    private boolean hasRaw = false;
+    private long rawTimestamp;
+    private int filtered;
+    private int unfiltered;
+
+    /**
+     * @param readingStore where readings are kept, or null to not keep them (and not backfill)
+     * @param trendEstimator given every reading, live and backfilled; it outlives the session
+     * @param calibration gives glucose from raw values when the transmitter reports none
+     */
+    public DexcomG5Session(DexcomG5CryptoContext cryptoContext, TransmitterPreferences transmitterPreferences, ReadingStore readingStore, TrendEstimator trendEstimator, CalibrationModel calibration, Clock clock, ScheduledExecutorService scheduler, TransmitterStateMachine stateMachine, Listener listener){
+        this.transmitterId = cryptoContext.getTransmitterId();
+        this.cryptoContext = cryptoContext;
+        this.transmitterPreferences = transmitterPreferences;
+        this.readingStore = readingStore;
+        this.trendEstimator = trendEstimator;
+        this.calibration = calibration;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.stateMachine = stateMachine;
+        this.listener = listener;
+
+        this.decoder = new DexcomG5MessageDecoder(this);
+        this.backfillSession = new DexcomG5BackfillSession(this);
+        decoder.register(DexcomG5BackfillSession.BACKFILL_RX_OPCODE, backfillSession);
+    }
+
+    public String getTransmitterId(){
+        return transmitterId;
+    }
+
+    /**
+     * Starts the session on a newly made connection.
+     */
+    public void start(GattOperationQueue queue){
+        this.queue = queue;
+
+        stateMachine.moveTo(TransmitterState.CONNECTING, TransmitterState.DISCOVERING);
+        queue.discoverServices().addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattFuture future) {
+                if(!future.isSuccess()){
+                    listener.onFailed("Service discovery failed - status " + future.getStatus());
+                    return;
+                }
+
+                listener.onServicesDiscovered();
+                authenticate();
+            }
+        });
+    }
+
+    /**
+     * Handles a notification or indication from the transmitter.
+     * @return false if it was not understood
+     */
+    public boolean onNotification(UUID characteristic, byte[] value){
+        if(BleServices.ProbablyBackfill.equals(characteristic)){
+            backfillSession.onFrame(value);
+            return true;
+        }
+        return decoder.decode(value);
+    }
+
+    public void onDisconnected(){
+        if(null != queue){
+            queue.onDisconnected();
+        }
+        cancelBondTimeout();
+        cancelBackfillTimeout();
+        backfillSession.cancel(); // anything not stored is asked for again next time
+
+        // one sync for everything stored over the connection
+        if(null != readingStore){
+            try{
+                readingStore.commit();
+            } catch (IOException e) {
+                listener.onFailed("Failed to commit readings - " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the handshake with the transmitter. A transmitter which was bonded by an earlier
+     * handshake keeps the bond across connections, so for it the auth status is read first and,
+     * if it is still authenticated and bonded, readings are requested straight away. That skips
+     * the token and challenge round trips. Otherwise the full handshake is done.
+     */
+    private void authenticate(){
+        stateMachine.moveTo(TransmitterState.DISCOVERING, TransmitterState.AUTHENTICATING);
+        if(!transmitterPreferences.isBonded(transmitterId)){
+            requestAuthentication();
+            return;
+        }
+
+        queue.read(BleServices.CGMService, BleServices.Authentication).addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattFuture future) {
+                byte[] value = future.getValue();
+                if(future.isSuccess() && isAuthStatus(value) && AUTHENTICATED == value[1] && BONDED == value[2]){
+                    listener.onAuthenticated(true);
+                    requestReadings();
+                    return;
+                }
+
+                transmitterPreferences.setBonded(transmitterId, false);
+                requestAuthentication();
+            }
+        });
+    }
+
+    /**
+     * Does the full handshake. The auth request and the read of its answer are queued together, as
+     * are the challenge response and the read of the resulting auth status. A transmitter which
+     * is authenticated but not bonded is then asked to bond.
+     */
+    private void requestAuthentication(){
+        DexcomG5MessageFactory.writeAuthenticationRequest(cryptoContext, authRequest);
+        queue.write(BleServices.CGMService, BleServices.Authentication, authRequest);
+        queue.read(BleServices.CGMService, BleServices.Authentication).addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattFuture future) {
+                if(!future.isSuccess()){
+                    listener.onFailed("Failed to read authentication challenge - status " + future.getStatus());
+                    return;
+                }
+
+                byte[] value = future.getValue();
+                if(null == value || DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH != value.length || DexcomG5MessageFactory.AUTH_CHALLENGE_RX_OPCODE != value[0]){
+                    listener.onFailed("Unexpected response to authentication request");
+                    return;
+                }
+
+                if(!cryptoContext.isTokenHashValid(value, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET)){
+                    listener.onFailed("Transmitter answered with the wrong token hash");
+                    return;
+                }
+
+                DexcomG5MessageFactory.writeAuthenticationChallenge(cryptoContext, value, authChallengeResponse);
+                queue.write(BleServices.CGMService, BleServices.Authentication, authChallengeResponse);
+                queue.read(BleServices.CGMService, BleServices.Authentication).addListener(new GattFuture.Listener() {
+                    @Override
+                    public void onComplete(GattFuture future) {
+                        byte[] value = future.getValue();
+                        if(!future.isSuccess() || !isAuthStatus(value)){
+                            listener.onFailed("Failed to read authentication status - status " + future.getStatus());
+                            return;
+                        }
+
+                        if(AUTHENTICATED != value[1]){
+                            listener.onFailed("Transmitter did not accept the challenge response");
+                            return;
+                        }
+
+                        if(BONDED != value[2]){
+                            requestBond();
+                            return;
+                        }
+
+                        transmitterPreferences.setBonded(transmitterId, true);
+                        listener.onAuthenticated(false);
+                        requestReadings();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asks the transmitter to bond, then has the listener make the bond. The transmitter is only
+     * remembered as bonded once onBonded reports it was made.
+     */
+    private void requestBond(){
+        stateMachine.moveTo(TransmitterState.AUTHENTICATING, TransmitterState.BONDING);
+        DexcomG5MessageFactory.writeBondRequest(bondRequest);
+        queue.write(BleServices.CGMService, BleServices.Authentication, bondRequest).addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattFuture future) {
+                if(!future.isSuccess()){
+                    listener.onFailed("Failed to request bond - status " + future.getStatus());
+                    return;
+                }
+
+                bondTimeout = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBonded(false);
+                    }
+                }, BOND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                listener.onBondRequested();
+            }
+        });
+    }
+
+    /**
+     * Carries on from a bond request once the bond has been made, or has failed. Called on the
+     * same thread as the GATT callbacks; a call for a bond no longer waited on is ignored.
+     */
+    public void onBonded(boolean isBonded){
+        if(null == bondTimeout){
+            return;
+        }
+        cancelBondTimeout();
+
+        if(!isBonded){
+            listener.onFailed("Transmitter did not bond");
+            return;
+        }
+
+        transmitterPreferences.setBonded(transmitterId, true);
+        listener.onAuthenticated(false);
+        requestReadings();
+    }
+
+    private void cancelBondTimeout(){
+        if(null != bondTimeout){
+            bondTimeout.cancel(false);
+            bondTimeout = null;
+        }
+    }
+
+    private static boolean isAuthStatus(byte[] value){
+        return null != value && DexcomG5MessageFactory.AUTH_STATUS_RX_LENGTH == value.length && DexcomG5MessageFactory.AUTH_STATUS_RX_OPCODE == value[0];
+    }
+
+    /**
+     * Asks the transmitter for its current readings. The answers arrive as indications on the
+     * control characteristic.
+     */
+    private void requestReadings(){
+        stateMachine.moveTo(TransmitterState.READING);
+        queue.enableIndication(BleServices.CGMService, BleServices.Control);
+
+        DexcomG5MessageFactory.writeSensorRequest(sensorRequest);
+        queue.write(BleServices.CGMService, BleServices.Control, sensorRequest);
+
+        DexcomG5MessageFactory.writeGlucoseRequest(glucoseRequest);
+        queue.write(BleServices.CGMService, BleServices.Control, glucoseRequest);
+    }
+
+    /**
+     * Keeps the raw values to combine with the glucose from the GlucoseRx message that follows.
+     */
+    @Override
+    public void onSensorReading(SensorReading reading) {
+        hasRaw = true;
+        rawTimestamp = reading.timestamp;
+        filtered = reading.filtered;
+        unfiltered = reading.unfiltered;
+    }
+
+    /**
+     * Stores the reading, with the raw values from the same measurement if they came first. If the
+     * transmitter has no glucose for it, the glucose comes from the raw values and the app's
+     * calibration, if there is one. If there is a gap between it and the transmitter time every
+     * earlier reading is stored up to - the last reading, or the end of the last backfill which
+     * completed - the gap is backfilled on the same connection.
+     */
+    @Override
+    public void onGlucoseReading(GlucoseReading reading) {
+        int flags = ReadingStore.FLAG_HAS_GLUCOSE;
+        if(reading.isDisplayOnly){
+            flags |= ReadingStore.FLAG_DISPLAY_ONLY;
+        }
+
+        // raw values are only meaningful when they came from the same measurement
+        boolean useRaw = hasRaw && rawTimestamp == reading.timestamp;
+        if(useRaw){
+            flags |= ReadingStore.FLAG_HAS_RAW;
+        }
+        hasRaw = false;
+
+        // no glucose is reported as 0 while the sensor warms up or needs calibrating
+        int glucose = reading.glucose;
+        if(0 == glucose && useRaw && calibration.isCalibrated()){
+            glucose = calibration.toGlucose(filtered);
+            flags |= ReadingStore.FLAG_CALIBRATED;
+        }
+
+        long now = clock.currentTimeMillis();
+        int backfilledTo = -1;
+        if(null != readingStore){
+            backfilledTo = transmitterPreferences.getBackfilledTo(transmitterId);
+            if(backfilledTo < 0){
+                backfilledTo = readingStore.getLatestTransmitterTime();
+            }
+            try{
+                readingStore.append(now, (int)reading.timestamp, useRaw ? filtered : 0, useRaw ? unfiltered : 0, glucose, flags);
+            } catch (IOException e) {
+                listener.onFailed("Failed to store reading - " + e.getMessage());
+                return;
+            }
+        }
+
+        // started before the reading is reported so the listener can see whether one is due
+        if(backfilledTo >= 0 && reading.timestamp - backfilledTo > BACKFILL_GAP_SECONDS){
+            long startTime = Math.max(backfilledTo + 1, reading.timestamp - MAX_BACKFILL_SECONDS);
+            listener.onReadingsMissed((int)((reading.timestamp - backfilledTo) / READING_INTERVAL_SECONDS) - 1);
+            requestBackfill(startTime, reading.timestamp - 1, reading.timestamp, now);
+        }else if(null != readingStore){
+            // nothing missing, or a transmitter time from before a reset
+            transmitterPreferences.setBackfilledTo(transmitterId, (int)reading.timestamp);
+        }
+
+        if(glucose > 0){
+            trendEstimator.add((int)reading.timestamp, glucose);
+        }
+        listener.onReading(now, (int)reading.timestamp, glucose, reading.trend, flags);
+    }
+
+    /**
+     * Downloads the readings stored by the transmitter between startTime and endTime.
+     */
+    private void requestBackfill(long startTime, long endTime, long currentTransmitterTime, long now){
+        stateMachine.moveTo(TransmitterState.READING, TransmitterState.BACKFILLING);
+        backfillEndTime = (int)currentTransmitterTime;
+        backfillSession.start(currentTransmitterTime, now);
+        queue.enableNotification(BleServices.CGMService, BleServices.ProbablyBackfill);
+
+        DexcomG5MessageFactory.writeBackfillRequest(startTime, endTime, backfillRequest);
+        queue.write(BleServices.CGMService, BleServices.Control, backfillRequest);
+
+        backfillTimeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if(backfillSession.isActive()){
+                    backfillSession.cancel();
+                    onBackfillFailed("Backfill timed out");
+                }
+            }
+        }, BACKFILL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if a backfill has been requested and not yet finished
+     */
+    public boolean isBackfilling(){
+        return backfillSession.isActive();
+    }
+
+    /**
+     * Stores the backfill a batch at a time, moving the transmitter time the readings are stored
+     * up to along with each batch committed, so a backfill which fails part way is not stored
+     * twice when it is retried.
+     */
+    @Override
+    public void onBackfillComplete(ReadingBuffer readings) {
+        cancelBackfillTimeout();
+        stateMachine.moveTo(TransmitterState.BACKFILLING, TransmitterState.READING);
+        try{
+            for(int offset = 0; offset < readings.size(); offset += BACKFILL_BATCH_SIZE){
+                int length = Math.min(BACKFILL_BATCH_SIZE, readings.size() - offset);
+                readingStore.append(readings, offset, length);
+                readingStore.commit();
+                transmitterPreferences.setBackfilledTo(transmitterId, readings.transmitterTimes[offset + length - 1]);
+            }
+        } catch (IOException e) {
+            listener.onBackfillFailed("Failed to store backfill - " + e.getMessage());
+            return;
+        }
+        transmitterPreferences.setBackfilledTo(transmitterId, backfillEndTime);
+
+        // only those in the trend's window are kept
+        for(int idx = 0; idx < readings.size(); ++idx){
+            if(0 != (readings.flags[idx] & ReadingStore.FLAG_HAS_GLUCOSE) && readings.glucose[idx] > 0){
+                trendEstimator.add(readings.transmitterTimes[idx], readings.glucose[idx]);
+            }
+        }
+        listener.onBackfillComplete(readings.size());
+    }
+
+    /**
+     * Leaves the transmitter time the readings are stored up to where it was, so the next
+     * connection asks for them again.
+     */
+    @Override
+    public void onBackfillFailed(String reason) {
+        cancelBackfillTimeout();
+        stateMachine.moveTo(TransmitterState.BACKFILLING, TransmitterState.READING);
+        listener.onBackfillFailed(reason);
+    }
+
+    private void cancelBackfillTimeout(){
+        if(null != backfillTimeout){
+            backfillTimeout.cancel(false);
+            backfillTimeout = null;
+        }
+    }
+}
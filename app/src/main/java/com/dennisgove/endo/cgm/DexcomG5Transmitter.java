@@ -21,207 +21,893 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.util.Log;
 
 import com.dennisgove.endo.EndoApplication;
-import com.dennisgove.endo.ble.BleServices;
-
+import com.dennisgove.endo.ble.BleScanner;
+import com.dennisgove.endo.ble.BleTraceEvent;
+import com.dennisgove.endo.ble.BluetoothGattWrapper;
+import com.dennisgove.endo.ble.GattOperationQueue;
+import com.dennisgove.endo.ble.ScanScheduler;
+import com.dennisgove.endo.comm.ReadingEvent;
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.upload.NightscoutPreferences;
+import com.dennisgove.endo.upload.NightscoutUploader;
+import com.dennisgove.endo.util.BoundedMpscQueue;
+
+import java.io.File;
+import java.io.IOException;
 import java.security.InvalidParameterException;
-
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.inject.Inject;
+
+/**
+ * Everything a DexcomG5Transmitter does with its transmitter - scan windows, GATT requests and
+ * their timeouts, authentication, decoding and storing readings - happens on its own single
+ * thread. GATT callbacks arrive on a binder thread and scan results on the main thread; each only
+ * copies what it was given onto the transmitter's thread and returns. Only the readings which come
+ * out are published, to be delivered to subscribers on their own threads.
+ */
 public class DexcomG5Transmitter extends CgmTransmitter {
 
     private final String TAG = this.getClass().getSimpleName();
 
+    // a backfill of a day's readings arrives as about 160 notifications in quick succession
+    private static final int CALLBACK_QUEUE_CAPACITY = 1024;
+
+    // a fingerstick is matched with a reading no further from it than half the reading interval
+    private static final long CALIBRATION_MATCH_MILLIS = DexcomG5Session.READING_INTERVAL_SECONDS * 1000L / 2;
+    // a new calibration is applied back over this many of the latest readings, a day's worth
+    private static final int RECALIBRATION_RECORDS = (int)(24 * 60 * 60 / DexcomG5Session.READING_INTERVAL_SECONDS);
+
+    // wait after a scan fails, doubled with each failure in a row up to a reading interval
+    private static final long SCAN_FAILURE_BACKOFF_MILLIS = BleScanner.MIN_RESTART_INTERVAL_MILLIS;
+    private static final long MAX_SCAN_FAILURE_BACKOFF_MILLIS = DexcomG5Session.READING_INTERVAL_SECONDS * 1000L;
+
+    // how long a closing transmitter waits for its connection to report it is down
+    private static final long CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // GATT callbacks waiting to be handled on the scheduler's thread, in the order they arrived
+    private final BoundedMpscQueue<GattCallback> callbacks = new BoundedMpscQueue<>(CALLBACK_QUEUE_CAPACITY);
+    // callbacks other than notifications which arrived while callbacks was full; never dropped, as
+    // an operation whose completion is lost leaves the session waiting on it forever
+    private final Queue<GattCallback> overflow = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final Runnable drainCallbacks = new Runnable() {
+        @Override
+        public void run() {
+            drainCallbacks();
+        }
+    };
+
+    // shared by every session with this transmitter
+    private DexcomG5CryptoContext cryptoContext;
+
+    private ReadingStore readingStore;
+    private volatile NightscoutUploader uploader;
+    // uploads run here, never on the scheduler
+    private final ScheduledExecutorService uploadScheduler = Executors.newSingleThreadScheduledExecutor();
+    private TrendEstimator trendEstimator;
+    private CalibrationModel calibration;
+
+    private ScanScheduler scanScheduler;
+    private ScheduledFuture<?> pendingScan;
+    private int scanFailures = 0; // in a row, scheduler's thread only
+    private volatile BluetoothGatt activeGatt;
+    private volatile boolean isStopped = false;
+    private volatile boolean isClosed = false;
+    private ScheduledFuture<?> closeTimeout;
+
+    @Inject TransmitterPreferences transmitterPreferences;
+    @Inject NightscoutPreferences nightscoutPreferences;
+
     public DexcomG5Transmitter(EndoApplication endoApplication) {
         super(endoApplication);
+        endoApplication.getEndoManagerComponent().inject(this);
     }
 
     @Override
-    public void connectToTransmitter(final String transmitterId){
+    public synchronized void connectToTransmitter(final String transmitterId){
         Log.i(TAG, "Beginning connecting process for transmitter '" + transmitterId + "'");
 
+        if(isClosed){
+            throw new IllegalStateException("Transmitter '" + getTransmitterId() + "' is closed");
+        }
+
         if(null == transmitterId || 6 != transmitterId.length()){
             Log.w(TAG, "Invalid transmitter id '" + transmitterId + "'");
             throw new InvalidParameterException("Transmitter Id '" + null == transmitterId ? "null" : transmitterId + "' is not valid");
         }
 
-        setState(CgmTransmitter.STATE_SCANNING);
-        scanForDevice(generateDeviceName(transmitterId), new ScanCallback() {
+        if(null == cryptoContext || !cryptoContext.getTransmitterId().equals(transmitterId)){
+            cryptoContext = new DexcomG5CryptoContext(transmitterId);
+            scanScheduler = new ScanScheduler(getClock());
+            trendEstimator = new TrendEstimator();
+            calibration = new CalibrationModel();
+            openReadingStore(transmitterId);
+            setTransmitterId(transmitterId);
+        }
+
+        isStopped = false;
+        scheduleConnect(transmitterId);
+    }
+
+    @Override
+    public synchronized void disconnect(){
+        Log.i(TAG, "Disconnecting from transmitter");
+
+        isStopped = true;
+        if(null != pendingScan){
+            pendingScan.cancel(false);
+            pendingScan = null;
+        }
+        if(null != uploader){
+            uploader.stop();
+        }
+
+        BluetoothGatt gatt = activeGatt;
+        if(null != gatt){
+            getStateMachine().moveTo(TransmitterState.DISCONNECTING);
+            gatt.disconnect();
+        }else{
+            getStateMachine().moveTo(TransmitterState.IDLE);
+        }
+        if(null != readingStore){
+            readingStore.force();
+        }
+    }
+
+    /**
+     * The reading store is closed straight away, so that a new session for the same transmitter
+     * can open it. The scheduler's thread is let go once the GATT disconnect completes, or after
+     * CLOSE_TIMEOUT_MILLIS if it never reports that it has.
+     */
+    @Override
+    public synchronized void close(){
+        if(isClosed){
+            return;
+        }
+
+        disconnect();
+        isClosed = true;
+        Log.i(TAG, "Closing transmitter");
+
+        // an upload already posting finishes before its thread goes
+        uploadScheduler.shutdown();
+        uploader = null;
+        if(null != readingStore){
+            readingStore.close();
+        }
+
+        if(null == activeGatt){
+            scheduler.shutdown();
+            return;
+        }
+        closeTimeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Connection did not report it was down within " + CLOSE_TIMEOUT_MILLIS + "ms of closing");
+                finishClose();
+            }
+        }, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the scheduler's thread, as the last thing it does.
+     */
+    private synchronized void finishClose(){
+        if(null != closeTimeout){
+            closeTimeout.cancel(false);
+        }
+        BluetoothGatt gatt = activeGatt;
+        if(null != gatt){
+            activeGatt = null;
+            gatt.close();
+        }
+        scheduler.shutdown();
+    }
+
+    @Override
+    public boolean addCalibration(long timestamp, int glucose){
+        final ReadingStore store = readingStore;
+        final CalibrationModel model = calibration;
+        if(null == store || null == model){
+            return false;
+        }
+
+        ReadingBuffer readings = new ReadingBuffer(4);
+        store.read(timestamp - CALIBRATION_MATCH_MILLIS, timestamp + CALIBRATION_MATCH_MILLIS, readings);
+
+        int closest = -1;
+        for(int idx = 0; idx < readings.size(); ++idx){
+            if(0 != (readings.flags[idx] & ReadingStore.FLAG_HAS_RAW)
+                    && (closest < 0 || Math.abs(readings.timestamps[idx] - timestamp) < Math.abs(readings.timestamps[closest] - timestamp))){
+                closest = idx;
+            }
+        }
+        if(closest < 0){
+            Log.w(TAG, "No reading with raw values near calibration of " + glucose + " mg/dL");
+            return false;
+        }
+
+        getTrace().record(CgmTraceEvent.CALIBRATION, glucose, readings.filtered[closest]);
+        if(!model.addCalibration(timestamp, glucose, readings.filtered[closest])){
+            return false;
+        }
+
+        runOnScheduler(new Runnable() {
+            @Override
+            public void run() {
+                recalibrate(store, model);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Recalculates the glucose of the latest readings which had it from the app's calibration,
+     * rather than the transmitter, with the model's new fit, and stores it back. Readings already
+     * sealed into an archive keep what they had, as do readings already uploaded. Runs on the
+     * scheduler's thread.
+     */
+    private void recalibrate(ReadingStore store, CalibrationModel model){
+        long first = Math.max(0, store.size() - RECALIBRATION_RECORDS);
+        ReadingBuffer readings = new ReadingBuffer(RECALIBRATION_RECORDS);
+        store.readSince(first, RECALIBRATION_RECORDS, readings);
+
+        // the transmitter's own glucose stands
+        ReadingBuffer calibrated = new ReadingBuffer();
+        long[] sequences = new long[readings.size()];
+        for(int idx = 0; idx < readings.size(); ++idx){
+            if(0 != (readings.flags[idx] & ReadingStore.FLAG_CALIBRATED)){
+                sequences[calibrated.size()] = first + idx;
+                calibrated.add(readings.timestamps[idx], readings.transmitterTimes[idx], readings.filtered[idx], readings.unfiltered[idx],
+                        readings.glucose[idx], readings.flags[idx]);
+            }
+        }
+        if(0 == calibrated.size() || !model.recalibrate(calibrated)){
+            return;
+        }
+
+        try{
+            for(int idx = 0; idx < calibrated.size(); ++idx){
+                store.update(sequences[idx], calibrated.glucose[idx], calibrated.flags[idx]);
+            }
+            store.commit();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store " + calibrated.size() + " recalibrated readings", e);
+        }
+    }
+
+    /**
+     * Schedules the next attempt to connect to the transmitter at the time its ScanScheduler
+     * expects it to advertise, replacing any attempt already scheduled.
+     */
+    private void scheduleConnect(String transmitterId){
+        scheduleConnect(transmitterId, 0);
+    }
+
+    /**
+     * As scheduleConnect(transmitterId), but no sooner than minDelay ms from now.
+     */
+    private synchronized void scheduleConnect(final String transmitterId, long minDelay){
+        if(null != pendingScan){
+            pendingScan.cancel(false);
+        }
+        if(isStopped){
+            return;
+        }
+
+        final ScanScheduler.Window window = scanScheduler.nextWindow();
+        long delay = Math.max(minDelay, window.startTime - getClock().currentTimeMillis());
+        getTrace().record(ScanScheduler.Mode.LOW_LATENCY == window.mode ? CgmTraceEvent.LOW_LATENCY_WINDOW : CgmTraceEvent.LOW_POWER_WINDOW, delay, window.duration);
+
+        pendingScan = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                findTransmitter(transmitterId, window);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects to the transmitter within the window. If its address is known from an earlier
+     * scan the connection is made to that address directly, without scanning. Only if that has
+     * not connected half way through the window, or fails sooner, is the rest of the window spent
+     * scanning for it by name.
+     */
+    private void findTransmitter(final String transmitterId, final ScanScheduler.Window window){
+        if(isStopped){
+            return;
+        }
+
+        String address = transmitterPreferences.getDeviceAddress(transmitterId);
+        if(null == address){
+            scan(transmitterId, window.mode, window.duration);
+            return;
+        }
+
+        // When the transmitter is expected to be advertising now connect straight away; otherwise
+        // leave the controller to wait for it in the background
+        boolean autoConnect = ScanScheduler.Mode.LOW_LATENCY != window.mode;
+        final long windowEnd = getClock().currentTimeMillis() + window.duration;
+
+        getStateMachine().moveTo(TransmitterState.CONNECTING);
+        final TransmitterGattCallback callback = new TransmitterGattCallback(transmitterId);
+        final BluetoothGatt gatt = connectToDevice(getBleAdapter().getRemoteDevice(address), autoConnect, callback);
+
+        Runnable fallBackToScan = new Runnable() {
+            @Override
+            public void run() {
+                if(!callback.abandon()){
+                    return;
+                }
+                if(null != gatt){
+                    gatt.disconnect();
+                    gatt.close();
+                }
+                if(isStopped){
+                    return;
+                }
+
+                long remaining = windowEnd - getClock().currentTimeMillis();
+                if(remaining <= 0){
+                    getTrace().record(CgmTraceEvent.WINDOW_MISSED);
+                    getStateMachine().moveTo(TransmitterState.IDLE);
+                    scanScheduler.onMissed();
+                    getMetrics().onScanMissed();
+                    scheduleConnect(transmitterId);
+                    return;
+                }
+
+                getTrace().record(CgmTraceEvent.SCAN_FALLBACK, remaining);
+                scan(transmitterId, window.mode, remaining);
+            }
+        };
+        callback.setConnectFailedHandler(fallBackToScan);
+        scheduler.schedule(fallBackToScan, window.duration / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private void scan(final String transmitterId, ScanScheduler.Mode mode, long durationMillis){
+        getStateMachine().moveTo(TransmitterState.SCANNING);
+        scanForDevice(generateDeviceName(transmitterId), mode, durationMillis, new ScanCallback() {
             private boolean gotAScanResult = false;
 
             @Override
-            public void onScanFailed(int errorCode) {
+            public void onScanFailed(final int errorCode) {
                 super.onScanFailed(errorCode);
-                Log.e(TAG, "scanForDevice failed with code " + errorCode + " - connection state unchanged");
+                runOnScheduler(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleScanFailed(errorCode, transmitterId);
+                    }
+                });
             }
 
             @Override
-            public void onScanResult(int callbackType, ScanResult result) {
+            public void onScanResult(int callbackType, final ScanResult result) {
                 super.onScanResult(callbackType, result);
 
                 if(gotAScanResult){
-                    Log.i(TAG, "Already connecting - ignoring this can result");
                     return;
                 }
                 gotAScanResult = true;
 
-                Log.i(TAG, "scanForDevice succeeded");
+                runOnScheduler(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleScanResult(result, transmitterId);
+                    }
+                });
+            }
+        });
+    }
 
-                setState(CgmTransmitter.STATE_CONNECTING);
-                BluetoothDevice remoteDevice = getBleAdapter().getRemoteDevice(result.getDevice().getAddress());
-                connectToDevice(remoteDevice, new BluetoothGattCallback() {
-                    private BluetoothGattCharacteristic authCharacteristic;
-                    private BluetoothGattCharacteristic controlCharacteristic;
-                    private BluetoothGattCharacteristic commCharacteristic;
+    /**
+     * Runs on the scheduler's thread.
+     */
+    private void handleScanFailed(int errorCode, String transmitterId){
+        getStateMachine().moveTo(TransmitterState.IDLE);
+        scanScheduler.onMissed();
+
+        if(SCAN_FAILED_TIMED_OUT == errorCode){
+            getTrace().record(CgmTraceEvent.WINDOW_MISSED);
+            getMetrics().onScanMissed();
+            scheduleConnect(transmitterId);
+            return;
+        }
 
-                    @Override
-                    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                        super.onConnectionStateChange(gatt, status, newState);
-                        Log.i(TAG, "Connection state to trasmitter '" + transmitterId + "' has changed to state " + newState);
+        // a scan which fails as it starts would otherwise be retried straight away, and again
+        ++scanFailures;
+        long backoff = Math.min(SCAN_FAILURE_BACKOFF_MILLIS << Math.min(scanFailures - 1, 16), MAX_SCAN_FAILURE_BACKOFF_MILLIS);
+        Log.e(TAG, "scanForDevice failed with code " + errorCode + " - " + scanFailures + " in a row, trying again in " + backoff + "ms");
+        getMetrics().onScanFailed(errorCode);
+        scheduleConnect(transmitterId, backoff);
+    }
 
-                        switch(newState){
-                            case BluetoothProfile.STATE_CONNECTED:
-                                Log.i(TAG, "Connected to transmitter '" + transmitterId + "'");
-                                gatt.discoverServices();
-                                break;
+    /**
+     * Runs on the scheduler's thread.
+     */
+    private void handleScanResult(ScanResult result, String transmitterId){
+        if(isStopped){
+            return;
+        }
 
-                            case BluetoothProfile.STATE_DISCONNECTED:
-                                Log.i(TAG, "Disconnected from transmitter '" + transmitterId + "'");
-                                break;
+        scanScheduler.onAdvertisement();
+        scanFailures = 0;
 
-                        }
-                    }
+        String address = result.getDevice().getAddress();
+        transmitterPreferences.setDeviceAddress(transmitterId, address);
 
-                    @Override
-                    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                        super.onServicesDiscovered(gatt, status);
-                        Log.i(TAG, "onServicesDiscovered: " + status);
-
-                        if(status == BluetoothGatt.GATT_SUCCESS){
-                            Log.i(TAG, "Sending authentication request");
-                            BluetoothGattService service = gatt.getService(BleServices.CGMService);
-                            getBleAdapter().cancelDiscovery();
-                            authCharacteristic = service.getCharacteristic(BleServices.Authentication);
-                            controlCharacteristic = service.getCharacteristic(BleServices.Control);
-                            commCharacteristic = service.getCharacteristic(BleServices.Communication);
-                            getBleAdapter().cancelDiscovery();
-
-                            authCharacteristic.setValue(DexcomG5MessageFactory.generateAuthenticationRequest());
-                            gatt.writeCharacteristic(authCharacteristic);
-                        }
-                    }
+        getStateMachine().moveTo(TransmitterState.CONNECTING);
+        BluetoothDevice remoteDevice = getBleAdapter().getRemoteDevice(address);
+        connectToDevice(remoteDevice, new TransmitterGattCallback(transmitterId));
+    }
 
-                    @Override
-                    public void onCharacteristicWrite(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-                        Log.i(TAG, "WriteStatus: " + String.valueOf(status));
-                    }
+    private void openReadingStore(String transmitterId){
+        if(null != uploader){
+            uploader.stop();
+            uploader = null;
+        }
+        if(null != readingStore){
+            readingStore.close();
+            readingStore = null;
+        }
 
-                        @Override
-                    public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
-                        Log.i(TAG, "ReadStatus: " + String.valueOf(status));
-
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-//                            Log.i(TAG, "CharBytes-or " + Arrays.toString(characteristic.getValue()));
-
-                            byte[] buffer = characteristic.getValue();
-                            byte code = buffer[0];
-
-                            switch (code) {
-                                case 5:
-//                                    authStatus = new AuthStatusRxMessage(characteristic.getValue());
-//                                    if (authStatus.authenticated == 1 && authStatus.bonded == 1 && isBondedOrBonding == true) {
-//                                        isBondedOrBonding = true;
-//                                        getSensorData();
-//                                    } else if (authStatus.authenticated == 1 && authStatus.bonded == 2) {
-//                                        android.util.Log.i(TAG, "Let's Bond!");
-//                                        BondRequestTxMessage bondRequest = new BondRequestTxMessage();
-//                                        characteristic.setValue(bondRequest.byteSequence);
-//                                        mGatt.writeCharacteristic(characteristic);
-//                                        isBondedOrBonding = true;
-//                                        device.createBond();
-//                                    } else {
-//                                        android.util.Log.i(TAG, "Transmitter NOT already authenticated");
-//                                        authRequest = new AuthRequestTxMessage();
-//                                        characteristic.setValue(authRequest.byteSequence);
-//                                        android.util.Log.i(TAG, authRequest.byteSequence.toString());
-//                                        mGatt.writeCharacteristic(characteristic);
-//                                    }
-                                    break;
-
-                                case 3:
-                                    Log.i(TAG, "Sending authentication challenge request");
-                                    characteristic.setValue(DexcomG5MessageFactory.generateAuthenticationChallenge(characteristic.getValue(), transmitterId));
-                                    gatt.writeCharacteristic(characteristic);
-                                    break;
-
-                                default:
-                                    break;
-                            }
+        File directory = new File(getApplicationContext().getNoBackupFilesDir(), "readings/" + transmitterId);
+        try{
+            readingStore = new ReadingStore(directory);
+            uploader = new NightscoutUploader(readingStore, transmitterId, nightscoutPreferences, getClock(), uploadScheduler);
+            uploader.setListener(new NightscoutUploader.Listener() {
+                @Override
+                public void onUploadFailed(IOException e, int failures, long retryInMillis) {
+                    Log.w(TAG, "Nightscout upload failed " + failures + " times in a row - retrying in " + retryInMillis + "ms", e);
+                }
 
-                        }
-                    }
-                });
-            }
-        });
+                @Override
+                public void onHighWaterMarkNotWritten(IOException e) {
+                    Log.w(TAG, "Unable to save the Nightscout upload position - readings since the last saved will be uploaded again", e);
+                }
+            });
+            uploader.onReadingsStored(); // any left from before
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open reading store '" + directory + "' - readings will not be kept", e);
+        }
+    }
+
+    /**
+     * Has the uploader send the readings just stored, from its own thread.
+     */
+    private void onReadingsStored(){
+        NightscoutUploader current = uploader;
+        if(null != current){
+            current.onReadingsStored();
+        }
     }
 
     private String generateDeviceName(String transmitterId){
         return "Dexcom" + transmitterId.substring(4); // last 2 characters of a 6 character id
     }
 
-    private class TransmitterGattCallback extends BluetoothGattCallback{
+    /**
+     * Queues the callback to be handled on the scheduler's thread, starting a drain there if one
+     * is not already running. Called on the binder thread, so does no more than that.
+     *
+     * Only notifications are dropped when the queue is full. Anything else goes to the overflow,
+     * and while that holds callbacks later ones follow them there so they are still handled in
+     * the order they arrived.
+     */
+    private void handOver(GattCallback callback){
+        if(scheduler.isShutdown()){
+            // a connection which completed after the transmitter closed
+            if(GattCallback.CONNECTION_STATE == callback.kind){
+                callback.gatt.disconnect();
+                callback.gatt.close();
+            }
+            return;
+        }
+        if(!overflow.isEmpty() || !callbacks.offer(callback)){
+            if(GattCallback.NOTIFICATION == callback.kind){
+                Log.w(TAG, "Dropped " + CgmTraceEvent.CALLBACKS[callback.kind] + " callback - " + callbacks.getCapacity() + " waiting to be handled");
+                getTrace().record(CgmTraceEvent.CALLBACK_DROPPED, callback.kind);
+                getMetrics().onCallbackDropped();
+                return;
+            }
+            overflow.offer(callback);
+        }
+        if(isDrainScheduled.compareAndSet(false, true)){
+            runOnScheduler(drainCallbacks);
+        }
+    }
+
+    /**
+     * Runs the task on the scheduler's thread, unless the transmitter has been closed and the
+     * thread let go, in which case there is nothing left for it to do.
+     */
+    private void runOnScheduler(Runnable task){
+        try{
+            scheduler.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.i(TAG, "Ignoring callback arriving after transmitter closed");
+        }
+    }
+
+    private void drainCallbacks(){
+        while(true){
+            GattCallback callback;
+            while(null != (callback = nextCallback())){
+                // one callback failing must not leave the drain marked scheduled with nothing running it
+                try{
+                    callback.target.handle(callback);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed handling " + CgmTraceEvent.CALLBACKS[callback.kind] + " callback", e);
+                    getTrace().record(CgmTraceEvent.CALLBACK_FAILED, callback.kind);
+                }
+            }
+
+            // a callback queued after the last poll but before this saw the drain still scheduled
+            // and left it to this one
+            isDrainScheduled.set(false);
+            if((callbacks.isEmpty() && overflow.isEmpty()) || !isDrainScheduled.compareAndSet(false, true)){
+                return;
+            }
+        }
+    }
+
+    /**
+     * Everything in callbacks arrived before anything in the overflow.
+     */
+    private GattCallback nextCallback(){
+        GattCallback callback = callbacks.poll();
+        return null != callback ? callback : overflow.poll();
+    }
+
+    /**
+     * One GATT callback, with what it was given copied so that it can be handled on another
+     * thread.
+     */
+    private static class GattCallback {
+        // indices into CgmTraceEvent.CALLBACKS
+        static final int CONNECTION_STATE = 0;
+        static final int SERVICES_DISCOVERED = 1;
+        static final int READ = 2;
+        static final int WRITE = 3;
+        static final int NOTIFICATION = 4;
+        static final int DESCRIPTOR_WRITE = 5;
+
+        final TransmitterGattCallback target;
+        final int kind;
+        final BluetoothGatt gatt;
+        final UUID characteristic;
+        final UUID descriptor;
+        final byte[] value;
+        final int status;
+        final int newState;
+
+        GattCallback(TransmitterGattCallback target, int kind, BluetoothGatt gatt, UUID characteristic, UUID descriptor, byte[] value, int status, int newState){
+            this.target = target;
+            this.kind = kind;
+            this.gatt = gatt;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = null == value ? null : value.clone();
+            this.status = status;
+            this.newState = newState;
+        }
+    }
+
+    /**
+     * Hands all GATT callbacks for the connection over to the scheduler's thread, and there to the
+     * connection's GattOperationQueue, which owns the order in which requests are made, and
+     * notifications to the DexcomG5Session which does the work of the connection once it is made.
+     */
+    private class TransmitterGattCallback extends BluetoothGattCallback implements DexcomG5Session.Listener {
+        private final String transmitterId;
+        private final DexcomG5Session session;
+        private final TrendEstimator trendEstimator;
+        private GattOperationQueue queue;
+        private BroadcastReceiver bondReceiver; // while a bond is being made, scheduler's thread only
+
+        // hand over between a direct connection and the scan which replaces it if it does not
+        // connect in time
+        private boolean isConnected = false;
+        private boolean isAbandoned = false;
+        private Runnable connectFailedHandler;
+
+        TransmitterGattCallback(String transmitterId){
+            this.transmitterId = transmitterId;
+            this.trendEstimator = DexcomG5Transmitter.this.trendEstimator;
+            this.session = new DexcomG5Session(cryptoContext, transmitterPreferences, readingStore, trendEstimator, calibration, getClock(), scheduler, getStateMachine(), this);
+        }
+
+        /**
+         * Sets what to do if the connection fails before it is made. Only direct connections
+         * have one; a failed connection to a transmitter found by scanning waits for the next
+         * window.
+         */
+        void setConnectFailedHandler(Runnable handler){
+            this.connectFailedHandler = handler;
+        }
+
+        /**
+         * Gives up on a connection which has not been made yet.
+         * @return false if it has already been made, or already given up on
+         */
+        synchronized boolean abandon(){
+            if(isConnected || isAbandoned){
+                return false;
+            }
+            isAbandoned = true;
+            return true;
+        }
+
+        private synchronized boolean markConnected(){
+            if(isAbandoned){
+                return false;
+            }
+            isConnected = true;
+            return true;
+        }
+
+        private synchronized boolean wasConnected(){
+            return isConnected;
+        }
+
+        private synchronized boolean isAbandoned(){
+            return isAbandoned;
+        }
+
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
+        public void onServicesDiscovered() {
+            getBleAdapter().cancelDiscovery();
         }
 
+        /**
+         * Makes the bond the transmitter asked for, and tells the session once the stack reports
+         * it bonded or gave up. A device the stack already holds a bond with is bonded straight
+         * away.
+         */
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
+        public void onBondRequested() {
+            BluetoothGatt gatt = activeGatt;
+            if(null == gatt){
+                return;
+            }
+
+            final BluetoothDevice device = gatt.getDevice();
+            if(BluetoothDevice.BOND_BONDED == device.getBondState()){
+                session.onBonded(true);
+                return;
+            }
+
+            bondReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    BluetoothDevice changed = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+                    if(null == changed || !device.getAddress().equals(changed.getAddress()) || BluetoothDevice.BOND_BONDING == state){
+                        return;
+                    }
+                    runOnScheduler(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(stopWatchingBond()){
+                                session.onBonded(BluetoothDevice.BOND_BONDED == state);
+                            }
+                        }
+                    });
+                }
+            };
+            getApplicationContext().registerReceiver(bondReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+            if(!device.createBond()){
+                stopWatchingBond();
+                session.onBonded(false);
+            }
+        }
+
+        /**
+         * @return false if the bond was not being watched
+         */
+        private boolean stopWatchingBond(){
+            if(null == bondReceiver){
+                return false;
+            }
+            getApplicationContext().unregisterReceiver(bondReceiver);
+            bondReceiver = null;
+            return true;
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
+        public void onAuthenticated(boolean wasBonded) {
+            getTrace().record(CgmTraceEvent.AUTHENTICATED, wasBonded ? 1 : 0);
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
+        public void onReading(long timestamp, int transmitterTime, int glucose, int trend, int flags) {
+            getTrace().record(CgmTraceEvent.READING, glucose, trend);
+            getMetrics().onReading();
+            getEventBus().publish(new ReadingEvent(transmitterId, timestamp, transmitterTime, glucose, trend, flags, trendEstimator.getRate()));
+            onReadingsStored();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
+        public void onReadingsMissed(int count) {
+            getTrace().record(CgmTraceEvent.READINGS_MISSED, count);
+            getMetrics().onReadingsMissed(count);
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
+        public void onBackfillComplete(int readingCount) {
+            getTrace().record(CgmTraceEvent.BACKFILLED, readingCount);
+            onReadingsStored();
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
+        public void onBackfillFailed(String reason) {
+            Log.w(TAG, "Transmitter '" + transmitterId + "': backfill failed - " + reason + " - asking again on the next connection");
         }
 
+        /**
+         * Drops the connection rather than leave it up with nothing to do until the transmitter
+         * drops it. Disconnecting commits what was stored and schedules the next window.
+         */
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            super.onReliableWriteCompleted(gatt, status);
+        public void onFailed(String reason) {
+            Log.w(TAG, "Transmitter '" + transmitterId + "': " + reason + " - disconnecting");
+            getMetrics().onSessionFailed();
+            BluetoothGatt gatt = activeGatt;
+            if(null != gatt){
+                getStateMachine().moveTo(TransmitterState.DISCONNECTING);
+                gatt.disconnect();
+            }
+        }
+
+        /**
+         * Handles a callback on the scheduler's thread.
+         */
+        void handle(GattCallback callback){
+            switch(callback.kind){
+                case GattCallback.CONNECTION_STATE:
+                    handleConnectionStateChange(callback.gatt, callback.status, callback.newState);
+                    break;
+                case GattCallback.SERVICES_DISCOVERED:
+                    queue.onServicesDiscovered(callback.status);
+                    break;
+                case GattCallback.READ:
+                    queue.onCharacteristicRead(callback.characteristic, callback.value, callback.status);
+                    break;
+                case GattCallback.WRITE:
+                    queue.onCharacteristicWrite(callback.characteristic, callback.status);
+                    break;
+                case GattCallback.NOTIFICATION:
+                    if(!session.onNotification(callback.characteristic, callback.value)){
+                        getTrace().record(CgmTraceEvent.UNKNOWN_MESSAGE, BleTraceEvent.characteristic(callback.characteristic), callback.value.length, callback.value);
+                    }
+                    break;
+                case GattCallback.DESCRIPTOR_WRITE:
+                    queue.onDescriptorWrite(callback.characteristic, callback.descriptor, callback.status);
+                    break;
+            }
+        }
+
+        private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState){
+            switch(newState){
+                case BluetoothProfile.STATE_CONNECTED:
+                    if(isStopped){
+                        gatt.disconnect();
+                        gatt.close();
+                        break;
+                    }
+                    if(!markConnected()){
+                        getTrace().record(CgmTraceEvent.LATE_CONNECTION);
+                        gatt.disconnect();
+                        gatt.close();
+                        break;
+                    }
+
+                    activeGatt = gatt;
+
+                    if(null != connectFailedHandler){
+                        // connected directly, so this is when the transmitter was seen. The
+                        // pending fall back sees the connection was made and does nothing
+                        scanScheduler.onAdvertisement();
+                    }
+
+                    queue = new GattOperationQueue(new BluetoothGattWrapper(gatt), scheduler, getMetrics());
+                    session.start(queue);
+                    break;
+
+                case BluetoothProfile.STATE_DISCONNECTED:
+                    if(isAbandoned()){
+                        gatt.close();
+                        break;
+                    }
+                    if(null != connectFailedHandler && !wasConnected()){
+                        Log.w(TAG, "Direct connection to transmitter '" + transmitterId + "' failed with status " + status);
+                        gatt.close();
+                        connectFailedHandler.run();
+                        break;
+                    }
+
+                    getStateMachine().moveTo(TransmitterState.IDLE);
+
+                    // cleared first, so a failure reported as the session winds up has nothing
+                    // left to drop
+                    if(gatt == activeGatt){
+                        activeGatt = null;
+                    }
+                    stopWatchingBond();
+                    session.onDisconnected();
+                    gatt.close();
+                    if(isClosed){
+                        finishClose();
+                        break;
+                    }
+
+                    // wait for the transmitter's next wake
+                    if(transmitterId.equals(cryptoContext.getTransmitterId())){
+                        scheduleConnect(transmitterId);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            getTrace().record(BleTraceEvent.CONNECTION_STATE, newState, status);
+            handOver(new GattCallback(this, GattCallback.CONNECTION_STATE, gatt, null, null, null, status, newState));
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            getTrace().record(BleTraceEvent.SERVICES_DISCOVERED, status);
+            handOver(new GattCallback(this, GattCallback.SERVICES_DISCOVERED, gatt, null, null, null, status, 0));
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            getTrace().record(BleTraceEvent.READ, BleTraceEvent.characteristic(characteristic.getUuid()), status, characteristic.getValue());
+            handOver(new GattCallback(this, GattCallback.READ, gatt, characteristic.getUuid(), null, characteristic.getValue(), status, 0));
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            getTrace().record(BleTraceEvent.WRITE, BleTraceEvent.characteristic(characteristic.getUuid()), status, characteristic.getValue());
+            handOver(new GattCallback(this, GattCallback.WRITE, gatt, characteristic.getUuid(), null, null, status, 0));
         }
 
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // the characteristic's value is overwritten by the next notification, so is copied
+            byte[] value = characteristic.getValue();
+            getTrace().record(BleTraceEvent.NOTIFICATION, BleTraceEvent.characteristic(characteristic.getUuid()), value.length, value);
+            handOver(new GattCallback(this, GattCallback.NOTIFICATION, gatt, characteristic.getUuid(), null, value, 0, 0));
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            getTrace().record(BleTraceEvent.DESCRIPTOR_WRITE, BleTraceEvent.characteristic(descriptor.getCharacteristic().getUuid()), status);
+            handOver(new GattCallback(this, GattCallback.DESCRIPTOR_WRITE, gatt, descriptor.getCharacteristic().getUuid(), descriptor.getUuid(), null, status, 0));
         }
     }
 }
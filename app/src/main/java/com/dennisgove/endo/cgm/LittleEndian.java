@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * Reads and writes the little-endian integers used by G5 messages directly in a byte array.
+ */
+public final class LittleEndian {
+
+    private LittleEndian(){}
+
+    public static int readUInt8(byte[] data, int offset){
+        return data[offset] & 0xff;
+    }
+
+    public static int readUInt16(byte[] data, int offset){
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    public static int readInt32(byte[] data, int offset){
+        return (data[offset] & 0xff)
+                | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16
+                | (data[offset + 3] & 0xff) << 24;
+    }
+
+    public static long readUInt32(byte[] data, int offset){
+        return readInt32(data, offset) & 0xffffffffL;
+    }
+
+    public static void writeUInt16(byte[] data, int offset, int value){
+        data[offset] = (byte)value;
+        data[offset + 1] = (byte)(value >>> 8);
+    }
+
+    public static void writeInt32(byte[] data, int offset, int value){
+        data[offset] = (byte)value;
+        data[offset + 1] = (byte)(value >>> 8);
+        data[offset + 2] = (byte)(value >>> 16);
+        data[offset + 3] = (byte)(value >>> 24);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * Raw sensor values from a SensorRx (0x2f) message. The DexcomG5MessageDecoder fills the same
+ * instance for every message, so a listener must copy out anything it wants to keep.
+ */
+public final class SensorReading {
+
+    public int status;
+    public long timestamp; // transmitter time, seconds since activation
+    public int unfiltered;
+    public int filtered;
+
+    void set(int status, long timestamp, int unfiltered, int filtered){
+        this.status = status;
+        this.timestamp = timestamp;
+        this.unfiltered = unfiltered;
+        this.filtered = filtered;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * TransmitterPreferences kept in the app's private SharedPreferences.
+ */
+public class SharedPreferencesTransmitterPreferences implements TransmitterPreferences {
+
+    private static final String PREFERENCES_NAME = "transmitters";
+    private static final String BONDED_KEY = ".bonded";
+    private static final String ADDRESS_KEY = ".address";
+    private static final String BACKFILLED_TO_KEY = ".backfilledTo";
+
+    private final SharedPreferences preferences;
+
+    public SharedPreferencesTransmitterPreferences(Context context){
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public boolean isBonded(String transmitterId) {
+        return preferences.getBoolean(transmitterId + BONDED_KEY, false);
+    }
+
+    @Override
+    public void setBonded(String transmitterId, boolean isBonded) {
+        if(isBonded == isBonded(transmitterId)){
+            return;
+        }
+        preferences.edit().putBoolean(transmitterId + BONDED_KEY, isBonded).apply();
+    }
+
+    @Override
+    public int getBackfilledTo(String transmitterId) {
+        return preferences.getInt(transmitterId + BACKFILLED_TO_KEY, -1);
+    }
+
+    @Override
+    public void setBackfilledTo(String transmitterId, int transmitterTime) {
+        if(transmitterTime == getBackfilledTo(transmitterId)){
+            return;
+        }
+        preferences.edit().putInt(transmitterId + BACKFILLED_TO_KEY, transmitterTime).apply();
+    }
+
+    @Override
+    public String getDeviceAddress(String transmitterId) {
+        return preferences.getString(transmitterId + ADDRESS_KEY, null);
+    }
+
+    @Override
+    public void setDeviceAddress(String transmitterId, String address) {
+        if(address.equals(getDeviceAddress(transmitterId))){
+            return;
+        }
+        preferences.edit().putString(transmitterId + ADDRESS_KEY, address).apply();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.ble.GattOperationQueue;
+import com.dennisgove.endo.util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time and the failures go for one transmitter. Keeps a histogram of the time spent in
+ * each TransmitterState on every visit, and counts GATT retries and errors by status, scan
+ * windows which ended without seeing the transmitter, scan failures by error code, sessions which
+ * failed and were dropped, and readings the transmitter took which were not received live.
+ *
+ * Together these tell apart a transmitter out of range (windows missed, nothing else wrong), the
+ * platform throttling scans (scan failures) and our own handling (GATT errors, retries and slow
+ * phases). Everything is allocated up front and recorded without locking.
+ */
+public class TransmitterMetrics implements GattOperationQueue.Monitor {
+
+    private static final TransmitterState[] STATES = TransmitterState.values();
+
+    // GATT statuses are 0-255; negative GattFuture.STATUS_ values are counted after them
+    private static final int GATT_STATUS_COUNT = 256;
+    private static final int INTERNAL_STATUS_COUNT = 8;
+    private static final int SCAN_ERROR_COUNT = 8;
+
+    private final String transmitterId;
+    private final LatencyHistogram[] phases = new LatencyHistogram[STATES.length];
+    private final AtomicLongArray gattErrors = new AtomicLongArray(GATT_STATUS_COUNT + INTERNAL_STATUS_COUNT);
+    private final AtomicLongArray scanFailures = new AtomicLongArray(SCAN_ERROR_COUNT);
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong scanMisses = new AtomicLong();
+    private final AtomicLong readings = new AtomicLong();
+    private final AtomicLong missedReadings = new AtomicLong();
+    private final AtomicLong droppedCallbacks = new AtomicLong();
+    private final AtomicLong failedSessions = new AtomicLong();
+
+    public TransmitterMetrics(String transmitterId){
+        this.transmitterId = transmitterId;
+        for(int idx = 0; idx < phases.length; ++idx){
+            phases[idx] = new LatencyHistogram();
+        }
+    }
+
+    public String getTransmitterId(){
+        return transmitterId;
+    }
+
+    /**
+     * @param duration ms spent in state before leaving it
+     */
+    public void onLeftState(TransmitterState state, long duration){
+        phases[state.ordinal()].record(duration);
+    }
+
+    @Override
+    public void onRetry(int status) {
+        retries.incrementAndGet();
+        onError(status);
+    }
+
+    @Override
+    public void onError(int status) {
+        gattErrors.incrementAndGet(statusIndex(status));
+    }
+
+    public void onScanMissed(){
+        scanMisses.incrementAndGet();
+    }
+
+    public void onScanFailed(int errorCode){
+        scanFailures.incrementAndGet(Math.max(0, Math.min(SCAN_ERROR_COUNT - 1, errorCode)));
+    }
+
+    public void onReading(){
+        readings.incrementAndGet();
+    }
+
+    /**
+     * @param count readings taken by the transmitter since the last one received
+     */
+    public void onReadingsMissed(int count){
+        missedReadings.addAndGet(count);
+    }
+
+    /**
+     * A GATT callback was dropped because the transmitter's thread had too many still to handle.
+     */
+    public void onCallbackDropped(){
+        droppedCallbacks.incrementAndGet();
+    }
+
+    /**
+     * A session failed and its connection was dropped.
+     */
+    public void onSessionFailed(){
+        failedSessions.incrementAndGet();
+    }
+
+    private static int statusIndex(int status){
+        if(status >= 0){
+            return Math.min(GATT_STATUS_COUNT - 1, status);
+        }
+        return GATT_STATUS_COUNT + Math.min(INTERNAL_STATUS_COUNT - 1, -status - 1);
+    }
+
+    private static int statusAt(int index){
+        return index < GATT_STATUS_COUNT ? index : -(index - GATT_STATUS_COUNT + 1);
+    }
+
+    public Snapshot getSnapshot(){
+        Map<TransmitterState, Phase> phaseSnapshots = new EnumMap<>(TransmitterState.class);
+        for(TransmitterState state : STATES){
+            LatencyHistogram histogram = phases[state.ordinal()];
+            if(histogram.getCount() > 0){
+                phaseSnapshots.put(state, new Phase(histogram));
+            }
+        }
+
+        return new Snapshot(transmitterId, phaseSnapshots, nonZero(gattErrors, true), nonZero(scanFailures, false),
+                retries.get(), scanMisses.get(), readings.get(), missedReadings.get(), droppedCallbacks.get(), failedSessions.get());
+    }
+
+    private static Map<Integer, Long> nonZero(AtomicLongArray counts, boolean isGattStatus){
+        Map<Integer, Long> map = new TreeMap<>();
+        for(int idx = 0; idx < counts.length(); ++idx){
+            long count = counts.get(idx);
+            if(0 != count){
+                map.put(isGattStatus ? statusAt(idx) : idx, count);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * The time spent in one state, in ms.
+     */
+    public static class Phase {
+        public final long count;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Phase(LatencyHistogram histogram){
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p90 = histogram.getValueAtPercentile(90);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.max = histogram.getMax();
+        }
+    }
+
+    /**
+     * The metrics at one moment. States never left, and statuses and error codes never seen, are
+     * left out.
+     */
+    public static class Snapshot {
+        public final String transmitterId;
+        public final Map<TransmitterState, Phase> phases;
+        public final Map<Integer, Long> gattErrors;
+        public final Map<Integer, Long> scanFailures;
+        public final long retries;
+        public final long scanMisses;
+        public final long readings;
+        public final long missedReadings;
+        public final long droppedCallbacks;
+        public final long failedSessions;
+
+        Snapshot(String transmitterId, Map<TransmitterState, Phase> phases, Map<Integer, Long> gattErrors, Map<Integer, Long> scanFailures,
+                 long retries, long scanMisses, long readings, long missedReadings, long droppedCallbacks, long failedSessions){
+            this.transmitterId = transmitterId;
+            this.phases = Collections.unmodifiableMap(phases);
+            this.gattErrors = gattErrors;
+            this.scanFailures = scanFailures;
+            this.retries = retries;
+            this.scanMisses = scanMisses;
+            this.readings = readings;
+            this.missedReadings = missedReadings;
+            this.droppedCallbacks = droppedCallbacks;
+            this.failedSessions = failedSessions;
+        }
+
+        public void dump(PrintWriter writer){
+            writer.println("Transmitter " + transmitterId);
+            writer.println(String.format(Locale.US, "  readings %d, missed %d, scan windows missed %d, GATT retries %d, callbacks dropped %d, sessions failed %d",
+                    readings, missedReadings, scanMisses, retries, droppedCallbacks, failedSessions));
+
+            writer.println(String.format(Locale.US, "  %-16s %7s %9s %7s %7s %7s %7s", "state (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+            for(Map.Entry<TransmitterState, Phase> entry : phases.entrySet()){
+                Phase phase = entry.getValue();
+                writer.println(String.format(Locale.US, "  %-16s %7d %9.1f %7d %7d %7d %7d",
+                        entry.getKey(), phase.count, phase.mean, phase.p50, phase.p90, phase.p99, phase.max));
+            }
+
+            for(Map.Entry<Integer, Long> entry : gattErrors.entrySet()){
+                writer.println(String.format(Locale.US, "  GATT status %d: %d", entry.getKey(), entry.getValue()));
+            }
+            for(Map.Entry<Integer, Long> entry : scanFailures.entrySet()){
+                writer.println(String.format(Locale.US, "  scan error %d: %d", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+}
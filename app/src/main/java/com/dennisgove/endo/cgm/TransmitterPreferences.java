@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * State about each transmitter that is kept between connections and restarts, keyed by
+ * transmitter id.
+ */
+public interface TransmitterPreferences {
+
+    /**
+     * True if the last handshake with the transmitter ended with it both authenticated and
+     * bonded, in which case the next connection can ask for the auth status directly instead of
+     * repeating the challenge.
+     */
+    boolean isBonded(String transmitterId);
+
+    void setBonded(String transmitterId, boolean isBonded);
+
+    /**
+     * Transmitter time, in seconds, up to which every reading the transmitter took is stored, or
+     * -1 if not known. A backfill which fails leaves it behind, so the next connection asks for
+     * the same readings again.
+     */
+    int getBackfilledTo(String transmitterId);
+
+    void setBackfilledTo(String transmitterId, int transmitterTime);
+
+    /**
+     * Bluetooth address the transmitter was last found at, or null if it has never been found.
+     */
+    String getDeviceAddress(String transmitterId);
+
+    void setDeviceAddress(String transmitterId, String address);
+}
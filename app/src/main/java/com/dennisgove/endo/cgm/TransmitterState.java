@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import java.util.EnumSet;
+
+/**
+ * The states a transmitter moves through in one wake window, from looking for it to having its
+ * readings, and which states each can move to.
+ *
+ * A connection can be lost in any connected state, so all of them can move to IDLE.
+ */
+public enum TransmitterState {
+    IDLE,
+    SCANNING,
+    CONNECTING,
+    DISCOVERING,     // connected, discovering services
+    AUTHENTICATING,  // checking an existing bond, or the auth request and challenge
+    BONDING,         // authenticated, waiting for the bond the transmitter asked for
+    READING,         // authenticated, reading the current glucose
+    BACKFILLING,     // downloading readings missed since the last connection
+    DISCONNECTING;
+
+    static {
+        IDLE.next = EnumSet.of(SCANNING, CONNECTING);
+        SCANNING.next = EnumSet.of(CONNECTING, IDLE);
+        // a direct connection which does not connect in time falls back to scanning
+        CONNECTING.next = EnumSet.of(DISCOVERING, SCANNING, DISCONNECTING, IDLE);
+        DISCOVERING.next = EnumSet.of(AUTHENTICATING, DISCONNECTING, IDLE);
+        // a transmitter which is still bonded goes straight to reading
+        AUTHENTICATING.next = EnumSet.of(BONDING, READING, DISCONNECTING, IDLE);
+        BONDING.next = EnumSet.of(READING, DISCONNECTING, IDLE);
+        READING.next = EnumSet.of(BACKFILLING, DISCONNECTING, IDLE);
+        BACKFILLING.next = EnumSet.of(READING, DISCONNECTING, IDLE);
+        DISCONNECTING.next = EnumSet.of(IDLE);
+    }
+
+    private EnumSet<TransmitterState> next;
+
+    public boolean canMoveTo(TransmitterState state){
+        return next.contains(state);
+    }
+
+    /**
+     * @return true if there is a connection to the transmitter in this state
+     */
+    public boolean isConnected(){
+        return ordinal() >= DISCOVERING.ordinal() && ordinal() <= BACKFILLING.ordinal();
+    }
+}
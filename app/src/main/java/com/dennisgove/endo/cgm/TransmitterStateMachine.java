@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.util.Clock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The state of a transmitter. Moves are made with a compare-and-set, so GATT callbacks, timers
+ * and the app can all move it from their own threads without locking, and a move which is not
+ * allowed from the current state is refused rather than made.
+ *
+ * Every move is timestamped. The machine keeps when each state was last entered and the total
+ * time spent in each, which together show where the time in a wake window goes.
+ */
+public class TransmitterStateMachine {
+
+    public interface Listener {
+        /**
+         * Called on the thread which made the move, after it has been made.
+         * @param timestamp when the move was made, in ms
+         * @param duration ms spent in from
+         */
+        void onStateChanged(TransmitterState from, TransmitterState to, long timestamp, long duration);
+    }
+
+    private static final class Transition {
+        final TransmitterState state;
+        final long timestamp;
+
+        Transition(TransmitterState state, long timestamp){
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static final TransmitterState[] STATES = TransmitterState.values();
+
+    private final Clock clock;
+    private final Listener listener;
+    private final AtomicReference<Transition> current;
+    private final AtomicLongArray enteredAt = new AtomicLongArray(STATES.length);
+    private final AtomicLongArray timeIn = new AtomicLongArray(STATES.length);
+
+    /**
+     * @param listener told of every move, or null
+     */
+    public TransmitterStateMachine(Clock clock, Listener listener){
+        this.clock = clock;
+        this.listener = listener;
+
+        long now = clock.currentTimeMillis();
+        this.current = new AtomicReference<>(new Transition(TransmitterState.IDLE, now));
+        enteredAt.set(TransmitterState.IDLE.ordinal(), now);
+    }
+
+    public TransmitterState getState(){
+        return current.get().state;
+    }
+
+    public boolean isConnected(){
+        return current.get().state.isConnected();
+    }
+
+    /**
+     * @return when the current state was entered, in ms
+     */
+    public long getStateTimestamp(){
+        return current.get().timestamp;
+    }
+
+    /**
+     * Moves to state if that is allowed from the current state.
+     * @return false if the move is not allowed, or the machine is already in state
+     */
+    public boolean moveTo(TransmitterState state){
+        while(true){
+            Transition from = current.get();
+            if(!from.state.canMoveTo(state)){
+                return false;
+            }
+            if(move(from, state)){
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves to state only if the machine is in expected, and the move is allowed.
+     * @return false if the machine was in some other state, or the move is not allowed
+     */
+    public boolean moveTo(TransmitterState expected, TransmitterState state){
+        while(true){
+            Transition from = current.get();
+            if(expected != from.state || !from.state.canMoveTo(state)){
+                return false;
+            }
+            if(move(from, state)){
+                return true;
+            }
+        }
+    }
+
+    private boolean move(Transition from, TransmitterState state){
+        Transition to = new Transition(state, Math.max(from.timestamp, clock.currentTimeMillis()));
+        if(!current.compareAndSet(from, to)){
+            return false;
+        }
+
+        long duration = to.timestamp - from.timestamp;
+        enteredAt.set(state.ordinal(), to.timestamp);
+        timeIn.addAndGet(from.state.ordinal(), duration);
+        if(null != listener){
+            listener.onStateChanged(from.state, state, to.timestamp, duration);
+        }
+        return true;
+    }
+
+    /**
+     * @return when state was last entered, in ms, or 0 if it never has been
+     */
+    public long getEnteredAt(TransmitterState state){
+        return enteredAt.get(state.ordinal());
+    }
+
+    /**
+     * @return total ms spent in state, including the time so far if it is the current state
+     */
+    public long getTimeIn(TransmitterState state){
+        long total = timeIn.get(state.ordinal());
+        Transition now = current.get();
+        if(state == now.state){
+            total += Math.max(0, clock.currentTimeMillis() - now.timestamp);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+/**
+ * Estimates the rate of change of glucose from the readings of the last few minutes, by least
+ * squares regression over a sliding window.
+ *
+ * The window is kept as running sums, so adding a reading costs the same however long the history
+ * is. The sums are exact integers over times relative to the oldest reading in the window, so
+ * millions of additions and removals never drift. Readings may arrive out of order, as backfilled
+ * readings do; one which falls inside the window is added to it, and one older than the window
+ * is ignored. When a gap leaves too few readings in the window there is no estimate.
+ */
+public class TrendEstimator {
+
+    public static final int DEFAULT_WINDOW_SECONDS = 15 * 60;
+    public static final int DEFAULT_CAPACITY = 8;
+    public static final int MIN_READINGS = 2;
+
+    /**
+     * The direction of a rate, with the thresholds of a CGM receiver's arrows.
+     */
+    public enum Trend {
+        NONE(""),
+        DOUBLE_UP("\u21C8"),       // more than 3 mg/dL per minute
+        SINGLE_UP("\u2191"),       // 2 to 3
+        FORTY_FIVE_UP("\u2197"),   // 1 to 2
+        FLAT("\u2192"),            // -1 to 1
+        FORTY_FIVE_DOWN("\u2198"),
+        SINGLE_DOWN("\u2193"),
+        DOUBLE_DOWN("\u21CA");
+
+        public final String arrow;
+
+        Trend(String arrow){
+            this.arrow = arrow;
+        }
+
+        public static Trend of(double rate){
+            if(Double.isNaN(rate)){
+                return NONE;
+            }
+            if(rate > 3){
+                return DOUBLE_UP;
+            }
+            if(rate > 2){
+                return SINGLE_UP;
+            }
+            if(rate > 1){
+                return FORTY_FIVE_UP;
+            }
+            if(rate >= -1){
+                return FLAT;
+            }
+            if(rate >= -2){
+                return FORTY_FIVE_DOWN;
+            }
+            if(rate >= -3){
+                return SINGLE_DOWN;
+            }
+            return DOUBLE_DOWN;
+        }
+    }
+
+    private final int windowSeconds;
+
+    // the readings in the window, oldest first
+    private final int[] times;
+    private final int[] values;
+    private int count = 0;
+
+    // sums over the window, of times relative to origin
+    private int origin;
+    private long sumT;
+    private long sumG;
+    private long sumTT;
+    private long sumTG;
+
+    public TrendEstimator(){
+        this(DEFAULT_WINDOW_SECONDS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param windowSeconds how far back from the newest reading readings are used
+     * @param capacity most readings kept in the window; the oldest are dropped beyond it
+     */
+    public TrendEstimator(int windowSeconds, int capacity){
+        this.windowSeconds = windowSeconds;
+        this.times = new int[capacity];
+        this.values = new int[capacity];
+    }
+
+    /**
+     * @param transmitterTime s since transmitter activation
+     * @param glucose mg/dL
+     * @return false if the reading was older than the window, or already in it
+     */
+    public boolean add(int transmitterTime, int glucose){
+        if(0 == count){
+            origin = transmitterTime;
+        }else if(transmitterTime <= times[count - 1] - windowSeconds){
+            return false;
+        }
+
+        // find where it goes - the window is a handful of readings, and nearly always it goes last
+        int idx = count;
+        while(idx > 0 && times[idx - 1] > transmitterTime){
+            --idx;
+        }
+        if(idx > 0 && times[idx - 1] == transmitterTime){
+            return false;
+        }
+
+        if(count == times.length){
+            if(0 == idx){
+                // older than everything kept in a full window
+                return false;
+            }
+            removeOldest();
+            --idx;
+        }
+
+        System.arraycopy(times, idx, times, idx + 1, count - idx);
+        System.arraycopy(values, idx, values, idx + 1, count - idx);
+        times[idx] = transmitterTime;
+        values[idx] = glucose;
+        ++count;
+        include(transmitterTime, glucose, 1);
+
+        int newest = times[count - 1];
+        while(times[0] <= newest - windowSeconds){
+            removeOldest();
+        }
+        return true;
+    }
+
+    /**
+     * @return mg/dL per minute, or NaN if there are too few readings in the window
+     */
+    public double getRate(){
+        if(count < MIN_READINGS){
+            return Double.NaN;
+        }
+
+        long denominator = count * sumTT - sumT * sumT;
+        if(0 == denominator){
+            return Double.NaN;
+        }
+        return (count * sumTG - sumT * sumG) * 60.0 / denominator;
+    }
+
+    public Trend getTrend(){
+        return Trend.of(getRate());
+    }
+
+    /**
+     * @return the number of readings in the window
+     */
+    public int getCount(){
+        return count;
+    }
+
+    public void clear(){
+        count = 0;
+        sumT = sumG = sumTT = sumTG = 0;
+    }
+
+    private void removeOldest(){
+        include(times[0], values[0], -1);
+        --count;
+        System.arraycopy(times, 1, times, 0, count);
+        System.arraycopy(values, 1, values, 0, count);
+
+        if(0 == count){
+            clear();
+        }else if(times[0] - origin > windowSeconds){
+            rebase();
+        }
+    }
+
+    private void include(int transmitterTime, int glucose, int sign){
+        long t = transmitterTime - origin;
+        sumT += sign * t;
+        sumG += sign * glucose;
+        sumTT += sign * t * t;
+        sumTG += sign * t * glucose;
+    }
+
+    /**
+     * Moves the origin up to the oldest reading, so relative times stay within the window. Only
+     * needed once a window's worth of time has passed, so costs one pass over the window then.
+     */
+    private void rebase(){
+        origin = times[0];
+        sumT = sumG = sumTT = sumTG = 0;
+        for(int idx = 0; idx < count; ++idx){
+            include(times[idx], values[idx], 1);
+        }
+    }
+}
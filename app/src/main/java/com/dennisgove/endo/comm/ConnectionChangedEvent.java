@@ -0,0 +1,27 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+/**
+ * Published by the BleController when bluetooth is turned on or off.
+ */
+public class ConnectionChangedEvent {
+    public final boolean isBluetoothEnabled;
+
+    public ConnectionChangedEvent(boolean isBluetoothEnabled){
+        this.isBluetoothEnabled = isBluetoothEnabled;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Typed publish/subscribe for events which never leave the app's process, in place of Intent
+ * broadcasts - no system server round trip, no Intent, and no forced hop to the main thread.
+ *
+ * Subscribers register for an exact event class and choose the Executor their events are
+ * delivered on. With DIRECT the subscriber is called on the publishing thread before publish
+ * returns. Subscribers of a class are kept in a copy-on-write array, so publishing takes no locks
+ * and allocates nothing for direct subscribers; subscribing and unsubscribing swap in a new array
+ * with a compare-and-set.
+ *
+ * A subscriber which throws does not stop the event reaching the others, nor does the exception
+ * reach the publisher; it is handed to the bus's FailureHandler instead.
+ *
+ * Events should be immutable, as the same instance is handed to every subscriber.
+ */
+public class EventBus {
+
+    public interface Subscriber<E> {
+        void onEvent(E event);
+    }
+
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    public interface FailureHandler {
+        void onSubscriberFailed(Object event, Subscriber<?> subscriber, RuntimeException e);
+    }
+
+    /**
+     * Drops subscriber failures.
+     */
+    public static final FailureHandler IGNORE_FAILURES = new FailureHandler() {
+        @Override
+        public void onSubscriberFailed(Object event, Subscriber<?> subscriber, RuntimeException e) {
+        }
+    };
+
+    /**
+     * Delivers events on the publishing thread.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    private final ConcurrentMap<Class<?>, AtomicReference<Registration[]>> registrations = new ConcurrentHashMap<>();
+    private final FailureHandler failureHandler;
+
+    public EventBus(){
+        this(IGNORE_FAILURES);
+    }
+
+    public EventBus(FailureHandler failureHandler){
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Delivers every published event of exactly type to subscriber, on the publishing thread.
+     */
+    public <E> Subscription subscribe(Class<E> type, Subscriber<? super E> subscriber){
+        return subscribe(type, DIRECT, subscriber);
+    }
+
+    /**
+     * Delivers every published event of exactly type to subscriber, on executor.
+     */
+    public <E> Subscription subscribe(Class<E> type, Executor executor, Subscriber<? super E> subscriber){
+        AtomicReference<Registration[]> reference = registrationsOf(type);
+        Registration registration = new Registration(reference, executor, subscriber);
+
+        Registration[] current;
+        Registration[] updated;
+        do{
+            current = reference.get();
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = registration;
+        }while(!reference.compareAndSet(current, updated));
+
+        return registration;
+    }
+
+    /**
+     * Hands event to every subscriber of its class.
+     */
+    @SuppressWarnings("unchecked")
+    public void publish(Object event){
+        AtomicReference<Registration[]> reference = registrations.get(event.getClass());
+        if(null == reference){
+            return;
+        }
+
+        for(Registration registration : reference.get()){
+            if(DIRECT == registration.executor){
+                deliver(registration.subscriber, event);
+            }else{
+                registration.executor.execute(new Delivery(registration.subscriber, event));
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void deliver(Subscriber subscriber, Object event){
+        try{
+            subscriber.onEvent(event);
+        } catch (RuntimeException e) {
+            failureHandler.onSubscriberFailed(event, subscriber, e);
+        }
+    }
+
+    /**
+     * Number of subscribers to events of exactly type.
+     */
+    public int getSubscriberCount(Class<?> type){
+        AtomicReference<Registration[]> reference = registrations.get(type);
+        return null == reference ? 0 : reference.get().length;
+    }
+
+    private AtomicReference<Registration[]> registrationsOf(Class<?> type){
+        AtomicReference<Registration[]> reference = registrations.get(type);
+        if(null == reference){
+            AtomicReference<Registration[]> created = new AtomicReference<>(NO_REGISTRATIONS);
+            reference = registrations.putIfAbsent(type, created);
+            if(null == reference){
+                reference = created;
+            }
+        }
+        return reference;
+    }
+
+    private static class Registration implements Subscription {
+        private final AtomicReference<Registration[]> reference;
+        final Executor executor;
+        @SuppressWarnings("rawtypes")
+        final Subscriber subscriber;
+
+        Registration(AtomicReference<Registration[]> reference, Executor executor, Subscriber<?> subscriber){
+            this.reference = reference;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void unsubscribe() {
+            Registration[] current;
+            Registration[] updated;
+            do{
+                current = reference.get();
+                int idx = indexOf(current);
+                if(idx < 0){
+                    return;
+                }
+
+                updated = new Registration[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, idx);
+                System.arraycopy(current, idx + 1, updated, idx, current.length - idx - 1);
+            }while(!reference.compareAndSet(current, updated));
+        }
+
+        private int indexOf(Registration[] registrations){
+            for(int idx = 0; idx < registrations.length; ++idx){
+                if(this == registrations[idx]){
+                    return idx;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private class Delivery implements Runnable {
+        @SuppressWarnings("rawtypes")
+        private final Subscriber subscriber;
+        private final Object event;
+
+        Delivery(Subscriber<?> subscriber, Object event){
+            this.subscriber = subscriber;
+            this.event = event;
+        }
+
+        @Override
+        public void run() {
+            deliver(subscriber, event);
+        }
+    }
+}
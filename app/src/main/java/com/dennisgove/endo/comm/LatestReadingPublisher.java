@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import com.dennisgove.endo.util.Clock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the most recent reading from each transmitter and hands them to observers, conflated -
+ * readings which are replaced before they are delivered are never delivered at all.
+ *
+ * At most one delivery is waiting on the observers' executor at a time, and deliveries are at
+ * least minIntervalMillis apart, so a burst of readings costs the observers' thread one update
+ * with the last of them from each transmitter rather than one update for each. A reading older
+ * than the one held for its transmitter is ignored.
+ */
+public class LatestReadingPublisher {
+
+    public interface Observer {
+        void onLatestReading(ReadingEvent reading);
+    }
+
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    private final long minIntervalMillis;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, ReadingEvent> latest = new ConcurrentHashMap<>();
+    private final AtomicBoolean isDeliveryPending = new AtomicBoolean(false);
+
+    // only touched on executor
+    private final Map<String, ReadingEvent> delivered = new HashMap<>();
+    private volatile long deliveredAt = Long.MIN_VALUE / 2;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+    private final Runnable scheduleDeliver = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(deliver);
+        }
+    };
+
+    /**
+     * @param executor observers are called on
+     * @param timer delays deliveries which would come sooner than minIntervalMillis after the last
+     */
+    public LatestReadingPublisher(Executor executor, ScheduledExecutorService timer, Clock clock, long minIntervalMillis){
+        this.executor = executor;
+        this.timer = timer;
+        this.clock = clock;
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Replaces the reading held for its transmitter, if reading is no older, and arranges for
+     * observers to get it. May be called from any thread.
+     */
+    public void publish(ReadingEvent reading){
+        ReadingEvent current;
+        do{
+            current = latest.get(reading.transmitterId);
+            if(null == current){
+                if(null == latest.putIfAbsent(reading.transmitterId, reading)){
+                    break;
+                }
+                continue;
+            }
+            if(reading.timestamp < current.timestamp){
+                return;
+            }
+        }while(!latest.replace(reading.transmitterId, current, reading));
+
+        if(!isDeliveryPending.compareAndSet(false, true)){
+            // the pending delivery will pick this up
+            return;
+        }
+
+        long delay = deliveredAt + minIntervalMillis - clock.currentTimeMillis();
+        if(delay <= 0){
+            executor.execute(deliver);
+        }else{
+            timer.schedule(scheduleDeliver, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the transmitter's most recent reading, or null if there has not been one
+     */
+    public ReadingEvent getLatest(String transmitterId){
+        return latest.get(transmitterId);
+    }
+
+    /**
+     * Adds observer for every transmitter's readings. See subscribe(transmitterId, observer).
+     */
+    public void subscribe(Observer observer){
+        subscribe(null, observer);
+    }
+
+    /**
+     * Adds observer, calling it straight away with the most recent reading if there is one. Must
+     * be called on the observers' executor.
+     * @param transmitterId whose readings to observe, or null for every transmitter's
+     */
+    public void subscribe(String transmitterId, Observer observer){
+        subscriptions.add(new Subscription(transmitterId, observer));
+        for(ReadingEvent reading : latest.values()){
+            if(null == transmitterId || transmitterId.equals(reading.transmitterId)){
+                observer.onLatestReading(reading);
+            }
+        }
+    }
+
+    /**
+     * Removes every subscription of observer.
+     */
+    public void unsubscribe(Observer observer){
+        for(Subscription subscription : subscriptions){
+            if(subscription.observer == observer){
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void deliver(){
+        // cleared before reading latest, so a reading published from here on schedules another
+        // delivery rather than being missed
+        isDeliveryPending.set(false);
+
+        for(ReadingEvent reading : latest.values()){
+            if(reading == delivered.get(reading.transmitterId)){
+                continue;
+            }
+            delivered.put(reading.transmitterId, reading);
+            deliveredAt = clock.currentTimeMillis();
+
+            for(Subscription subscription : subscriptions){
+                if(null == subscription.transmitterId || subscription.transmitterId.equals(reading.transmitterId)){
+                    subscription.observer.onLatestReading(reading);
+                }
+            }
+        }
+    }
+
+    private static class Subscription {
+        final String transmitterId;
+        final Observer observer;
+
+        Subscription(String transmitterId, Observer observer){
+            this.transmitterId = transmitterId;
+            this.observer = observer;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import com.dennisgove.endo.cgm.TrendEstimator;
+
+/**
+ * Published when a live reading from a transmitter has been stored.
+ */
+public class ReadingEvent {
+    public final String transmitterId;
+    public final long timestamp;        // ms since epoch
+    public final int transmitterTime;   // s since transmitter activation
+    public final int glucose;           // mg/dL
+    public final int trend;             // mg/dL per minute * 10, as reported by the transmitter
+    public final int flags;             // ReadingStore.FLAG_ values
+    public final double rate;           // mg/dL per minute from the TrendEstimator, NaN if unknown
+    public final TrendEstimator.Trend direction;
+
+    public ReadingEvent(String transmitterId, long timestamp, int transmitterTime, int glucose, int trend, int flags, double rate){
+        this.transmitterId = transmitterId;
+        this.timestamp = timestamp;
+        this.transmitterTime = transmitterTime;
+        this.glucose = glucose;
+        this.trend = trend;
+        this.flags = flags;
+        this.rate = rate;
+        this.direction = TrendEstimator.Trend.of(rate);
+    }
+}
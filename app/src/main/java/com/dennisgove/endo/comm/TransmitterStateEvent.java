@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import com.dennisgove.endo.cgm.TransmitterState;
+
+/**
+ * Published when a transmitter moves from one state to another.
+ */
+public class TransmitterStateEvent {
+    public final String transmitterId;
+    public final TransmitterState previousState;
+    public final TransmitterState state;
+    public final long timestamp; // ms, when the move was made
+
+    public TransmitterStateEvent(String transmitterId, TransmitterState previousState, TransmitterState state, long timestamp){
+        this.transmitterId = transmitterId;
+        this.previousState = previousState;
+        this.state = state;
+        this.timestamp = timestamp;
+    }
+}
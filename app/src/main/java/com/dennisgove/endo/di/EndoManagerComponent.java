@@ -18,6 +18,7 @@ package com.dennisgove.endo.di;
 import com.dennisgove.endo.ble.BleController;
 import com.dennisgove.endo.ble.BleDevice;
 import com.dennisgove.endo.ble.BluetoothAdapterWrapper;
+import com.dennisgove.endo.cgm.DexcomG5Transmitter;
 import com.dennisgove.endo.service.EndoManager;
 
 import javax.inject.Singleton;
@@ -31,4 +32,5 @@ public interface EndoManagerComponent {
     void inject(BleController injectTarget);
     void inject(BluetoothAdapterWrapper injectTarget);
     void inject(BleDevice injectTarget);
+    void inject(DexcomG5Transmitter injectTarget);
 }
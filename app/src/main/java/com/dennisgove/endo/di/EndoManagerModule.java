@@ -17,13 +17,23 @@ package com.dennisgove.endo.di;
 
 
 import android.content.Context;
+import android.util.Log;
 
 import com.dennisgove.endo.EndoApplication;
 import com.dennisgove.endo.ble.BleAdapter;
 import com.dennisgove.endo.ble.BleController;
+import com.dennisgove.endo.ble.BleScanner;
 import com.dennisgove.endo.ble.BluetoothAdapterWrapper;
+import com.dennisgove.endo.cgm.SharedPreferencesTransmitterPreferences;
+import com.dennisgove.endo.cgm.TransmitterPreferences;
+import com.dennisgove.endo.comm.EventBus;
+import com.dennisgove.endo.upload.NightscoutPreferences;
+import com.dennisgove.endo.upload.SharedPreferencesNightscoutPreferences;
+import com.dennisgove.endo.util.Clock;
+import com.dennisgove.endo.util.TraceBuffer;
 
 import javax.inject.Named;
+import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
@@ -53,8 +63,43 @@ public class EndoManagerModule {
         return new BleController(endoApplication);
     }
 
-    @Provides
+    @Provides @Singleton
     public BleAdapter providesBleAdapter(){
         return new BluetoothAdapterWrapper(endoApplication);
     }
+
+    @Provides @Singleton
+    public BleScanner providesBleScanner(BleAdapter bleAdapter, TraceBuffer traceBuffer){
+        return new BleScanner(bleAdapter, traceBuffer);
+    }
+
+    @Provides @Singleton
+    public EventBus providesEventBus(){
+        return new EventBus(new EventBus.FailureHandler() {
+            @Override
+            public void onSubscriberFailed(Object event, EventBus.Subscriber<?> subscriber, RuntimeException e) {
+                Log.e("EventBus", "Subscriber failed to handle " + event.getClass().getSimpleName(), e);
+            }
+        });
+    }
+
+    @Provides
+    public Clock providesClock(){
+        return Clock.SYSTEM;
+    }
+
+    @Provides @Singleton
+    public TraceBuffer providesTraceBuffer(Clock clock){
+        return new TraceBuffer(clock);
+    }
+
+    @Provides @Singleton
+    public TransmitterPreferences providesTransmitterPreferences(){
+        return new SharedPreferencesTransmitterPreferences(endoApplication.getApplicationContext());
+    }
+
+    @Provides @Singleton
+    public NightscoutPreferences providesNightscoutPreferences(){
+        return new SharedPreferencesNightscoutPreferences(endoApplication.getApplicationContext());
+    }
 }
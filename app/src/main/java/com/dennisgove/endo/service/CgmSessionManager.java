@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.service;
+
+import android.util.Log;
+
+import com.dennisgove.endo.EndoApplication;
+import com.dennisgove.endo.cgm.CgmTransmitter;
+import com.dennisgove.endo.cgm.DexcomG5Transmitter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owns one CgmTransmitter per transmitter id, so the app can follow several sensors at once.
+ *
+ * Each transmitter keeps its own state and runs its connection on its own thread - its own scan
+ * windows, GATT operation queue and reading store - so a slow or failing handshake with one never
+ * holds up the others. They share the app's single BleAdapter and BleScanner, which serves
+ * overlapping scan windows from one scan.
+ */
+public class CgmSessionManager {
+    private final String TAG = this.getClass().getSimpleName();
+
+    private final EndoApplication endoApplication;
+    private final Map<String, CgmTransmitter> transmitters = new HashMap<>();
+
+    public CgmSessionManager(EndoApplication endoApplication){
+        this.endoApplication = endoApplication;
+    }
+
+    /**
+     * Starts following the transmitter, if not already.
+     * @return the transmitter's session
+     */
+    public synchronized CgmTransmitter connect(String transmitterId){
+        CgmTransmitter transmitter = transmitters.get(transmitterId);
+        if(null == transmitter){
+            Log.i(TAG, "Starting session for transmitter '" + transmitterId + "'");
+            transmitter = new DexcomG5Transmitter(endoApplication);
+            transmitters.put(transmitterId, transmitter);
+        }
+
+        transmitter.connectToTransmitter(transmitterId);
+        return transmitter;
+    }
+
+    /**
+     * Stops following the transmitter and closes its session, releasing its threads and store.
+     */
+    public synchronized void disconnect(String transmitterId){
+        CgmTransmitter transmitter = transmitters.remove(transmitterId);
+        if(null != transmitter){
+            Log.i(TAG, "Ending session for transmitter '" + transmitterId + "'");
+            transmitter.close();
+        }
+    }
+
+    public synchronized void disconnectAll(){
+        for(String transmitterId : new ArrayList<>(transmitters.keySet())){
+            disconnect(transmitterId);
+        }
+    }
+
+    /**
+     * The session for the transmitter, or null if it is not being followed.
+     */
+    public synchronized CgmTransmitter getTransmitter(String transmitterId){
+        return transmitters.get(transmitterId);
+    }
+
+    public synchronized List<String> getTransmitterIds(){
+        return new ArrayList<>(transmitters.keySet());
+    }
+}
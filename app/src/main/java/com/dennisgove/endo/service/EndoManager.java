@@ -28,11 +28,31 @@ import android.util.Log;
 
 import com.dennisgove.endo.EndoApplication;
 import com.dennisgove.endo.R;
+import com.dennisgove.endo.alert.Alert;
+import com.dennisgove.endo.alert.AlertEngine;
 import com.dennisgove.endo.ble.BleController;
 import com.dennisgove.endo.cgm.CgmTransmitter;
-import com.dennisgove.endo.cgm.DexcomG5Transmitter;
+import com.dennisgove.endo.cgm.TransmitterMetrics;
 import com.dennisgove.endo.comm.BroadcastReceiverCollection;
-import com.dennisgove.endo.comm.EndoBroadcastReceiver;
+import com.dennisgove.endo.comm.ConnectionChangedEvent;
+import com.dennisgove.endo.comm.EventBus;
+import com.dennisgove.endo.comm.LatestReadingPublisher;
+import com.dennisgove.endo.comm.MainThreadExecutor;
+import com.dennisgove.endo.comm.ReadingEvent;
+import com.dennisgove.endo.upload.NightscoutPreferences;
+import com.dennisgove.endo.util.Clock;
+import com.dennisgove.endo.util.TraceBuffer;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -40,10 +60,21 @@ import javax.inject.Named;
 public class EndoManager extends Service {
     private final String TAG = this.getClass().getSimpleName();
     private final int ALERT_ID_BLE_OFF = 1;
+    // glucose alerts are ALERT_ID_GLUCOSE + Alert ordinal, tagged with the transmitter id
+    private final int ALERT_ID_GLUCOSE = 100;
+    private static final long ALERT_TICK_MILLIS = 60 * 1000;
+    private static final String DEFAULT_TRANSMITTER_ID = "40A90B";
+    // the UI shows the latest reading no more often than this, however fast readings arrive
+    private static final long LATEST_READING_INTERVAL_MILLIS = 250;
 
     private Binder binder;
     private BroadcastReceiverCollection broadcastReceivers;
-    private CgmTransmitter cgmTransmitter;
+    private final List<EventBus.Subscription> subscriptions = new ArrayList<>();
+    private CgmSessionManager sessionManager;
+    private ScheduledExecutorService timer;
+    private LatestReadingPublisher latestReadingPublisher;
+    private final Map<String, AlertEngine> alertEngines = new HashMap<>();
+    private boolean isBluetoothOffAlertShown = false;
 
     private EndoApplication endoApplication;
 
@@ -53,6 +84,18 @@ public class EndoManager extends Service {
     @Inject
     public BleController bleController;
 
+    @Inject
+    public EventBus eventBus;
+
+    @Inject
+    public TraceBuffer traceBuffer;
+
+    @Inject
+    public Clock clock;
+
+    @Inject
+    public NightscoutPreferences nightscoutPreferences;
+
     @Override
     public void onCreate(){
         super.onCreate();
@@ -61,36 +104,62 @@ public class EndoManager extends Service {
         endoApplication.getEndoManagerComponent().inject(this);
 
         broadcastReceivers = new BroadcastReceiverCollection(endoApplication);
-        cgmTransmitter = new DexcomG5Transmitter(endoApplication);
+        sessionManager = new CgmSessionManager(endoApplication);
 
         if(!bleController.isRunning()){
             bleController.start();
         }
 
         // Whenever bluetooh state changes, if off then the manager will show an alert to the user
-        broadcastReceivers.register(new EndoBroadcastReceiver(BleController.ACTION_CONNECTION_CHANGED) {
+        subscriptions.add(eventBus.subscribe(ConnectionChangedEvent.class, new MainThreadExecutor(), new EventBus.Subscriber<ConnectionChangedEvent>() {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                Log.d(TAG, "Received broadcast for '" + intent.getAction() + "'");
+            public void onEvent(ConnectionChangedEvent event) {
+                Log.d(TAG, "Received connection change - bluetooth enabled " + event.isBluetoothEnabled);
 
-                NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+                // Only touch the notification when whether it should be shown changes
+                boolean shouldShow = !bleController.isBluetoothEnabled();
+                if(shouldShow == isBluetoothOffAlertShown){
+                    return;
+                }
+                isBluetoothOffAlertShown = shouldShow;
 
-                // Cancel any existing alert
-                notificationManager.cancel(ALERT_ID_BLE_OFF);
+                NotificationManager notificationManager = getNotificationManager();
+                if(!shouldShow){
+                    notificationManager.cancel(ALERT_ID_BLE_OFF);
+                    return;
+                }
 
-                if(!bleController.isBluetoothEnabled()){
-                    Notification.Builder builder =
-                            new Notification.Builder(context)
-                                    .setSmallIcon(R.drawable.and)
-                                    .setPriority(Notification.PRIORITY_HIGH)
-                                    .setSound(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION))
-                                    .setContentTitle("Endo requires Bluetooth")
-                                    .setContentText("Bluetooth is required for Endo to function.");
+                Notification.Builder builder =
+                        new Notification.Builder(applicationContext)
+                                .setSmallIcon(R.drawable.and)
+                                .setPriority(Notification.PRIORITY_HIGH)
+                                .setSound(RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION))
+                                .setContentTitle("Endo requires Bluetooth")
+                                .setContentText("Bluetooth is required for Endo to function.");
 
-                    notificationManager.notify(ALERT_ID_BLE_OFF, builder.build());
+                notificationManager.notify(ALERT_ID_BLE_OFF, builder.build());
+            }
+        }));
+
+        // Readings are handed on from each transmitter's thread; the publisher keeps the latest
+        // from each transmitter and decides when the main thread sees them
+        timer = Executors.newSingleThreadScheduledExecutor();
+        latestReadingPublisher = new LatestReadingPublisher(new MainThreadExecutor(), timer, clock, LATEST_READING_INTERVAL_MILLIS);
+        subscriptions.add(eventBus.subscribe(ReadingEvent.class, new EventBus.Subscriber<ReadingEvent>() {
+            @Override
+            public void onEvent(ReadingEvent event) {
+                latestReadingPublisher.publish(event);
+                getAlertEngine(event.transmitterId).onReading(event.timestamp, event.glucose, event.rate);
+            }
+        }));
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for(AlertEngine engine : getAlertEngines()){
+                    engine.onTick();
                 }
             }
-        });
+        }, ALERT_TICK_MILLIS, ALERT_TICK_MILLIS, TimeUnit.MILLISECONDS);
 
         Log.d(TAG, "EndoManager was created");
     }
@@ -98,6 +167,12 @@ public class EndoManager extends Service {
     @Override
     public void onDestroy() {
         broadcastReceivers.close();
+        for(EventBus.Subscription subscription : subscriptions){
+            subscription.unsubscribe();
+        }
+        subscriptions.clear();
+        timer.shutdownNow();
+        sessionManager.disconnectAll();
         bleController.stop();
         Log.d(TAG, "EndoManager was destroyed");
     }
@@ -120,9 +195,13 @@ public class EndoManager extends Service {
     }
 
     public void connectToCgm(){
+        connectToCgm(DEFAULT_TRANSMITTER_ID);
+    }
+
+    public void connectToCgm(String transmitterId){
 
-        Log.i(TAG, "Connecting to transmitter");
-        cgmTransmitter.connectToTransmitter("40A90B");
+        Log.i(TAG, "Connecting to transmitter '" + transmitterId + "'");
+        sessionManager.connect(transmitterId);
 
 //        Log.i(TAG, "Starting device scan");
 //
@@ -160,6 +239,135 @@ public class EndoManager extends Service {
 //        });
     }
 
+    public void disconnectFromCgm(String transmitterId){
+        Log.i(TAG, "Disconnecting from transmitter '" + transmitterId + "'");
+        sessionManager.disconnect(transmitterId);
+
+        // a transmitter no longer followed raises nothing, not even the loss of its readings
+        AlertEngine engine;
+        synchronized(this){
+            engine = alertEngines.remove(transmitterId);
+        }
+        if(null != engine){
+            for(Alert alert : Alert.values()){
+                if(engine.isSounding(alert)){
+                    getNotificationManager().cancel(transmitterId, ALERT_ID_GLUCOSE + alert.ordinal());
+                }
+            }
+        }
+    }
+
+    private NotificationManager getNotificationManager(){
+        return (NotificationManager)applicationContext.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    private synchronized AlertEngine getAlertEngine(final String transmitterId){
+        AlertEngine engine = alertEngines.get(transmitterId);
+        if(null == engine){
+            engine = new AlertEngine(clock, new AlertEngine.Thresholds(), new AlertEngine.Listener() {
+                @Override
+                public void onAlertChanged(Alert alert, boolean isSounding, int glucose) {
+                    showAlert(transmitterId, alert, isSounding, glucose);
+                }
+            });
+            alertEngines.put(transmitterId, engine);
+        }
+        return engine;
+    }
+
+    private synchronized List<AlertEngine> getAlertEngines(){
+        return new ArrayList<>(alertEngines.values());
+    }
+
+    /**
+     * Posts or cancels the alert's notification. Only called when the alert starts or stops
+     * sounding.
+     */
+    private void showAlert(String transmitterId, Alert alert, boolean isSounding, int glucose){
+        Log.i(TAG, "Alert " + alert + " for transmitter '" + transmitterId + "' " + (isSounding ? "raised" : "cleared"));
+
+        NotificationManager notificationManager = getNotificationManager();
+        if(!isSounding){
+            notificationManager.cancel(transmitterId, ALERT_ID_GLUCOSE + alert.ordinal());
+            return;
+        }
+
+        Notification.Builder builder =
+                new Notification.Builder(applicationContext)
+                        .setSmallIcon(R.drawable.and)
+                        .setPriority(Alert.URGENT_LOW == alert ? Notification.PRIORITY_MAX : Notification.PRIORITY_HIGH)
+                        .setSound(RingtoneManager.getDefaultUri(Alert.URGENT_LOW == alert ? RingtoneManager.TYPE_ALARM : RingtoneManager.TYPE_NOTIFICATION))
+                        .setContentTitle(alert.title)
+                        .setContentText(glucose > 0 ? glucose + " mg/dL" : "Transmitter " + transmitterId);
+
+        notificationManager.notify(transmitterId, ALERT_ID_GLUCOSE + alert.ordinal(), builder.build());
+    }
+
+    /**
+     * Silences the alert until minutes from now, if the transmitter is being followed.
+     */
+    public void snoozeAlert(String transmitterId, Alert alert, int minutes){
+        AlertEngine engine;
+        synchronized(this){
+            engine = alertEngines.get(transmitterId);
+        }
+        if(null != engine){
+            engine.snooze(alert, clock.currentTimeMillis() + minutes * 60 * 1000L);
+        }
+    }
+
+    /**
+     * Calibrates the transmitter against a fingerstick taken now.
+     * @return false if it is not being followed, or the calibration was not used
+     */
+    public boolean addCalibration(String transmitterId, int glucose){
+        CgmTransmitter transmitter = sessionManager.getTransmitter(transmitterId);
+        if(null == transmitter){
+            return false;
+        }
+
+        Log.i(TAG, "Calibrating transmitter '" + transmitterId + "' at " + glucose + " mg/dL");
+        return transmitter.addCalibration(clock.currentTimeMillis(), glucose);
+    }
+
+    /**
+     * @return the transmitter's metrics, or null if it is not being followed
+     */
+    public TransmitterMetrics.Snapshot getMetrics(String transmitterId){
+        CgmTransmitter transmitter = sessionManager.getTransmitter(transmitterId);
+        return null == transmitter ? null : transmitter.getMetrics().getSnapshot();
+    }
+
+    /**
+     * Writes the metrics of every transmitter being followed.
+     */
+    public void dumpMetrics(PrintWriter writer){
+        for(String transmitterId : sessionManager.getTransmitterIds()){
+            TransmitterMetrics.Snapshot snapshot = getMetrics(transmitterId);
+            if(null != snapshot){
+                snapshot.dump(writer);
+            }
+        }
+    }
+
+    /**
+     * adb shell dumpsys activity service com.dennisgove.endo/.service.EndoManager
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpMetrics(writer);
+        writer.println();
+        traceBuffer.dump(writer);
+    }
+
+    public LatestReadingPublisher getLatestReadingPublisher(){
+        return latestReadingPublisher;
+    }
+
+    public CgmSessionManager getSessionManager(){
+        return sessionManager;
+    }
+
     public BleController getBleController(){
         return bleController;
     }
@@ -186,6 +394,78 @@ public class EndoManager extends Service {
         public void connectToCgm(){
             service.connectToCgm();
         }
+
+        public void connectToCgm(String transmitterId){
+            service.connectToCgm(transmitterId);
+        }
+
+        public void disconnectFromCgm(String transmitterId){
+            service.disconnectFromCgm(transmitterId);
+        }
+
+        /**
+         * Calls observer on the main thread with the transmitter's most recent reading straight
+         * away, if there is one, and then with each later one, conflated. Must be called on the
+         * main thread.
+         * @param transmitterId whose readings to observe, or null for every transmitter's
+         */
+        public void subscribeLatestReading(String transmitterId, LatestReadingPublisher.Observer observer){
+            service.getLatestReadingPublisher().subscribe(transmitterId, observer);
+        }
+
+        public void unsubscribeLatestReading(LatestReadingPublisher.Observer observer){
+            service.getLatestReadingPublisher().unsubscribe(observer);
+        }
+
+        public boolean addCalibration(String transmitterId, int glucose){
+            return service.addCalibration(transmitterId, glucose);
+        }
+
+        public void snoozeAlert(String transmitterId, Alert alert, int minutes){
+            service.snoozeAlert(transmitterId, alert, minutes);
+        }
+
+        /**
+         * Uploads readings to the Nightscout site from the next reading on, including any stored
+         * since the last upload; a null url stops uploading.
+         */
+        public void setNightscout(String url, String apiSecret){
+            service.nightscoutPreferences.setNightscout(url, apiSecret);
+        }
+
+        public List<String> getTransmitterIds(){
+            return service.getSessionManager().getTransmitterIds();
+        }
+
+        public TransmitterMetrics.Snapshot getMetrics(String transmitterId){
+            return service.getMetrics(transmitterId);
+        }
+
+        public String dumpMetrics(){
+            StringWriter out = new StringWriter();
+            PrintWriter writer = new PrintWriter(out);
+            service.dumpMetrics(writer);
+            writer.flush();
+            return out.toString();
+        }
+
+        /**
+         * @return the recent trace, oldest first
+         */
+        public String dumpTrace(){
+            StringWriter out = new StringWriter();
+            PrintWriter writer = new PrintWriter(out);
+            service.traceBuffer.dump(writer);
+            writer.flush();
+            return out.toString();
+        }
+
+        /**
+         * Turns on or off recording a copy of each GATT payload in the trace.
+         */
+        public void setTracingPayloads(boolean isTracingPayloads){
+            service.traceBuffer.setCapturingPayloads(isTracingPayloads);
+        }
     }
 
 }
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+/**
+ * The distribution of glucose in each half hour of the day over a range of days, as drawn by an
+ * ambulatory glucose profile: sketches[i] holds the readings from i * SLOT_WIDTH after midnight.
+ */
+public class AgpProfile {
+
+    public static final int SLOTS = 48;
+    public static final long SLOT_WIDTH = 30 * 60 * 1000L;
+
+    public final GlucoseSketch[] sketches = new GlucoseSketch[SLOTS];
+
+    public AgpProfile(){
+        for(int slot = 0; slot < SLOTS; ++slot){
+            sketches[slot] = new GlucoseSketch();
+        }
+    }
+
+    /**
+     * @param percentile between 0 and 100, typically 5, 25, 50, 75 or 95
+     */
+    public int getValueAtPercentile(int slot, double percentile){
+        return sketches[slot].getValueAtPercentile(percentile);
+    }
+
+    public void clear(){
+        for(GlucoseSketch sketch : sketches){
+            sketch.clear();
+        }
+    }
+}
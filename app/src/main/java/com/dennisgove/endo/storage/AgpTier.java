@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A GlucoseSketch for each half hour of each UTC day, kept in a memory-mapped file next to a
+ * ReadingStore's segments and caught up with the readings appended to it, so an ambulatory glucose
+ * profile over any run of days is the merge of that many days' sketches rather than a sort of
+ * every reading in them.
+ *
+ * Days are held densely from firstDay like a RollupTier's buckets, and like them span no more
+ * than ReadingStore.MAX_ROLLUP_SPAN. Each day is SLOTS sketches of BIN_COUNT unsigned 16 bit
+ * counts. A half hour sees 6 readings a day, so a count only saturates if a reading is stored
+ * thousands of times over.
+ *
+ * Layout (little-endian):
+ *   header, HEADER_SIZE bytes
+ *     0  int   magic
+ *     4  int   version
+ *     8  long  first day
+ *    16  long  last day in use, or first day - 1 if none
+ *    24  long  store records covered
+ *    32  int   1 if changed since last forced
+ *   days, DAY_SIZE bytes each
+ *     slot 0 bin 0 count, slot 0 bin 1 count, ... slot SLOTS - 1 bin BIN_COUNT - 1 count
+ *
+ * Like a RollupTier, it carries on from the records it covers on opening unless it is dirty, when
+ * it is rebuilt from the segments.
+ */
+class AgpTier {
+
+    static final int MAGIC = 0x454e4447; // "ENDG"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int DAY_SIZE = AgpProfile.SLOTS * GlucoseSketch.BIN_COUNT * 2;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int MAX_COUNT = 0xffff;
+    private static final int MAX_DAYS = (int)(ReadingStore.MAX_ROLLUP_SPAN / DAY);
+
+    private static final int FIRST_DAY_OFFSET = 8;
+    private static final int LAST_DAY_OFFSET = 16;
+    private static final int COVERED_OFFSET = 24;
+    private static final int DIRTY_OFFSET = 32;
+
+    private final File file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    // cached copies of the header fields
+    private long firstDay;
+    private long lastDay;
+    private long covered;
+    private boolean isDirty;
+    private boolean isEmpty;
+
+    private AgpTier(File file){
+        this.file = file;
+    }
+
+    /**
+     * Opens the tier's file, or creates it empty if it is missing or from another version.
+     */
+    static AgpTier open(File file) throws IOException {
+        AgpTier tier = new AgpTier(file);
+        if(file.length() >= HEADER_SIZE){
+            tier.capacity = (int)((file.length() - HEADER_SIZE) / DAY_SIZE);
+            tier.buffer = map(file, tier.capacity);
+            if(MAGIC == tier.buffer.getInt(0) && VERSION == tier.buffer.getInt(4)){
+                tier.firstDay = tier.buffer.getLong(FIRST_DAY_OFFSET);
+                tier.lastDay = tier.buffer.getLong(LAST_DAY_OFFSET);
+                tier.covered = tier.buffer.getLong(COVERED_OFFSET);
+                tier.isDirty = 1 == tier.buffer.getInt(DIRTY_OFFSET);
+                tier.isEmpty = tier.lastDay < tier.firstDay;
+                return tier;
+            }
+        }
+
+        tier.capacity = INITIAL_CAPACITY;
+        tier.buffer = map(file, tier.capacity);
+        tier.clear();
+        return tier;
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * DAY_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    /**
+     * @return how many of the store's records, from the first, the sketches hold
+     */
+    long getCovered(){
+        return covered;
+    }
+
+    /**
+     * @return true if the tier has changes which were not forced, so its covered count, read from
+     * the file, cannot be trusted
+     */
+    boolean isDirty(){
+        return isDirty;
+    }
+
+    /**
+     * Empties every sketch, ready to be rebuilt, and marks the tier dirty until it is forced.
+     */
+    void clear(){
+        for(int offset = 0; offset < HEADER_SIZE + capacity * DAY_SIZE; offset += 8){
+            buffer.putLong(offset, 0);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(DIRTY_OFFSET, 1);
+        isDirty = true;
+        firstDay = 0;
+        lastDay = -1;
+        covered = 0;
+        isEmpty = true;
+        writeHeader();
+    }
+
+    /**
+     * Adds the store's next record. Records without glucose, or too far from the rest, are only
+     * counted as covered; as with a RollupTier, a record is not counted if this throws.
+     */
+    void add(long timestamp, int glucose, int flags) throws IOException {
+        if(!isDirty){
+            isDirty = true;
+            buffer.putInt(DIRTY_OFFSET, 1);
+        }
+
+        if(0 != (flags & ReadingStore.FLAG_HAS_GLUCOSE) && glucose > 0){
+            long day = RollupTier.floorDiv(timestamp, DAY);
+            int dayOffset = offsetOf(day);
+            if(dayOffset >= 0){
+                int slot = (int)((timestamp - day * DAY) / AgpProfile.SLOT_WIDTH);
+                int offset = dayOffset + (slot * GlucoseSketch.BIN_COUNT + GlucoseSketch.binIndex(glucose)) * 2;
+
+                int count = buffer.getChar(offset);
+                if(count < MAX_COUNT){
+                    buffer.putChar(offset, (char)(count + 1));
+                }
+            }
+        }
+        ++covered;
+
+        writeHeader();
+    }
+
+    /**
+     * Adds the sketches of every UTC day overlapping [from, to) to out, each half hour moved to
+     * the local half hour utcOffset ms away.
+     */
+    void merge(long from, long to, long utcOffset, AgpProfile out){
+        if(isEmpty){
+            return;
+        }
+
+        // to the nearest half hour, as a number of slots forward
+        int shift = (int)(RollupTier.floorDiv(utcOffset + AgpProfile.SLOT_WIDTH / 2, AgpProfile.SLOT_WIDTH) % AgpProfile.SLOTS);
+        if(shift < 0){
+            shift += AgpProfile.SLOTS;
+        }
+        long start = Math.max(firstDay, RollupTier.floorDiv(from, DAY));
+        long end = Math.min(lastDay, RollupTier.floorDiv(to - 1, DAY));
+        for(long day = start; day <= end; ++day){
+            int offset = HEADER_SIZE + (int)(day - firstDay) * DAY_SIZE;
+            for(int slot = 0; slot < AgpProfile.SLOTS; ++slot){
+                GlucoseSketch sketch = out.sketches[(slot + shift) % AgpProfile.SLOTS];
+                for(int bin = 0; bin < GlucoseSketch.BIN_COUNT; ++bin, offset += 2){
+                    int count = buffer.getChar(offset);
+                    if(0 != count){
+                        sketch.addToBin(bin, count);
+                    }
+                }
+            }
+        }
+    }
+
+    void force(){
+        if(isDirty){
+            buffer.force();
+            isDirty = false;
+            buffer.putInt(DIRTY_OFFSET, 0);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Offset of the day, making room for it if it is outside those held, or -1 if holding it
+     * would take more than MAX_DAYS.
+     */
+    private int offsetOf(long day) throws IOException {
+        long newFirst = isEmpty || day < firstDay ? day - 1 : firstDay;
+        long newLast = isEmpty || day > lastDay ? day : lastDay;
+        if(newLast - newFirst + 1 > MAX_DAYS){
+            return -1;
+        }
+        ensureCapacity((int)(newLast - newFirst + 1));
+
+        if(isEmpty){
+            isEmpty = false;
+        }else if(newFirst < firstDay){
+            // older than anything held: move everything along, leaving room for another day
+            int shift = (int)(firstDay - newFirst);
+            int used = (int)(lastDay - firstDay + 1);
+
+            byte[] days = new byte[used * DAY_SIZE];
+            buffer.position(HEADER_SIZE);
+            buffer.get(days);
+            buffer.position(HEADER_SIZE + shift * DAY_SIZE);
+            buffer.put(days);
+            for(int offset = HEADER_SIZE; offset < HEADER_SIZE + shift * DAY_SIZE; offset += 8){
+                buffer.putLong(offset, 0);
+            }
+            buffer.position(0);
+        }
+        firstDay = newFirst;
+        lastDay = newLast;
+
+        return HEADER_SIZE + (int)(day - firstDay) * DAY_SIZE;
+    }
+
+    /**
+     * @param days no more than MAX_DAYS
+     */
+    private void ensureCapacity(int days) throws IOException {
+        if(days <= capacity){
+            return;
+        }
+        int grown = (int)Math.min(Math.max(days, 2L * capacity), MAX_DAYS);
+        buffer = map(file, grown);
+        capacity = grown;
+    }
+
+    private void writeHeader(){
+        buffer.putLong(FIRST_DAY_OFFSET, firstDay);
+        buffer.putLong(LAST_DAY_OFFSET, lastDay);
+        buffer.putLong(COVERED_OFFSET, covered);
+    }
+}
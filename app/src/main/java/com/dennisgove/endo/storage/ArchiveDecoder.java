@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads readings back from the blocks written by an ArchiveEncoder, skipping any block whose
+ * timestamps are all outside the range asked for.
+ *
+ * A block is decoded column by column into arrays kept for the life of the decoder, so reading
+ * allocates nothing beyond what out grows by. One decoder serves every archive of a store.
+ */
+class ArchiveDecoder {
+
+    private final long[] timestamps = new long[ArchiveEncoder.BLOCK_RECORDS];
+    private final long[] transmitterTimes = new long[ArchiveEncoder.BLOCK_RECORDS];
+    private final long[] filtered = new long[ArchiveEncoder.BLOCK_RECORDS];
+    private final long[] unfiltered = new long[ArchiveEncoder.BLOCK_RECORDS];
+    private final long[] glucose = new long[ArchiveEncoder.BLOCK_RECORDS];
+    private final long[] flags = new long[ArchiveEncoder.BLOCK_RECORDS];
+
+    private ByteBuffer buffer;
+    private int position;
+
+    /**
+     * Adds the readings with timestamps in [from, to] from the blocks in the first length bytes of
+     * buffer to out, in the order they were written.
+     */
+    void read(ByteBuffer buffer, int length, long from, long to, ReadingBuffer out){
+        this.buffer = buffer;
+        int blockStart = 0;
+        while(blockStart < length){
+            int count = buffer.getInt(blockStart);
+            int columnsLength = buffer.getInt(blockStart + 4);
+            long minTimestamp = buffer.getLong(blockStart + 8);
+            long maxTimestamp = buffer.getLong(blockStart + 16);
+            position = blockStart + ArchiveEncoder.BLOCK_HEADER_SIZE;
+            blockStart = position + columnsLength;
+            if(to < minTimestamp || from > maxTimestamp){
+                continue;
+            }
+
+            decodeBlock(count);
+            for(int idx = 0; idx < count; ++idx){
+                if(timestamps[idx] >= from && timestamps[idx] <= to){
+                    add(idx, out);
+                }
+            }
+        }
+        this.buffer = null;
+    }
+
+    /**
+     * Adds the from'th to the (to - 1)'th records written to out.
+     */
+    void readRecords(ByteBuffer buffer, int length, int from, int to, ReadingBuffer out){
+        this.buffer = buffer;
+        int blockStart = 0;
+        int first = 0;
+        while(blockStart < length && first < to){
+            int count = buffer.getInt(blockStart);
+            position = blockStart + ArchiveEncoder.BLOCK_HEADER_SIZE;
+            blockStart = position + buffer.getInt(blockStart + 4);
+            if(first + count > from){
+                decodeBlock(count);
+                for(int idx = Math.max(0, from - first); idx < Math.min(count, to - first); ++idx){
+                    add(idx, out);
+                }
+            }
+            first += count;
+        }
+        this.buffer = null;
+    }
+
+    private void decodeBlock(int count){
+        decodeDeltaOfDeltas(timestamps, count);
+        decodeDeltaOfDeltas(transmitterTimes, count);
+        decodeDeltas(filtered, count);
+        decodeDeltas(unfiltered, count);
+        decodeDeltas(glucose, count);
+        decodeDeltas(flags, count);
+    }
+
+    private void add(int idx, ReadingBuffer out){
+        out.add(timestamps[idx], (int)transmitterTimes[idx], (int)filtered[idx], (int)(unfiltered[idx] + filtered[idx]), (int)glucose[idx], (int)flags[idx]);
+    }
+
+    private void decodeDeltaOfDeltas(long[] values, int count){
+        decodeValues(values, count);
+        long delta = 0;
+        for(int idx = 1; idx < count; ++idx){
+            delta += values[idx];
+            values[idx] = values[idx - 1] + delta;
+        }
+    }
+
+    private void decodeDeltas(long[] values, int count){
+        decodeValues(values, count);
+        for(int idx = 1; idx < count; ++idx){
+            values[idx] += values[idx - 1];
+        }
+    }
+
+    private void decodeValues(long[] values, int count){
+        int idx = 0;
+        while(idx < count){
+            long token = getVarint();
+            if(0 != (token & 1)){
+                for(long zeros = token >>> 1; zeros > 0; --zeros){
+                    values[idx++] = 0;
+                }
+            }else{
+                long zigzag = token >>> 1;
+                values[idx++] = (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+    }
+
+    private long getVarint(){
+        long value = 0;
+        for(int shift = 0; ; shift += 7){
+            byte b = buffer.get(position++);
+            value |= (long)(b & 0x7f) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes readings to an OutputStream in the compressed columnar format of a ReadingArchive.
+ *
+ * Readings are grouped into blocks of up to BLOCK_RECORDS, and within a block each field is
+ * stored as its own column of variable length integers:
+ *   timestamps and transmitter times as deltas of deltas, which for readings 5 minutes apart are
+ *     zero
+ *   filtered and glucose as deltas
+ *   unfiltered as deltas of its difference from filtered, which moves more slowly than either
+ *   flags as deltas
+ * Each value is zigzag encoded so small negative values are small too, and a run of zeros is
+ * written as one value holding its length. Each block starts from zero, so it can be decoded
+ * without those before it, and has a header of its record count, length and timestamp range so
+ * a range scan can skip it unread.
+ *
+ * Layout (little-endian):
+ *   blocks
+ *     0  int   records
+ *     4  int   length of the columns (bytes)
+ *     8  long  min timestamp
+ *    16  long  max timestamp
+ *    24  columns, in the order above
+ *   footer, FOOTER_SIZE bytes
+ *     0  int   magic
+ *     4  int   version
+ *     8  int   records
+ *    12  int   reserved
+ *    16  long  latest timestamp
+ *    24  int   transmitter time of the latest timestamp
+ *    28  int   reserved
+ *
+ * Values are a varint of (zigzag(value) << 1), and runs of zeros a varint of (length << 1 | 1).
+ *
+ * Columns are built in buffers kept for the life of the encoder, so adding a reading allocates
+ * nothing.
+ */
+class ArchiveEncoder {
+
+    static final int MAGIC = 0x454e4441; // "ENDA"
+    static final int VERSION = 1;
+    static final int BLOCK_RECORDS = 256;
+    static final int BLOCK_HEADER_SIZE = 24;
+    static final int FOOTER_SIZE = 32;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[Math.max(BLOCK_HEADER_SIZE, FOOTER_SIZE)];
+    private final Column timestamps = new Column();
+    private final Column transmitterTimes = new Column();
+    private final Column filtered = new Column();
+    private final Column unfiltered = new Column();
+    private final Column glucose = new Column();
+    private final Column flags = new Column();
+    private final Column[] columns = { timestamps, transmitterTimes, filtered, unfiltered, glucose, flags };
+
+    private int count;
+    private long latestTimestamp = Long.MIN_VALUE;
+    private int latestTransmitterTime = -1;
+
+    // the current block
+    private int blockCount;
+    private long minTimestamp;
+    private long maxTimestamp;
+    private long previousTimestamp;
+    private long previousTimestampDelta;
+    private int previousTransmitterTime;
+    private int previousTransmitterTimeDelta;
+    private int previousFiltered;
+    private int previousUnfiltered;
+    private int previousGlucose;
+    private int previousFlags;
+
+    ArchiveEncoder(OutputStream out){
+        this.out = out;
+    }
+
+    void add(long timestamp, int transmitterTime, int filteredValue, int unfilteredValue, int glucoseValue, int flagValue) throws IOException {
+        if(BLOCK_RECORDS == blockCount){
+            writeBlock();
+        }
+
+        if(0 == blockCount){
+            timestamps.put(timestamp);
+            transmitterTimes.put(transmitterTime);
+            minTimestamp = timestamp;
+            maxTimestamp = timestamp;
+        }else{
+            long timestampDelta = timestamp - previousTimestamp;
+            timestamps.put(timestampDelta - previousTimestampDelta);
+            previousTimestampDelta = timestampDelta;
+
+            int transmitterTimeDelta = transmitterTime - previousTransmitterTime;
+            transmitterTimes.put((long)transmitterTimeDelta - previousTransmitterTimeDelta);
+            previousTransmitterTimeDelta = transmitterTimeDelta;
+
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+        filtered.put((long)filteredValue - previousFiltered);
+        unfiltered.put(((long)unfilteredValue - filteredValue) - ((long)previousUnfiltered - previousFiltered));
+        glucose.put((long)glucoseValue - previousGlucose);
+        flags.put((long)flagValue - previousFlags);
+
+        previousTimestamp = timestamp;
+        previousTransmitterTime = transmitterTime;
+        previousFiltered = filteredValue;
+        previousUnfiltered = unfilteredValue;
+        previousGlucose = glucoseValue;
+        previousFlags = flagValue;
+        ++blockCount;
+        ++count;
+
+        if(timestamp > latestTimestamp){
+            latestTimestamp = timestamp;
+            latestTransmitterTime = transmitterTime;
+        }
+    }
+
+    /**
+     * Writes the last block and the footer, and flushes the stream.
+     */
+    void finish() throws IOException {
+        writeBlock();
+
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, VERSION);
+        putInt(header, 8, count);
+        putInt(header, 12, 0);
+        putLong(header, 16, latestTimestamp);
+        putInt(header, 24, latestTransmitterTime);
+        putInt(header, 28, 0);
+        out.write(header, 0, FOOTER_SIZE);
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        if(0 == blockCount){
+            return;
+        }
+
+        int length = 0;
+        for(Column column : columns){
+            column.endRun();
+            length += column.length;
+        }
+
+        putInt(header, 0, blockCount);
+        putInt(header, 4, length);
+        putLong(header, 8, minTimestamp);
+        putLong(header, 16, maxTimestamp);
+        out.write(header, 0, BLOCK_HEADER_SIZE);
+        for(Column column : columns){
+            out.write(column.bytes, 0, column.length);
+            column.length = 0;
+        }
+
+        blockCount = 0;
+        previousTimestampDelta = 0;
+        previousTransmitterTimeDelta = 0;
+        previousFiltered = 0;
+        previousUnfiltered = 0;
+        previousGlucose = 0;
+        previousFlags = 0;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value){
+        for(int idx = 0; idx < 4; ++idx){
+            bytes[offset + idx] = (byte)(value >>> (8 * idx));
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value){
+        for(int idx = 0; idx < 8; ++idx){
+            bytes[offset + idx] = (byte)(value >>> (8 * idx));
+        }
+    }
+
+    /**
+     * One column of the current block.
+     */
+    private static class Column {
+        byte[] bytes = new byte[BLOCK_RECORDS * 2];
+        int length;
+        private long zeros;
+
+        void put(long value){
+            if(0 == value){
+                ++zeros;
+                return;
+            }
+            endRun();
+            putVarint(((value << 1) ^ (value >> 63)) << 1);
+        }
+
+        void endRun(){
+            if(zeros > 0){
+                putVarint(zeros << 1 | 1);
+                zeros = 0;
+            }
+        }
+
+        private void putVarint(long value){
+            if(length + 10 > bytes.length){
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while(0 != (value & ~0x7fL)){
+                bytes[length++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte)value;
+        }
+    }
+}
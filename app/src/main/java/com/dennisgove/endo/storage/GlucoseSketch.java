@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable sketch of the distribution of glucose values, from which percentiles are read.
+ *
+ * Glucose is a small integer range, so rather than a t-digest or KLL sketch, whose error depends
+ * on the data and the order it arrived in, this is a fixed set of bins laid out like a
+ * LatencyHistogram's: each value below 128 mg/dL has its own bin, values from 128 have bins of 2
+ * and values from 256 have bins of 4, up to MAX_VALUE. Adding a value is one increment and merging
+ * two sketches is adding their bins, so a sketch merged from many is identical to one built from
+ * all their values.
+ *
+ * getValueAtPercentile() differs from the exact nearest-rank percentile of the values added by at
+ * most 0 mg/dL below 128, 1 mg/dL below 256 and 2 mg/dL above - never more than 1% - whatever the
+ * values and however many sketches were merged. Values outside [0, MAX_VALUE] are counted as the
+ * nearest bound.
+ */
+public class GlucoseSketch {
+
+    public static final int MAX_VALUE = 401; // what a Dexcom reports as HIGH
+
+    static final int BIN_COUNT = binIndex(MAX_VALUE) + 1;
+
+    private final long[] counts = new long[BIN_COUNT];
+    private long count;
+
+    public void add(int glucose){
+        ++counts[binIndex(glucose)];
+        ++count;
+    }
+
+    /**
+     * Adds every value in other to this.
+     */
+    public void merge(GlucoseSketch other){
+        for(int bin = 0; bin < BIN_COUNT; ++bin){
+            counts[bin] += other.counts[bin];
+        }
+        count += other.count;
+    }
+
+    void addToBin(int bin, long binCount){
+        counts[bin] += binCount;
+        count += binCount;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value at the given percentile, or 0 if nothing has been added
+     */
+    public int getValueAtPercentile(double percentile){
+        if(0 == count){
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int bin = 0; bin < BIN_COUNT; ++bin){
+            seen += counts[bin];
+            if(seen >= target){
+                return binValue(bin);
+            }
+        }
+        return binValue(BIN_COUNT - 1);
+    }
+
+    public void clear(){
+        Arrays.fill(counts, 0);
+        count = 0;
+    }
+
+    static int binIndex(int glucose){
+        glucose = Math.max(0, Math.min(MAX_VALUE, glucose));
+        if(glucose < 128){
+            return glucose;
+        }
+        if(glucose < 256){
+            return 128 + (glucose - 128) / 2;
+        }
+        return 192 + (glucose - 256) / 4;
+    }
+
+    /**
+     * The value reported for everything in the bin - the lower of a bin of 2, the second of a bin
+     * of 4 - so none is more than the documented error from it.
+     */
+    static int binValue(int bin){
+        if(bin < 128){
+            return bin;
+        }
+        if(bin < 192){
+            return 128 + (bin - 128) * 2;
+        }
+        return Math.min(MAX_VALUE, 256 + (bin - 192) * 4 + 1);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sealed ReadingSegment, compressed by an ArchiveEncoder and mapped read-only. Its records are
+ * in the order they were appended, so take the place of the segment's in the store.
+ *
+ * A 5 minute reading takes about 7 bytes rather than a segment's RECORD_SIZE - mostly for the
+ * jitter of live timestamps and the raw values - so the 3 months of a transmitter fit in under
+ * 200KB, and a month for a chart is some 34 blocks to decode.
+ */
+class ReadingArchive {
+
+    final File file;
+    private final MappedByteBuffer buffer;
+    private final int length;
+
+    // from the footer
+    private final int count;
+    private final long latestTimestamp;
+    private final int latestTransmitterTime;
+
+    private ReadingArchive(File file, MappedByteBuffer buffer){
+        this.file = file;
+        this.buffer = buffer;
+        this.length = buffer.capacity() - ArchiveEncoder.FOOTER_SIZE;
+        this.count = buffer.getInt(length + 8);
+        this.latestTimestamp = buffer.getLong(length + 16);
+        this.latestTransmitterTime = buffer.getInt(length + 24);
+    }
+
+    static ReadingArchive open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            if(raf.length() < ArchiveEncoder.FOOTER_SIZE){
+                throw new IOException("Archive '" + file + "' is too short");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int footer = buffer.capacity() - ArchiveEncoder.FOOTER_SIZE;
+        if(ArchiveEncoder.MAGIC != buffer.getInt(footer) || ArchiveEncoder.VERSION != buffer.getInt(footer + 4)){
+            throw new IOException("Archive '" + file + "' has an unexpected format");
+        }
+        return new ReadingArchive(file, buffer);
+    }
+
+    int getCount(){
+        return count;
+    }
+
+    long getLatestTimestamp(){
+        return latestTimestamp;
+    }
+
+    int getLatestTransmitterTime(){
+        return latestTransmitterTime;
+    }
+
+    /**
+     * Adds all readings with timestamps in [from, to] to out, in the order they were appended.
+     */
+    void read(long from, long to, ArchiveDecoder decoder, ReadingBuffer out){
+        decoder.read(buffer, length, from, to, out);
+    }
+
+    /**
+     * Adds the from'th to the (to - 1)'th records appended to out.
+     */
+    void readRecords(int from, int to, ArchiveDecoder decoder, ReadingBuffer out){
+        decoder.readRecords(buffer, length, from, to, out);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.util.Arrays;
+
+/**
+ * A growable set of readings held column-wise in primitive arrays. Reading i is made up of
+ * timestamps[i], transmitterTimes[i], and so on, for i below size(). Buffers are meant to be
+ * cleared and reused rather than reallocated.
+ */
+public class ReadingBuffer {
+
+    private static final int DEFAULT_CAPACITY = 288; // one day of 5 minute readings
+
+    public long[] timestamps;
+    public int[] transmitterTimes;
+    public int[] filtered;
+    public int[] unfiltered;
+    public int[] glucose;
+    public int[] flags;
+
+    private int size = 0;
+
+    public ReadingBuffer(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReadingBuffer(int capacity){
+        timestamps = new long[capacity];
+        transmitterTimes = new int[capacity];
+        filtered = new int[capacity];
+        unfiltered = new int[capacity];
+        glucose = new int[capacity];
+        flags = new int[capacity];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    public void add(long timestamp, int transmitterTime, int filteredValue, int unfilteredValue, int glucoseValue, int flagValue){
+        if(size == timestamps.length){
+            ensureCapacity(size + 1);
+        }
+
+        timestamps[size] = timestamp;
+        transmitterTimes[size] = transmitterTime;
+        filtered[size] = filteredValue;
+        unfiltered[size] = unfilteredValue;
+        glucose[size] = glucoseValue;
+        flags[size] = flagValue;
+        ++size;
+    }
+
+    public void ensureCapacity(int capacity){
+        if(capacity <= timestamps.length){
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        transmitterTimes = Arrays.copyOf(transmitterTimes, newCapacity);
+        filtered = Arrays.copyOf(filtered, newCapacity);
+        unfiltered = Arrays.copyOf(unfiltered, newCapacity);
+        glucose = Arrays.copyOf(glucose, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+    }
+}
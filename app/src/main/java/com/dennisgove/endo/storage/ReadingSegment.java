@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single memory-mapped file holding up to a fixed number of fixed-width reading records.
+ *
+ * Layout (little-endian):
+ *   header, HEADER_SIZE bytes
+ *     0  int   magic
+ *     4  int   version
+ *     8  int   record size
+ *    12  int   capacity (records)
+ *    16  int   count (records written)
+ *    20  int   1 if records are in timestamp order
+ *    24  long  min timestamp
+ *    32  long  max timestamp
+ *   records, RECORD_SIZE bytes each
+ *     0  long  timestamp (ms since epoch)
+ *     8  int   transmitter time (s since activation)
+ *    12  int   filtered
+ *    16  int   unfiltered
+ *    20  int   glucose (mg/dL, 0 if none)
+ *    24  int   flags
+ *    28  int   reserved
+ *
+ * A record is written before the count covering it, so a reader never sees a partial record. The
+ * header is forced as the segment is created, so a segment which has had records appended always
+ * has one; a segment without one was being created when the power went.
+ */
+class ReadingSegment {
+
+    static final int MAGIC = 0x454e4452; // "ENDR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    private static final int COUNT_OFFSET = 16;
+    private static final int SORTED_OFFSET = 20;
+    private static final int MIN_TIMESTAMP_OFFSET = 24;
+    private static final int MAX_TIMESTAMP_OFFSET = 32;
+
+    final File file;
+    final int capacity;
+    private final MappedByteBuffer buffer;
+
+    // cached copies of the header fields
+    private int count;
+    private boolean isSorted;
+    private long minTimestamp;
+    private long maxTimestamp;
+
+    private ReadingSegment(File file, int capacity, MappedByteBuffer buffer){
+        this.file = file;
+        this.capacity = capacity;
+        this.buffer = buffer;
+    }
+
+    static ReadingSegment create(File file, int capacity) throws IOException {
+        ReadingSegment segment = new ReadingSegment(file, capacity, map(file, capacity));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.buffer.putInt(8, RECORD_SIZE);
+        segment.buffer.putInt(12, capacity);
+        segment.setHeader(0, true, Long.MAX_VALUE, Long.MIN_VALUE);
+        segment.buffer.force();
+        return segment;
+    }
+
+    /**
+     * @return true if the file is too short to hold a header, or its header was never written
+     */
+    static boolean isBlank(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            if(raf.length() < HEADER_SIZE){
+                return true;
+            }
+            byte[] header = new byte[HEADER_SIZE];
+            raf.readFully(header);
+            for(byte b : header){
+                if(0 != b){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static ReadingSegment open(File file) throws IOException {
+        int capacity;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")){
+            if(raf.length() < HEADER_SIZE){
+                throw new IOException("Segment '" + file + "' is truncated");
+            }
+            capacity = (int)((raf.length() - HEADER_SIZE) / RECORD_SIZE);
+        }
+
+        ReadingSegment segment = new ReadingSegment(file, capacity, map(file, capacity));
+        MappedByteBuffer buffer = segment.buffer;
+        if(MAGIC != buffer.getInt(0) || VERSION != buffer.getInt(4) || RECORD_SIZE != buffer.getInt(8) || capacity != buffer.getInt(12)){
+            throw new IOException("Segment '" + file + "' has an unrecognized header");
+        }
+
+        segment.count = Math.min(buffer.getInt(COUNT_OFFSET), capacity);
+        segment.isSorted = 1 == buffer.getInt(SORTED_OFFSET);
+        segment.minTimestamp = buffer.getLong(MIN_TIMESTAMP_OFFSET);
+        segment.maxTimestamp = buffer.getLong(MAX_TIMESTAMP_OFFSET);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    int getCount(){
+        return count;
+    }
+
+    boolean isFull(){
+        return count == capacity;
+    }
+
+    boolean isSorted(){
+        return isSorted;
+    }
+
+    long getMinTimestamp(){
+        return minTimestamp;
+    }
+
+    long getMaxTimestamp(){
+        return maxTimestamp;
+    }
+
+    void append(long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags){
+        write(count, timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+        setHeader(count + 1, isSorted && timestamp >= maxTimestamp, Math.min(minTimestamp, timestamp), Math.max(maxTimestamp, timestamp));
+    }
+
+    /**
+     * Writes the record at idx, which is at most the count. A record already there is replaced,
+     * leaving the header as it was; rescan() brings it up to date.
+     */
+    void put(int idx, long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags){
+        if(idx >= count){
+            append(timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+        }else{
+            write(idx, timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+        }
+    }
+
+    /**
+     * Recomputes the header from the records, after records have been replaced.
+     */
+    void rescan(){
+        boolean sorted = true;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for(int idx = 0; idx < count; ++idx){
+            long timestamp = getTimestamp(idx);
+            sorted = sorted && timestamp >= max;
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+        setHeader(count, sorted, min, max);
+    }
+
+    private void write(int idx, long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags){
+        int offset = HEADER_SIZE + idx * RECORD_SIZE;
+        buffer.putLong(offset, timestamp);
+        buffer.putInt(offset + 8, transmitterTime);
+        buffer.putInt(offset + 12, filtered);
+        buffer.putInt(offset + 16, unfiltered);
+        buffer.putInt(offset + 20, glucose);
+        buffer.putInt(offset + 24, flags);
+        buffer.putInt(offset + 28, 0);
+    }
+
+    /**
+     * Adds all records with timestamps in [from, to] to out.
+     */
+    void read(long from, long to, ReadingBuffer out){
+        if(0 == count || to < minTimestamp || from > maxTimestamp){
+            return;
+        }
+
+        int idx = isSorted ? firstIndexAtOrAfter(from) : 0;
+        for(; idx < count; ++idx){
+            int offset = HEADER_SIZE + idx * RECORD_SIZE;
+            long timestamp = buffer.getLong(offset);
+            if(timestamp > to){
+                if(isSorted){
+                    break;
+                }
+                continue;
+            }
+            if(timestamp < from){
+                continue;
+            }
+
+            out.add(timestamp, buffer.getInt(offset + 8), buffer.getInt(offset + 12), buffer.getInt(offset + 16), buffer.getInt(offset + 20), buffer.getInt(offset + 24));
+        }
+    }
+
+    long getTimestamp(int idx){
+        return buffer.getLong(HEADER_SIZE + idx * RECORD_SIZE);
+    }
+
+    int getTransmitterTime(int idx){
+        return buffer.getInt(HEADER_SIZE + idx * RECORD_SIZE + 8);
+    }
+
+    int getFiltered(int idx){
+        return buffer.getInt(HEADER_SIZE + idx * RECORD_SIZE + 12);
+    }
+
+    int getUnfiltered(int idx){
+        return buffer.getInt(HEADER_SIZE + idx * RECORD_SIZE + 16);
+    }
+
+    int getGlucose(int idx){
+        return buffer.getInt(HEADER_SIZE + idx * RECORD_SIZE + 20);
+    }
+
+    int getFlags(int idx){
+        return buffer.getInt(HEADER_SIZE + idx * RECORD_SIZE + 24);
+    }
+
+    void force(){
+        buffer.force();
+    }
+
+    private int firstIndexAtOrAfter(long timestamp){
+        int low = 0;
+        int high = count;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(getTimestamp(mid) < timestamp){
+                low = mid + 1;
+            }else{
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void setHeader(int count, boolean isSorted, long minTimestamp, long maxTimestamp){
+        this.isSorted = isSorted;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        buffer.putInt(SORTED_OFFSET, isSorted ? 1 : 0);
+        buffer.putLong(MIN_TIMESTAMP_OFFSET, minTimestamp);
+        buffer.putLong(MAX_TIMESTAMP_OFFSET, maxTimestamp);
+
+        // publish the count last
+        this.count = count;
+        buffer.putInt(COUNT_OFFSET, count);
+    }
+}
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The ReadingStore is an append-only time series of readings for a single transmitter, kept in a
+ * directory of memory-mapped segment files of fixed-width records (see ReadingSegment).
+ *
+ * Appending writes one record into the mapped tail segment - no allocation, no transaction and no
+ * system call except when a segment fills and the next one is created. Readings are read back
+ * column-wise into a reusable ReadingBuffer.
+ *
+ * Every record appended is also logged to a WriteAheadLog, which commit() syncs to storage, so
+ * readings survive the device losing power as well as the process being killed; commit once for
+ * each group of readings rather than each reading. The segments are only forced, and the log
+ * emptied, by force() or when the log reaches CHECKPOINT_RECORDS.
+ *
+ * The readings appended are also added to the RollupTiers kept alongside the segments - 5 minute,
+ * hourly and daily buckets of the glucose - so that readRollup() and summarize() over a long range
+ * cost time in proportion to the buckets needed rather than the readings stored, and to the
+ * AgpTier's sketches of each half hour of each day, which readAgp() merges into an ambulatory
+ * glucose profile. Days are UTC days. The tiers are caught up at each commit(), and before they are
+ * queried, and forced with it, so each one's header says exactly how many records it holds; on
+ * opening they carry on from there rather than being rebuilt.
+ *
+ * Once the tail has moved on from a segment it is sealed: compressed into a ReadingArchive, a few
+ * bytes a reading rather than RECORD_SIZE, whose blocks a read skips unless they overlap it.
+ *
+ * Records are kept in the order they are appended. Backfilled readings may therefore be older
+ * than ones already stored; segments track whether they are still in timestamp order and fall
+ * back from a binary search to a scan when they are not. A record is never moved or removed, but
+ * while it is still in a segment update() can replace its glucose, as when it is recalibrated.
+ *
+ * All methods are synchronized on the store.
+ */
+public class ReadingStore implements Closeable {
+
+    public static final int FLAG_BACKFILL = 1;        // downloaded after the fact rather than live
+    public static final int FLAG_HAS_RAW = 1 << 1;    // filtered and unfiltered are valid
+    public static final int FLAG_HAS_GLUCOSE = 1 << 2; // glucose is valid
+    public static final int FLAG_DISPLAY_ONLY = 1 << 3;
+    public static final int FLAG_CALIBRATED = 1 << 4;  // glucose is from the app's CalibrationModel, not the transmitter
+
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 8192; // ~28 days of 5 minute readings
+
+    // the log is replayed in full on opening, so is kept to a few days of readings
+    static final int CHECKPOINT_RECORDS = 1024;
+    private static final int CATCH_UP_BATCH_SIZE = 256;
+    static final String LOG_NAME = "readings.wal";
+
+    public static final long ROLLUP_FIVE_MINUTES = 5 * 60 * 1000L;
+    public static final long ROLLUP_HOUR = 60 * 60 * 1000L;
+    public static final long ROLLUP_DAY = 24 * 60 * 60 * 1000L;
+    private static final long[] ROLLUP_WIDTHS = { ROLLUP_FIVE_MINUTES, ROLLUP_HOUR, ROLLUP_DAY };
+
+    // The rollups and AGP hold every bucket from their first reading to their last, so a reading
+    // is left out of them - though still stored - if its timestamp is outside these, or would
+    // stretch them past MAX_ROLLUP_SPAN. A transmitter lasts a few months.
+    static final long MIN_ROLLUP_TIMESTAMP = 0;
+    static final long MAX_ROLLUP_TIMESTAMP = 4102444800000L; // 2100-01-01
+    static final long MAX_ROLLUP_SPAN = 2 * 366 * ROLLUP_DAY;
+
+    private static final String SEGMENT_PREFIX = "readings-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ARCHIVE_SUFFIX = ".arc";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String ROLLUP_PREFIX = "rollup-";
+    private static final String ROLLUP_SUFFIX = ".idx";
+    private static final String AGP_NAME = "agp.idx";
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final List<ReadingArchive> archives = new ArrayList<>();
+    private final List<ReadingSegment> segments = new ArrayList<>();
+    private final ArchiveDecoder decoder = new ArchiveDecoder();
+    private final ReadingBuffer catchUpRecords = new ReadingBuffer();
+    private final WriteAheadLog log;
+    // finest first
+    private final List<RollupTier> rollups = new ArrayList<>();
+    private AgpTier agp; // null until the tiers are opened
+
+    private long count = 0;
+    private long archivedCount = 0;
+    private long latestTimestamp = Long.MIN_VALUE;
+    private int latestTransmitterTime = -1;
+    private boolean isClosed = false;
+
+    public ReadingStore(File directory) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    public ReadingStore(File directory, int recordsPerSegment) throws IOException {
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Unable to create reading store directory '" + directory + "'");
+        }
+
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX);
+            }
+        });
+        Arrays.sort(names); // zero padded, so lexical order is creation order, archives first
+
+        for(String name : names){
+            File file = new File(directory, name);
+            if(name.endsWith(TEMP_SUFFIX)){
+                // an archive which was never finished; its segment is still here
+                file.delete();
+                continue;
+            }
+            if(name.endsWith(ARCHIVE_SUFFIX)){
+                ReadingArchive archive = ReadingArchive.open(file);
+                archives.add(archive);
+                archivedCount += archive.getCount();
+                count += archive.getCount();
+                noteLatest(archive.getLatestTimestamp(), archive.getLatestTransmitterTime());
+                continue;
+            }
+            if(new File(directory, name.replace(SEGMENT_SUFFIX, ARCHIVE_SUFFIX)).exists()){
+                // sealed, but not yet deleted
+                file.delete();
+                continue;
+            }
+
+            ReadingSegment segment;
+            if(name.equals(names[names.length - 1]) && ReadingSegment.isBlank(file)){
+                // the newest segment, lost with its header as it was created; anything appended
+                // to it since is in the log
+                segment = ReadingSegment.create(file, recordsPerSegment);
+            }else{
+                segment = ReadingSegment.open(file);
+            }
+            segments.add(segment);
+            count += segment.getCount();
+
+            int segmentCount = segment.getCount();
+            if(segmentCount > 0 && segment.getMaxTimestamp() > latestTimestamp){
+                if(segment.isSorted()){
+                    noteLatest(segment.getTimestamp(segmentCount - 1), segment.getTransmitterTime(segmentCount - 1));
+                }else{
+                    for(int idx = 0; idx < segmentCount; ++idx){
+                        noteLatest(segment.getTimestamp(idx), segment.getTransmitterTime(idx));
+                    }
+                }
+            }
+        }
+
+        log = new WriteAheadLog(new File(directory, LOG_NAME));
+        recover();
+        sealFullSegments();
+        openRollups();
+    }
+
+    /**
+     * Opens the rollup tiers and the AGP sketches and catches them up with the records appended
+     * since they were last forced. Only a tier which was left dirty, or which covers records the
+     * store no longer has, is cleared and rebuilt from the first record.
+     */
+    private void openRollups() throws IOException {
+        for(long width : ROLLUP_WIDTHS){
+            File file = new File(directory, String.format(Locale.US, "%s%d%s", ROLLUP_PREFIX, width / 60000, ROLLUP_SUFFIX));
+            RollupTier tier = RollupTier.open(file, width);
+            if(tier.isDirty() || tier.getCovered() > count){
+                tier.clear();
+            }
+            rollups.add(tier);
+        }
+        agp = AgpTier.open(new File(directory, AGP_NAME));
+        if(agp.isDirty() || agp.getCovered() > count){
+            agp.clear();
+        }
+
+        catchUpRollups();
+        forceRollups();
+    }
+
+    /**
+     * Adds every record each tier does not yet cover to it, reading from the oldest record any of
+     * them lacks. A tier which fails to take a record is left behind at it, and carries on from
+     * there the next time.
+     */
+    private void catchUpRollups(){
+        long sequence = agp.getCovered();
+        for(RollupTier tier : rollups){
+            sequence = Math.min(sequence, tier.getCovered());
+        }
+
+        try{
+            while(sequence < count){
+                catchUpRecords.clear();
+                readSince(sequence, CATCH_UP_BATCH_SIZE, catchUpRecords);
+                if(0 == catchUpRecords.size()){
+                    break;
+                }
+                for(int idx = 0; idx < catchUpRecords.size(); ++idx, ++sequence){
+                    long timestamp = catchUpRecords.timestamps[idx];
+                    int glucose = catchUpRecords.glucose[idx];
+                    int flags = catchUpRecords.flags[idx];
+                    if(timestamp < MIN_ROLLUP_TIMESTAMP || timestamp >= MAX_ROLLUP_TIMESTAMP){
+                        flags &= ~FLAG_HAS_GLUCOSE; // only covered
+                    }
+                    for(RollupTier tier : rollups){
+                        if(sequence == tier.getCovered()){
+                            tier.add(timestamp, glucose, flags);
+                        }
+                    }
+                    if(sequence == agp.getCovered()){
+                        agp.add(timestamp, glucose, flags);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // the readings are stored; the tier which missed one covers only those before it
+        }
+    }
+
+    /**
+     * Flushes the tiers, so the records covered in each header are exactly those in its buckets.
+     */
+    private void forceRollups(){
+        for(RollupTier tier : rollups){
+            tier.force();
+        }
+        agp.force();
+    }
+
+    /**
+     * Writes every record in the log back to its place in the segments, in case the segments lost
+     * it, then empties the log. Records already sealed into archives were synced with them.
+     */
+    private void recover() throws IOException {
+        final List<ReadingSegment> replaced = new ArrayList<>();
+        int replayed = log.recover(new WriteAheadLog.Replay() {
+            @Override
+            public void onRecord(long sequence, long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags) throws IOException {
+                long first = archivedCount;
+                if(sequence < first){
+                    return;
+                }
+                for(ReadingSegment segment : segments){
+                    if(sequence < first + segment.capacity){
+                        if(sequence - first > segment.getCount()){
+                            throw new IOException("Log record " + sequence + " is past the end of segment '" + segment.file + "'");
+                        }
+                        segment.put((int)(sequence - first), timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+                        if(!replaced.contains(segment)){
+                            replaced.add(segment);
+                        }
+                        noteLatest(timestamp, transmitterTime);
+                        return;
+                    }
+                    first += segment.capacity;
+                }
+
+                if(sequence != first){
+                    throw new IOException("Log record " + sequence + " is past the end of the store");
+                }
+                tail().append(timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+                noteLatest(timestamp, transmitterTime);
+            }
+        });
+        if(0 == replayed){
+            return;
+        }
+
+        count = archivedCount;
+        for(ReadingSegment segment : segments){
+            if(replaced.contains(segment)){
+                segment.rescan();
+            }
+            count += segment.getCount();
+        }
+        checkpoint();
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    public synchronized void append(long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags) throws IOException {
+        if(isClosed){
+            // a new segment would be numbered from zero, over the first
+            throw new IOException("Reading store '" + directory + "' is closed");
+        }
+        log.append(count, timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+        tail().append(timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+        ++count;
+        noteLatest(timestamp, transmitterTime);
+
+        if(log.size() >= (long)CHECKPOINT_RECORDS * WriteAheadLog.FRAME_SIZE){
+            checkpoint();
+        }
+    }
+
+    /**
+     * Appends every reading in the buffer.
+     */
+    public void append(ReadingBuffer readings) throws IOException {
+        append(readings, 0, readings.size());
+    }
+
+    /**
+     * Appends length readings from the buffer, starting at offset, as a single batch.
+     */
+    public synchronized void append(ReadingBuffer readings, int offset, int length) throws IOException {
+        for(int idx = offset; idx < offset + length; ++idx){
+            append(readings.timestamps[idx], readings.transmitterTimes[idx], readings.filtered[idx], readings.unfiltered[idx], readings.glucose[idx], readings.flags[idx]);
+        }
+    }
+
+    /**
+     * Replaces the glucose and flags of the sequence'th record appended, such as when it is
+     * recalibrated, leaving the rest of it as it was. The change is logged like an append, so is
+     * durable once committed. The rollup tiers which had counted the record are cleared, and
+     * caught up from the first record again.
+     * @return false if the record has been sealed into an archive, which cannot be changed
+     */
+    public synchronized boolean update(long sequence, int glucose, int flags) throws IOException {
+        if(isClosed){
+            throw new IOException("Reading store '" + directory + "' is closed");
+        }
+        if(sequence < archivedCount || sequence >= count){
+            return false;
+        }
+
+        long first = archivedCount;
+        for(ReadingSegment segment : segments){
+            if(sequence < first + segment.getCount()){
+                int idx = (int)(sequence - first);
+                long timestamp = segment.getTimestamp(idx);
+                int transmitterTime = segment.getTransmitterTime(idx);
+                int filtered = segment.getFiltered(idx);
+                int unfiltered = segment.getUnfiltered(idx);
+                log.append(sequence, timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+                segment.put(idx, timestamp, transmitterTime, filtered, unfiltered, glucose, flags);
+                break;
+            }
+            first += segment.getCount();
+        }
+
+        for(RollupTier tier : rollups){
+            if(tier.getCovered() > sequence){
+                tier.clear();
+            }
+        }
+        if(agp.getCovered() > sequence){
+            agp.clear();
+        }
+
+        if(log.size() >= (long)CHECKPOINT_RECORDS * WriteAheadLog.FRAME_SIZE){
+            checkpoint();
+        }
+        return true;
+    }
+
+    /**
+     * Makes every reading appended so far durable, with one sync of the log, then brings the
+     * rollup tiers up to date with them and flushes them.
+     */
+    public synchronized void commit() throws IOException {
+        if(isClosed){
+            return; // everything was forced on closing
+        }
+        log.sync();
+        catchUpRollups();
+        forceRollups();
+    }
+
+    /**
+     * Adds the buckets which overlap [from, to] and hold readings to out, from the coarsest tier
+     * no coarser than resolution - or the finest, if resolution is finer than it.
+     * @param resolution ms each bucket may cover, such as the time a pixel of a chart covers
+     */
+    public synchronized void readRollup(long from, long to, long resolution, RollupBuffer out){
+        catchUpRollups();
+        RollupTier chosen = rollups.get(0);
+        for(RollupTier tier : rollups){
+            if(tier.width <= resolution){
+                chosen = tier;
+            }
+        }
+        chosen.read(from, to, out);
+    }
+
+    /**
+     * Adds one bucket to out covering [from, to), to the nearest 5 minutes, built from whole days,
+     * then whole hours, then 5 minute buckets at either end.
+     */
+    public synchronized void summarize(long from, long to, RollupBuffer out){
+        catchUpRollups();
+        out.add(from, 0, 0, 0, 0, 0, 0);
+        out.width = to - from;
+        summarize(from, to, rollups.size() - 1, out);
+    }
+
+    private void summarize(long from, long to, int tierIdx, RollupBuffer out){
+        if(from >= to){
+            return;
+        }
+
+        RollupTier tier = rollups.get(tierIdx);
+        if(0 == tierIdx){
+            tier.merge(from, to, out);
+            return;
+        }
+
+        long start = -RollupTier.floorDiv(-from, tier.width) * tier.width; // rounded up
+        long end = RollupTier.floorDiv(to, tier.width) * tier.width;
+        if(start >= end){
+            summarize(from, to, tierIdx - 1, out);
+            return;
+        }
+
+        summarize(from, start, tierIdx - 1, out);
+        tier.merge(start, end, out);
+        summarize(end, to, tierIdx - 1, out);
+    }
+
+    /**
+     * Adds the readings of every UTC day overlapping [from, to) to out, by local time of day.
+     * @param utcOffset ms local time is ahead of UTC, such as TimeZone.getOffset(to); rounded to
+     * the nearest half hour
+     */
+    public synchronized void readAgp(long from, long to, long utcOffset, AgpProfile out){
+        catchUpRollups();
+        agp.merge(from, to, utcOffset, out);
+    }
+
+    /**
+     * Adds all readings with timestamps in [from, to] to out, in the order they were appended.
+     */
+    public synchronized void read(long from, long to, ReadingBuffer out){
+        for(ReadingArchive archive : archives){
+            archive.read(from, to, decoder, out);
+        }
+        for(ReadingSegment segment : segments){
+            segment.read(from, to, out);
+        }
+    }
+
+    /**
+     * Adds up to maxCount records to out, from the sequence'th appended on, in the order they were
+     * appended. A reader which remembers sequence + out.size() can carry on from where it left off.
+     */
+    public synchronized void readSince(long sequence, int maxCount, ReadingBuffer out){
+        long first = 0;
+        long end = sequence + maxCount;
+        for(ReadingArchive archive : archives){
+            if(sequence < first + archive.getCount() && end > first){
+                archive.readRecords((int)Math.max(0, sequence - first), (int)Math.min(archive.getCount(), end - first), decoder, out);
+            }
+            first += archive.getCount();
+        }
+        for(ReadingSegment segment : segments){
+            int start = (int)Math.min(segment.getCount(), Math.max(0, sequence - first));
+            int stop = (int)Math.min(segment.getCount(), Math.max(start, end - first));
+            for(int idx = start; idx < stop; ++idx){
+                out.add(segment.getTimestamp(idx), segment.getTransmitterTime(idx), segment.getFiltered(idx), segment.getUnfiltered(idx),
+                        segment.getGlucose(idx), segment.getFlags(idx));
+            }
+            first += segment.getCount();
+        }
+    }
+
+    public synchronized long size(){
+        return count;
+    }
+
+    /**
+     * Timestamp of the newest reading stored, or Long.MIN_VALUE if the store is empty.
+     */
+    public synchronized long getLatestTimestamp(){
+        return latestTimestamp;
+    }
+
+    /**
+     * Transmitter time of the newest reading stored, or -1 if the store is empty.
+     */
+    public synchronized int getLatestTransmitterTime(){
+        return latestTransmitterTime;
+    }
+
+    /**
+     * Flushes all mapped segments to storage, after which the log is not needed.
+     */
+    public synchronized void force(){
+        if(isClosed){
+            return;
+        }
+        try{
+            checkpoint();
+        } catch (IOException e) {
+            // the segments were forced; the log is replayed on the next open instead of emptied,
+            // which writes the same records again
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        for(ReadingSegment segment : segments){
+            segment.force();
+        }
+        if(null != agp){ // not while recovering, before the tiers are opened
+            catchUpRollups();
+            forceRollups();
+        }
+        log.reset();
+    }
+
+    @Override
+    public synchronized void close() {
+        if(isClosed){
+            return;
+        }
+        force();
+        try{
+            log.close();
+        } catch (IOException e) {
+            // nothing is lost; an empty log left behind is ignored
+        }
+        archives.clear();
+        segments.clear();
+        rollups.clear();
+        isClosed = true;
+    }
+
+    private ReadingSegment tail() throws IOException {
+        ReadingSegment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if(null == tail || tail.isFull()){
+            if(null != tail){
+                tail.force();
+            }
+
+            String name = String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, archives.size() + segments.size(), SEGMENT_SUFFIX);
+            tail = ReadingSegment.create(new File(directory, name), recordsPerSegment);
+            segments.add(tail);
+            sealFullSegments();
+        }
+        return tail;
+    }
+
+    /**
+     * Archives every full segment before the tail. One which fails to is left as a segment, which
+     * reads the same, and tried again on the next open.
+     */
+    private void sealFullSegments(){
+        try{
+            while(segments.size() > 1 && segments.get(0).isFull()){
+                seal(segments.get(0));
+            }
+        } catch (IOException e) {
+            // still readable as a segment
+        }
+    }
+
+    /**
+     * Writes the oldest segment to an archive, synced before it replaces the segment.
+     */
+    private void seal(ReadingSegment segment) throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX, archives.size(), ARCHIVE_SUFFIX));
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        try(FileOutputStream stream = new FileOutputStream(temp)){
+            ArchiveEncoder encoder = new ArchiveEncoder(new BufferedOutputStream(stream));
+            for(int idx = 0; idx < segment.getCount(); ++idx){
+                encoder.add(segment.getTimestamp(idx), segment.getTransmitterTime(idx), segment.getFiltered(idx), segment.getUnfiltered(idx),
+                        segment.getGlucose(idx), segment.getFlags(idx));
+            }
+            encoder.finish();
+            stream.getFD().sync();
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("Unable to rename archive '" + temp + "'");
+        }
+
+        archives.add(ReadingArchive.open(file));
+        archivedCount += segment.getCount();
+        segments.remove(segment);
+        segment.file.delete();
+    }
+
+    private void noteLatest(long timestamp, int transmitterTime){
+        if(timestamp > latestTimestamp){
+            latestTimestamp = timestamp;
+            latestTransmitterTime = transmitterTime;
+        }
+    }
+}
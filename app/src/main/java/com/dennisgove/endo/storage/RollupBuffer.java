@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.util.Arrays;
+
+/**
+ * A growable set of rollup buckets held column-wise in primitive arrays, like a ReadingBuffer.
+ * Bucket i covers the readings with timestamps in [startTimes[i], startTimes[i] + width).
+ */
+public class RollupBuffer {
+
+    private static final int DEFAULT_CAPACITY = 96;
+
+    public long width;              // ms covered by each bucket
+    public long[] startTimes;       // ms since epoch
+    public int[] counts;            // readings with glucose
+    public int[] minimums;          // mg/dL
+    public int[] maximums;          // mg/dL
+    public long[] sums;             // mg/dL, for the mean
+    public int[] belowRange;        // readings under RollupTier.RANGE_LOW
+    public int[] inRange;           // readings from RollupTier.RANGE_LOW to RollupTier.RANGE_HIGH
+
+    private int size = 0;
+
+    public RollupBuffer(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RollupBuffer(int capacity){
+        startTimes = new long[capacity];
+        counts = new int[capacity];
+        minimums = new int[capacity];
+        maximums = new int[capacity];
+        sums = new long[capacity];
+        belowRange = new int[capacity];
+        inRange = new int[capacity];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        size = 0;
+    }
+
+    public double getMean(int idx){
+        return (double)sums[idx] / counts[idx];
+    }
+
+    /**
+     * @return the fraction of readings in range
+     */
+    public double getTimeInRange(int idx){
+        return (double)inRange[idx] / counts[idx];
+    }
+
+    public int getAboveRange(int idx){
+        return counts[idx] - belowRange[idx] - inRange[idx];
+    }
+
+    public void add(long startTime, int count, int minimum, int maximum, long sum, int below, int within){
+        if(size == startTimes.length){
+            ensureCapacity(size + 1);
+        }
+
+        startTimes[size] = startTime;
+        counts[size] = count;
+        minimums[size] = minimum;
+        maximums[size] = maximum;
+        sums[size] = sum;
+        belowRange[size] = below;
+        inRange[size] = within;
+        ++size;
+    }
+
+    /**
+     * Folds another bucket's values into the last one in the buffer.
+     */
+    void mergeIntoLast(int count, int minimum, int maximum, long sum, int below, int within){
+        int last = size - 1;
+        if(0 == counts[last]){
+            minimums[last] = minimum;
+            maximums[last] = maximum;
+        }else{
+            minimums[last] = Math.min(minimums[last], minimum);
+            maximums[last] = Math.max(maximums[last], maximum);
+        }
+        counts[last] += count;
+        sums[last] += sum;
+        belowRange[last] += below;
+        inRange[last] += within;
+    }
+
+    public void ensureCapacity(int capacity){
+        if(capacity <= startTimes.length){
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, startTimes.length * 2);
+        startTimes = Arrays.copyOf(startTimes, newCapacity);
+        counts = Arrays.copyOf(counts, newCapacity);
+        minimums = Arrays.copyOf(minimums, newCapacity);
+        maximums = Arrays.copyOf(maximums, newCapacity);
+        sums = Arrays.copyOf(sums, newCapacity);
+        belowRange = Arrays.copyOf(belowRange, newCapacity);
+        inRange = Arrays.copyOf(inRange, newCapacity);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Count, minimum, maximum, sum and time in range of the glucose in each fixed-width bucket of time,
+ * kept in a memory-mapped file next to a ReadingStore's segments and caught up with the readings
+ * appended to it.
+ *
+ * Buckets are numbered from the epoch and held densely from firstBucket, so adding a reading is
+ * one bucket update wherever in time it falls. Room is left for a day of buckets before the first
+ * reading, for the backfill which follows; a reading older than that moves every bucket along. A
+ * reading which would stretch the buckets held past ReadingStore.MAX_ROLLUP_SPAN is counted as
+ * covered but left out, so one bad timestamp cannot grow the file without bound.
+ *
+ * Layout (little-endian):
+ *   header, HEADER_SIZE bytes
+ *     0  int   magic
+ *     4  int   version
+ *     8  long  width (ms)
+ *    16  long  first bucket
+ *    24  long  last bucket in use, or first bucket - 1 if none
+ *    32  long  store records covered
+ *    40  int   1 if changed since last forced
+ *   buckets, BUCKET_SIZE bytes each
+ *     0  int   count
+ *     4  int   minimum
+ *     8  int   maximum
+ *    12  int   below range
+ *    16  long  sum
+ *    24  int   in range
+ *    28  int   reserved
+ *
+ * The buckets are derived from the segments, so rather than keep them crash safe the tier is
+ * marked dirty while it has changes not yet forced. A clean tier carries on from the records it
+ * covers; only a dirty one is rebuilt from the segments on opening.
+ */
+class RollupTier {
+
+    // the range time in range is measured against, mg/dL
+    static final int RANGE_LOW = 70;
+    static final int RANGE_HIGH = 180;
+
+    static final int MAGIC = 0x454e4455; // "ENDU"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int BUCKET_SIZE = 32;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int INITIAL_CAPACITY = 512;
+
+    private static final int WIDTH_OFFSET = 8;
+    private static final int FIRST_BUCKET_OFFSET = 16;
+    private static final int LAST_BUCKET_OFFSET = 24;
+    private static final int COVERED_OFFSET = 32;
+    private static final int DIRTY_OFFSET = 40;
+
+    final long width;
+    private final int maxBuckets;
+    private final File file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    // cached copies of the header fields
+    private long firstBucket;
+    private long lastBucket;
+    private long covered;
+    private boolean isDirty;
+    private boolean isEmpty;
+
+    private RollupTier(File file, long width){
+        this.file = file;
+        this.width = width;
+        this.maxBuckets = (int)(ReadingStore.MAX_ROLLUP_SPAN / width);
+    }
+
+    /**
+     * Opens the tier's file, or creates it empty if it is missing or not for this width.
+     */
+    static RollupTier open(File file, long width) throws IOException {
+        RollupTier tier = new RollupTier(file, width);
+        if(file.length() >= HEADER_SIZE){
+            tier.capacity = (int)((file.length() - HEADER_SIZE) / BUCKET_SIZE);
+            tier.buffer = map(file, tier.capacity);
+            if(MAGIC == tier.buffer.getInt(0) && VERSION == tier.buffer.getInt(4) && width == tier.buffer.getLong(WIDTH_OFFSET)){
+                tier.firstBucket = tier.buffer.getLong(FIRST_BUCKET_OFFSET);
+                tier.lastBucket = tier.buffer.getLong(LAST_BUCKET_OFFSET);
+                tier.covered = tier.buffer.getLong(COVERED_OFFSET);
+                tier.isDirty = 1 == tier.buffer.getInt(DIRTY_OFFSET);
+                tier.isEmpty = tier.lastBucket < tier.firstBucket;
+                return tier;
+            }
+        }
+
+        tier.capacity = INITIAL_CAPACITY;
+        tier.buffer = map(file, tier.capacity);
+        tier.clear();
+        return tier;
+    }
+
+    private static MappedByteBuffer map(File file, int capacity) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * BUCKET_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    /**
+     * @return how many of the store's records, from the first, the buckets hold
+     */
+    long getCovered(){
+        return covered;
+    }
+
+    /**
+     * @return true if the tier has changes which were not forced, so its covered count, read from
+     * the file, cannot be trusted
+     */
+    boolean isDirty(){
+        return isDirty;
+    }
+
+    /**
+     * Empties every bucket, ready to be rebuilt, and marks the tier dirty until it is forced.
+     */
+    void clear(){
+        for(int offset = 0; offset < HEADER_SIZE + capacity * BUCKET_SIZE; offset += 8){
+            buffer.putLong(offset, 0);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(WIDTH_OFFSET, width);
+        buffer.putInt(DIRTY_OFFSET, 1);
+        isDirty = true;
+        firstBucket = 0;
+        lastBucket = -1;
+        covered = 0;
+        isEmpty = true;
+        writeHeader();
+    }
+
+    /**
+     * Adds the store's next record. Records without glucose, or too far from the rest, are only
+     * counted as covered. If this throws the record is not counted, and is added again the next
+     * time the tier is caught up.
+     */
+    void add(long timestamp, int glucose, int flags) throws IOException {
+        if(!isDirty){
+            isDirty = true;
+            buffer.putInt(DIRTY_OFFSET, 1);
+        }
+
+        int offset = 0 != (flags & ReadingStore.FLAG_HAS_GLUCOSE) && glucose > 0 ? offsetOf(floorDiv(timestamp, width)) : -1;
+        if(offset >= 0){
+            int count = buffer.getInt(offset);
+            buffer.putInt(offset + 4, 0 == count ? glucose : Math.min(buffer.getInt(offset + 4), glucose));
+            buffer.putInt(offset + 8, 0 == count ? glucose : Math.max(buffer.getInt(offset + 8), glucose));
+            if(glucose < RANGE_LOW){
+                buffer.putInt(offset + 12, buffer.getInt(offset + 12) + 1);
+            }else if(glucose <= RANGE_HIGH){
+                buffer.putInt(offset + 24, buffer.getInt(offset + 24) + 1);
+            }
+            buffer.putLong(offset + 16, buffer.getLong(offset + 16) + glucose);
+            buffer.putInt(offset, count + 1);
+        }
+        ++covered;
+
+        writeHeader();
+    }
+
+    /**
+     * Adds a bucket to out for every non-empty bucket which overlaps [from, to].
+     */
+    void read(long from, long to, RollupBuffer out){
+        out.width = width;
+        if(isEmpty){
+            return;
+        }
+
+        long start = Math.max(firstBucket, floorDiv(from, width));
+        long end = Math.min(lastBucket, floorDiv(to, width));
+        for(long bucket = start; bucket <= end; ++bucket){
+            int offset = HEADER_SIZE + (int)(bucket - firstBucket) * BUCKET_SIZE;
+            int count = buffer.getInt(offset);
+            if(0 != count){
+                out.add(bucket * width, count, buffer.getInt(offset + 4), buffer.getInt(offset + 8), buffer.getLong(offset + 16),
+                        buffer.getInt(offset + 12), buffer.getInt(offset + 24));
+            }
+        }
+    }
+
+    /**
+     * Folds every bucket from the one holding from up to the one before that holding to into the
+     * last bucket of out. from and to should be multiples of the width.
+     */
+    void merge(long from, long to, RollupBuffer out){
+        if(isEmpty){
+            return;
+        }
+
+        long start = Math.max(firstBucket, floorDiv(from, width));
+        long end = Math.min(lastBucket + 1, floorDiv(to, width));
+        for(long bucket = start; bucket < end; ++bucket){
+            int offset = HEADER_SIZE + (int)(bucket - firstBucket) * BUCKET_SIZE;
+            int count = buffer.getInt(offset);
+            if(0 != count){
+                out.mergeIntoLast(count, buffer.getInt(offset + 4), buffer.getInt(offset + 8), buffer.getLong(offset + 16),
+                        buffer.getInt(offset + 12), buffer.getInt(offset + 24));
+            }
+        }
+    }
+
+    void force() {
+        if(isDirty){
+            buffer.force();
+            isDirty = false;
+            buffer.putInt(DIRTY_OFFSET, 0);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Offset of the bucket, making room for it if it is outside those held, or -1 if holding it
+     * would take more than maxBuckets.
+     */
+    private int offsetOf(long bucket) throws IOException {
+        long newFirst = isEmpty || bucket < firstBucket ? bucket - DAY / width : firstBucket;
+        long newLast = isEmpty || bucket > lastBucket ? bucket : lastBucket;
+        if(newLast - newFirst + 1 > maxBuckets){
+            return -1;
+        }
+        ensureCapacity((int)(newLast - newFirst + 1));
+
+        if(isEmpty){
+            isEmpty = false;
+        }else if(newFirst < firstBucket){
+            // older than anything held: move everything along, leaving room for another day
+            int shift = (int)(firstBucket - newFirst);
+            int used = (int)(lastBucket - firstBucket + 1);
+
+            byte[] buckets = new byte[used * BUCKET_SIZE];
+            buffer.position(HEADER_SIZE);
+            buffer.get(buckets);
+            buffer.position(HEADER_SIZE + shift * BUCKET_SIZE);
+            buffer.put(buckets);
+            for(int offset = HEADER_SIZE; offset < HEADER_SIZE + shift * BUCKET_SIZE; offset += 8){
+                buffer.putLong(offset, 0);
+            }
+            buffer.position(0);
+        }
+        firstBucket = newFirst;
+        lastBucket = newLast;
+
+        return HEADER_SIZE + (int)(bucket - firstBucket) * BUCKET_SIZE;
+    }
+
+    /**
+     * @param buckets no more than maxBuckets
+     */
+    private void ensureCapacity(int buckets) throws IOException {
+        if(buckets <= capacity){
+            return;
+        }
+        int grown = (int)Math.min(Math.max(buckets, 2L * capacity), maxBuckets);
+        buffer = map(file, grown);
+        capacity = grown;
+    }
+
+    static long floorDiv(long value, long divisor){
+        long quotient = value / divisor;
+        return (value % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    private void writeHeader(){
+        buffer.putLong(FIRST_BUCKET_OFFSET, firstBucket);
+        buffer.putLong(LAST_BUCKET_OFFSET, lastBucket);
+        buffer.putLong(COVERED_OFFSET, covered);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log of the records appended to a ReadingStore since its segments were last forced to
+ * storage.
+ *
+ * A process which is killed loses nothing written to a mapped segment, but a device which loses
+ * power may lose any page not yet written back, in any order - a segment's count may reach
+ * storage without the records it covers. Each record is therefore also framed here with its
+ * sequence number in the store and a CRC32, and on opening the store every intact frame is
+ * written again at its position. Replaying a record which did reach the segment writes the same
+ * bytes again, so the replay is safe however much of it was already there.
+ *
+ * Frames are gathered in memory and written and synced together by sync() - one fsync for a
+ * connection's readings, or for a batch of backfill, rather than one for each. Once the segments
+ * have been forced the log is no longer needed and is emptied, so recovery only ever reads the
+ * records since then.
+ *
+ * Layout (little-endian), one frame per record:
+ *     0  int   payload length
+ *     4  int   CRC32 of the payload
+ *     8        payload
+ *          0  long  sequence (records appended to the store before this one)
+ *          8  long  timestamp
+ *         16  int   transmitter time
+ *         20  int   filtered
+ *         24  int   unfiltered
+ *         28  int   glucose
+ *         32  int   flags
+ *
+ * Recovery stops at the first frame which is short or fails its CRC, the tail of a write cut off
+ * by the power going, and the log is truncated there.
+ */
+class WriteAheadLog implements Closeable {
+
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int PAYLOAD_SIZE = 36;
+    static final int FRAME_SIZE = FRAME_HEADER_SIZE + PAYLOAD_SIZE;
+
+    private static final int INITIAL_FRAMES = 64;
+
+    interface Replay {
+        void onRecord(long sequence, long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags) throws IOException;
+    }
+
+    private final File file;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = allocate(INITIAL_FRAMES);
+
+    // opened on the first sync, so a store which is never written to has no log
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long written = 0;
+
+    WriteAheadLog(File file){
+        this.file = file;
+    }
+
+    /**
+     * Hands every intact record in the log to replay, oldest first, and truncates anything after
+     * them.
+     * @return the number of records replayed
+     */
+    int recover(Replay replay) throws IOException {
+        if(!file.exists()){
+            return 0;
+        }
+
+        open();
+        ByteBuffer frame = allocate(1);
+        long position = 0;
+        int replayed = 0;
+        while(true){
+            frame.clear();
+            while(frame.hasRemaining()){
+                if(channel.read(frame, position + frame.position()) <= 0){
+                    break;
+                }
+            }
+            if(frame.hasRemaining() || PAYLOAD_SIZE != frame.getInt(0)){
+                break;
+            }
+
+            crc.reset();
+            crc.update(frame.array(), FRAME_HEADER_SIZE, PAYLOAD_SIZE);
+            if((int)crc.getValue() != frame.getInt(4)){
+                break;
+            }
+
+            int offset = FRAME_HEADER_SIZE;
+            replay.onRecord(frame.getLong(offset), frame.getLong(offset + 8), frame.getInt(offset + 16), frame.getInt(offset + 20),
+                    frame.getInt(offset + 24), frame.getInt(offset + 28), frame.getInt(offset + 32));
+            position += FRAME_SIZE;
+            ++replayed;
+        }
+
+        channel.truncate(position);
+        channel.position(position);
+        written = position;
+        return replayed;
+    }
+
+    /**
+     * Adds the record to the log, in memory until the next sync.
+     */
+    void append(long sequence, long timestamp, int transmitterTime, int filtered, int unfiltered, int glucose, int flags){
+        if(pending.remaining() < FRAME_SIZE){
+            ByteBuffer grown = allocate(pending.capacity() / FRAME_SIZE * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+
+        int start = pending.position();
+        pending.putInt(PAYLOAD_SIZE);
+        pending.putInt(0); // CRC, once the payload is in place
+        pending.putLong(sequence);
+        pending.putLong(timestamp);
+        pending.putInt(transmitterTime);
+        pending.putInt(filtered);
+        pending.putInt(unfiltered);
+        pending.putInt(glucose);
+        pending.putInt(flags);
+
+        crc.reset();
+        crc.update(pending.array(), start + FRAME_HEADER_SIZE, PAYLOAD_SIZE);
+        pending.putInt(start + 4, (int)crc.getValue());
+    }
+
+    /**
+     * Writes every record appended since the last sync and waits for them to reach storage.
+     */
+    void sync() throws IOException {
+        if(0 == pending.position()){
+            return;
+        }
+
+        open();
+        pending.flip();
+        while(pending.hasRemaining()){
+            written += channel.write(pending);
+        }
+        pending.clear();
+        channel.force(false);
+    }
+
+    /**
+     * Bytes in the log, including those not yet synced.
+     */
+    long size(){
+        return written + pending.position();
+    }
+
+    /**
+     * Empties the log, once everything in it is known to be in the segments.
+     */
+    void reset() throws IOException {
+        pending.clear();
+        if(null != channel){
+            channel.truncate(0);
+            channel.force(false);
+            written = 0;
+        }
+    }
+
+    /**
+     * Closes the log, deleting it if it is empty.
+     */
+    @Override
+    public void close() throws IOException {
+        pending.clear();
+        if(null == raf){
+            return;
+        }
+
+        raf.close();
+        raf = null;
+        channel = null;
+        if(0 == written){
+            file.delete();
+        }
+    }
+
+    private void open() throws IOException {
+        if(null == raf){
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            channel.position(channel.size());
+            written = channel.size();
+        }
+    }
+
+    private static ByteBuffer allocate(int frames){
+        return ByteBuffer.allocate(frames * FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
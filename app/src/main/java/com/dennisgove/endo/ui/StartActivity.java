@@ -14,8 +14,14 @@ import android.widget.TextView;
 
 import com.dennisgove.endo.R;
 import com.dennisgove.endo.comm.BroadcastReceiverCollection;
+import com.dennisgove.endo.comm.LatestReadingPublisher;
+import com.dennisgove.endo.comm.ReadingEvent;
 import com.dennisgove.endo.service.EndoManager;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
 public class StartActivity extends AppCompatActivity {
     private final String TAG = this.getClass().getSimpleName();
 
@@ -26,6 +32,30 @@ public class StartActivity extends AppCompatActivity {
     private EndoManager.Binder endoManagerBinder;
     private ServiceConnection endoManagerServiceConnection;
 
+    // a line for each transmitter, in transmitter id order
+    private final Map<String, String> latestReadings = new TreeMap<>();
+
+    private final LatestReadingPublisher.Observer latestReadingObserver = new LatestReadingPublisher.Observer() {
+        @Override
+        public void onLatestReading(ReadingEvent reading) {
+            if(Double.isNaN(reading.rate)){
+                latestReadings.put(reading.transmitterId, String.format(Locale.getDefault(), "%s: %d mg/dL", reading.transmitterId, reading.glucose));
+            }else{
+                latestReadings.put(reading.transmitterId, String.format(Locale.getDefault(), "%s: %d mg/dL %s %+.1f/min", reading.transmitterId, reading.glucose,
+                        reading.direction.arrow, reading.rate));
+            }
+
+            StringBuilder text = new StringBuilder();
+            for(String line : latestReadings.values()){
+                if(text.length() > 0){
+                    text.append('\n');
+                }
+                text.append(line);
+            }
+            glucoseValue.setText(text);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -58,6 +88,9 @@ public class StartActivity extends AppCompatActivity {
         super.onDestroy();
 
         broadcastReceivers.close();
+        if(null != endoManagerBinder){
+            endoManagerBinder.unsubscribeLatestReading(latestReadingObserver);
+        }
         unbindService(getEndoManagerServiceConnection());
 
         Log.d(TAG, "StartActivity has been destroyed");
@@ -89,6 +122,8 @@ public class StartActivity extends AppCompatActivity {
                         Log.i(TAG, "Bluetooth is off - requesting user to turn it on");
                         endoManagerBinder.askUserTurnBluetoothOn();
                     }
+
+                    endoManagerBinder.subscribeLatestReading(null, latestReadingObserver);
                 }
 
                 @Override
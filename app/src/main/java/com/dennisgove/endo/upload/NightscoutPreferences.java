@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.upload;
+
+/**
+ * Where readings are uploaded for followers to see.
+ */
+public interface NightscoutPreferences {
+
+    /**
+     * Base URL of the Nightscout site, such as https://example.herokuapp.com, or null if readings
+     * are not uploaded.
+     */
+    String getUrl();
+
+    /**
+     * The site's API_SECRET, or null if it has none.
+     */
+    String getApiSecret();
+
+    void setNightscout(String url, String apiSecret);
+}
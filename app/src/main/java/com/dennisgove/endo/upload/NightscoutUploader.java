@@ -0,0 +1,411 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.upload;
+
+import com.dennisgove.endo.cgm.TrendEstimator;
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.util.Clock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads a transmitter's readings to a Nightscout site's entries API for followers to see.
+ *
+ * The ReadingStore is the upload queue: the uploader keeps only the sequence of the first reading
+ * not yet acknowledged - its high-water mark - in a file next to the store's segments. Each upload
+ * reads every reading from there on, up to MAX_BATCH, and posts them as one gzip-compressed JSON
+ * array; a reading is never posted on its own unless it is the only one waiting. Uploads are at
+ * least minIntervalMillis apart, except to catch up on a full batch. A failed upload is retried
+ * from the same high-water mark after a backoff which doubles from initialBackoffMillis up to
+ * maxBackoffMillis, and the readings stored meanwhile join it.
+ *
+ * onReadingsStored() only schedules an upload, so it is safe to call from the BLE session's thread;
+ * all reading, encoding and network I/O happen on the uploader's own executor. If the high-water
+ * mark is lost with the process before it is written, the readings since the last one written are
+ * posted again, which Nightscout ignores as duplicates of their date and type. Failures are
+ * reported to the Listener, if one is set, on the executor.
+ */
+public class NightscoutUploader {
+
+    public static final String ENTRIES_PATH = "/api/v1/entries";
+    public static final int MAX_BATCH = 2016; // a week of 5 minute readings
+
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 60 * 1000;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    static final String HIGH_WATER_MARK_NAME = "nightscout.hwm";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        /**
+         * The upload will be tried again in retryInMillis, unless the uploader is stopped.
+         */
+        void onUploadFailed(IOException e, int failures, long retryInMillis);
+
+        /**
+         * The readings up to the mark were acknowledged, but are posted again after a restart.
+         */
+        void onHighWaterMarkNotWritten(IOException e);
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onUploadFailed(IOException e, int failures, long retryInMillis) {
+        }
+
+        @Override
+        public void onHighWaterMarkNotWritten(IOException e) {
+        }
+    };
+
+    private final ReadingStore store;
+    private final String device;
+    private final NightscoutPreferences preferences;
+    private final Clock clock;
+    private final ScheduledExecutorService executor;
+    private final long minIntervalMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final File highWaterMarkFile;
+
+    private final AtomicBoolean isUploadScheduled = new AtomicBoolean(false);
+    private volatile boolean isStopped = false;
+    private volatile long highWaterMark;
+    private volatile int failures = 0;
+    private volatile Listener listener = NO_LISTENER;
+    private volatile ScheduledFuture<?> pendingUpload;
+
+    // only touched on executor
+    private long nextUploadAt = Long.MIN_VALUE;
+    private long backoffMillis = 0;
+    private final ReadingBuffer batch = new ReadingBuffer();
+    private final ReadingBuffer context = new ReadingBuffer(TrendEstimator.DEFAULT_CAPACITY);
+    private final StringBuilder json = new StringBuilder();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final TrendEstimator trendEstimator = new TrendEstimator();
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+    private final Date date = new Date();
+
+    private final Runnable upload = new Runnable() {
+        @Override
+        public void run() {
+            upload();
+        }
+    };
+
+    public NightscoutUploader(ReadingStore store, String transmitterId, NightscoutPreferences preferences, Clock clock, ScheduledExecutorService executor){
+        this(store, transmitterId, preferences, clock, executor, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param executor uploads run on; not the BLE session's
+     */
+    public NightscoutUploader(ReadingStore store, String transmitterId, NightscoutPreferences preferences, Clock clock, ScheduledExecutorService executor,
+                              long minIntervalMillis, long initialBackoffMillis, long maxBackoffMillis){
+        this.store = store;
+        this.device = "endo-" + transmitterId;
+        this.preferences = preferences;
+        this.clock = clock;
+        this.executor = executor;
+        this.minIntervalMillis = minIntervalMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.highWaterMarkFile = new File(store.getDirectory(), HIGH_WATER_MARK_NAME);
+        this.highWaterMark = Math.min(store.size(), readHighWaterMark(highWaterMarkFile));
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Arranges for the readings stored since the last upload to be uploaded, unless an upload is
+     * already waiting to. Never blocks.
+     */
+    public void onReadingsStored(){
+        if(!isStopped && isUploadScheduled.compareAndSet(false, true)){
+            executor.execute(upload);
+        }
+    }
+
+    public void setListener(Listener listener){
+        this.listener = null == listener ? NO_LISTENER : listener;
+    }
+
+    /**
+     * Stops uploading. One already posting finishes, but nothing follows it - no retry, no catch
+     * up and no upload waiting out its interval.
+     */
+    public void stop(){
+        isStopped = true;
+        ScheduledFuture<?> pending = pendingUpload;
+        if(null != pending){
+            pending.cancel(false);
+        }
+    }
+
+    /**
+     * The sequence in the store of the first reading not yet acknowledged by the site.
+     */
+    public long getHighWaterMark(){
+        return highWaterMark;
+    }
+
+    /**
+     * Uploads which have failed since the last one which succeeded.
+     */
+    public int getFailures(){
+        return failures;
+    }
+
+    /**
+     * Runs on the executor.
+     */
+    private void upload(){
+        if(isStopped){
+            return;
+        }
+
+        long now = clock.currentTimeMillis();
+        if(now < nextUploadAt){
+            pendingUpload = executor.schedule(upload, nextUploadAt - now, TimeUnit.MILLISECONDS);
+            return;
+        }
+        // readings stored from here on need another upload
+        isUploadScheduled.set(false);
+
+        String url = preferences.getUrl();
+        if(null == url || url.isEmpty()){
+            return;
+        }
+
+        batch.clear();
+        store.readSince(highWaterMark, MAX_BATCH, batch);
+        if(0 == batch.size()){
+            return;
+        }
+
+        // the trend of the first few is from the readings before them, so a retry posts the same
+        trendEstimator.clear();
+        context.clear();
+        long contextStart = Math.max(0, highWaterMark - TrendEstimator.DEFAULT_CAPACITY);
+        store.readSince(contextStart, (int)(highWaterMark - contextStart), context);
+        for(int idx = 0; idx < context.size(); ++idx){
+            if(0 != (context.flags[idx] & ReadingStore.FLAG_HAS_GLUCOSE) && context.glucose[idx] > 0){
+                trendEstimator.add(context.transmitterTimes[idx], context.glucose[idx]);
+            }
+        }
+
+        try{
+            if(encode(batch) > 0){
+                post(url, preferences.getApiSecret());
+            }
+        } catch (IOException e) {
+            ++failures;
+            backoffMillis = 0 == backoffMillis ? initialBackoffMillis : Math.min(maxBackoffMillis, backoffMillis * 2);
+            nextUploadAt = now + backoffMillis;
+            listener.onUploadFailed(e, failures, backoffMillis);
+            if(!isStopped){
+                onReadingsStored();
+            }
+            return;
+        }
+
+        failures = 0;
+        backoffMillis = 0;
+        highWaterMark += batch.size();
+        try{
+            writeHighWaterMark(highWaterMarkFile, highWaterMark);
+        } catch (IOException e) {
+            listener.onHighWaterMarkNotWritten(e);
+        }
+
+        if(isStopped){
+            return;
+        }
+        if(MAX_BATCH == batch.size()){
+            // catching up
+            nextUploadAt = now;
+            onReadingsStored();
+        }else{
+            nextUploadAt = now + minIntervalMillis;
+        }
+    }
+
+    /**
+     * Writes the readings with glucose in readings to body as Nightscout sgv entries.
+     * @return how many
+     */
+    private int encode(ReadingBuffer readings) throws IOException {
+        json.setLength(0);
+        json.append('[');
+        int count = 0;
+        for(int idx = 0; idx < readings.size(); ++idx){
+            if(0 == (readings.flags[idx] & ReadingStore.FLAG_HAS_GLUCOSE) || readings.glucose[idx] <= 0){
+                continue;
+            }
+            trendEstimator.add(readings.transmitterTimes[idx], readings.glucose[idx]);
+
+            if(count > 0){
+                json.append(',');
+            }
+            date.setTime(readings.timestamps[idx]);
+            json.append("{\"type\":\"sgv\",\"device\":\"").append(device)
+                    .append("\",\"date\":").append(readings.timestamps[idx])
+                    .append(",\"dateString\":\"").append(dateFormat.format(date))
+                    .append("\",\"sgv\":").append(readings.glucose[idx])
+                    .append(",\"direction\":\"").append(direction(trendEstimator.getTrend())).append('"');
+            if(0 != (readings.flags[idx] & ReadingStore.FLAG_HAS_RAW)){
+                json.append(",\"filtered\":").append(readings.filtered[idx])
+                        .append(",\"unfiltered\":").append(readings.unfiltered[idx]);
+            }
+            json.append('}');
+            ++count;
+        }
+        json.append(']');
+
+        body.reset();
+        try(Writer writer = new OutputStreamWriter(new GZIPOutputStream(body), UTF_8)){
+            writer.append(json);
+        }
+        return count;
+    }
+
+    private void post(String url, String apiSecret) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url.replaceAll("/+$", "") + ENTRIES_PATH).openConnection();
+        try{
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.size());
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("Accept", "application/json");
+            if(null != apiSecret && !apiSecret.isEmpty()){
+                connection.setRequestProperty("api-secret", sha1(apiSecret));
+            }
+
+            try(OutputStream out = connection.getOutputStream()){
+                body.writeTo(out);
+            }
+
+            int status = connection.getResponseCode();
+            if(status < 200 || status >= 300){
+                throw new IOException("Upload to '" + url + "' failed with HTTP " + status);
+            }
+            drain(connection.getInputStream());
+        }finally{
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the response to the end, so the connection can be reused for the next upload.
+     */
+    private static void drain(InputStream in) throws IOException {
+        try{
+            byte[] buffer = new byte[512];
+            while(in.read(buffer) >= 0){
+            }
+        }finally{
+            in.close();
+        }
+    }
+
+    /**
+     * Nightscout's name for the trend, as in the entries of its own uploaders.
+     */
+    static String direction(TrendEstimator.Trend trend){
+        switch(trend){
+            case DOUBLE_UP: return "DoubleUp";
+            case SINGLE_UP: return "SingleUp";
+            case FORTY_FIVE_UP: return "FortyFiveUp";
+            case FLAT: return "Flat";
+            case FORTY_FIVE_DOWN: return "FortyFiveDown";
+            case SINGLE_DOWN: return "SingleDown";
+            case DOUBLE_DOWN: return "DoubleDown";
+            default: return "NONE";
+        }
+    }
+
+    /**
+     * Nightscout takes the hex SHA-1 of its API_SECRET rather than the secret itself.
+     */
+    static String sha1(String value) throws IOException {
+        try{
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte b : digest){
+                hex.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 is not available", e);
+        }
+    }
+
+    private static long readHighWaterMark(File file){
+        if(!file.exists()){
+            return 0;
+        }
+        try(DataInputStream in = new DataInputStream(new FileInputStream(file))){
+            return in.readLong();
+        } catch (IOException e) {
+            // uploaded again from the start, and ignored as duplicates
+            return 0;
+        }
+    }
+
+    /**
+     * Replaces the file with one holding the mark, so it is never seen half written.
+     */
+    private static void writeHighWaterMark(File file, long highWaterMark) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try(DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))){
+            out.writeLong(highWaterMark);
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("Unable to rename '" + temp + "' to '" + file + "'");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.upload;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * NightscoutPreferences kept in the app's private SharedPreferences.
+ */
+public class SharedPreferencesNightscoutPreferences implements NightscoutPreferences {
+
+    private static final String PREFERENCES_NAME = "nightscout";
+    private static final String URL_KEY = "url";
+    private static final String API_SECRET_KEY = "apiSecret";
+
+    private final SharedPreferences preferences;
+
+    public SharedPreferencesNightscoutPreferences(Context context){
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public String getUrl() {
+        return preferences.getString(URL_KEY, null);
+    }
+
+    @Override
+    public String getApiSecret() {
+        return preferences.getString(API_SECRET_KEY, null);
+    }
+
+    @Override
+    public void setNightscout(String url, String apiSecret) {
+        preferences.edit().putString(URL_KEY, url).putString(API_SECRET_KEY, apiSecret).apply();
+    }
+}
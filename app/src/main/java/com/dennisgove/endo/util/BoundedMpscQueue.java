@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed capacity queue which any number of threads may offer to without locking, and one thread
+ * polls from.
+ *
+ * Each slot carries a sequence number saying whether it is free for the producer at a given
+ * position or holds the element for the consumer at it, as in Dmitry Vyukov's bounded queue.
+ * Producers claim a position with a compare-and-set on the tail and publish the element by
+ * advancing the slot's sequence; the consumer only ever reads its own head. A full queue refuses
+ * the element rather than blocking.
+ */
+public class BoundedMpscQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // consumer only
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public BoundedMpscQueue(int capacity){
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for(int idx = 0; idx < size; ++idx){
+            sequences.set(idx, idx);
+        }
+    }
+
+    public int getCapacity(){
+        return mask + 1;
+    }
+
+    /**
+     * Adds element to the tail of the queue. May be called from any thread.
+     * @return false if the queue is full
+     */
+    public boolean offer(E element){
+        while(true){
+            long position = tail.get();
+            int idx = (int)(position & mask);
+            long difference = sequences.get(idx) - position;
+
+            if(0 == difference){
+                if(tail.compareAndSet(position, position + 1)){
+                    elements.lazySet(idx, element);
+                    sequences.set(idx, position + 1);
+                    return true;
+                }
+            }else if(difference < 0){
+                // the consumer has not yet taken the element a lap behind
+                return false;
+            }
+            // otherwise another producer claimed this position first
+        }
+    }
+
+    /**
+     * Removes the element at the head of the queue. Must only be called from the consumer thread.
+     * @return null if the queue is empty
+     */
+    public E poll(){
+        int idx = (int)(head & mask);
+        if(sequences.get(idx) != head + 1){
+            return null;
+        }
+
+        E element = elements.get(idx);
+        elements.lazySet(idx, null);
+        sequences.set(idx, head + mask + 1);
+        ++head;
+        return element;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     */
+    public boolean isEmpty(){
+        return sequences.get((int)(head & mask)) != head + 1;
+    }
+}
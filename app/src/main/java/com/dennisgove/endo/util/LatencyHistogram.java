@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies in ms, cheap enough to record into on every GATT callback.
+ *
+ * Buckets are laid out as in HdrHistogram: values below 32 each have their own bucket, and every
+ * power of two above that is split into 16 equal buckets, so a value is always reported to within
+ * about 6% however large it is. All buckets are allocated up front, and recording is a couple of
+ * shifts and an atomic increment with no locking. Values above MAX_VALUE are counted as MAX_VALUE.
+ */
+public class LatencyHistogram {
+
+    public static final long MAX_VALUE = (1L << 22) - 1; // ~70 minutes
+
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public void record(long value){
+        value = Math.max(0, Math.min(MAX_VALUE, value));
+        counts.incrementAndGet(bucketIndex(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)){
+        }
+    }
+
+    public long getCount(){
+        return total.get();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public double getMean(){
+        long count = total.get();
+        return 0 == count ? 0 : (double)sum.get() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value in the bucket holding the given percentile, or 0 if nothing has
+     * been recorded
+     */
+    public long getValueAtPercentile(double percentile){
+        long count = total.get();
+        if(0 == count){
+            return 0;
+        }
+
+        long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int idx = 0; idx < BUCKET_COUNT; ++idx){
+            seen += counts.get(idx);
+            if(seen >= target){
+                return Math.min(max.get(), bucketUpperBound(idx));
+            }
+        }
+        return max.get();
+    }
+
+    public void reset(){
+        for(int idx = 0; idx < BUCKET_COUNT; ++idx){
+            counts.set(idx, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucketIndex(long value){
+        if(value < LINEAR_BUCKETS){
+            return (int)value;
+        }
+
+        // keep the top 5 bits - the leading one and 4 below it
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long bucketUpperBound(int index){
+        if(index < LINEAR_BUCKETS){
+            return index;
+        }
+
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
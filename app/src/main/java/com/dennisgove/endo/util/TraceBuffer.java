@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, in-memory record of what the app did most recently, for working out afterwards
+ * why a reading was missed.
+ *
+ * Each record is an event, the source which recorded it, a timestamp, two long arguments and
+ * optionally a copy of a payload of up to MAX_PAYLOAD_LENGTH bytes. Records are written into
+ * preallocated arrays without formatting or allocating anything, so recording costs about as
+ * much as a few array stores and an atomic increment. They are turned into text only when the
+ * buffer is dumped. Once the buffer is full each new record replaces the oldest.
+ *
+ * Payloads are only copied while payload capture is turned on, which it is not by default.
+ *
+ * Any number of threads may record at once. A record being overwritten while it is dumped is left
+ * out of the dump.
+ */
+public class TraceBuffer {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAX_PAYLOAD_LENGTH = 20; // the largest BLE notification
+
+    /**
+     * Something which can be recorded. Usually an enum constant, which holds the format for its
+     * arguments.
+     */
+    public interface Event {
+        String name();
+
+        /**
+         * Describes the arguments recorded with the event. Only called when the buffer is dumped.
+         */
+        String format(long a, long b);
+    }
+
+    /**
+     * Records events under a name, typically the class and device they concern.
+     */
+    public static class Source {
+        private final TraceBuffer buffer;
+        private final int id;
+
+        private Source(TraceBuffer buffer, int id){
+            this.buffer = buffer;
+            this.id = id;
+        }
+
+        public void record(Event event){
+            buffer.record(id, event, 0, 0, null);
+        }
+
+        public void record(Event event, long a){
+            buffer.record(id, event, a, 0, null);
+        }
+
+        public void record(Event event, long a, long b){
+            buffer.record(id, event, a, b, null);
+        }
+
+        /**
+         * @param payload copied, if payload capture is on
+         */
+        public void record(Event event, long a, long b, byte[] payload){
+            buffer.record(id, event, a, b, payload);
+        }
+    }
+
+    private final Clock clock;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray published;
+    private final long[] timestamps;
+    private final int[] sources;
+    private final Event[] events;
+    private final long[] as;
+    private final long[] bs;
+    private final byte[] payloads;
+    private final int[] payloadLengths;
+    private final List<String> sourceNames = new CopyOnWriteArrayList<>();
+    private volatile boolean isCapturingPayloads = false;
+
+    public TraceBuffer(Clock clock){
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public TraceBuffer(Clock clock, int capacity){
+        this.clock = clock;
+
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        timestamps = new long[size];
+        sources = new int[size];
+        events = new Event[size];
+        as = new long[size];
+        bs = new long[size];
+        payloads = new byte[size * MAX_PAYLOAD_LENGTH];
+        payloadLengths = new int[size];
+
+        for(int idx = 0; idx < size; ++idx){
+            published.set(idx, -1);
+        }
+    }
+
+    /**
+     * @return a new source recording under name
+     */
+    public synchronized Source source(String name){
+        sourceNames.add(name);
+        return new Source(this, sourceNames.size() - 1);
+    }
+
+    public void setCapturingPayloads(boolean isCapturingPayloads){
+        this.isCapturingPayloads = isCapturingPayloads;
+    }
+
+    public boolean isCapturingPayloads(){
+        return isCapturingPayloads;
+    }
+
+    public int getCapacity(){
+        return mask + 1;
+    }
+
+    private void record(int source, Event event, long a, long b, byte[] payload){
+        long sequence = next.getAndIncrement();
+        int idx = (int)(sequence & mask);
+
+        // mark the slot as being written, so a concurrent dump skips it
+        published.set(idx, -1);
+        timestamps[idx] = clock.currentTimeMillis();
+        sources[idx] = source;
+        events[idx] = event;
+        as[idx] = a;
+        bs[idx] = b;
+
+        int length = 0;
+        if(null != payload && isCapturingPayloads){
+            length = Math.min(MAX_PAYLOAD_LENGTH, payload.length);
+            System.arraycopy(payload, 0, payloads, idx * MAX_PAYLOAD_LENGTH, length);
+        }
+        payloadLengths[idx] = length;
+        published.set(idx, sequence);
+    }
+
+    /**
+     * Writes every record still in the buffer, oldest first, one per line.
+     */
+    public void dump(PrintWriter writer){
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        StringBuilder line = new StringBuilder();
+        byte[] payload = new byte[MAX_PAYLOAD_LENGTH];
+
+        long end = next.get();
+        for(long sequence = Math.max(0, end - getCapacity()); sequence < end; ++sequence){
+            int idx = (int)(sequence & mask);
+            if(published.get(idx) != sequence){
+                continue;
+            }
+
+            long timestamp = timestamps[idx];
+            int source = sources[idx];
+            Event event = events[idx];
+            long a = as[idx];
+            long b = bs[idx];
+            int length = payloadLengths[idx];
+            System.arraycopy(payloads, idx * MAX_PAYLOAD_LENGTH, payload, 0, length);
+
+            if(published.get(idx) != sequence){
+                // overwritten while being read
+                continue;
+            }
+
+            date.setTime(timestamp);
+            line.setLength(0);
+            line.append(format.format(date)).append(' ')
+                    .append(sourceNames.get(source)).append(' ')
+                    .append(event.name()).append(' ')
+                    .append(event.format(a, b));
+            if(length > 0){
+                line.append(" [");
+                for(int offset = 0; offset < length; ++offset){
+                    line.append(String.format("%02x", payload[offset]));
+                }
+                line.append(']');
+            }
+            writer.println(line);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+/**
+ * A Clock which only moves when told to.
+ */
+public class VirtualClock implements Clock {
+
+    private volatile long now;
+
+    public VirtualClock(long now){
+        this.now = now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public synchronized void set(long now){
+        this.now = now;
+    }
+
+    public synchronized void advance(long millis){
+        now += millis;
+    }
+}
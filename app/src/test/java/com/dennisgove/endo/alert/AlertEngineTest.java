@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.alert;
+
+import com.dennisgove.endo.util.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AlertEngineTest {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private final VirtualClock clock = new VirtualClock(1500000000000L);
+    private final List<String> changes = new ArrayList<>();
+    private final AlertEngine engine = new AlertEngine(clock, new AlertEngine.Thresholds(), new AlertEngine.Listener() {
+        @Override
+        public void onAlertChanged(Alert alert, boolean isSounding, int glucose) {
+            changes.add(alert + (isSounding ? " on " : " off ") + glucose);
+        }
+    });
+
+    @Test
+    public void raisesAfterDebounceAndClearsPastHysteresis(){
+        reading(260, 0);
+        assertTrue(changes.isEmpty());
+        reading(262, 0);
+        assertEquals("HIGH on 262", changes.get(0));
+
+        // back under the threshold but not past the hysteresis
+        reading(245, 0);
+        reading(251, 0);
+        reading(245, 0);
+        assertEquals(1, changes.size());
+
+        reading(240, 0);
+        assertEquals("HIGH off 240", changes.get(1));
+    }
+
+    @Test
+    public void raisesUrgentLowAtOnceInPlaceOfLow(){
+        reading(68, 0);
+        reading(66, 0);
+        assertEquals("LOW on 66", changes.get(0));
+
+        reading(52, 0);
+        assertTrue(changes.contains("URGENT_LOW on 52"));
+        assertTrue(changes.contains("LOW off 52"));
+        assertTrue(engine.isSounding(Alert.URGENT_LOW));
+        assertFalse(engine.isSounding(Alert.LOW));
+    }
+
+    @Test
+    public void predictsLowsFromTheRate(){
+        reading(110, -3.2);
+        reading(100, -3.2);
+        assertTrue(changes.contains("PREDICTED_LOW on 100"));
+        assertTrue(changes.contains("FALLING_FAST on 100"));
+
+        reading(102, Double.NaN);
+        assertTrue(changes.contains("PREDICTED_LOW off 102"));
+        assertTrue(changes.contains("FALLING_FAST off 102"));
+    }
+
+    @Test
+    public void snoozesUntilTheSnoozeEnds(){
+        reading(300, 0);
+        reading(300, 0);
+        engine.snooze(Alert.HIGH, clock.currentTimeMillis() + 30 * MINUTE);
+        assertEquals("HIGH off 0", changes.get(1));
+
+        reading(300, 0);
+        engine.onTick();
+        assertEquals(2, changes.size());
+
+        clock.advance(31 * MINUTE);
+        reading(300, 0);
+        assertEquals("HIGH on 300", changes.get(2));
+    }
+
+    @Test
+    public void ignoresStaleReadingsFromABackfill(){
+        reading(120, 0);
+
+        // hours of lows which have already passed
+        long now = clock.currentTimeMillis();
+        for(int idx = 0; idx < 36; ++idx){
+            assertFalse(engine.onReading(now - (36 - idx) * 5 * MINUTE, 50, 0));
+        }
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void raisesSignalLossWhenReadingsStop(){
+        reading(120, 0);
+        clock.advance(AlertEngine.SIGNAL_LOSS_MILLIS);
+        engine.onTick();
+        assertTrue(changes.isEmpty());
+
+        clock.advance(MINUTE);
+        engine.onTick();
+        engine.onTick();
+        assertEquals(1, changes.size());
+        assertEquals("SIGNAL_LOSS on 0", changes.get(0));
+
+        reading(120, 0);
+        assertEquals("SIGNAL_LOSS off 0", changes.get(1));
+    }
+
+    private void reading(int glucose, double rate){
+        clock.advance(5 * MINUTE);
+        assertTrue(engine.onReading(clock.currentTimeMillis(), glucose, rate));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private ScheduledExecutorService scheduler;
+    private RecordingClient client;
+    private GattOperationQueue queue;
+
+    @Before
+    public void setUp(){
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        client = new RecordingClient();
+        queue = new GattOperationQueue(client, scheduler);
+    }
+
+    @After
+    public void tearDown(){
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void runsOneOperationAtATime() throws Exception {
+        GattFuture write = queue.write(BleServices.CGMService, BleServices.Authentication, new byte[]{ 1 });
+        GattFuture read = queue.read(BleServices.CGMService, BleServices.Authentication);
+
+        assertEquals(1, client.started.size());
+        assertEquals(1, queue.getPendingCount());
+
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+        assertTrue(write.isSuccess());
+        assertEquals(2, client.started.size());
+
+        queue.onCharacteristicRead(BleServices.Authentication, new byte[]{ 5, 1, 1 }, GattFuture.STATUS_SUCCESS);
+        assertArrayEquals(new byte[]{ 5, 1, 1 }, read.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timesOutAndMovesOn() throws Exception {
+        GattFuture lost = queue.write(BleServices.CGMService, BleServices.Control, new byte[]{ 1 });
+        GattFuture next = queue.read(BleServices.CGMService, BleServices.Authentication);
+
+        try{
+            lost.get(5, TimeUnit.SECONDS);
+            fail("lost write should not succeed");
+        }catch(java.util.concurrent.ExecutionException e){
+            assertEquals(GattFuture.STATUS_TIMEOUT, lost.getStatus());
+        }
+
+        // one original attempt plus one retry, then the read
+        client.awaitStarted(GattOperationQueue.DEFAULT_ATTEMPTS + 1);
+        assertEquals("read " + BleServices.Authentication, client.started.get(GattOperationQueue.DEFAULT_ATTEMPTS));
+        assertFalse(next.isDone());
+    }
+
+    @Test
+    public void ignoresCallbacksForOtherOperations(){
+        GattFuture read = queue.read(BleServices.CGMService, BleServices.Authentication);
+
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+        queue.onCharacteristicRead(BleServices.Control, new byte[]{ 1 }, GattFuture.STATUS_SUCCESS);
+        assertFalse(read.isDone());
+    }
+
+    @Test
+    public void disconnectFailsEverything(){
+        GattFuture first = queue.write(BleServices.CGMService, BleServices.Authentication, new byte[]{ 1 });
+        GattFuture second = queue.enableNotification(BleServices.CGMService, BleServices.Control);
+
+        queue.onDisconnected();
+        assertEquals(GattFuture.STATUS_DISCONNECTED, first.getStatus());
+        assertEquals(GattFuture.STATUS_DISCONNECTED, second.getStatus());
+        assertEquals(GattFuture.STATUS_CANCELLED, queue.read(BleServices.CGMService, BleServices.Control).getStatus());
+    }
+
+    @Test
+    public void reportsFailuresToMonitor(){
+        final List<Integer> errors = new ArrayList<>();
+        GattOperationQueue monitored = new GattOperationQueue(client, scheduler, new GattOperationQueue.Monitor() {
+            @Override
+            public void onRetry(int status) {
+                fail("nothing should be retried");
+            }
+
+            @Override
+            public void onError(int status) {
+                errors.add(status);
+            }
+        });
+
+        GattFuture write = monitored.write(BleServices.CGMService, BleServices.Authentication, new byte[]{ 1 });
+        monitored.onCharacteristicWrite(BleServices.Authentication, 133);
+        assertEquals(133, write.getStatus());
+
+        monitored.read(BleServices.CGMService, BleServices.Authentication);
+        monitored.onCharacteristicRead(BleServices.Authentication, new byte[]{ 1 }, GattFuture.STATUS_SUCCESS);
+        assertEquals(Collections.singletonList(133), errors);
+    }
+
+    private static class RecordingClient implements GattClient {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+        void awaitStarted(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while(started.size() < count && System.currentTimeMillis() < deadline){
+                Thread.sleep(5);
+            }
+            assertEquals(count, started.size());
+        }
+
+        @Override public boolean discoverServices() { started.add("discover"); return true; }
+        @Override public boolean readCharacteristic(UUID service, UUID characteristic) { started.add("read " + characteristic); return true; }
+        @Override public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) { started.add("write " + characteristic); return true; }
+        @Override public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) { started.add("descriptor " + characteristic); return true; }
+        @Override public boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) { return true; }
+        @Override public void disconnect() { }
+        @Override public void close() { }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.ble;
+
+import com.dennisgove.endo.util.VirtualClock;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScanSchedulerTest {
+
+    private static final long PERIOD = ScanScheduler.DEFAULT_PERIOD_MILLIS;
+    private static final long GUARD = ScanScheduler.DEFAULT_GUARD_MILLIS;
+
+    private final VirtualClock clock = new VirtualClock(1000000);
+    private final ScanScheduler scheduler = new ScanScheduler(clock);
+
+    @Test
+    public void searchesWideUntilSeen(){
+        ScanScheduler.Window window = scheduler.nextWindow();
+
+        assertEquals(ScanScheduler.Mode.LOW_POWER, window.mode);
+        assertEquals(clock.currentTimeMillis(), window.startTime);
+        assertTrue(window.duration > PERIOD);
+        assertTrue(window.duration <= ScanScheduler.MAX_SCAN_MILLIS);
+    }
+
+    @Test
+    public void opensShortWindowBeforeNextAdvertisement(){
+        long seen = clock.currentTimeMillis();
+        scheduler.onAdvertisement();
+
+        // connected, read and disconnected a few seconds later
+        clock.advance(8000);
+        ScanScheduler.Window window = scheduler.nextWindow();
+
+        assertEquals(ScanScheduler.Mode.LOW_LATENCY, window.mode);
+        assertEquals(seen + PERIOD - GUARD, window.startTime);
+        assertEquals(2 * GUARD, window.duration);
+    }
+
+    @Test
+    public void skipsWindowsAlreadyClosed(){
+        long seen = clock.currentTimeMillis();
+        scheduler.onAdvertisement();
+
+        clock.advance(PERIOD + GUARD + 1);
+        ScanScheduler.Window window = scheduler.nextWindow();
+
+        assertEquals(seen + 2 * PERIOD - GUARD, window.startTime);
+    }
+
+    @Test
+    public void widensAfterMissesThenFallsBackToWideSearch(){
+        long seen = clock.currentTimeMillis();
+        scheduler.onAdvertisement();
+
+        clock.set(seen + PERIOD + GUARD);
+        scheduler.onMissed();
+        ScanScheduler.Window window = scheduler.nextWindow();
+        assertEquals(ScanScheduler.Mode.LOW_LATENCY, window.mode);
+        assertEquals(seen + 2 * PERIOD - 2 * GUARD, window.startTime);
+        assertEquals(4 * GUARD, window.duration);
+
+        for(int idx = 1; idx < ScanScheduler.MAX_MISSES; ++idx){
+            scheduler.onMissed();
+        }
+        assertFalse(scheduler.isPhaseKnown());
+        assertEquals(ScanScheduler.Mode.LOW_POWER, scheduler.nextWindow().mode);
+
+        scheduler.onAdvertisement();
+        assertTrue(scheduler.isPhaseKnown());
+    }
+
+    @Test
+    public void learnsPeriodFromAdvertisements(){
+        long actualPeriod = PERIOD + 1200;
+        for(int idx = 0; idx < 40; ++idx){
+            scheduler.onAdvertisement();
+            clock.advance(actualPeriod);
+        }
+        assertEquals(actualPeriod, scheduler.getPeriod(), 10);
+
+        // an advertisement way off the nominal period is not learned from
+        clock.advance(PERIOD / 2);
+        scheduler.onAdvertisement();
+        assertEquals(actualPeriod, scheduler.getPeriod(), 10);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CalibrationModelTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final CalibrationModel model = new CalibrationModel();
+
+    @Test
+    public void fitsThroughTheOriginFromOneCalibration(){
+        assertFalse(model.isCalibrated());
+        assertEquals(0, model.toGlucose(150000));
+
+        assertTrue(model.addCalibration(0, 150, 150000));
+        assertEquals(100, model.toGlucose(100000));
+        assertEquals(CalibrationModel.MAX_GLUCOSE, model.toGlucose(900000));
+    }
+
+    @Test
+    public void fitsALineFromSeveral(){
+        // glucose = raw / 800 - 25
+        model.addCalibration(0, 100, 100000);
+        model.addCalibration(HOUR, 175, 160000);
+        model.addCalibration(2 * HOUR, 250, 220000);
+
+        assertEquals(1 / 800.0, model.getFit().slope, 1e-9);
+        assertEquals(-25, model.getFit().intercept, 1e-6);
+        assertEquals(200, model.toGlucose(180000));
+    }
+
+    @Test
+    public void followsDriftAsOldCalibrationsDecay(){
+        model.addCalibration(0, 100, 100000);
+        model.addCalibration(HOUR, 200, 200000);
+
+        // the sensor's sensitivity has dropped by a fifth since
+        long later = 14 * 24 * HOUR;
+        model.addCalibration(later, 100, 80000);
+        model.addCalibration(later + HOUR, 200, 160000);
+
+        assertEquals(150, model.toGlucose(120000), 2);
+        assertFalse(model.addCalibration(0, 120, 120000));
+        assertFalse(model.addCalibration(later + 2 * HOUR, 20, 120000));
+        assertEquals(4, model.getCalibrationCount());
+    }
+
+    @Test
+    public void recalibratesOnlyReadingsWithRaw(){
+        ReadingBuffer readings = new ReadingBuffer();
+        readings.add(0, 0, 100000, 101000, 0, ReadingStore.FLAG_HAS_RAW);
+        readings.add(300000, 300, 0, 0, 123, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL);
+        assertFalse(model.recalibrate(readings));
+
+        model.addCalibration(0, 100, 100000);
+        assertTrue(model.recalibrate(readings));
+        assertEquals(100, readings.glucose[0]);
+        assertEquals(ReadingStore.FLAG_HAS_RAW | ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_CALIBRATED, readings.flags[0]);
+        assertEquals(123, readings.glucose[1]);
+        assertEquals(ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL, readings.flags[1]);
+    }
+}
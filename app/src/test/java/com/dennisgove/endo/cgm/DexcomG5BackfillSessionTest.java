@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DexcomG5BackfillSessionTest {
+
+    private static final int FRAME_LENGTH = 20;
+
+    private final RecordingListener listener = new RecordingListener();
+    private final DexcomG5BackfillSession session = new DexcomG5BackfillSession(listener);
+
+    @Test
+    public void reassemblesRecordsSplitAcrossFrames(){
+        byte[] payload = payload(new int[]{ 1000, 1300, 1600 }, new int[]{ 100, 0x1000 | 110, 120 });
+        byte[][] frames = frames(payload, 7);
+
+        session.start(1900, 5000000);
+        for(byte[] frame : frames){
+            session.onFrame(frame);
+        }
+        assertNull(listener.readings);
+
+        assertTrue(session.handle(backfillRx(0, frames)));
+        assertFalse(session.isActive());
+
+        ReadingBuffer readings = listener.readings;
+        assertEquals(3, readings.size());
+        assertEquals(1000, readings.transmitterTimes[0]);
+        assertEquals(5000000 - 900 * 1000, readings.timestamps[0]);
+        assertEquals(110, readings.glucose[1]);
+        assertEquals(1600, readings.transmitterTimes[2]);
+        assertEquals(ReadingStore.FLAG_BACKFILL | ReadingStore.FLAG_HAS_GLUCOSE, readings.flags[2]);
+    }
+
+    @Test
+    public void failsWhenBytesAreMissing(){
+        byte[][] frames = frames(payload(new int[]{ 700, 1000, 1300, 1600, 1900 }, new int[]{ 90, 100, 110, 120, 130 }), 7);
+
+        session.start(1900, 5000000);
+        session.onFrame(frames[0]);
+        session.onFrame(frames[1]);
+
+        assertTrue(session.handle(backfillRx(0, frames)));
+        assertNull(listener.readings);
+        assertNotNull(listener.failure);
+    }
+
+    @Test
+    public void failsOnOutOfSequenceFrame(){
+        byte[][] frames = frames(payload(new int[]{ 700, 1000, 1300, 1600, 1900 }, new int[]{ 90, 100, 110, 120, 130 }), 7);
+
+        session.start(1900, 5000000);
+        session.onFrame(frames[0]);
+        session.onFrame(frames[2]);
+
+        assertFalse(session.isActive());
+        assertNotNull(listener.failure);
+    }
+
+    @Test
+    public void ignoresCorruptBackfillRx(){
+        byte[][] frames = frames(payload(new int[]{ 1000 }, new int[]{ 100 }), 7);
+
+        session.start(1900, 5000000);
+        session.onFrame(frames[0]);
+
+        byte[] message = backfillRx(0, frames);
+        message[12] ^= 0x1;
+        assertFalse(session.handle(message));
+        assertTrue(session.isActive());
+    }
+
+    private static byte[] payload(int[] transmitterTimes, int[] glucose){
+        byte[] payload = new byte[4 + 8 * transmitterTimes.length];
+        for(int idx = 0; idx < transmitterTimes.length; ++idx){
+            int offset = 4 + 8 * idx;
+            LittleEndian.writeInt32(payload, offset, transmitterTimes[idx]);
+            LittleEndian.writeUInt16(payload, offset + 4, glucose[idx]);
+            payload[offset + 6] = 6;
+            payload[offset + 7] = 1;
+        }
+        return payload;
+    }
+
+    private static byte[][] frames(byte[] payload, int identifier){
+        int perFrame = FRAME_LENGTH - 2;
+        byte[][] frames = new byte[(payload.length + perFrame - 1) / perFrame][];
+        for(int idx = 0; idx < frames.length; ++idx){
+            int start = idx * perFrame;
+            int length = Math.min(perFrame, payload.length - start);
+            byte[] frame = new byte[length + 2];
+            frame[0] = (byte)(idx + 1);
+            frame[1] = (byte)identifier;
+            System.arraycopy(payload, start, frame, 2, length);
+            frames[idx] = frame;
+        }
+        return frames;
+    }
+
+    private static byte[] backfillRx(int status, byte[][] frames){
+        int length = 0;
+        int crc = 0;
+        for(byte[] frame : frames){
+            length += frame.length;
+            crc = Crc16.update(crc, frame, 0, frame.length);
+        }
+
+        byte[] message = new byte[DexcomG5BackfillSession.BACKFILL_RX_LENGTH];
+        message[0] = DexcomG5BackfillSession.BACKFILL_RX_OPCODE;
+        message[1] = (byte)status;
+        LittleEndian.writeInt32(message, 12, length);
+        LittleEndian.writeUInt16(message, 16, crc);
+        Crc16.append(message, message.length);
+        return message;
+    }
+
+    private static class RecordingListener implements DexcomG5BackfillSession.Listener {
+        ReadingBuffer readings;
+        String failure;
+
+        @Override
+        public void onBackfillComplete(ReadingBuffer readings) {
+            this.readings = readings;
+        }
+
+        @Override
+        public void onBackfillFailed(String reason) {
+            failure = reason;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DexcomG5MessageDecoderTest {
+
+    private final RecordingListener listener = new RecordingListener();
+    private final DexcomG5MessageDecoder decoder = new DexcomG5MessageDecoder(listener);
+
+    @Test
+    public void decodesSensorRx(){
+        byte[] message = new byte[DexcomG5MessageDecoder.SENSOR_RX_LENGTH];
+        message[0] = DexcomG5MessageDecoder.SENSOR_RX_OPCODE;
+        message[1] = (byte)0x81;
+        LittleEndian.writeInt32(message, 2, 0xfedcba98);
+        LittleEndian.writeInt32(message, 6, 123456);
+        LittleEndian.writeInt32(message, 10, 120000);
+        Crc16.append(message, message.length);
+
+        assertTrue(decoder.decode(message));
+        assertEquals(0x81, listener.sensor.status);
+        assertEquals(0xfedcba98L, listener.sensor.timestamp);
+        assertEquals(123456, listener.sensor.unfiltered);
+        assertEquals(120000, listener.sensor.filtered);
+    }
+
+    @Test
+    public void decodesGlucoseRx(){
+        byte[] message = new byte[DexcomG5MessageDecoder.GLUCOSE_RX_LENGTH];
+        message[0] = DexcomG5MessageDecoder.GLUCOSE_RX_OPCODE;
+        LittleEndian.writeInt32(message, 2, 42);
+        LittleEndian.writeInt32(message, 6, 86400);
+        LittleEndian.writeUInt16(message, 10, 0x1000 | 187);
+        message[12] = 6;
+        message[13] = -2;
+        Crc16.append(message, message.length);
+
+        assertTrue(decoder.decode(message));
+        assertEquals(42, listener.glucose.sequence);
+        assertEquals(86400, listener.glucose.timestamp);
+        assertEquals(187, listener.glucose.glucose);
+        assertTrue(listener.glucose.isDisplayOnly);
+        assertEquals(6, listener.glucose.state);
+        assertEquals(-2, listener.glucose.trend);
+    }
+
+    @Test
+    public void rejectsCorruptAndUnknownMessages(){
+        byte[] message = new byte[DexcomG5MessageDecoder.SENSOR_RX_LENGTH];
+        message[0] = DexcomG5MessageDecoder.SENSOR_RX_OPCODE;
+        Crc16.append(message, message.length);
+        message[5] ^= 0x10;
+
+        assertFalse(decoder.decode(message));
+        assertFalse(decoder.decode(new byte[]{ 0x7f, 0 }));
+        assertFalse(decoder.decode(new byte[0]));
+        assertNull(listener.sensor);
+    }
+
+    private static class RecordingListener implements DexcomG5MessageDecoder.Listener {
+        SensorReading sensor;
+        GlucoseReading glucose;
+
+        @Override
+        public void onSensorReading(SensorReading reading) {
+            sensor = reading;
+        }
+
+        @Override
+        public void onGlucoseReading(GlucoseReading reading) {
+            glucose = reading;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class DexcomG5MessageFactoryTest {
+
+    @Test
+    public void authenticationRequestCarriesFreshToken(){
+        DexcomG5CryptoContext context = new DexcomG5CryptoContext("40A90B");
+        byte[] first = new byte[DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH];
+        byte[] second = new byte[DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH];
+
+        assertEquals(10, DexcomG5MessageFactory.writeAuthenticationRequest(context, first));
+        DexcomG5MessageFactory.writeAuthenticationRequest(context, second);
+
+        assertEquals(0x1, first[0]);
+        assertEquals(0x2, first[9]);
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void challengeHashMatchesPaddedAes() throws Exception {
+        byte[] challengeMessage = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH];
+        challengeMessage[0] = DexcomG5MessageFactory.AUTH_CHALLENGE_RX_OPCODE;
+        for(int idx = 0; idx < 8; ++idx){
+            challengeMessage[9 + idx] = (byte)(idx * 31 + 7);
+        }
+
+        // what the transmitter expects, computed the way the original implementation did
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec("0040A90B0040A90B".getBytes("UTF-8"), "AES"));
+        byte[] doubled = new byte[16];
+        System.arraycopy(challengeMessage, 9, doubled, 0, 8);
+        System.arraycopy(challengeMessage, 9, doubled, 8, 8);
+        byte[] expected = Arrays.copyOf(cipher.doFinal(doubled), 8);
+
+        byte[] response = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH];
+        DexcomG5MessageFactory.writeAuthenticationChallenge(new DexcomG5CryptoContext("40A90B"), challengeMessage, response);
+
+        assertEquals(0x4, response[0]);
+        assertArrayEquals(expected, Arrays.copyOfRange(response, 1, 9));
+    }
+
+    @Test
+    public void validatesTokenHash(){
+        DexcomG5CryptoContext context = new DexcomG5CryptoContext("40A90B");
+        byte[] request = new byte[DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH];
+        DexcomG5MessageFactory.writeAuthenticationRequest(context, request);
+
+        byte[] challengeMessage = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH];
+        context.calculateHash(request, 1, challengeMessage, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET);
+        assertTrue(context.isTokenHashValid(challengeMessage, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET));
+
+        challengeMessage[3] ^= 1;
+        assertFalse(context.isTokenHashValid(challengeMessage, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET));
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.ble.BleServices;
+import com.dennisgove.endo.ble.GattClient;
+import com.dennisgove.endo.ble.GattFuture;
+import com.dennisgove.endo.ble.GattOperationQueue;
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.util.VirtualClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class DexcomG5SessionTest {
+
+    private static final String TRANSMITTER_ID = "40A90B";
+
+    private final VirtualClock clock = new VirtualClock(1000000);
+    private final MemoryPreferences preferences = new MemoryPreferences();
+    private final TransmitterStateMachine stateMachine = new TransmitterStateMachine(clock, null);
+    private ScheduledExecutorService scheduler;
+    private File directory;
+    private ReadingStore store;
+    private RecordingClient client;
+    private GattOperationQueue queue;
+    private RecordingListener listener;
+    private DexcomG5Session session;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        directory = Files.createTempDirectory("readings").toFile();
+        newSession();
+    }
+
+    @After
+    public void tearDown(){
+        scheduler.shutdownNow();
+        if(null != store){
+            store.close();
+        }
+        File[] files = directory.listFiles();
+        if(null != files){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Replaces the session with one for a new connection.
+     */
+    private void newSession(){
+        client = new RecordingClient();
+        queue = new GattOperationQueue(client, scheduler);
+        listener = new RecordingListener();
+        session = new DexcomG5Session(new DexcomG5CryptoContext(TRANSMITTER_ID), preferences, store, new TrendEstimator(), new CalibrationModel(), clock, scheduler,
+                stateMachine, listener);
+    }
+
+    @Test
+    public void skipsTheChallengeForABondedTransmitter(){
+        preferences.setBonded(TRANSMITTER_ID, true);
+        connect();
+
+        assertEquals("read " + BleServices.Authentication, client.last());
+        queue.onCharacteristicRead(BleServices.Authentication, authStatus(1, 1), GattFuture.STATUS_SUCCESS);
+
+        assertEquals(Boolean.TRUE, listener.wasBonded);
+        assertEquals(TransmitterState.READING, stateMachine.getState());
+        assertEquals("descriptor " + BleServices.Control, client.last());
+        assertTrue(client.written.isEmpty());
+    }
+
+    @Test
+    public void fallsBackToTheChallengeAndBondsOnlyOnceTheBondIsMade(){
+        preferences.setBonded(TRANSMITTER_ID, true);
+        connect();
+
+        // the bond was lost since the last connection
+        queue.onCharacteristicRead(BleServices.Authentication, authStatus(0, 2), GattFuture.STATUS_SUCCESS);
+        assertFalse(preferences.isBonded(TRANSMITTER_ID));
+        answerChallenge();
+
+        queue.onCharacteristicRead(BleServices.Authentication, authStatus(1, 2), GattFuture.STATUS_SUCCESS);
+        assertEquals(TransmitterState.BONDING, stateMachine.getState());
+        assertArrayEquals(new byte[]{ DexcomG5MessageFactory.BOND_REQUEST_TX_OPCODE }, client.written.get(2));
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+        assertTrue(listener.isBondRequested);
+        assertFalse(preferences.isBonded(TRANSMITTER_ID));
+        assertNull(listener.wasBonded);
+
+        session.onBonded(true);
+        assertTrue(preferences.isBonded(TRANSMITTER_ID));
+        assertEquals(Boolean.FALSE, listener.wasBonded);
+        assertEquals(TransmitterState.READING, stateMachine.getState());
+        assertEquals("descriptor " + BleServices.Control, client.last());
+    }
+
+    @Test
+    public void failsWhenTheBondIsNotMade(){
+        connect();
+        answerChallenge();
+        queue.onCharacteristicRead(BleServices.Authentication, authStatus(1, 2), GattFuture.STATUS_SUCCESS);
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+
+        session.onBonded(false);
+        assertNotNull(listener.failure);
+        assertFalse(preferences.isBonded(TRANSMITTER_ID));
+        assertNull(listener.wasBonded);
+
+        // a late report of the bond is ignored
+        session.onBonded(true);
+        assertFalse(preferences.isBonded(TRANSMITTER_ID));
+    }
+
+    @Test
+    public void retriesAFailedBackfillOnTheNextConnection() throws IOException {
+        store = new ReadingStore(directory);
+        preferences.setBonded(TRANSMITTER_ID, true);
+        newSession();
+        connectBonded();
+        session.onGlucoseReading(glucoseReading(10000, 100));
+        assertEquals(10000, preferences.getBackfilledTo(TRANSMITTER_ID));
+        disconnect();
+
+        // an hour later the backfill of the readings since is lost
+        clock.advance(3600 * 1000);
+        newSession();
+        connectBonded();
+        session.onGlucoseReading(glucoseReading(13600, 110));
+        assertTrue(session.isBackfilling());
+        assertEquals(10001, backfillStartTime());
+        session.onBackfillFailed("Lost");
+        assertEquals(TransmitterState.READING, stateMachine.getState());
+        assertEquals(10000, preferences.getBackfilledTo(TRANSMITTER_ID));
+        disconnect();
+
+        clock.advance(300 * 1000);
+        newSession();
+        connectBonded();
+        session.onGlucoseReading(glucoseReading(13900, 120));
+        assertEquals(10001, backfillStartTime());
+
+        ReadingBuffer backfill = new ReadingBuffer();
+        for(int time = 10300; time < 13900; time += 300){
+            if(13600 != time){
+                backfill.add(clock.currentTimeMillis() - (13900 - time) * 1000L, time, 0, 0, 105, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL);
+            }
+        }
+        session.onBackfillComplete(backfill);
+        assertEquals(13900, preferences.getBackfilledTo(TRANSMITTER_ID));
+        assertEquals(3 + backfill.size(), store.size());
+        disconnect();
+
+        // nothing missing now
+        clock.advance(300 * 1000);
+        newSession();
+        connectBonded();
+        session.onGlucoseReading(glucoseReading(14200, 125));
+        assertFalse(session.isBackfilling());
+        assertEquals(14200, preferences.getBackfilledTo(TRANSMITTER_ID));
+    }
+
+    private void connectBonded(){
+        connect();
+        queue.onCharacteristicRead(BleServices.Authentication, authStatus(1, 1), GattFuture.STATUS_SUCCESS);
+        assertEquals(TransmitterState.READING, stateMachine.getState());
+
+        // the indication, SensorTx and GlucoseTx
+        for(int idx = 0; idx < 3; ++idx){
+            completeLast();
+        }
+    }
+
+    /**
+     * Completes the write started last.
+     */
+    private void completeLast(){
+        if(client.last().startsWith("descriptor ")){
+            queue.onDescriptorWrite(client.lastCharacteristic, GattOperationQueue.CLIENT_CHARACTERISTIC_CONFIG, GattFuture.STATUS_SUCCESS);
+        }else{
+            queue.onCharacteristicWrite(client.lastCharacteristic, GattFuture.STATUS_SUCCESS);
+        }
+    }
+
+    private void disconnect(){
+        stateMachine.moveTo(TransmitterState.IDLE);
+        session.onDisconnected();
+        assertNull(listener.failure);
+    }
+
+    private int backfillStartTime(){
+        assertEquals("descriptor " + BleServices.ProbablyBackfill, client.last());
+        completeLast();
+        byte[] request = client.written.get(client.written.size() - 1);
+        assertEquals(DexcomG5MessageFactory.BACKFILL_TX_OPCODE, request[0]);
+        return LittleEndian.readInt32(request, 4);
+    }
+
+    private static GlucoseReading glucoseReading(long transmitterTime, int glucose){
+        GlucoseReading reading = new GlucoseReading();
+        reading.timestamp = transmitterTime;
+        reading.glucose = glucose;
+        return reading;
+    }
+
+    private void connect(){
+        stateMachine.moveTo(TransmitterState.CONNECTING);
+        session.start(queue);
+        queue.onServicesDiscovered(GattFuture.STATUS_SUCCESS);
+        assertEquals(TransmitterState.AUTHENTICATING, stateMachine.getState());
+    }
+
+    /**
+     * Answers the auth request the way the transmitter does, and checks the answer to the
+     * challenge.
+     */
+    private void answerChallenge(){
+        DexcomG5CryptoContext transmitter = new DexcomG5CryptoContext(TRANSMITTER_ID);
+        assertEquals("write " + BleServices.Authentication, client.last());
+        byte[] request = client.written.get(0);
+        assertEquals(DexcomG5MessageFactory.AUTH_REQUEST_TX_OPCODE, request[0]);
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+
+        byte[] challenge = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH];
+        challenge[0] = DexcomG5MessageFactory.AUTH_CHALLENGE_RX_OPCODE;
+        transmitter.calculateHash(request, 1, challenge, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET);
+        for(int idx = DexcomG5MessageFactory.AUTH_CHALLENGE_RX_CHALLENGE_OFFSET; idx < challenge.length; ++idx){
+            challenge[idx] = (byte)(idx * 13);
+        }
+        queue.onCharacteristicRead(BleServices.Authentication, challenge, GattFuture.STATUS_SUCCESS);
+        assertEquals(TransmitterState.AUTHENTICATING, stateMachine.getState());
+
+        byte[] expected = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH];
+        DexcomG5MessageFactory.writeAuthenticationChallenge(transmitter, challenge, expected);
+        assertArrayEquals(expected, client.written.get(1));
+        queue.onCharacteristicWrite(BleServices.Authentication, GattFuture.STATUS_SUCCESS);
+        assertEquals("read " + BleServices.Authentication, client.last());
+    }
+
+    private static byte[] authStatus(int authenticated, int bonded){
+        return new byte[]{ DexcomG5MessageFactory.AUTH_STATUS_RX_OPCODE, (byte)authenticated, (byte)bonded };
+    }
+
+    private static class RecordingClient implements GattClient {
+        final List<String> started = new ArrayList<>();
+        final List<byte[]> written = new ArrayList<>();
+        UUID lastCharacteristic;
+
+        String last(){
+            return started.get(started.size() - 1);
+        }
+
+        @Override public boolean discoverServices() { started.add("discover"); return true; }
+        @Override public boolean readCharacteristic(UUID service, UUID characteristic) { started.add("read " + characteristic); lastCharacteristic = characteristic; return true; }
+        @Override public boolean writeCharacteristic(UUID service, UUID characteristic, byte[] value) { started.add("write " + characteristic); lastCharacteristic = characteristic; written.add(value.clone()); return true; }
+        @Override public boolean writeDescriptor(UUID service, UUID characteristic, UUID descriptor, byte[] value) { started.add("descriptor " + characteristic); lastCharacteristic = characteristic; return true; }
+        @Override public boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) { return true; }
+        @Override public void disconnect() { }
+        @Override public void close() { }
+    }
+
+    private static class MemoryPreferences implements TransmitterPreferences {
+        private final Map<String, Boolean> bonded = new HashMap<>();
+        private final Map<String, Integer> backfilledTo = new HashMap<>();
+
+        @Override
+        public boolean isBonded(String transmitterId) {
+            Boolean isBonded = bonded.get(transmitterId);
+            return null != isBonded && isBonded;
+        }
+
+        @Override
+        public void setBonded(String transmitterId, boolean isBonded) {
+            bonded.put(transmitterId, isBonded);
+        }
+
+        @Override
+        public int getBackfilledTo(String transmitterId) {
+            Integer transmitterTime = backfilledTo.get(transmitterId);
+            return null == transmitterTime ? -1 : transmitterTime;
+        }
+
+        @Override
+        public void setBackfilledTo(String transmitterId, int transmitterTime) {
+            backfilledTo.put(transmitterId, transmitterTime);
+        }
+
+        @Override
+        public String getDeviceAddress(String transmitterId) {
+            return null;
+        }
+
+        @Override
+        public void setDeviceAddress(String transmitterId, String address) {
+        }
+    }
+
+    private static class RecordingListener implements DexcomG5Session.Listener {
+        boolean isBondRequested = false;
+        Boolean wasBonded;
+        String failure;
+
+        @Override public void onServicesDiscovered() { }
+        @Override public void onBondRequested() { isBondRequested = true; }
+        @Override public void onAuthenticated(boolean wasBonded) { this.wasBonded = wasBonded; }
+        @Override public void onReading(long timestamp, int transmitterTime, int glucose, int trend, int flags) { }
+        @Override public void onReadingsMissed(int count) { }
+        @Override public void onBackfillComplete(int readingCount) { }
+        @Override public void onBackfillFailed(String reason) { }
+        @Override public void onFailed(String reason) { failure = reason; }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import com.dennisgove.endo.util.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransmitterStateMachineTest {
+
+    private final VirtualClock clock = new VirtualClock(1000000);
+    private final List<TransmitterState> moves = new ArrayList<>();
+    private final TransmitterStateMachine machine = new TransmitterStateMachine(clock, new TransmitterStateMachine.Listener() {
+        @Override
+        public void onStateChanged(TransmitterState from, TransmitterState to, long timestamp, long duration) {
+            moves.add(to);
+        }
+    });
+
+    @Test
+    public void followsAWakeWindow(){
+        assertTrue(machine.moveTo(TransmitterState.CONNECTING));
+        assertTrue(machine.moveTo(TransmitterState.DISCOVERING));
+        assertTrue(machine.isConnected());
+        assertTrue(machine.moveTo(TransmitterState.AUTHENTICATING));
+        assertTrue(machine.moveTo(TransmitterState.READING));
+        assertTrue(machine.moveTo(TransmitterState.IDLE));
+
+        assertEquals(5, moves.size());
+        assertEquals(TransmitterState.IDLE, machine.getState());
+    }
+
+    @Test
+    public void refusesIllegalMoves(){
+        assertFalse(machine.moveTo(TransmitterState.READING));
+        assertFalse(machine.moveTo(TransmitterState.IDLE));
+        assertTrue(machine.moveTo(TransmitterState.SCANNING));
+        assertFalse(machine.moveTo(TransmitterState.CONNECTING, TransmitterState.DISCOVERING));
+
+        assertEquals(1, moves.size());
+        assertEquals(TransmitterState.SCANNING, machine.getState());
+    }
+
+    @Test
+    public void timesEachState(){
+        machine.moveTo(TransmitterState.SCANNING);
+        clock.advance(4000);
+        machine.moveTo(TransmitterState.CONNECTING);
+        clock.advance(300);
+        machine.moveTo(TransmitterState.IDLE);
+        clock.advance(1000);
+        machine.moveTo(TransmitterState.SCANNING);
+        clock.advance(2000);
+
+        assertEquals(6000, machine.getTimeIn(TransmitterState.SCANNING));
+        assertEquals(300, machine.getTimeIn(TransmitterState.CONNECTING));
+        assertEquals(clock.currentTimeMillis() - 2000, machine.getEnteredAt(TransmitterState.SCANNING));
+        assertEquals(clock.currentTimeMillis() - 2000, machine.getStateTimestamp());
+    }
+
+    @Test
+    public void onlyOneOfConcurrentMovesWins() throws Exception {
+        final int[] won = new int[1];
+        Thread[] threads = new Thread[8];
+        for(int idx = 0; idx < threads.length; ++idx){
+            threads[idx] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if(machine.moveTo(TransmitterState.IDLE, TransmitterState.CONNECTING)){
+                        synchronized(won){
+                            ++won[0];
+                        }
+                    }
+                }
+            });
+            threads[idx].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        assertEquals(1, won[0]);
+        assertEquals(TransmitterState.CONNECTING, machine.getState());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.cgm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TrendEstimatorTest {
+
+    private final TrendEstimator estimator = new TrendEstimator();
+
+    @Test
+    public void fitsTheRateOverTheWindow(){
+        assertTrue(Double.isNaN(estimator.getRate()));
+        assertEquals(TrendEstimator.Trend.NONE, estimator.getTrend());
+
+        // rising 10 mg/dL every 5 minutes, then falling 15
+        for(int idx = 0; idx < 20; ++idx){
+            estimator.add(1000 + idx * 300, 100 + idx * 10);
+        }
+        assertEquals(2.0, estimator.getRate(), 1e-9);
+        assertEquals(TrendEstimator.Trend.FORTY_FIVE_UP, estimator.getTrend());
+        assertEquals(3, estimator.getCount());
+
+        for(int idx = 0; idx < 3; ++idx){
+            estimator.add(1000 + (20 + idx) * 300, 290 - (idx + 1) * 15);
+        }
+        assertEquals(-3.0, estimator.getRate(), 1e-9);
+        assertEquals(TrendEstimator.Trend.SINGLE_DOWN, estimator.getTrend());
+    }
+
+    @Test
+    public void hasNoEstimateAcrossAGap(){
+        estimator.add(1000, 100);
+        estimator.add(1300, 105);
+        assertEquals(1.0, estimator.getRate(), 1e-9);
+
+        estimator.add(1300 + TrendEstimator.DEFAULT_WINDOW_SECONDS, 150);
+        assertEquals(1, estimator.getCount());
+        assertTrue(Double.isNaN(estimator.getRate()));
+    }
+
+    @Test
+    public void insertsBackfilledReadingsInOrder(){
+        estimator.add(10000, 160);
+        assertFalse(estimator.add(10000 - TrendEstimator.DEFAULT_WINDOW_SECONDS, 100));
+
+        // backfill arrives oldest first after the live reading
+        assertTrue(estimator.add(9400, 130));
+        assertTrue(estimator.add(9700, 145));
+        assertFalse(estimator.add(9700, 145));
+        assertEquals(3, estimator.getCount());
+        assertEquals(3.0, estimator.getRate(), 1e-9);
+    }
+
+    @Test
+    public void staysExactOverALongHistory(){
+        // a year of readings, with noise which cancels over each window
+        for(int idx = 0; idx < 105120; ++idx){
+            estimator.add(idx * 300, 120 + (idx % 2 == 0 ? 3 : -3) + idx % 3);
+        }
+        TrendEstimator fresh = new TrendEstimator();
+        for(int idx = 105120 - 3; idx < 105120; ++idx){
+            fresh.add(idx * 300, 120 + (idx % 2 == 0 ? 3 : -3) + idx % 3);
+        }
+        assertEquals(fresh.getRate(), estimator.getRate(), 0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import com.dennisgove.endo.cgm.TransmitterState;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class EventBusTest {
+
+    private final EventBus bus = new EventBus();
+
+    @Test
+    public void deliversToSubscribersOfExactType(){
+        final List<Object> received = new ArrayList<>();
+        bus.subscribe(ConnectionChangedEvent.class, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                received.add(event);
+            }
+        });
+
+        ConnectionChangedEvent event = new ConnectionChangedEvent(true);
+        bus.publish(event);
+        bus.publish(new TransmitterStateEvent("40A90B", TransmitterState.IDLE, TransmitterState.SCANNING, 0));
+
+        assertEquals(1, received.size());
+        assertSame(event, received.get(0));
+    }
+
+    @Test
+    public void deliversOnSubscribersExecutor(){
+        final List<Runnable> queued = new ArrayList<>();
+        final List<Object> received = new ArrayList<>();
+        bus.subscribe(ConnectionChangedEvent.class, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        }, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                received.add(event);
+            }
+        });
+
+        bus.publish(new ConnectionChangedEvent(false));
+        assertEquals(1, queued.size());
+        assertTrue(received.isEmpty());
+
+        queued.get(0).run();
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void stopsDeliveringAfterUnsubscribe(){
+        final int[] count = new int[2];
+        EventBus.Subscription first = bus.subscribe(ConnectionChangedEvent.class, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                ++count[0];
+            }
+        });
+        bus.subscribe(ConnectionChangedEvent.class, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                ++count[1];
+            }
+        });
+
+        bus.publish(new ConnectionChangedEvent(true));
+        first.unsubscribe();
+        first.unsubscribe();
+        bus.publish(new ConnectionChangedEvent(true));
+
+        assertEquals(1, count[0]);
+        assertEquals(2, count[1]);
+        assertEquals(1, bus.getSubscriberCount(ConnectionChangedEvent.class));
+    }
+
+    @Test
+    public void isolatesFailingSubscribers(){
+        final List<RuntimeException> failures = new ArrayList<>();
+        EventBus isolating = new EventBus(new EventBus.FailureHandler() {
+            @Override
+            public void onSubscriberFailed(Object event, EventBus.Subscriber<?> subscriber, RuntimeException e) {
+                failures.add(e);
+            }
+        });
+
+        final int[] count = new int[1];
+        isolating.subscribe(ConnectionChangedEvent.class, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        isolating.subscribe(ConnectionChangedEvent.class, new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+                ++count[0];
+            }
+        });
+
+        isolating.publish(new ConnectionChangedEvent(true));
+
+        assertEquals(1, count[0]);
+        assertEquals(1, failures.size());
+        assertEquals("failed", failures.get(0).getMessage());
+    }
+
+    @Test
+    public void subscribesConcurrently() throws Exception {
+        final EventBus.Subscriber<ConnectionChangedEvent> subscriber = new EventBus.Subscriber<ConnectionChangedEvent>() {
+            @Override
+            public void onEvent(ConnectionChangedEvent event) {
+            }
+        };
+
+        Thread[] threads = new Thread[4];
+        for(int idx = 0; idx < threads.length; ++idx){
+            threads[idx] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int count = 0; count < 1000; ++count){
+                        bus.subscribe(ConnectionChangedEvent.class, subscriber);
+                    }
+                }
+            });
+            threads[idx].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+
+        assertEquals(4000, bus.getSubscriberCount(ConnectionChangedEvent.class));
+    }
+}
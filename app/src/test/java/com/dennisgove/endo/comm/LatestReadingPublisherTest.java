@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.comm;
+
+import com.dennisgove.endo.util.VirtualClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatestReadingPublisherTest {
+
+    private static final long INTERVAL = 250;
+
+    private final VirtualClock clock = new VirtualClock(1500000000000L);
+    private final LinkedBlockingQueue<Runnable> queued = new LinkedBlockingQueue<>();
+    private final List<ReadingEvent> received = new ArrayList<>();
+    private ScheduledExecutorService timer;
+    private LatestReadingPublisher publisher;
+
+    private final LatestReadingPublisher.Observer observer = new LatestReadingPublisher.Observer() {
+        @Override
+        public void onLatestReading(ReadingEvent reading) {
+            received.add(reading);
+        }
+    };
+
+    @Before
+    public void setUp(){
+        timer = Executors.newSingleThreadScheduledExecutor();
+        publisher = new LatestReadingPublisher(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                queued.add(runnable);
+            }
+        }, timer, clock, INTERVAL);
+    }
+
+    @After
+    public void tearDown(){
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void conflatesReadingsPublishedBeforeDelivery(){
+        publisher.subscribe(observer);
+        for(int idx = 0; idx < 1000; ++idx){
+            publisher.publish(reading(idx, 100 + idx % 50));
+        }
+
+        assertEquals(1, queued.size());
+        queued.poll().run();
+        assertEquals(1, received.size());
+        assertEquals(999 * 1000L, received.get(0).timestamp);
+    }
+
+    @Test
+    public void givesNewSubscriberTheLatestStraightAway(){
+        publisher.publish(reading(2, 120));
+        publisher.publish(reading(1, 110));
+
+        publisher.subscribe(observer);
+        assertEquals(1, received.size());
+        assertEquals(120, received.get(0).glucose);
+    }
+
+    @Test
+    public void spacesDeliveriesByTheInterval() throws Exception {
+        publisher.subscribe(observer);
+        publisher.publish(reading(1, 110));
+        queued.poll().run();
+
+        clock.advance(INTERVAL - 100);
+        publisher.publish(reading(2, 120));
+        publisher.publish(reading(3, 130));
+        assertTrue(queued.isEmpty());
+
+        // handed to the executor by the timer once the rest of the interval has passed
+        Runnable delivery = queued.poll(5, TimeUnit.SECONDS);
+        assertNotNull(delivery);
+        delivery.run();
+
+        assertEquals(2, received.size());
+        assertEquals(130, received.get(1).glucose);
+        assertTrue(queued.isEmpty());
+    }
+
+    @Test
+    public void keepsTheLatestOfEachTransmitter(){
+        final List<ReadingEvent> other = new ArrayList<>();
+        publisher.subscribe(observer);
+        publisher.subscribe("40B13C", new LatestReadingPublisher.Observer() {
+            @Override
+            public void onLatestReading(ReadingEvent reading) {
+                other.add(reading);
+            }
+        });
+
+        // the other transmitter's reading is older, but not replaced by this one's
+        publisher.publish(reading(5, 150));
+        publisher.publish(reading("40B13C", 3, 90));
+        publisher.publish(reading("40B13C", 4, 95));
+        assertEquals(1, queued.size());
+        queued.poll().run();
+
+        assertEquals(2, received.size());
+        assertEquals(150, publisher.getLatest("40A90B").glucose);
+        assertEquals(95, publisher.getLatest("40B13C").glucose);
+        assertEquals(1, other.size());
+        assertEquals("40B13C", other.get(0).transmitterId);
+        assertEquals(95, other.get(0).glucose);
+    }
+
+    private static ReadingEvent reading(int index, int glucose){
+        return reading("40A90B", index, glucose);
+    }
+
+    private static ReadingEvent reading(String transmitterId, int index, int glucose){
+        return new ReadingEvent(transmitterId, index * 1000L, index * 300, glucose, 0, 0, Double.NaN);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GlucoseSketchTest {
+
+    private static final double[] PERCENTILES = { 0, 1, 5, 10, 25, 50, 75, 90, 95, 99, 100 };
+
+    @Test
+    public void binsCoverEveryValueWithinTheirError(){
+        int previousBin = -1;
+        for(int glucose = 0; glucose <= GlucoseSketch.MAX_VALUE; ++glucose){
+            int bin = GlucoseSketch.binIndex(glucose);
+            assertTrue(bin == previousBin || bin == previousBin + 1);
+            assertTrue(Math.abs(GlucoseSketch.binValue(bin) - glucose) <= allowedError(glucose));
+            previousBin = bin;
+        }
+        assertEquals(GlucoseSketch.BIN_COUNT - 1, previousBin);
+    }
+
+    @Test
+    public void matchesExactPercentilesWithinTheirError(){
+        Random random = new Random(42);
+        for(int trial = 0; trial < 50; ++trial){
+            // a day or so of a wandering trace
+            int[] values = new int[100 + random.nextInt(500)];
+            double glucose = 60 + random.nextInt(200);
+            GlucoseSketch sketch = new GlucoseSketch();
+            for(int idx = 0; idx < values.length; ++idx){
+                glucose = Math.max(39, Math.min(401, glucose + random.nextGaussian() * 8));
+                values[idx] = (int)glucose;
+                sketch.add(values[idx]);
+            }
+
+            assertPercentiles(values, sketch);
+        }
+    }
+
+    @Test
+    public void mergesToTheSketchOfEveryValue(){
+        Random random = new Random(7);
+        int[] values = new int[90 * 6];
+        GlucoseSketch merged = new GlucoseSketch();
+        for(int day = 0; day < 90; ++day){
+            GlucoseSketch daily = new GlucoseSketch();
+            for(int idx = 0; idx < 6; ++idx){
+                int glucose = 40 + random.nextInt(360);
+                values[day * 6 + idx] = glucose;
+                daily.add(glucose);
+            }
+            merged.merge(daily);
+        }
+
+        assertEquals(values.length, merged.getCount());
+        assertPercentiles(values, merged);
+    }
+
+    @Test
+    public void clampsValuesOutOfRange(){
+        GlucoseSketch sketch = new GlucoseSketch();
+        assertEquals(0, sketch.getValueAtPercentile(50));
+
+        sketch.add(-5);
+        sketch.add(1000);
+        assertEquals(0, sketch.getValueAtPercentile(0));
+        assertEquals(GlucoseSketch.MAX_VALUE, sketch.getValueAtPercentile(100));
+    }
+
+    private static void assertPercentiles(int[] values, GlucoseSketch sketch){
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for(double percentile : PERCENTILES){
+            int exact = sorted[(int)Math.max(1, Math.ceil(sorted.length * percentile / 100)) - 1];
+            int estimate = sketch.getValueAtPercentile(percentile);
+            assertTrue(percentile + "th: " + estimate + " for " + exact, Math.abs(estimate - exact) <= allowedError(exact));
+            assertTrue(Math.abs(estimate - exact) <= exact * 0.01);
+        }
+    }
+
+    private static int allowedError(int glucose){
+        return glucose < 128 ? 0 : glucose < 256 ? 1 : 2;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReadingArchiveTest {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    private static final long START = 1500000000000L;
+
+    private File file;
+    private final ArchiveDecoder decoder = new ArchiveDecoder();
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("readings", ".arc").toFile();
+    }
+
+    @After
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Test
+    public void roundTripsIrregularReadings() throws IOException {
+        ReadingBuffer written = trace(new Random(1), 1000);
+        // a gap, a backfilled reading from before the block and a change of flags
+        written.timestamps[300] += 3 * 60 * 60 * 1000;
+        written.timestamps[301] = START - FIVE_MINUTES;
+        written.flags[301] = ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL;
+        written.filtered[302] = 0;
+        written.unfiltered[302] = Integer.MAX_VALUE;
+        written.glucose[303] = 0;
+        ReadingArchive archive = write(written);
+
+        assertEquals(1000, archive.getCount());
+        ReadingBuffer read = new ReadingBuffer();
+        archive.read(Long.MIN_VALUE, Long.MAX_VALUE, decoder, read);
+        assertEquals(written.size(), read.size());
+        for(int idx = 0; idx < written.size(); ++idx){
+            assertEquals(written.timestamps[idx], read.timestamps[idx]);
+            assertEquals(written.transmitterTimes[idx], read.transmitterTimes[idx]);
+            assertEquals(written.filtered[idx], read.filtered[idx]);
+            assertEquals(written.unfiltered[idx], read.unfiltered[idx]);
+            assertEquals(written.glucose[idx], read.glucose[idx]);
+            assertEquals(written.flags[idx], read.flags[idx]);
+        }
+        assertEquals(written.timestamps[999], archive.getLatestTimestamp());
+        assertEquals(written.transmitterTimes[999], archive.getLatestTransmitterTime());
+    }
+
+    @Test
+    public void readsARangeFromTheMiddle() throws IOException {
+        ReadingBuffer written = trace(new Random(2), 2000);
+        ReadingArchive archive = write(written);
+
+        ReadingBuffer read = new ReadingBuffer();
+        archive.read(written.timestamps[700], written.timestamps[709], decoder, read);
+        assertEquals(10, read.size());
+        for(int idx = 0; idx < read.size(); ++idx){
+            assertEquals(written.timestamps[700 + idx], read.timestamps[idx]);
+            assertEquals(written.glucose[700 + idx], read.glucose[idx]);
+        }
+
+        read.clear();
+        archive.read(START - 2 * FIVE_MINUTES, START - FIVE_MINUTES, decoder, read);
+        assertEquals(0, read.size());
+    }
+
+    @Test
+    public void storesAYearInUnderAMegabyte() throws IOException {
+        ReadingBuffer written = trace(new Random(3), 365 * 288);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArchiveEncoder encoder = new ArchiveEncoder(out);
+        for(int idx = 0; idx < written.size(); ++idx){
+            encoder.add(written.timestamps[idx], written.transmitterTimes[idx], written.filtered[idx], written.unfiltered[idx],
+                    written.glucose[idx], written.flags[idx]);
+        }
+        encoder.finish();
+
+        // against 3.4MB of segments; most of it is the jitter of live timestamps and the raw values
+        assertTrue(out.size() + " bytes", out.size() < 1024 * 1024);
+    }
+
+    /**
+     * Readings 5 minutes apart, received a second or two late, with raw values and glucose
+     * drifting as they would.
+     */
+    private static ReadingBuffer trace(Random random, int count){
+        ReadingBuffer buffer = new ReadingBuffer(count);
+        int filtered = 150000;
+        int noise = 0;
+        double glucose = 120;
+        for(int idx = 0; idx < count; ++idx){
+            filtered += random.nextInt(2001) - 1000;
+            noise = Math.max(-2000, Math.min(2000, noise + random.nextInt(201) - 100));
+            glucose = Math.max(40, Math.min(400, glucose + random.nextGaussian() * 3));
+            buffer.add(START + idx * FIVE_MINUTES + random.nextInt(2000), 300 * idx, filtered, filtered + noise, (int)glucose,
+                    ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_HAS_RAW);
+        }
+        return buffer;
+    }
+
+    private ReadingArchive write(ReadingBuffer readings) throws IOException {
+        try(FileOutputStream out = new FileOutputStream(file)){
+            ArchiveEncoder encoder = new ArchiveEncoder(out);
+            for(int idx = 0; idx < readings.size(); ++idx){
+                encoder.add(readings.timestamps[idx], readings.transmitterTimes[idx], readings.filtered[idx], readings.unfiltered[idx],
+                        readings.glucose[idx], readings.flags[idx]);
+            }
+            encoder.finish();
+        }
+        return ReadingArchive.open(file);
+    }
+}
@@ -0,0 +1,575 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class ReadingStoreTest {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("readings").toFile();
+    }
+
+    @After
+    public void tearDown(){
+        File[] files = directory.listFiles();
+        if(null != files){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void appendsAcrossSegmentsAndReopens() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 100);
+        for(int idx = 0; idx < 250; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 1000 + idx, 2000 + idx, 100 + idx % 50, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.close();
+
+        // the first two sealed into archives
+        int segments = 0;
+        int archives = 0;
+        for(String name : directory.list()){
+            if(name.startsWith("readings-") && name.endsWith(".seg")){
+                ++segments;
+            }else if(name.startsWith("readings-") && name.endsWith(".arc")){
+                ++archives;
+            }
+        }
+        assertEquals(1, segments);
+        assertEquals(2, archives);
+
+        store = new ReadingStore(directory, 100);
+        assertEquals(250, store.size());
+        assertEquals(249 * FIVE_MINUTES, store.getLatestTimestamp());
+        assertEquals(249 * 300, store.getLatestTransmitterTime());
+
+        ReadingBuffer out = new ReadingBuffer(4);
+        store.read(95 * FIVE_MINUTES, 105 * FIVE_MINUTES, out);
+        assertEquals(11, out.size());
+        for(int idx = 0; idx < out.size(); ++idx){
+            assertEquals((95 + idx) * FIVE_MINUTES, out.timestamps[idx]);
+            assertEquals(1095 + idx, out.filtered[idx]);
+            assertEquals(2095 + idx, out.unfiltered[idx]);
+        }
+        store.close();
+    }
+
+    @Test
+    public void refusesAppendsOnceClosed() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 100);
+        for(int idx = 0; idx < 150; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 1000, 2000, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.close();
+
+        try{
+            store.append(150 * FIVE_MINUTES, 150 * 300, 1000, 2000, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+            fail("appended to a closed store");
+        } catch (IOException e) {
+            // expected
+        }
+        store.commit();
+        store.close();
+
+        store = new ReadingStore(directory, 100);
+        assertEquals(150, store.size());
+        assertEquals(149 * FIVE_MINUTES, store.getLatestTimestamp());
+        store.close();
+    }
+
+    @Test
+    public void readsOutOfOrderAppends() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 10; idx < 20; ++idx){
+            store.append(idx * FIVE_MINUTES, idx, 0, 0, 120, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        // backfill of the hour before
+        ReadingBuffer backfill = new ReadingBuffer();
+        for(int idx = 0; idx < 10; ++idx){
+            backfill.add(idx * FIVE_MINUTES, idx, 0, 0, 90, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL);
+        }
+        store.append(backfill);
+
+        assertEquals(19 * FIVE_MINUTES, store.getLatestTimestamp());
+
+        ReadingBuffer out = new ReadingBuffer();
+        store.read(8 * FIVE_MINUTES, 11 * FIVE_MINUTES, out);
+        assertEquals(4, out.size());
+
+        int backfilled = 0;
+        for(int idx = 0; idx < out.size(); ++idx){
+            if(0 != (out.flags[idx] & ReadingStore.FLAG_BACKFILL)){
+                ++backfilled;
+                assertEquals(90, out.glucose[idx]);
+            }
+        }
+        assertEquals(2, backfilled);
+        store.close();
+    }
+
+    @Test
+    public void recoversCommittedRecordsLostFromSegments() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 0; idx < 10; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 1000 + idx, 2000 + idx, 100 + idx, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.commit();
+
+        // the power goes before the segment's pages are written back, having written the count
+        // but only some of the records
+        File segment = new File(directory, "readings-00000000.seg");
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")){
+            raf.seek(ReadingSegment.HEADER_SIZE + 4 * ReadingSegment.RECORD_SIZE);
+            raf.write(new byte[6 * ReadingSegment.RECORD_SIZE]);
+        }
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(10, store.size());
+        assertEquals(9 * FIVE_MINUTES, store.getLatestTimestamp());
+
+        ReadingBuffer out = new ReadingBuffer();
+        store.read(0, 9 * FIVE_MINUTES, out);
+        assertEquals(10, out.size());
+        for(int idx = 0; idx < out.size(); ++idx){
+            assertEquals(idx * FIVE_MINUTES, out.timestamps[idx]);
+            assertEquals(100 + idx, out.glucose[idx]);
+        }
+        assertEquals(0, new File(directory, ReadingStore.LOG_NAME).length());
+        store.close();
+        assertFalse(new File(directory, ReadingStore.LOG_NAME).exists());
+    }
+
+    @Test
+    public void recreatesANewestSegmentWhoseHeaderWasLost() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 0; idx < 70; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 0, 0, 100 + idx % 50, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.commit();
+
+        // the power goes before anything of the second segment reaches the disk
+        File segment = new File(directory, "readings-00000001.seg");
+        assertTrue(segment.exists());
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")){
+            raf.write(new byte[ReadingSegment.HEADER_SIZE + 6 * ReadingSegment.RECORD_SIZE]);
+        }
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(70, store.size());
+        assertEquals(69 * FIVE_MINUTES, store.getLatestTimestamp());
+
+        ReadingBuffer out = new ReadingBuffer();
+        store.read(64 * FIVE_MINUTES, 69 * FIVE_MINUTES, out);
+        assertEquals(6, out.size());
+        for(int idx = 0; idx < out.size(); ++idx){
+            assertEquals(100 + (64 + idx) % 50, out.glucose[idx]);
+        }
+        store.close();
+    }
+
+    @Test
+    public void stopsRecoveryAtATornFrame() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 0; idx < 5; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.commit();
+
+        // the start of a sixth frame, and the loss of the segment's count
+        File log = new File(directory, ReadingStore.LOG_NAME);
+        try(RandomAccessFile raf = new RandomAccessFile(log, "rw")){
+            raf.seek(raf.length());
+            raf.write(new byte[]{ WriteAheadLog.PAYLOAD_SIZE, 0, 0, 0, 1, 2 });
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(new File(directory, "readings-00000000.seg"), "rw")){
+            raf.seek(16);
+            raf.writeInt(0);
+        }
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(5, store.size());
+        assertEquals(4 * 300, store.getLatestTransmitterTime());
+        store.close();
+    }
+
+    @Test
+    public void rollsUpReadingsIntoTiers() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        // a day and an hour of readings climbing from 60 by one each 5 minutes
+        for(int idx = 0; idx < 300; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 0, 0, 60 + idx, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.append(start + 5, 0, 1000, 2000, 0, ReadingStore.FLAG_HAS_RAW);
+
+        RollupBuffer out = new RollupBuffer();
+        store.readRollup(start, start + 2 * ReadingStore.ROLLUP_HOUR - 1, ReadingStore.ROLLUP_HOUR, out);
+        assertEquals(ReadingStore.ROLLUP_HOUR, out.width);
+        assertEquals(2, out.size());
+        assertEquals(start + ReadingStore.ROLLUP_HOUR, out.startTimes[1]);
+        assertEquals(12, out.counts[1]);
+        assertEquals(72, out.minimums[1]);
+        assertEquals(83, out.maximums[1]);
+        assertEquals(77.5, out.getMean(1), 0.001);
+        assertEquals(10, out.belowRange[0]);
+        assertEquals(2, out.inRange[0]);
+
+        out.clear();
+        store.readRollup(0, start + 4 * ReadingStore.ROLLUP_DAY, 7 * ReadingStore.ROLLUP_DAY, out);
+        assertEquals(ReadingStore.ROLLUP_DAY, out.width);
+        assertEquals(2, out.size());
+        assertEquals(288, out.counts[0]);
+        assertEquals(12, out.counts[1]);
+
+        out.clear();
+        store.readRollup(start, start + FIVE_MINUTES, 60 * 1000, out);
+        assertEquals(FIVE_MINUTES, out.width);
+        assertEquals(2, out.size());
+        store.close();
+    }
+
+    @Test
+    public void leavesOutlyingTimestampsOutOfTheRollups() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        for(int idx = 0; idx < 100; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        // a clock decades out, then timestamps no clock gives
+        store.append(start + 40 * 366 * ReadingStore.ROLLUP_DAY, 100 * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        store.append(Long.MAX_VALUE, 101 * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        store.append(-1, 102 * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        store.append(start + 100 * FIVE_MINUTES, 103 * 300, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        assertEquals(104, store.size());
+
+        RollupBuffer out = new RollupBuffer();
+        store.summarize(0, ReadingStore.MAX_ROLLUP_TIMESTAMP, out);
+        assertEquals(101, out.counts[0]);
+        for(String name : directory.list()){
+            if(name.endsWith(".idx")){
+                assertTrue(name, new File(directory, name).length() < 1024 * 1024);
+            }
+        }
+        store.close();
+
+        // still covering every record, so not rebuilt
+        store = new ReadingStore(directory, 64);
+        out.clear();
+        store.summarize(0, ReadingStore.MAX_ROLLUP_TIMESTAMP, out);
+        assertEquals(101, out.counts[0]);
+        store.close();
+    }
+
+    @Test
+    public void summarizesAcrossTiers() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        for(int idx = 0; idx < 1000; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 0, 0, 40 + idx % 200, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+
+        // from 23:10 on the first day to 10:25 on the third
+        long from = start + 278 * FIVE_MINUTES;
+        long to = start + 701 * FIVE_MINUTES;
+        RollupBuffer out = new RollupBuffer();
+        store.summarize(from, to, out);
+        assertEquals(1, out.size());
+        assertEquals(from, out.startTimes[0]);
+        assertEquals(to - from, out.width);
+
+        int below = 0;
+        int within = 0;
+        long sum = 0;
+        for(int idx = 278; idx < 701; ++idx){
+            int glucose = 40 + idx % 200;
+            sum += glucose;
+            if(glucose < 70){
+                ++below;
+            }else if(glucose <= 180){
+                ++within;
+            }
+        }
+        assertEquals(423, out.counts[0]);
+        assertEquals(40, out.minimums[0]);
+        assertEquals(239, out.maximums[0]);
+        assertEquals(sum, out.sums[0]);
+        assertEquals(below, out.belowRange[0]);
+        assertEquals(within, out.inRange[0]);
+        assertEquals(423 - below - within, out.getAboveRange(0));
+        store.close();
+    }
+
+    @Test
+    public void rollsUpBackfillAndRebuildsAfterRecovery() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        for(int idx = 0; idx < 12; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 0, 0, 120, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        // backfill of the two days before
+        ReadingBuffer backfill = new ReadingBuffer();
+        for(int idx = 1; idx <= 576; ++idx){
+            backfill.add(start - idx * FIVE_MINUTES, -idx * 300, 0, 0, 90, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL);
+        }
+        store.append(backfill);
+        store.commit();
+
+        RollupBuffer out = new RollupBuffer();
+        store.readRollup(0, start + ReadingStore.ROLLUP_DAY, ReadingStore.ROLLUP_DAY, out);
+        assertEquals(3, out.size());
+        assertEquals(0, out.startTimes[0]);
+        assertEquals(288, out.counts[0]);
+        assertEquals(12, out.counts[2]);
+
+        // the rollups and segments are lost, having only been logged
+        new File(directory, "rollup-1440.idx").delete();
+        File segment = new File(directory, "readings-00000009.seg");
+        try(RandomAccessFile raf = new RandomAccessFile(segment, "rw")){
+            raf.seek(16);
+            raf.writeInt(0);
+        }
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(588, store.size());
+        out.clear();
+        store.summarize(0, start + ReadingStore.ROLLUP_DAY, out);
+        assertEquals(588, out.counts[0]);
+        assertEquals(90, out.minimums[0]);
+        assertEquals(120, out.maximums[0]);
+        store.close();
+
+        store = new ReadingStore(directory, 64);
+        out.clear();
+        store.readRollup(start, start + ReadingStore.ROLLUP_HOUR - 1, FIVE_MINUTES, out);
+        assertEquals(12, out.size());
+        store.close();
+    }
+
+    @Test
+    public void catchesUpRollupsFromTheRecordsTheyCover() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        for(int idx = 0; idx < 12; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 0, 0, 120, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.commit();
+
+        // queries see readings not yet committed
+        for(int idx = 0; idx < 6; ++idx){
+            store.append(start + ReadingStore.ROLLUP_HOUR + idx * FIVE_MINUTES, (12 + idx) * 300, 0, 0, 150, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        RollupBuffer out = new RollupBuffer();
+        store.readRollup(start, start + 2 * ReadingStore.ROLLUP_HOUR - 1, ReadingStore.ROLLUP_HOUR, out);
+        assertEquals(2, out.size());
+        assertEquals(6, out.counts[1]);
+        store.commit();
+
+        // the process is killed with more readings logged; the hourly tier is marked so a rebuild
+        // would show
+        for(int idx = 6; idx < 12; ++idx){
+            store.append(start + ReadingStore.ROLLUP_HOUR + idx * FIVE_MINUTES, (12 + idx) * 300, 0, 0, 150, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        File hourly = new File(directory, "rollup-60.idx");
+        try(FileChannel channel = FileChannel.open(hourly.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            ByteBuffer header = ByteBuffer.allocate(RollupTier.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            assertEquals(18, header.getLong(32));
+            assertEquals(0, header.getInt(40));
+
+            long bucket = start / ReadingStore.ROLLUP_HOUR - header.getLong(16);
+            ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            count.putInt(0, 100);
+            channel.write(count, RollupTier.HEADER_SIZE + bucket * RollupTier.BUCKET_SIZE);
+        }
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(24, store.size());
+        out.clear();
+        store.readRollup(start, start + 2 * ReadingStore.ROLLUP_HOUR - 1, ReadingStore.ROLLUP_HOUR, out);
+        assertEquals(2, out.size());
+        assertEquals(100, out.counts[0]);
+        assertEquals(12, out.counts[1]);
+        out.clear();
+        store.readRollup(start, start + 2 * ReadingStore.ROLLUP_HOUR - 1, FIVE_MINUTES, out);
+        assertEquals(24, out.size());
+        store.close();
+    }
+
+    @Test
+    public void updatesGlucoseInPlace() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 8);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        int flags = ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_HAS_RAW | ReadingStore.FLAG_CALIBRATED;
+        for(int idx = 0; idx < 20; ++idx){
+            store.append(start + idx * FIVE_MINUTES, idx * 300, 1000 + idx, 1000 + idx, 100, flags);
+        }
+        store.commit();
+
+        // the first segment has been sealed into an archive
+        assertFalse(store.update(3, 200, flags));
+        assertTrue(store.update(18, 200, flags));
+        assertTrue(store.update(19, 210, flags));
+        assertFalse(store.update(20, 210, flags));
+        store.commit();
+
+        // the process is killed; the log has the change
+        store = new ReadingStore(directory, 8);
+        ReadingBuffer out = new ReadingBuffer();
+        store.readSince(17, 10, out);
+        assertEquals(3, out.size());
+        assertEquals(100, out.glucose[0]);
+        assertEquals(200, out.glucose[1]);
+        assertEquals(1018, out.filtered[1]);
+        assertEquals(start + 18 * FIVE_MINUTES, out.timestamps[1]);
+        assertEquals(210, out.glucose[2]);
+
+        RollupBuffer rollup = new RollupBuffer();
+        store.summarize(start, start + ReadingStore.ROLLUP_DAY, rollup);
+        assertEquals(20, rollup.counts[0]);
+        assertEquals(100, rollup.minimums[0]);
+        assertEquals(210, rollup.maximums[0]);
+        assertEquals(18 * 100 + 200 + 210, rollup.sums[0]);
+        store.close();
+    }
+
+    @Test
+    public void profilesReadingsByLocalTimeOfDay() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        long start = 2 * ReadingStore.ROLLUP_DAY;
+        // 14 days where the half hour from 00:00 UTC reads 100 to 105 and the rest 200, with
+        // a day of backfill before them
+        for(int day = 0; day < 14; ++day){
+            for(int idx = 0; idx < 288; ++idx){
+                store.append(start + (day * 288 + idx) * FIVE_MINUTES, idx * 300, 0, 0, idx < 6 ? 100 + idx : 200, ReadingStore.FLAG_HAS_GLUCOSE);
+            }
+        }
+        ReadingBuffer backfill = new ReadingBuffer();
+        for(int idx = 1; idx <= 288; ++idx){
+            backfill.add(start - idx * FIVE_MINUTES, -idx * 300, 0, 0, 50, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_BACKFILL);
+        }
+        store.append(backfill);
+
+        AgpProfile profile = new AgpProfile();
+        store.readAgp(start, start + 14 * ReadingStore.ROLLUP_DAY, 0, profile);
+        assertEquals(84, profile.sketches[0].getCount());
+        assertEquals(100, profile.getValueAtPercentile(0, 5));
+        assertEquals(102, profile.getValueAtPercentile(0, 50));
+        assertEquals(105, profile.getValueAtPercentile(0, 95));
+        assertEquals(200, profile.getValueAtPercentile(1, 50));
+
+        // from a time zone 5 hours behind UTC, that half hour is 19:00
+        profile.clear();
+        store.readAgp(start, start + 14 * ReadingStore.ROLLUP_DAY, -5 * ReadingStore.ROLLUP_HOUR, profile);
+        assertEquals(102, profile.getValueAtPercentile(38, 50));
+        assertEquals(200, profile.getValueAtPercentile(0, 50));
+        store.close();
+
+        // including the backfilled day, after reopening
+        store = new ReadingStore(directory, 64);
+        profile.clear();
+        store.readAgp(start - ReadingStore.ROLLUP_DAY, start + ReadingStore.ROLLUP_DAY, 0, profile);
+        assertEquals(12, profile.sketches[0].getCount());
+        assertEquals(50, profile.getValueAtPercentile(0, 50));
+        assertEquals(102, profile.getValueAtPercentile(0, 75));
+        store.close();
+    }
+
+    @Test
+    public void finishesSealingInterruptedByACrash() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 0; idx < 64; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 1000 + idx, 2000 + idx, 100 + idx, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        store.close();
+        File segment = new File(directory, "readings-00000000.seg");
+        byte[] sealed = Files.readAllBytes(segment.toPath());
+
+        store = new ReadingStore(directory, 64);
+        store.append(64 * FIVE_MINUTES, 64 * 300, 1064, 2064, 164, ReadingStore.FLAG_HAS_GLUCOSE);
+        store.close();
+        assertFalse(segment.exists());
+
+        // the power goes after the archive is renamed, before the segment is deleted, and while
+        // the next archive is being written
+        Files.write(segment.toPath(), sealed);
+        Files.write(new File(directory, "readings-00000001.arc.tmp").toPath(), new byte[]{ 1, 2, 3 });
+
+        store = new ReadingStore(directory, 64);
+        assertEquals(65, store.size());
+        assertFalse(segment.exists());
+        assertFalse(new File(directory, "readings-00000001.arc.tmp").exists());
+
+        ReadingBuffer out = new ReadingBuffer();
+        store.read(0, 64 * FIVE_MINUTES, out);
+        assertEquals(65, out.size());
+        for(int idx = 0; idx < out.size(); ++idx){
+            assertEquals(idx * FIVE_MINUTES, out.timestamps[idx]);
+            assertEquals(1000 + idx, out.filtered[idx]);
+            assertEquals(2000 + idx, out.unfiltered[idx]);
+        }
+        store.close();
+    }
+
+    @Test
+    public void readsOnFromASequence() throws IOException {
+        ReadingStore store = new ReadingStore(directory, 64);
+        for(int idx = 0; idx < 300; ++idx){
+            store.append(idx * FIVE_MINUTES, idx * 300, 1000 + idx, 2000 + idx, 100 + idx % 50, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+
+        // from the middle of the first archive, across four archives and into the tail segment
+        ReadingBuffer out = new ReadingBuffer();
+        store.readSince(30, 1000, out);
+        assertEquals(270, out.size());
+        for(int idx = 0; idx < out.size(); ++idx){
+            assertEquals((30 + idx) * FIVE_MINUTES, out.timestamps[idx]);
+            assertEquals(2030 + idx, out.unfiltered[idx]);
+        }
+
+        out.clear();
+        store.readSince(250, 20, out);
+        assertEquals(20, out.size());
+        assertEquals(250 * FIVE_MINUTES, out.timestamps[0]);
+        assertEquals(269 * FIVE_MINUTES, out.timestamps[19]);
+
+        out.clear();
+        store.readSince(300, 20, out);
+        assertEquals(0, out.size());
+        store.close();
+    }
+}
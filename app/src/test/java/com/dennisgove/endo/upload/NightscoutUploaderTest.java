@@ -0,0 +1,267 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.upload;
+
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.util.Clock;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the uploader against a stand-in for a Nightscout site on localhost.
+ */
+public class NightscoutUploaderTest {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    private static final long START = 1500000000000L;
+    private static final long MIN_INTERVAL = 200;
+    private static final long BACKOFF = 50;
+
+    private File directory;
+    private ReadingStore store;
+    private HttpServer server;
+    private ScheduledExecutorService executor;
+    private final LinkedBlockingQueue<Upload> uploads = new LinkedBlockingQueue<>();
+    private final AtomicInteger failuresToGive = new AtomicInteger();
+    private final Preferences preferences = new Preferences();
+
+    private static class Upload {
+        long receivedAt;
+        String encoding;
+        String apiSecret;
+        String body;
+    }
+
+    private static class Preferences implements NightscoutPreferences {
+        volatile String url;
+        volatile String apiSecret;
+
+        @Override
+        public String getUrl() {
+            return url;
+        }
+
+        @Override
+        public String getApiSecret() {
+            return apiSecret;
+        }
+
+        @Override
+        public void setNightscout(String url, String apiSecret) {
+            this.url = url;
+            this.apiSecret = apiSecret;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("upload").toFile();
+        store = new ReadingStore(directory, 64);
+        executor = Executors.newSingleThreadScheduledExecutor();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(NightscoutUploader.ENTRIES_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Upload upload = new Upload();
+                upload.receivedAt = System.currentTimeMillis();
+                upload.encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                upload.apiSecret = exchange.getRequestHeaders().getFirst("api-secret");
+                upload.body = read(new GZIPInputStream(exchange.getRequestBody()));
+                uploads.add(upload);
+
+                int status = failuresToGive.getAndDecrement() > 0 ? 503 : 200;
+                byte[] response = "[]".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        preferences.setNightscout("http://127.0.0.1:" + server.getAddress().getPort() + "/", "a secret of twelve");
+    }
+
+    @After
+    public void tearDown(){
+        server.stop(0);
+        executor.shutdownNow();
+        store.close();
+        File[] files = directory.listFiles();
+        if(null != files){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void uploadsEveryReadingSinceTheLastInOneCompressedRequest() throws Exception {
+        NightscoutUploader uploader = uploader();
+        for(int idx = 0; idx < 10; ++idx){
+            store.append(START + idx * FIVE_MINUTES, idx * 300, 0, 0, 100 + idx, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        // raw values alone are not uploaded, but are acknowledged with the rest
+        store.append(START + 10 * FIVE_MINUTES, 3000, 150000, 151000, 0, ReadingStore.FLAG_HAS_RAW);
+        long before = System.currentTimeMillis();
+        for(int idx = 0; idx < 11; ++idx){
+            uploader.onReadingsStored();
+        }
+
+        Upload first = uploads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals("gzip", first.encoding);
+        assertEquals(NightscoutUploader.sha1("a secret of twelve"), first.apiSecret);
+        assertEquals(10, count(first.body, "\"type\":\"sgv\""));
+        assertTrue(first.body.startsWith("[{\"type\":\"sgv\",\"device\":\"endo-40A90B\",\"date\":" + START + ",\"dateString\":\"2017-07-14T02:40:00.000Z\",\"sgv\":100,"));
+        awaitHighWaterMark(uploader, 11);
+
+        // readings stored soon after wait out the interval, then go together
+        for(int idx = 11; idx < 14; ++idx){
+            store.append(START + idx * FIVE_MINUTES, idx * 300, 0, 0, 110, ReadingStore.FLAG_HAS_GLUCOSE);
+            uploader.onReadingsStored();
+        }
+        Upload second = uploads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertTrue(second.receivedAt - before >= MIN_INTERVAL);
+        assertEquals(3, count(second.body, "\"type\":\"sgv\""));
+        // with trends from the readings before them
+        assertEquals(3, count(second.body, "\"direction\":\"Flat\""));
+        awaitHighWaterMark(uploader, 14);
+
+        assertNull(uploads.poll(2 * MIN_INTERVAL, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void retriesWithBackoffAndResumesAfterARestart() throws Exception {
+        failuresToGive.set(2);
+        NightscoutUploader uploader = uploader();
+        for(int idx = 0; idx < 5; ++idx){
+            store.append(START + idx * FIVE_MINUTES, idx * 300, 0, 0, 120, ReadingStore.FLAG_HAS_GLUCOSE);
+        }
+        long before = System.currentTimeMillis();
+        uploader.onReadingsStored();
+
+        Upload failed = uploads.poll(5, TimeUnit.SECONDS);
+        Upload retried = uploads.poll(5, TimeUnit.SECONDS);
+        Upload succeeded = uploads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(succeeded);
+        assertTrue(retried.receivedAt - before >= BACKOFF);
+        assertTrue(succeeded.receivedAt - before >= 3 * BACKOFF);
+        assertEquals(succeeded.body, failed.body);
+        awaitHighWaterMark(uploader, 5);
+        assertEquals(0, uploader.getFailures());
+        uploader.stop();
+
+        // a new uploader carries on from the mark
+        store.append(START + 5 * FIVE_MINUTES, 5 * 300, 0, 0, 125, ReadingStore.FLAG_HAS_GLUCOSE);
+        uploader = uploader();
+        assertEquals(5, uploader.getHighWaterMark());
+        uploader.onReadingsStored();
+        Upload resumed = uploads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(resumed);
+        assertEquals(1, count(resumed.body, "\"type\":\"sgv\""));
+        assertTrue(resumed.body.contains("\"sgv\":125"));
+    }
+
+    @Test
+    public void stopsRetryingOnceStopped() throws Exception {
+        failuresToGive.set(1);
+        final LinkedBlockingQueue<IOException> failures = new LinkedBlockingQueue<>();
+        NightscoutUploader uploader = uploader();
+        uploader.setListener(new NightscoutUploader.Listener() {
+            @Override
+            public void onUploadFailed(IOException e, int count, long retryInMillis) {
+                failures.add(e);
+            }
+
+            @Override
+            public void onHighWaterMarkNotWritten(IOException e) {
+                failures.add(e);
+            }
+        });
+        store.append(START, 0, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        uploader.onReadingsStored();
+
+        assertNotNull(failures.poll(5, TimeUnit.SECONDS));
+        assertNotNull(uploads.poll(5, TimeUnit.SECONDS));
+        uploader.stop();
+
+        assertNull(uploads.poll(4 * BACKOFF, TimeUnit.MILLISECONDS));
+        uploader.onReadingsStored();
+        assertNull(uploads.poll(2 * BACKOFF, TimeUnit.MILLISECONDS));
+        assertEquals(0, uploader.getHighWaterMark());
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void waitsUntilASiteIsSet() throws Exception {
+        preferences.setNightscout(null, null);
+        NightscoutUploader uploader = uploader();
+        store.append(START, 0, 0, 0, 100, ReadingStore.FLAG_HAS_GLUCOSE);
+        uploader.onReadingsStored();
+        assertNull(uploads.poll(MIN_INTERVAL, TimeUnit.MILLISECONDS));
+        assertEquals(0, uploader.getHighWaterMark());
+    }
+
+    private NightscoutUploader uploader(){
+        return new NightscoutUploader(store, "40A90B", preferences, Clock.SYSTEM, executor, MIN_INTERVAL, BACKOFF, 4 * BACKOFF);
+    }
+
+    private static void awaitHighWaterMark(NightscoutUploader uploader, long expected) throws InterruptedException {
+        for(int attempt = 0; attempt < 100 && uploader.getHighWaterMark() < expected; ++attempt){
+            Thread.sleep(20);
+        }
+        assertEquals(expected, uploader.getHighWaterMark());
+    }
+
+    private static int count(String text, String of){
+        int count = 0;
+        for(int idx = text.indexOf(of); idx >= 0; idx = text.indexOf(of, idx + 1)){
+            ++count;
+        }
+        return count;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for(int read; (read = in.read(buffer)) >= 0; ){
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
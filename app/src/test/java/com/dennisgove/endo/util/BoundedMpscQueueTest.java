@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoundedMpscQueueTest {
+
+    private final BoundedMpscQueue<Integer> queue = new BoundedMpscQueue<>(6);
+
+    @Test
+    public void pollsInOrderOffered(){
+        assertEquals(8, queue.getCapacity());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        for(int lap = 0; lap < 3; ++lap){
+            for(int value = 0; value < 5; ++value){
+                assertTrue(queue.offer(value));
+            }
+            assertFalse(queue.isEmpty());
+            for(int value = 0; value < 5; ++value){
+                assertEquals(Integer.valueOf(value), queue.poll());
+            }
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    public void refusesWhenFull(){
+        for(int value = 0; value < 8; ++value){
+            assertTrue(queue.offer(value));
+        }
+        assertFalse(queue.offer(8));
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(8));
+    }
+
+    @Test
+    public void deliversEveryElementFromConcurrentProducers() throws Exception {
+        final BoundedMpscQueue<Integer> shared = new BoundedMpscQueue<>(64);
+        final int producers = 4;
+        final int perProducer = 20000;
+
+        Thread[] threads = new Thread[producers];
+        for(int idx = 0; idx < producers; ++idx){
+            final int producer = idx;
+            threads[idx] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int count = 0; count < perProducer; ++count){
+                        while(!shared.offer(producer * perProducer + count)){
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[idx].start();
+        }
+
+        // each producer's elements arrive in the order it offered them
+        int[] next = new int[producers];
+        int received = 0;
+        while(received < producers * perProducer){
+            Integer value = shared.poll();
+            if(null == value){
+                Thread.yield();
+                continue;
+            }
+            int producer = value / perProducer;
+            assertEquals(next[producer]++, value % perProducer);
+            ++received;
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertTrue(shared.isEmpty());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void bucketsCoverEveryValue(){
+        long previousUpper = -1;
+        for(int idx = 0; idx <= LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE); ++idx){
+            long upper = LatencyHistogram.bucketUpperBound(idx);
+            assertEquals(idx, LatencyHistogram.bucketIndex(previousUpper + 1));
+            assertEquals(idx, LatencyHistogram.bucketIndex(upper));
+            // within about 6% of any value in the bucket
+            assertTrue(upper - previousUpper <= Math.max(1, (previousUpper + 1) / 16));
+            previousUpper = upper;
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE, previousUpper);
+    }
+
+    @Test
+    public void reportsPercentiles(){
+        for(int value = 1; value <= 1000; ++value){
+            histogram.record(value);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 / 16);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 / 16);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void clampsValuesOutOfRange(){
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+    }
+}
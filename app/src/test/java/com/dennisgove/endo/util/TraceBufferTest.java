@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.util;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TraceBufferTest {
+
+    private enum TestEvent implements TraceBuffer.Event {
+        WRITE("status %d length %d");
+
+        private final String format;
+
+        TestEvent(String format){
+            this.format = format;
+        }
+
+        @Override
+        public String format(long a, long b) {
+            return String.format(format, a, b);
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock(1000000);
+    private final TraceBuffer buffer = new TraceBuffer(clock, 4);
+
+    @Test
+    public void dumpsOldestFirst(){
+        TraceBuffer.Source first = buffer.source("first");
+        TraceBuffer.Source second = buffer.source("second");
+        first.record(TestEvent.WRITE, 0, 3);
+        second.record(TestEvent.WRITE, 133, 0);
+
+        String[] lines = dump();
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith("first WRITE status 0 length 3"));
+        assertTrue(lines[1].endsWith("second WRITE status 133 length 0"));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestRecords(){
+        TraceBuffer.Source source = buffer.source("source");
+        for(int idx = 0; idx < 10; ++idx){
+            source.record(TestEvent.WRITE, idx, 0);
+        }
+
+        String[] lines = dump();
+        assertEquals(buffer.getCapacity(), lines.length);
+        assertTrue(lines[0].endsWith("status 6 length 0"));
+        assertTrue(lines[3].endsWith("status 9 length 0"));
+    }
+
+    @Test
+    public void capturesPayloadsOnlyWhenAskedTo(){
+        TraceBuffer.Source source = buffer.source("source");
+        source.record(TestEvent.WRITE, 0, 2, new byte[]{ 0x31, (byte)0xff });
+        buffer.setCapturingPayloads(true);
+        source.record(TestEvent.WRITE, 0, 2, new byte[]{ 0x31, (byte)0xff });
+
+        String[] lines = dump();
+        assertFalse(lines[0].contains("["));
+        assertTrue(lines[1].endsWith("status 0 length 2 [31ff]"));
+    }
+
+    private String[] dump(){
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        buffer.dump(writer);
+        writer.flush();
+        return out.toString().split(System.lineSeparator());
+    }
+}
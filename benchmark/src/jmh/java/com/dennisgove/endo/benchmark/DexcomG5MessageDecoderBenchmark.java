@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.benchmark;
+
+import com.dennisgove.endo.cgm.Crc16;
+import com.dennisgove.endo.cgm.DexcomG5BackfillSession;
+import com.dennisgove.endo.cgm.DexcomG5MessageDecoder;
+import com.dennisgove.endo.cgm.GlucoseReading;
+import com.dennisgove.endo.cgm.LittleEndian;
+import com.dennisgove.endo.cgm.SensorReading;
+import com.dennisgove.endo.storage.ReadingBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of decoding the notifications received during a connection - the live sensor and glucose
+ * messages, and a full day's backfill download.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DexcomG5MessageDecoderBenchmark implements DexcomG5MessageDecoder.Listener, DexcomG5BackfillSession.Listener {
+
+    private static final int BACKFILL_RECORDS = 288;
+    private static final int BACKFILL_FRAME_LENGTH = 20;
+
+    private final DexcomG5MessageDecoder decoder = new DexcomG5MessageDecoder(this);
+    private final DexcomG5BackfillSession backfillSession = new DexcomG5BackfillSession(this);
+
+    private final byte[] sensorRx = new byte[DexcomG5MessageDecoder.SENSOR_RX_LENGTH];
+    private final byte[] glucoseRx = new byte[DexcomG5MessageDecoder.GLUCOSE_RX_LENGTH];
+    private byte[][] backfillFrames;
+    private final byte[] backfillRx = new byte[DexcomG5BackfillSession.BACKFILL_RX_LENGTH];
+
+    private int lastValue;
+
+    @Setup
+    public void setUp(){
+        sensorRx[0] = DexcomG5MessageDecoder.SENSOR_RX_OPCODE;
+        LittleEndian.writeInt32(sensorRx, 2, 1086400);
+        LittleEndian.writeInt32(sensorRx, 6, 123456);
+        LittleEndian.writeInt32(sensorRx, 10, 120000);
+        Crc16.append(sensorRx, sensorRx.length);
+
+        glucoseRx[0] = DexcomG5MessageDecoder.GLUCOSE_RX_OPCODE;
+        LittleEndian.writeInt32(glucoseRx, 2, 42);
+        LittleEndian.writeInt32(glucoseRx, 6, 1086400);
+        LittleEndian.writeUInt16(glucoseRx, 10, 123);
+        glucoseRx[12] = 6;
+        Crc16.append(glucoseRx, glucoseRx.length);
+
+        byte[] payload = new byte[4 + 8 * BACKFILL_RECORDS];
+        for(int idx = 0; idx < BACKFILL_RECORDS; ++idx){
+            int offset = 4 + 8 * idx;
+            LittleEndian.writeInt32(payload, offset, 1000000 + 300 * idx);
+            LittleEndian.writeUInt16(payload, offset + 4, 80 + idx % 200);
+            payload[offset + 6] = 6;
+        }
+
+        int perFrame = BACKFILL_FRAME_LENGTH - 2;
+        backfillFrames = new byte[(payload.length + perFrame - 1) / perFrame][];
+        int crc = 0;
+        int length = 0;
+        for(int idx = 0; idx < backfillFrames.length; ++idx){
+            int start = idx * perFrame;
+            int frameLength = Math.min(perFrame, payload.length - start) + 2;
+            byte[] frame = new byte[frameLength];
+            frame[0] = (byte)(idx + 1);
+            frame[1] = 1;
+            System.arraycopy(payload, start, frame, 2, frameLength - 2);
+            backfillFrames[idx] = frame;
+            crc = Crc16.update(crc, frame, 0, frame.length);
+            length += frame.length;
+        }
+
+        backfillRx[0] = DexcomG5BackfillSession.BACKFILL_RX_OPCODE;
+        LittleEndian.writeInt32(backfillRx, 12, length);
+        LittleEndian.writeUInt16(backfillRx, 16, crc);
+        Crc16.append(backfillRx, backfillRx.length);
+    }
+
+    @Benchmark
+    public int sensorRx(){
+        decoder.decode(sensorRx);
+        return lastValue;
+    }
+
+    @Benchmark
+    public int glucoseRx(){
+        decoder.decode(glucoseRx);
+        return lastValue;
+    }
+
+    @Benchmark
+    public int backfillDay(){
+        backfillSession.start(1100000, 1500000000000L);
+        for(byte[] frame : backfillFrames){
+            backfillSession.onFrame(frame);
+        }
+        backfillSession.handle(backfillRx);
+        return lastValue;
+    }
+
+    @Override
+    public void onSensorReading(SensorReading reading) {
+        lastValue = reading.filtered;
+    }
+
+    @Override
+    public void onGlucoseReading(GlucoseReading reading) {
+        lastValue = reading.glucose;
+    }
+
+    @Override
+    public void onBackfillComplete(ReadingBuffer readings) {
+        lastValue = readings.size();
+    }
+
+    @Override
+    public void onBackfillFailed(String reason) {
+        throw new IllegalStateException(reason);
+    }
+}
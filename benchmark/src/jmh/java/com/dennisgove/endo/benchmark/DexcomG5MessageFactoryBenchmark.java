@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.benchmark;
+
+import com.dennisgove.endo.cgm.DexcomG5CryptoContext;
+import com.dennisgove.endo.cgm.DexcomG5MessageFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building each message sent to the transmitter during a connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DexcomG5MessageFactoryBenchmark {
+
+    private DexcomG5CryptoContext context;
+
+    private final byte[] authRequest = new byte[DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH];
+    private final byte[] challenge = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH];
+    private final byte[] challengeResponse = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH];
+    private final byte[] sensorRequest = new byte[DexcomG5MessageFactory.SENSOR_TX_LENGTH];
+    private final byte[] glucoseRequest = new byte[DexcomG5MessageFactory.GLUCOSE_TX_LENGTH];
+    private final byte[] backfillRequest = new byte[DexcomG5MessageFactory.BACKFILL_TX_LENGTH];
+
+    @Setup
+    public void setUp(){
+        context = new DexcomG5CryptoContext("40A90B");
+
+        new Random(42).nextBytes(challenge);
+        challenge[0] = DexcomG5MessageFactory.AUTH_CHALLENGE_RX_OPCODE;
+    }
+
+    @Benchmark
+    public byte[] authenticationRequest(){
+        DexcomG5MessageFactory.writeAuthenticationRequest(context, authRequest);
+        return authRequest;
+    }
+
+    @Benchmark
+    public byte[] authenticationChallenge(){
+        DexcomG5MessageFactory.writeAuthenticationChallenge(context, challenge, challengeResponse);
+        return challengeResponse;
+    }
+
+    @Benchmark
+    public boolean tokenHashCheck(){
+        return context.isTokenHashValid(challenge, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET);
+    }
+
+    @Benchmark
+    public byte[] sensorRequest(){
+        DexcomG5MessageFactory.writeSensorRequest(sensorRequest);
+        return sensorRequest;
+    }
+
+    @Benchmark
+    public byte[] glucoseRequest(){
+        DexcomG5MessageFactory.writeGlucoseRequest(glucoseRequest);
+        return glucoseRequest;
+    }
+
+    @Benchmark
+    public byte[] backfillRequest(){
+        DexcomG5MessageFactory.writeBackfillRequest(1000000, 1086400, backfillRequest);
+        return backfillRequest;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.benchmark;
+
+import com.dennisgove.endo.comm.EventBus;
+import com.dennisgove.endo.comm.ReadingEvent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing an event to direct subscribers, and of publishing to a class nobody
+ * subscribes to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBusBenchmark {
+
+    @Param({ "1", "4" })
+    public int subscribers;
+
+    private final EventBus bus = new EventBus();
+    private final ReadingEvent event = new ReadingEvent("40A90B", 1500000000000L, 1000000, 123, -2, 0, -0.2);
+    private final Object unsubscribedEvent = new Object();
+    private int received;
+
+    @Setup
+    public void setUp(){
+        for(int idx = 0; idx < subscribers; ++idx){
+            bus.subscribe(ReadingEvent.class, new EventBus.Subscriber<ReadingEvent>() {
+                @Override
+                public void onEvent(ReadingEvent event) {
+                    received += event.glucose;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public int publish(){
+        bus.publish(event);
+        return received;
+    }
+
+    @Benchmark
+    public int publishUnsubscribed(){
+        bus.publish(unsubscribedEvent);
+        return received;
+    }
+}
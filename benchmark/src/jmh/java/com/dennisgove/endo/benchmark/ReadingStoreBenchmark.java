@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.benchmark;
+
+import com.dennisgove.endo.storage.AgpProfile;
+import com.dennisgove.endo.storage.ReadingBuffer;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.storage.RollupBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of storing a reading, with and without the sync of the store's log that makes it durable,
+ * and of reading back the ranges the app displays, from a store holding 90 days of 5 minute
+ * readings - raw from segments and archives, as rollups, and as an ambulatory glucose profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadingStoreBenchmark {
+
+    private static final long FIVE_MINUTES = 5 * 60 * 1000;
+    private static final int DAYS = 90;
+    private static final long START = 1500000000000L;
+
+    /**
+     * A fresh store for each iteration, so appends measure the steady state rather than a store
+     * which has grown to gigabytes.
+     */
+    @State(Scope.Thread)
+    public static class AppendState {
+        File directory;
+        ReadingStore store;
+        long timestamp;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("reading-store-append").toFile();
+            store = new ReadingStore(directory);
+            timestamp = START;
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown(){
+            store.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReadState {
+        File directory;
+        ReadingStore store;
+        final ReadingBuffer buffer = new ReadingBuffer();
+        final RollupBuffer rollups = new RollupBuffer();
+        final AgpProfile profile = new AgpProfile();
+        long end;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("reading-store-read").toFile();
+            store = new ReadingStore(directory);
+
+            long timestamp = START;
+            for(int idx = 0; idx < DAYS * 288; ++idx, timestamp += FIVE_MINUTES){
+                store.append(timestamp, 300 * idx, 120000, 123456, 80 + idx % 200, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_HAS_RAW);
+            }
+            end = timestamp;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            store.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    @Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    public long append(AppendState state) throws IOException {
+        state.timestamp += FIVE_MINUTES;
+        state.store.append(state.timestamp, (int)(state.timestamp / 1000), 120000, 123456, 123, ReadingStore.FLAG_HAS_GLUCOSE | ReadingStore.FLAG_HAS_RAW);
+        return state.timestamp;
+    }
+
+    /**
+     * A sync for every reading, as if each were committed on its own.
+     */
+    @Benchmark
+    @Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    public long appendAndCommit(AppendState state) throws IOException {
+        long timestamp = append(state);
+        state.store.commit();
+        return timestamp;
+    }
+
+    /**
+     * A sync for every backfill batch.
+     */
+    @Benchmark
+    @Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+    public long appendAndCommitEvery64(AppendState state) throws IOException {
+        long timestamp = append(state);
+        if(0 == (timestamp / FIVE_MINUTES) % 64){
+            state.store.commit();
+        }
+        return timestamp;
+    }
+
+    @Benchmark
+    public int readLastThreeHours(ReadState state){
+        state.buffer.clear();
+        state.store.read(state.end - 3 * 60 * 60 * 1000, state.end, state.buffer);
+        return state.buffer.size();
+    }
+
+    @Benchmark
+    public int readLastDay(ReadState state){
+        state.buffer.clear();
+        state.store.read(state.end - 24 * 60 * 60 * 1000, state.end, state.buffer);
+        return state.buffer.size();
+    }
+
+    @Benchmark
+    public int readLastFourteenDays(ReadState state){
+        state.buffer.clear();
+        state.store.read(state.end - 14 * 24 * 60 * 60 * 1000L, state.end, state.buffer);
+        return state.buffer.size();
+    }
+
+    /**
+     * A month of readings long since sealed into archives.
+     */
+    @Benchmark
+    public int readFirstMonth(ReadState state){
+        state.buffer.clear();
+        state.store.read(START, START + 30 * 24 * 60 * 60 * 1000L, state.buffer);
+        return state.buffer.size();
+    }
+
+    @Benchmark
+    public int readLastNinetyDaysDaily(ReadState state){
+        state.rollups.clear();
+        state.store.readRollup(state.end - DAYS * ReadingStore.ROLLUP_DAY, state.end, ReadingStore.ROLLUP_DAY, state.rollups);
+        return state.rollups.size();
+    }
+
+    /**
+     * Time in range over the last 14 days, from whole days, whole hours and 5 minute buckets.
+     */
+    @Benchmark
+    public int summarizeLastFourteenDays(ReadState state){
+        state.rollups.clear();
+        state.store.summarize(state.end - 14 * ReadingStore.ROLLUP_DAY, state.end, state.rollups);
+        return state.rollups.inRange[0];
+    }
+
+    @Benchmark
+    public int readAgpLastNinetyDays(ReadState state){
+        state.profile.clear();
+        state.store.readAgp(state.end - DAYS * ReadingStore.ROLLUP_DAY, state.end, 0, state.profile);
+        return state.profile.getValueAtPercentile(0, 50);
+    }
+
+    /**
+     * The same profile computed exactly, by sorting the readings of each half hour.
+     */
+    @Benchmark
+    public int sortAgpLastNinetyDays(ReadState state){
+        state.buffer.clear();
+        state.store.read(state.end - DAYS * ReadingStore.ROLLUP_DAY, state.end, state.buffer);
+
+        int[][] slots = new int[AgpProfile.SLOTS][state.buffer.size()];
+        int[] sizes = new int[AgpProfile.SLOTS];
+        for(int idx = 0; idx < state.buffer.size(); ++idx){
+            int slot = (int)((state.buffer.timestamps[idx] % ReadingStore.ROLLUP_DAY) / AgpProfile.SLOT_WIDTH);
+            slots[slot][sizes[slot]++] = state.buffer.glucose[idx];
+        }
+        int median = 0;
+        for(int slot = 0; slot < AgpProfile.SLOTS; ++slot){
+            Arrays.sort(slots[slot], 0, sizes[slot]);
+            median += slots[slot][sizes[slot] / 2];
+        }
+        return median;
+    }
+
+    static void deleteDirectory(File directory){
+        File[] files = directory.listFiles();
+        if(null != files){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.benchmark;
+
+import com.dennisgove.endo.util.Clock;
+import com.dennisgove.endo.util.TraceBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of tracing a GATT callback, with and without a copy of its payload, against building the
+ * log line it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceBufferBenchmark {
+
+    private enum Event implements TraceBuffer.Event {
+        NOTIFICATION;
+
+        @Override
+        public String format(long a, long b) {
+            return a + " length " + b;
+        }
+    }
+
+    @Param({ "false", "true" })
+    public boolean capturePayloads;
+
+    private final TraceBuffer buffer = new TraceBuffer(Clock.SYSTEM);
+    private final byte[] payload = new byte[16];
+    private TraceBuffer.Source source;
+    private int status = 0;
+
+    @Setup
+    public void setUp(){
+        buffer.setCapturingPayloads(capturePayloads);
+        source = buffer.source("benchmark");
+    }
+
+    @Benchmark
+    public void record(){
+        source.record(Event.NOTIFICATION, 0xF8083534L, payload.length, payload);
+    }
+
+    @Benchmark
+    public String concatenate(){
+        return "ReadStatus: " + String.valueOf(status) + " from transmitter '" + "40A90B" + "' length " + payload.length;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.simulator;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies, in nanoseconds, from any number of threads and reports their percentiles.
+ * Every sample is kept, which is fine for the tens of thousands a load run produces.
+ */
+public class LatencyRecorder {
+
+    private final String name;
+    private long[] samples = new long[1024];
+    private int count = 0;
+
+    public LatencyRecorder(String name){
+        this.name = name;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public synchronized void record(long nanos){
+        if(count == samples.length){
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public synchronized int getCount(){
+        return count;
+    }
+
+    /**
+     * @return count, p50, p90, p99 and max in milliseconds, or just the count if there are none
+     */
+    public synchronized String summarize(){
+        if(0 == count){
+            return String.format("%-20s %7d", name, 0);
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return String.format("%-20s %7d %9.2f %9.2f %9.2f %9.2f",
+                name,
+                count,
+                percentile(sorted, 50) / 1e6,
+                percentile(sorted, 90) / 1e6,
+                percentile(sorted, 99) / 1e6,
+                sorted[count - 1] / 1e6);
+    }
+
+    private static long percentile(long[] sorted, int percent){
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.simulator;
+
+import com.dennisgove.endo.ble.GattOperationQueue;
+import com.dennisgove.endo.cgm.CalibrationModel;
+import com.dennisgove.endo.cgm.DexcomG5CryptoContext;
+import com.dennisgove.endo.cgm.DexcomG5Session;
+import com.dennisgove.endo.cgm.TransmitterPreferences;
+import com.dennisgove.endo.cgm.TransmitterState;
+import com.dennisgove.endo.cgm.TransmitterStateMachine;
+import com.dennisgove.endo.cgm.TrendEstimator;
+import com.dennisgove.endo.storage.ReadingStore;
+import com.dennisgove.endo.util.Clock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs thousands of DexcomG5Sessions against SimulatedG5Transmitters and reports how many
+ * completed per second and how long each phase of a session took.
+ *
+ * A pool of transmitters, one per concurrent session, is connected to over and over. Between
+ * sessions each transmitter's time moves on by one reading, or sometimes by several so that the
+ * next session has to backfill the ones it missed. The first session with a transmitter does the
+ * full auth handshake, later ones find it bonded.
+ *
+ * Run with ./gradlew :benchmark:loadTest -PloadArgs="sessions=5000 concurrency=200 drop=0.001"
+ * Arguments are name=value pairs:
+ *    sessions     number of sessions to run (2000)
+ *    concurrency  number of transmitters, and so sessions in flight (100)
+ *    threads      scheduler threads (2 per processor)
+ *    latency      link latency in ms (10)
+ *    jitter       random extra latency in ms, up to (5)
+ *    drop         probability each answer is lost (0)
+ *    disconnect   probability the connection is lost instead of each answer (0)
+ *    gap          probability readings were missed since the last session (0.1)
+ *    timeout      ms a session may take before it is abandoned (30000)
+ */
+public class SessionLoadGenerator {
+
+    private static final long START_TRANSMITTER_TIME = 10 * 24 * 60 * 60;
+    private static final int MAX_MISSED_READINGS = 36;
+    private static final int RECORDS_PER_SEGMENT = 1024;
+
+    private final int sessions;
+    private final int concurrency;
+    private final double gapProbability;
+    private final long timeoutMillis;
+    private final SimulatedG5Transmitter.Faults faults;
+    private final ScheduledExecutorService scheduler;
+
+    private final Random random = new Random(1);
+    private final BlockingQueue<Slot> idle;
+    private final CountDownLatch remaining;
+    private final Map<String, Integer> failures = new TreeMap<>();
+
+    private final LatencyRecorder connect = new LatencyRecorder("connect");
+    private final LatencyRecorder discover = new LatencyRecorder("discover services");
+    private final LatencyRecorder handshake = new LatencyRecorder("auth (handshake)");
+    private final LatencyRecorder bonded = new LatencyRecorder("auth (bonded)");
+    private final LatencyRecorder reading = new LatencyRecorder("first reading");
+    private final LatencyRecorder backfill = new LatencyRecorder("backfill");
+    private final LatencyRecorder total = new LatencyRecorder("session");
+
+    public SessionLoadGenerator(int sessions, int concurrency, int threads, double gapProbability, long timeoutMillis, SimulatedG5Transmitter.Faults faults){
+        this.sessions = sessions;
+        this.concurrency = concurrency;
+        this.gapProbability = gapProbability;
+        this.timeoutMillis = timeoutMillis;
+        this.faults = faults;
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+        this.idle = new ArrayBlockingQueue<>(concurrency);
+        this.remaining = new CountDownLatch(sessions);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for(String arg : args){
+            int split = arg.indexOf('=');
+            if(split <= 0){
+                System.err.println("Ignoring argument '" + arg + "' - expected name=value");
+                continue;
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        SimulatedG5Transmitter.Faults faults = new SimulatedG5Transmitter.Faults(
+                Long.parseLong(option(options, "latency", "10")),
+                Long.parseLong(option(options, "jitter", "5")),
+                Double.parseDouble(option(options, "drop", "0")),
+                Double.parseDouble(option(options, "disconnect", "0")));
+
+        SessionLoadGenerator generator = new SessionLoadGenerator(
+                Integer.parseInt(option(options, "sessions", "2000")),
+                Integer.parseInt(option(options, "concurrency", "100")),
+                Integer.parseInt(option(options, "threads", String.valueOf(2 * Runtime.getRuntime().availableProcessors()))),
+                Double.parseDouble(option(options, "gap", "0.1")),
+                Long.parseLong(option(options, "timeout", "30000")),
+                faults);
+        generator.run();
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue){
+        String value = options.get(name);
+        return null == value ? defaultValue : value;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("session-load").toFile();
+        TransmitterPreferences preferences = new MemoryTransmitterPreferences();
+        for(int idx = 0; idx < concurrency; ++idx){
+            String transmitterId = String.format("4%05X", idx);
+            SimulatedG5Transmitter transmitter = new SimulatedG5Transmitter(transmitterId, START_TRANSMITTER_TIME, scheduler, faults, idx);
+            idle.add(new Slot(transmitter, preferences, new ReadingStore(new File(directory, transmitterId), RECORDS_PER_SEGMENT)));
+        }
+
+        System.out.println(String.format("Running %d sessions, %d at a time, latency %d+%dms, drop %s, disconnect %s",
+                sessions, concurrency, faults.latencyMillis, faults.jitterMillis, faults.dropProbability, faults.disconnectProbability));
+
+        long start = System.nanoTime();
+        for(int count = 0; count < sessions; ++count){
+            Slot slot = idle.take();
+            slot.transmitter.advance(SimulatedG5Transmitter.READING_INTERVAL_SECONDS * (random.nextDouble() < gapProbability ? 2 + random.nextInt(MAX_MISSED_READINGS) : 1));
+            new SessionRun(slot).start();
+        }
+        remaining.await();
+        long elapsed = System.nanoTime() - start;
+
+        scheduler.shutdownNow();
+        for(Slot slot : idle){
+            slot.store.close();
+        }
+        deleteDirectory(directory);
+
+        report(elapsed);
+    }
+
+    private void report(long elapsedNanos){
+        int failed = 0;
+        for(int count : failures.values()){
+            failed += count;
+        }
+
+        System.out.println(String.format("%d sessions in %.2fs - %.1f sessions/s, %d failed",
+                sessions, elapsedNanos / 1e9, sessions / (elapsedNanos / 1e9), failed));
+        for(Map.Entry<String, Integer> failure : failures.entrySet()){
+            System.out.println(String.format("  %6d  %s", failure.getValue(), failure.getKey()));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-20s %7s %9s %9s %9s %9s", "phase (ms)", "count", "p50", "p90", "p99", "max"));
+        for(LatencyRecorder recorder : new LatencyRecorder[]{ connect, discover, handshake, bonded, reading, backfill, total }){
+            System.out.println(recorder.summarize());
+        }
+    }
+
+    private synchronized void recordFailure(String reason){
+        // group reasons which differ only by status codes, frame numbers or byte counts
+        String key = reason.replaceAll("[0-9]+", "#");
+        Integer count = failures.get(key);
+        failures.put(key, null == count ? 1 : count + 1);
+    }
+
+    private static void deleteDirectory(File directory){
+        File[] files = directory.listFiles();
+        if(null != files){
+            for(File file : files){
+                if(file.isDirectory()){
+                    deleteDirectory(file);
+                }else{
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A transmitter and what the app keeps for it, used by one session at a time.
+     */
+    private static class Slot {
+        final SimulatedG5Transmitter transmitter;
+        final DexcomG5CryptoContext cryptoContext;
+        final TransmitterPreferences preferences;
+        final ReadingStore store;
+        final TransmitterStateMachine stateMachine = new TransmitterStateMachine(Clock.SYSTEM, null);
+        final TrendEstimator trendEstimator = new TrendEstimator();
+        final CalibrationModel calibration = new CalibrationModel();
+
+        Slot(SimulatedG5Transmitter transmitter, TransmitterPreferences preferences, ReadingStore store){
+            this.transmitter = transmitter;
+            this.cryptoContext = new DexcomG5CryptoContext(transmitter.getTransmitterId());
+            this.preferences = preferences;
+            this.store = store;
+        }
+    }
+
+    /**
+     * One connection to a transmitter, from connecting until it has the current reading and any
+     * backfill, then disconnecting. Bridges the simulated link's callbacks to the queue and the
+     * session the same way DexcomG5Transmitter bridges a BluetoothGattCallback.
+     */
+    private class SessionRun implements SimulatedG5Transmitter.Callback, DexcomG5Session.Listener {
+        private final Slot slot;
+        private final DexcomG5Session session;
+        private final AtomicBoolean isFinished = new AtomicBoolean(false);
+        private GattOperationQueue queue;
+        private ScheduledFuture<?> timeout;
+
+        private final long startTime = System.nanoTime();
+        private volatile long phaseStart = startTime;
+
+        SessionRun(Slot slot){
+            this.slot = slot;
+            this.session = new DexcomG5Session(slot.cryptoContext, slot.preferences, slot.store, slot.trendEstimator, slot.calibration, Clock.SYSTEM, scheduler, slot.stateMachine, this);
+        }
+
+        void start(){
+            timeout = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    finish("Timed out");
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            slot.stateMachine.moveTo(TransmitterState.CONNECTING);
+            slot.transmitter.connect(this);
+        }
+
+        private void endPhase(LatencyRecorder recorder){
+            long now = System.nanoTime();
+            recorder.record(now - phaseStart);
+            phaseStart = now;
+        }
+
+        /**
+         * @param failure why the session failed, or null if it succeeded
+         */
+        private void finish(String failure){
+            if(!isFinished.compareAndSet(false, true)){
+                return;
+            }
+            timeout.cancel(false);
+
+            if(null == failure){
+                total.record(System.nanoTime() - startTime);
+            }else{
+                recordFailure(failure);
+            }
+            slot.stateMachine.moveTo(TransmitterState.DISCONNECTING);
+            slot.transmitter.disconnect();
+        }
+
+        @Override
+        public void onConnected() {
+            endPhase(connect);
+            queue = new GattOperationQueue(slot.transmitter, scheduler);
+            session.start(queue);
+        }
+
+        @Override
+        public void onDisconnected() {
+            session.onDisconnected();
+            finish("Disconnected");
+            slot.stateMachine.moveTo(TransmitterState.IDLE);
+
+            idle.add(slot);
+            remaining.countDown();
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+            queue.onServicesDiscovered(status);
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+            queue.onCharacteristicRead(characteristic, value, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, int status) {
+            queue.onCharacteristicWrite(characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID characteristic, UUID descriptor, int status) {
+            queue.onDescriptorWrite(characteristic, descriptor, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+            if(!session.onNotification(characteristic, value)){
+                finish("Unknown or malformed message");
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            endPhase(discover);
+        }
+
+        @Override
+        public void onBondRequested() {
+            // the simulated link has no stack to bond with
+            session.onBonded(true);
+        }
+
+        @Override
+        public void onAuthenticated(boolean wasBonded) {
+            endPhase(wasBonded ? bonded : handshake);
+        }
+
+        @Override
+        public void onReading(long timestamp, int transmitterTime, int glucose, int trend, int flags) {
+            endPhase(reading);
+            if(!session.isBackfilling()){
+                finish(null);
+            }
+        }
+
+        @Override
+        public void onReadingsMissed(int count) {
+        }
+
+        @Override
+        public void onBackfillComplete(int readingCount) {
+            endPhase(backfill);
+            finish(null);
+        }
+
+        @Override
+        public void onBackfillFailed(String reason) {
+            finish("Backfill failed - " + reason);
+        }
+
+        @Override
+        public void onFailed(String reason) {
+            finish(reason);
+        }
+    }
+
+    /**
+     * TransmitterPreferences kept in memory, shared by all the transmitters.
+     */
+    private static class MemoryTransmitterPreferences implements TransmitterPreferences {
+        private final Map<String, Boolean> bonded = new ConcurrentHashMap<>();
+        private final Map<String, Integer> backfilledTo = new ConcurrentHashMap<>();
+        private final Map<String, String> addresses = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean isBonded(String transmitterId) {
+            Boolean isBonded = bonded.get(transmitterId);
+            return null != isBonded && isBonded;
+        }
+
+        @Override
+        public void setBonded(String transmitterId, boolean isBonded) {
+            bonded.put(transmitterId, isBonded);
+        }
+
+        @Override
+        public int getBackfilledTo(String transmitterId) {
+            Integer transmitterTime = backfilledTo.get(transmitterId);
+            return null == transmitterTime ? -1 : transmitterTime;
+        }
+
+        @Override
+        public void setBackfilledTo(String transmitterId, int transmitterTime) {
+            backfilledTo.put(transmitterId, transmitterTime);
+        }
+
+        @Override
+        public String getDeviceAddress(String transmitterId) {
+            return addresses.get(transmitterId);
+        }
+
+        @Override
+        public void setDeviceAddress(String transmitterId, String address) {
+            addresses.put(transmitterId, address);
+        }
+    }
+}
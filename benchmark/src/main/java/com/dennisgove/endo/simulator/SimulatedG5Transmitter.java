@@ -0,0 +1,526 @@
+/*
+ * Copyright 2016 Dennis Gove
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dennisgove.endo.simulator;
+
+import com.dennisgove.endo.ble.BleServices;
+import com.dennisgove.endo.ble.GattClient;
+import com.dennisgove.endo.ble.GattFuture;
+import com.dennisgove.endo.cgm.Crc16;
+import com.dennisgove.endo.cgm.DexcomG5BackfillSession;
+import com.dennisgove.endo.cgm.DexcomG5CryptoContext;
+import com.dennisgove.endo.cgm.DexcomG5MessageDecoder;
+import com.dennisgove.endo.cgm.DexcomG5MessageFactory;
+import com.dennisgove.endo.cgm.LittleEndian;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A G5 transmitter and the radio link to it, simulated on the JVM. It is the GattClient for a
+ * connection to it, so a GattOperationQueue and DexcomG5Session run against it exactly as they do
+ * against a BluetoothGatt, and it answers the way a real transmitter does:
+ *  - an AuthRequestTx is answered with the hash of its token and a random challenge, and the
+ *    answer to the challenge is checked with the transmitter's own key. A transmitter which has
+ *    been authenticated and then sent a BondRequestTx stays bonded across connections.
+ *  - SensorTx and GlucoseTx are answered with indications on the control characteristic, but only
+ *    once authenticated and once indications have been enabled.
+ *  - BackfillTx is answered with the stored readings for the range as notifications on the
+ *    backfill characteristic, then a BackfillRx.
+ *
+ * Every answer is delivered after the link latency plus a random jitter, in the order the requests
+ * were made, on the given scheduler. Faults drop answers (leaving the operation to time out) or
+ * drop the connection.
+ *
+ * Time only passes for the transmitter when advance is called. It takes a reading every five
+ * minutes and remembers all of them.
+ */
+public class SimulatedG5Transmitter implements GattClient {
+
+    public static final long READING_INTERVAL_SECONDS = 5 * 60;
+
+    private static final int MAX_FRAME_LENGTH = 20;
+    private static final int FRAME_HEADER_LENGTH = 2;
+    private static final int BACKFILL_PAYLOAD_HEADER_LENGTH = 4;
+    private static final int BACKFILL_RECORD_LENGTH = 8;
+
+    /**
+     * What can go wrong on the link. Each answer is dropped with dropProbability, and the
+     * connection is lost instead of an answer with disconnectProbability.
+     */
+    public static class Faults {
+        public static final Faults NONE = new Faults(0, 0, 0, 0);
+
+        public final long latencyMillis;
+        public final long jitterMillis;
+        public final double dropProbability;
+        public final double disconnectProbability;
+
+        public Faults(long latencyMillis, long jitterMillis, double dropProbability, double disconnectProbability){
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.dropProbability = dropProbability;
+            this.disconnectProbability = disconnectProbability;
+        }
+    }
+
+    /**
+     * The events a BluetoothGattCallback would receive for the connection.
+     */
+    public interface Callback {
+        void onConnected();
+
+        /**
+         * The connection was lost, refused or closed by disconnect. Nothing more is delivered for
+         * the connection after this.
+         */
+        void onDisconnected();
+
+        void onServicesDiscovered(int status);
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+        void onCharacteristicWrite(UUID characteristic, int status);
+        void onDescriptorWrite(UUID characteristic, UUID descriptor, int status);
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+    }
+
+    private final String transmitterId;
+    private final ScheduledExecutorService scheduler;
+    private final Faults faults;
+    private final Random random;
+    private final DexcomG5CryptoContext cryptoContext;
+
+    // answers waiting to be delivered, in the order they were made
+    private final ArrayDeque<Runnable> deliveries = new ArrayDeque<>();
+    private final Object deliveryLock = new Object();
+
+    // guarded by this
+    private Callback callback;
+    private int connection = 0;
+    private boolean isConnected = false;
+    private boolean isAuthenticated = false;
+    private boolean isBonded = false;
+    private boolean isControlEnabled = false;
+    private boolean isBackfillEnabled = false;
+    private byte[] authAnswer;
+    private final byte[] challenge = new byte[DexcomG5CryptoContext.TOKEN_LENGTH];
+    private final byte[] expectedHash = new byte[DexcomG5CryptoContext.HASH_LENGTH];
+    private long transmitterTime;
+    private long sequence = 0;
+    private int backfillIdentifier = 0;
+
+    public SimulatedG5Transmitter(String transmitterId, long transmitterTime, ScheduledExecutorService scheduler, Faults faults, long seed){
+        this.transmitterId = transmitterId;
+        this.transmitterTime = transmitterTime;
+        this.scheduler = scheduler;
+        this.faults = faults;
+        this.random = new Random(seed);
+        this.cryptoContext = new DexcomG5CryptoContext(transmitterId);
+    }
+
+    public String getTransmitterId(){
+        return transmitterId;
+    }
+
+    public synchronized long getTransmitterTime(){
+        return transmitterTime;
+    }
+
+    /**
+     * Lets time pass for the transmitter, which takes readings all the while.
+     */
+    public synchronized void advance(long seconds){
+        transmitterTime += seconds;
+    }
+
+    public synchronized boolean isBonded(){
+        return isBonded;
+    }
+
+    /**
+     * Starts a connection, replacing any existing one. The callback is told once it is made, or
+     * that it failed.
+     */
+    public synchronized void connect(Callback callback){
+        this.callback = callback;
+        ++connection;
+        isConnected = false;
+        isAuthenticated = false;
+        isControlEnabled = false;
+        isBackfillEnabled = false;
+        authAnswer = null;
+
+        final int current = connection;
+        if(random.nextDouble() < faults.disconnectProbability){
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = endConnection(current);
+                    if(null != callback){
+                        callback.onDisconnected();
+                    }
+                }
+            });
+            return;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = startConnection(current);
+                if(null != callback){
+                    callback.onConnected();
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if(!isConnected){
+            return false;
+        }
+
+        answer(new Answer() {
+            @Override
+            public void deliverTo(Callback callback) {
+                callback.onServicesDiscovered(GattFuture.STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(final UUID service, final UUID characteristic) {
+        if(!isConnected){
+            return false;
+        }
+
+        final byte[] value;
+        if(BleServices.Authentication.equals(characteristic)){
+            // the challenge is read once after the request, otherwise the status is read
+            value = null != authAnswer ? authAnswer : authStatus();
+            authAnswer = null;
+        }else{
+            value = new byte[0];
+        }
+
+        answer(new Answer() {
+            @Override
+            public void deliverTo(Callback callback) {
+                callback.onCharacteristicRead(characteristic, value, GattFuture.STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeCharacteristic(UUID service, final UUID characteristic, byte[] value) {
+        if(!isConnected){
+            return false;
+        }
+
+        answer(new Answer() {
+            @Override
+            public void deliverTo(Callback callback) {
+                callback.onCharacteristicWrite(characteristic, GattFuture.STATUS_SUCCESS);
+            }
+        });
+
+        if(BleServices.Authentication.equals(characteristic)){
+            onAuthenticationWrite(value);
+        }else if(BleServices.Control.equals(characteristic)){
+            onControlWrite(value);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(UUID service, final UUID characteristic, final UUID descriptor, byte[] value) {
+        if(!isConnected){
+            return false;
+        }
+
+        boolean isEnabled = 0 != value[0];
+        if(BleServices.Control.equals(characteristic)){
+            isControlEnabled = isEnabled;
+        }else if(BleServices.ProbablyBackfill.equals(characteristic)){
+            isBackfillEnabled = isEnabled;
+        }
+
+        answer(new Answer() {
+            @Override
+            public void deliverTo(Callback callback) {
+                callback.onDescriptorWrite(characteristic, descriptor, GattFuture.STATUS_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(UUID service, UUID characteristic, boolean enable) {
+        return isConnected;
+    }
+
+    /**
+     * Ends the connection. The callback is told once the transmitter has seen it go.
+     */
+    @Override
+    public synchronized void disconnect() {
+        final int current = connection;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = endConnection(current);
+                if(null != callback){
+                    callback.onDisconnected();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void onAuthenticationWrite(byte[] value){
+        if(DexcomG5MessageFactory.AUTH_REQUEST_TX_LENGTH == value.length && DexcomG5MessageFactory.AUTH_REQUEST_TX_OPCODE == value[0]){
+            random.nextBytes(challenge);
+            cryptoContext.calculateHash(challenge, 0, expectedHash, 0);
+
+            authAnswer = new byte[DexcomG5MessageFactory.AUTH_CHALLENGE_RX_LENGTH];
+            authAnswer[0] = DexcomG5MessageFactory.AUTH_CHALLENGE_RX_OPCODE;
+            cryptoContext.calculateHash(value, 1, authAnswer, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_TOKEN_HASH_OFFSET);
+            System.arraycopy(challenge, 0, authAnswer, DexcomG5MessageFactory.AUTH_CHALLENGE_RX_CHALLENGE_OFFSET, challenge.length);
+        }else if(DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH == value.length && DexcomG5MessageFactory.AUTH_CHALLENGE_TX_OPCODE == value[0]){
+            isAuthenticated = Arrays.equals(expectedHash, Arrays.copyOfRange(value, 1, DexcomG5MessageFactory.AUTH_CHALLENGE_TX_LENGTH));
+        }else if(DexcomG5MessageFactory.BOND_REQUEST_TX_LENGTH == value.length && DexcomG5MessageFactory.BOND_REQUEST_TX_OPCODE == value[0]){
+            isBonded = isBonded || isAuthenticated;
+        }
+    }
+
+    private byte[] authStatus(){
+        // a bonded transmitter treats the bond as authentication; 2 is not bonded
+        return new byte[] { DexcomG5MessageFactory.AUTH_STATUS_RX_OPCODE, (byte)(isAuthenticated || isBonded ? 1 : 0), (byte)(isBonded ? 1 : 2) };
+    }
+
+    private void onControlWrite(byte[] value){
+        if(!isAuthenticated && !isBonded || !isControlEnabled || !Crc16.isValid(value, value.length)){
+            return;
+        }
+
+        switch(value[0]){
+            case DexcomG5MessageFactory.SENSOR_TX_OPCODE:
+                notify(BleServices.Control, sensorRx(latestReadingTime()));
+                break;
+
+            case DexcomG5MessageFactory.GLUCOSE_TX_OPCODE:
+                notify(BleServices.Control, glucoseRx(latestReadingTime()));
+                break;
+
+            case DexcomG5MessageFactory.BACKFILL_TX_OPCODE:
+                if(isBackfillEnabled){
+                    sendBackfill(LittleEndian.readUInt32(value, 4), LittleEndian.readUInt32(value, 8));
+                }
+                break;
+        }
+    }
+
+    private long latestReadingTime(){
+        return transmitterTime - transmitterTime % READING_INTERVAL_SECONDS;
+    }
+
+    private byte[] sensorRx(long time){
+        byte[] message = new byte[DexcomG5MessageDecoder.SENSOR_RX_LENGTH];
+        message[0] = DexcomG5MessageDecoder.SENSOR_RX_OPCODE;
+        LittleEndian.writeInt32(message, 2, (int)time);
+        LittleEndian.writeInt32(message, 6, glucose(time) * 1000 + 500); // unfiltered
+        LittleEndian.writeInt32(message, 10, glucose(time) * 1000); // filtered
+        Crc16.append(message, message.length);
+        return message;
+    }
+
+    private byte[] glucoseRx(long time){
+        byte[] message = new byte[DexcomG5MessageDecoder.GLUCOSE_RX_LENGTH];
+        message[0] = DexcomG5MessageDecoder.GLUCOSE_RX_OPCODE;
+        LittleEndian.writeInt32(message, 2, (int)++sequence);
+        LittleEndian.writeInt32(message, 6, (int)time);
+        LittleEndian.writeUInt16(message, 10, glucose(time));
+        message[12] = 6; // calibrated, in range
+        message[13] = (byte)trend(time);
+        Crc16.append(message, message.length);
+        return message;
+    }
+
+    /**
+     * Sends the readings taken between startTime and endTime, split into frames of at most the
+     * size of a notification, followed by a BackfillRx describing them.
+     */
+    private void sendBackfill(long startTime, long endTime){
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(new byte[BACKFILL_PAYLOAD_HEADER_LENGTH], 0, BACKFILL_PAYLOAD_HEADER_LENGTH);
+
+        byte[] record = new byte[BACKFILL_RECORD_LENGTH];
+        long first = startTime + (READING_INTERVAL_SECONDS - startTime % READING_INTERVAL_SECONDS) % READING_INTERVAL_SECONDS;
+        for(long time = first; time <= endTime && time <= transmitterTime; time += READING_INTERVAL_SECONDS){
+            LittleEndian.writeInt32(record, 0, (int)time);
+            LittleEndian.writeUInt16(record, 4, glucose(time));
+            record[6] = 6;
+            record[7] = (byte)trend(time);
+            payload.write(record, 0, record.length);
+        }
+
+        byte[] bytes = payload.toByteArray();
+        int identifier = ++backfillIdentifier & 0xff;
+        long length = 0;
+        int crc = 0;
+        int index = 1;
+        for(int offset = 0; offset < bytes.length; offset += MAX_FRAME_LENGTH - FRAME_HEADER_LENGTH, ++index){
+            int payloadLength = Math.min(MAX_FRAME_LENGTH - FRAME_HEADER_LENGTH, bytes.length - offset);
+            byte[] frame = new byte[FRAME_HEADER_LENGTH + payloadLength];
+            frame[0] = (byte)index;
+            frame[1] = (byte)identifier;
+            System.arraycopy(bytes, offset, frame, FRAME_HEADER_LENGTH, payloadLength);
+
+            length += frame.length;
+            crc = Crc16.update(crc, frame, 0, frame.length);
+            notify(BleServices.ProbablyBackfill, frame);
+        }
+
+        byte[] message = new byte[DexcomG5BackfillSession.BACKFILL_RX_LENGTH];
+        message[0] = DexcomG5BackfillSession.BACKFILL_RX_OPCODE;
+        LittleEndian.writeInt32(message, 4, (int)startTime);
+        LittleEndian.writeInt32(message, 8, (int)endTime);
+        LittleEndian.writeInt32(message, 12, (int)length);
+        LittleEndian.writeUInt16(message, 16, crc);
+        Crc16.append(message, message.length);
+        notify(BleServices.Control, message);
+    }
+
+    /**
+     * A slow sine wave between 90 and 190 mg/dL, so consecutive readings differ and have a trend.
+     */
+    private static int glucose(long time){
+        return (int)Math.round(140 + 50 * Math.sin(2 * Math.PI * time / (6 * 60 * 60)));
+    }
+
+    private static int trend(long time){
+        // mg/dL per minute, times ten
+        return (glucose(time) - glucose(time - READING_INTERVAL_SECONDS)) * 10 / 5;
+    }
+
+    private void notify(final UUID characteristic, final byte[] value){
+        answer(new Answer() {
+            @Override
+            public void deliverTo(Callback callback) {
+                callback.onCharacteristicChanged(characteristic, value);
+            }
+        });
+    }
+
+    private interface Answer {
+        void deliverTo(Callback callback);
+    }
+
+    /**
+     * Queues an answer for delivery on the current connection, subject to the faults.
+     */
+    private void answer(final Answer answer){
+        final int current = connection;
+        double fault = random.nextDouble();
+        if(fault < faults.disconnectProbability){
+            isConnected = false;
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = endConnection(current);
+                    if(null != callback){
+                        callback.onDisconnected();
+                    }
+                }
+            });
+            return;
+        }
+        if(fault < faults.disconnectProbability + faults.dropProbability){
+            return;
+        }
+
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                Callback callback = callbackFor(current);
+                if(null != callback){
+                    answer.deliverTo(callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the delivery on the scheduler after the link latency. Deliveries are queued, and each
+     * scheduled task runs whichever is at the head of the queue, so they are made one at a time
+     * in the order they were queued however the scheduler orders the tasks.
+     */
+    private void deliver(Runnable delivery){
+        synchronized(deliveries){
+            deliveries.addLast(delivery);
+        }
+
+        long delay = faults.latencyMillis + (faults.jitterMillis > 0 ? (long)(random.nextDouble() * faults.jitterMillis) : 0);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized(deliveryLock){
+                    Runnable next;
+                    synchronized(deliveries){
+                        next = deliveries.pollFirst();
+                    }
+                    if(null != next){
+                        next.run();
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized Callback callbackFor(int forConnection){
+        return forConnection == connection && isConnected ? callback : null;
+    }
+
+    private synchronized Callback startConnection(int forConnection){
+        if(forConnection != connection){
+            return null;
+        }
+        isConnected = true;
+        return callback;
+    }
+
+    /**
+     * @return the callback to tell, or null if the connection had already ended
+     */
+    private synchronized Callback endConnection(int forConnection){
+        if(forConnection != connection || null == callback){
+            return null;
+        }
+        Callback ended = callback;
+        isConnected = false;
+        callback = null;
+        return ended;
+    }
+}